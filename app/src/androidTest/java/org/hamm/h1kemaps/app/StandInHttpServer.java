@@ -0,0 +1,419 @@
+package org.hamm.h1kemaps.app;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Minimal HTTP/1.1 server on the loopback interface that stands in for the map servers in tests.
+ * It serves byte arrays registered per path, answers conditional and range requests and counts
+ * the requests and payload bytes it served. A resource can be told to drop the connection in the
+ * middle of the body or to ignore range requests, like some proxies and servers do, or to answer
+ * requests that accept gzip with a compressed body. It can send the Content-MD5 of every body and
+ * damage bodies on the way after their digest was computed.
+ */
+public class StandInHttpServer {
+
+    private final ServerSocket serverSocket;
+
+    private final Map<String, Resource> resources = new ConcurrentHashMap<String, Resource>();
+
+    private final AtomicLong payloadBytes = new AtomicLong();
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private volatile boolean running = true;
+
+    public StandInHttpServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptThread = new Thread("StandInHttpServer") {
+
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        connections.incrementAndGet();
+                        new Thread() {
+
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        }.start();
+                    } catch (IOException e) {
+                        // server socket closed
+                    }
+                }
+            }
+        };
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public String url(String path) {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + path;
+    }
+
+    /**
+     * Registers a resource. Replacing a resource with new content changes its validators.
+     */
+    public Resource put(String path, byte[] content) {
+        Resource resource = new Resource(content);
+        resources.put(path, resource);
+        return resource;
+    }
+
+    public long getPayloadBytes() {
+        return payloadBytes.get();
+    }
+
+    public int getRequests() {
+        return requests.get();
+    }
+
+    public int getConnections() {
+        return connections.get();
+    }
+
+    public void shutdown() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream input = new BufferedInputStream(socket.getInputStream());
+            OutputStream output = socket.getOutputStream();
+            while (running) {
+                String requestLine = readLine(input);
+                if (requestLine == null || requestLine.length() == 0) {
+                    break;
+                }
+                Map<String, String> headers = new HashMap<String, String>();
+                for (String line = readLine(input); line != null && line.length() > 0; line = readLine(input)) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+                    }
+                }
+                requests.incrementAndGet();
+                String[] parts = requestLine.split(" ");
+                boolean head = "HEAD".equals(parts[0]);
+                if (!respond(resources.get(parts[1]), headers, head, output)) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Writes the response.
+     * @return true if the connection can be kept open for the next request.
+     */
+    private boolean respond(Resource resource, Map<String, String> headers, boolean head, OutputStream output)
+            throws IOException {
+        if (resource == null) {
+            writeHead(output, "404 Not Found", 0, null);
+            return true;
+        }
+        resource.requests.incrementAndGet();
+        String ifNoneMatch = headers.get("if-none-match");
+        String ifModifiedSince = headers.get("if-modified-since");
+        if ((ifNoneMatch != null && ifNoneMatch.equals(resource.etag))
+                || (ifNoneMatch == null && ifModifiedSince != null && ifModifiedSince.equals(resource.lastModified))) {
+            writeHead(output, "304 Not Modified", -1, resource);
+            return true;
+        }
+
+        int length = resource.content.length;
+        String range = headers.get("range");
+        String ifRange = headers.get("if-range");
+        if (range != null && !resource.ignoreRanges && range.startsWith("bytes=")
+                && (ifRange == null || ifRange.equals(resource.etag) || ifRange.equals(resource.lastModified))) {
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            int start = Integer.parseInt(bounds[0].trim());
+            int end = bounds[1].trim().length() > 0 ? Math.min(Integer.parseInt(bounds[1].trim()), length - 1) : length - 1;
+            if (start >= length) {
+                writeHead(output, "416 Requested Range Not Satisfiable", 0, resource, "bytes */" + length);
+                return true;
+            }
+            writeHead(output, "206 Partial Content", end - start + 1, resource,
+                    "bytes " + start + "-" + end + "/" + length, null, getContentMd5(resource, start, end + 1));
+            return head || writeBody(resource, resource.content, start, end + 1, output);
+        }
+
+        String acceptEncoding = headers.get("accept-encoding");
+        if (resource.gzipped != null && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            writeHead(output, "200 OK", resource.gzipped.length, resource, null, "gzip");
+            return head || writeBody(resource, resource.gzipped, 0, resource.gzipped.length, output);
+        }
+        writeHead(output, "200 OK", length, resource, null, null, getContentMd5(resource, 0, length));
+        return head || writeBody(resource, resource.content, 0, length, output);
+    }
+
+    /**
+     * Writes a part of the content, slowed down to the bandwidth of the resource.
+     * @return false if the resource dropped the connection in the middle of the part.
+     */
+    private boolean writeBody(Resource resource, byte[] content, int start, int end, OutputStream output)
+            throws IOException {
+        boolean drop = resource.drops.get() > 0 && end - start > resource.dropAfter
+                && resource.drops.decrementAndGet() >= 0;
+        int stop = drop ? start + (int) resource.dropAfter : end;
+        if (resource.corruptions.get() > 0 && resource.corruptions.decrementAndGet() >= 0) {
+            // one flipped byte in the middle of the body, the digest in the head was of the right bytes
+            content = Arrays.copyOf(content, content.length);
+            content[(start + stop) / 2] ^= 0x5a;
+        }
+        int chunk = resource.bytesPerSecond > 0 ? Math.max(1, resource.bytesPerSecond / 50) : stop - start;
+        for (int position = start; position < stop; position += chunk) {
+            int count = Math.min(chunk, stop - position);
+            output.write(content, position, count);
+            output.flush();
+            payloadBytes.addAndGet(count);
+            if (resource.bytesPerSecond > 0) {
+                try {
+                    Thread.sleep(count * 1000L / resource.bytesPerSecond);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+        }
+        return !drop;
+    }
+
+    private static void writeHead(OutputStream output, String status, long contentLength, Resource resource)
+            throws IOException {
+        writeHead(output, status, contentLength, resource, null);
+    }
+
+    private static void writeHead(OutputStream output, String status, long contentLength, Resource resource,
+                                  String contentRange) throws IOException {
+        writeHead(output, status, contentLength, resource, contentRange, null);
+    }
+
+    private static void writeHead(OutputStream output, String status, long contentLength, Resource resource,
+                                  String contentRange, String contentEncoding) throws IOException {
+        writeHead(output, status, contentLength, resource, contentRange, contentEncoding, null);
+    }
+
+    private static void writeHead(OutputStream output, String status, long contentLength, Resource resource,
+                                  String contentRange, String contentEncoding, String contentMd5) throws IOException {
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(status).append("\r\n");
+        if (contentLength >= 0) {
+            head.append("Content-Length: ").append(contentLength).append("\r\n");
+        }
+        if (contentRange != null) {
+            head.append("Content-Range: ").append(contentRange).append("\r\n");
+        }
+        if (contentEncoding != null) {
+            head.append("Content-Encoding: ").append(contentEncoding).append("\r\n");
+        }
+        if (contentMd5 != null) {
+            head.append("Content-MD5: ").append(contentMd5).append("\r\n");
+        }
+        if (resource != null && !resource.ignoreRanges) {
+            head.append("Accept-Ranges: bytes\r\n");
+        }
+        if (resource != null) {
+            head.append("ETag: ").append(resource.etag).append("\r\n");
+            head.append("Last-Modified: ").append(resource.lastModified).append("\r\n");
+        }
+        head.append("\r\n");
+        output.write(head.toString().getBytes("US-ASCII"));
+        output.flush();
+    }
+
+    /**
+     * @return the Base64 MD5 of the bytes start to end of the content, null if the resource does not
+     * send digests.
+     */
+    private static String getContentMd5(Resource resource, int start, int end) {
+        if (!resource.sendContentMd5) {
+            return null;
+        }
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            md5.update(resource.content, start, end - start);
+            return toBase64(md5.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toBase64(byte[] bytes) {
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < bytes.length; i += 3) {
+            int count = Math.min(3, bytes.length - i);
+            int block = 0;
+            for (int j = 0; j < 3; j++) {
+                block = (block << 8) | (j < count ? bytes[i + j] & 0xff : 0);
+            }
+            for (int j = 0; j < 4; j++) {
+                result.append(j <= count ? alphabet.charAt((block >> (18 - 6 * j)) & 0x3f) : '=');
+            }
+        }
+        return result.toString();
+    }
+
+    private static String readLine(InputStream input) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = input.read()) >= 0) {
+            if (b == '\n') {
+                break;
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        if (b < 0 && line.size() == 0) {
+            return null;
+        }
+        return line.toString("US-ASCII");
+    }
+
+    /**
+     * Content served at a path.
+     */
+    public static class Resource {
+
+        private static final AtomicInteger VERSIONS = new AtomicInteger();
+
+        final byte[] content;
+
+        final String etag;
+
+        final String lastModified;
+
+        final AtomicInteger requests = new AtomicInteger();
+
+        /**
+         * Number of responses that are cut off after dropAfter payload bytes
+         */
+        final AtomicInteger drops = new AtomicInteger();
+
+        volatile long dropAfter;
+
+        /**
+         * Number of responses whose body is damaged after its digest was computed
+         */
+        final AtomicInteger corruptions = new AtomicInteger();
+
+        volatile boolean sendContentMd5;
+
+        volatile boolean ignoreRanges;
+
+        volatile int bytesPerSecond;
+
+        /**
+         * Compressed content for requests that accept gzip, null if the resource is not compressed
+         */
+        volatile byte[] gzipped;
+
+        Resource(byte[] content) {
+            int version = VERSIONS.incrementAndGet();
+            this.content = content;
+            this.etag = "\"v" + version + "\"";
+            this.lastModified = "Mon, 0" + (version % 9 + 1) + " Jan 2024 00:00:00 GMT";
+        }
+
+        /**
+         * Closes the connection after the given number of payload bytes for the next responses.
+         * @param count = number of responses to cut off.
+         * @param afterBytes = payload bytes sent before the connection is closed.
+         */
+        public Resource dropConnections(int count, long afterBytes) {
+            drops.set(count);
+            dropAfter = afterBytes;
+            return this;
+        }
+
+        /**
+         * Sends the Content-MD5 of the sent bytes with every uncompressed body.
+         */
+        public Resource sendContentMd5() {
+            sendContentMd5 = true;
+            return this;
+        }
+
+        /**
+         * Flips a byte in the next bodies, the Content-MD5 still is the one of the right bytes.
+         * @param count = number of responses to damage.
+         */
+        public Resource corruptBodies(int count) {
+            corruptions.set(count);
+            return this;
+        }
+
+        /**
+         * Answers range requests with the whole content, like a server without range support.
+         */
+        public Resource ignoreRanges() {
+            ignoreRanges = true;
+            return this;
+        }
+
+        /**
+         * Limits the speed of every response of the resource.
+         * @param bytesPerSecond = bandwidth per connection.
+         */
+        public Resource throttle(int bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
+        /**
+         * Answers requests that accept gzip with the compressed content, range requests are
+         * answered uncompressed.
+         */
+        public Resource gzip() throws IOException {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            GZIPOutputStream output = new GZIPOutputStream(compressed);
+            output.write(content);
+            output.close();
+            gzipped = compressed.toByteArray();
+            return this;
+        }
+
+        public int getRequests() {
+            return requests.get();
+        }
+
+        public byte[] getContent() {
+            return content;
+        }
+    }
+}
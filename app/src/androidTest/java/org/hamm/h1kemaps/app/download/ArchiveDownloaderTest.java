@@ -0,0 +1,186 @@
+package org.hamm.h1kemaps.app.download;
+
+import junit.framework.TestCase;
+
+import org.hamm.h1kemaps.app.StandInHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Tests extracting the name-browser archive while it is downloaded from a local stand-in server.
+ */
+public class ArchiveDownloaderTest extends TestCase {
+
+    private static final String ARCHIVE_PATH = "/DE.zip";
+
+    private StandInHttpServer server;
+
+    private File directory;
+
+    private DownloadPart part;
+
+    private byte[] index;
+
+    private byte[] data;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new StandInHttpServer();
+        directory = File.createTempFile("archive", "");
+        directory.delete();
+        directory.mkdirs();
+        part = DownloadPart.forPackage("DE", server.url("/DE.skm"), server.url("/DE.txg"), server.url(ARCHIVE_PATH),
+                directory, -1).get(2);
+        Random random = new Random(3);
+        index = new byte[300 * 1024];
+        random.nextBytes(index);
+        // compressible like the name tables
+        data = new byte[2 * 1024 * 1024 + 17];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ('a' + random.nextInt(4));
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.shutdown();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+        super.tearDown();
+    }
+
+    public void testEntriesAreExtractedWhileDownloading() throws IOException {
+        byte[] archive = zip("DE/DE.ngi", index, "DE/DE.ngi.dat", data, "readme.txt", new byte[10]);
+        server.put(ARCHIVE_PATH, archive);
+
+        long length = downloader().download(part.getUrl(), part.getFiles(), null, null);
+
+        assertEquals(archive.length, length);
+        assertEquals(archive.length, server.getPayloadBytes());
+        List<File> files = part.getFiles();
+        assertTrue(Arrays.equals(index, readFile(files.get(0))));
+        assertTrue(Arrays.equals(data, readFile(files.get(1))));
+        for (File file : files) {
+            assertTrue(ChunkDigests.read(file).isComplete());
+        }
+        // no copy of the archive and no entry outside of the files
+        for (File file : directory.listFiles()) {
+            assertTrue(file.getName(), file.getName().startsWith("DE.ngi"));
+        }
+    }
+
+    public void testExtractedArchiveIsNotRequestedAgain() throws IOException {
+        server.put(ARCHIVE_PATH, zip("DE.ngi", index, "DE.ngi.dat", data));
+        ArchiveDownloader downloader = downloader();
+        downloader.download(part.getUrl(), part.getFiles(), null, null);
+        downloader.download(part.getUrl(), part.getFiles(), null, null);
+
+        assertEquals(1, server.getRequests());
+    }
+
+    public void testArchiveWithoutAllFilesIsRejected() throws IOException {
+        server.put(ARCHIVE_PATH, zip("DE.ngi", index));
+        try {
+            downloader().download(part.getUrl(), part.getFiles(), null, null);
+            fail();
+        } catch (ZipException e) {
+            // one request, the archive would not change
+            assertEquals(1, server.getRequests());
+        }
+    }
+
+    public void testSplitFilesAreDownloadedWithoutArchive() throws Exception {
+        server.put("/DE.ngi", index);
+        server.put("/DE.ngi.dat", data);
+        PackageDownloadEngine engine = new PackageDownloadEngine(PackageDownloadEngine.createHttpClient(1), 1,
+                new PackageDownloadEngine.Installer() {
+
+                    @Override
+                    public boolean install(File directory, String packageCode) {
+                        return true;
+                    }
+                });
+        List<String> urls = part.getFileUrls();
+        assertEquals(server.url("/DE.ngi"), urls.get(0));
+        assertEquals(server.url("/DE.ngi.dat"), urls.get(1));
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<IOException> error = new AtomicReference<IOException>();
+        engine.download("DE", Collections.singletonList(part), BandwidthScheduler.PRIORITY_FOREGROUND,
+                new PackageDownloadEngine.Listener() {
+
+                    @Override
+                    public void onInstalled(String packageCode) {
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onFailed(String packageCode, IOException e) {
+                        error.set(e);
+                        done.countDown();
+                    }
+                });
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        engine.shutdown();
+
+        assertNull(error.get());
+        assertTrue(Arrays.equals(index, readFile(part.getFiles().get(0))));
+        assertTrue(Arrays.equals(data, readFile(part.getFiles().get(1))));
+    }
+
+    private ArchiveDownloader downloader() {
+        return new ArchiveDownloader(PackageDownloadEngine.createHttpClient(1), new DirectBufferPool(64 * 1024, 1));
+    }
+
+    /**
+     * @param entries = name and content of every entry.
+     */
+    private static byte[] zip(Object... entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        for (int i = 0; i < entries.length; i += 2) {
+            zip.putNextEntry(new ZipEntry((String) entries[i]));
+            zip.write((byte[]) entries[i + 1]);
+            zip.closeEntry();
+        }
+        zip.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] content = new byte[(int) file.length()];
+        InputStream input = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < content.length) {
+                int read = input.read(content, offset, content.length - offset);
+                if (read < 0) {
+                    break;
+                }
+                offset += read;
+            }
+        } finally {
+            input.close();
+        }
+        return content;
+    }
+}
@@ -0,0 +1,170 @@
+package org.hamm.h1kemaps.app.download;
+
+import junit.framework.TestCase;
+
+import org.hamm.h1kemaps.app.StandInHttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Measures the rates the downloads reach against a local stand-in server when they take their
+ * bandwidth from a BandwidthScheduler.
+ */
+public class BandwidthSchedulerTest extends TestCase {
+
+    private static final int RATE = 256 * 1024;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private StandInHttpServer server;
+
+    private File directory;
+
+    private BandwidthScheduler scheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new StandInHttpServer();
+        directory = File.createTempFile("downloads", "");
+        directory.delete();
+        directory.mkdirs();
+        scheduler = new BandwidthScheduler();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.shutdown();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+        super.tearDown();
+    }
+
+    public void testRateLimitIsReached() throws IOException {
+        server.put("/DE.skm", content(3 * RATE));
+        scheduler.setRateLimit(RATE);
+
+        long start = System.nanoTime();
+        download("/DE.skm", BandwidthScheduler.PRIORITY_FOREGROUND, null);
+        double rate = 3 * RATE / seconds(start);
+
+        // the burst of the bucket lets the first bytes through at once
+        assertTrue("rate " + rate, rate > 0.8 * RATE && rate < 1.25 * RATE);
+    }
+
+    public void testParallelTransfersShareTheRateLimit() throws Exception {
+        server.put("/DE.skm", content(3 * RATE / 2));
+        server.put("/FR.skm", content(3 * RATE / 2));
+        scheduler.setRateLimit(RATE);
+
+        long start = System.nanoTime();
+        Thread second = startDownload("/FR.skm", BandwidthScheduler.PRIORITY_FOREGROUND, null,
+                new AtomicReference<IOException>());
+        download("/DE.skm", BandwidthScheduler.PRIORITY_FOREGROUND, null);
+        second.join();
+        double rate = 3 * RATE / seconds(start);
+
+        assertTrue("rate " + rate, rate > 0.8 * RATE && rate < 1.25 * RATE);
+    }
+
+    public void testWifiOnlyTransferWaitsForWifi() throws Exception {
+        server.put("/DE.skm", content(RATE));
+        scheduler.setWifiOnly(BandwidthScheduler.PRIORITY_BACKGROUND, true);
+        scheduler.setNetworkState(true, false);
+
+        AtomicLong progress = new AtomicLong();
+        AtomicReference<IOException> error = new AtomicReference<IOException>();
+        Thread thread = startDownload("/DE.skm", BandwidthScheduler.PRIORITY_BACKGROUND, progress, error);
+        Thread.sleep(500);
+        assertEquals(0, progress.get());
+        assertTrue(thread.isAlive());
+
+        scheduler.setNetworkState(true, true);
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertNull(error.get());
+        assertEquals(RATE, progress.get());
+    }
+
+    public void testForegroundTransferPreemptsBackgroundTransfer() throws Exception {
+        server.put("/DE.skm", content(4 * RATE));
+        server.put("/FR.skm", content(RATE));
+        scheduler.setRateLimit(RATE);
+
+        AtomicLong backgroundProgress = new AtomicLong();
+        AtomicReference<IOException> error = new AtomicReference<IOException>();
+        Thread background = startDownload("/DE.skm", BandwidthScheduler.PRIORITY_BACKGROUND, backgroundProgress,
+                error);
+        Thread.sleep(1000);
+        long backgroundBefore = backgroundProgress.get();
+        assertTrue(backgroundBefore > 0);
+
+        long start = System.nanoTime();
+        download("/FR.skm", BandwidthScheduler.PRIORITY_FOREGROUND, null);
+        double rate = RATE / seconds(start);
+        long backgroundDuring = backgroundProgress.get() - backgroundBefore;
+
+        // the foreground transfer gets the whole rate, the background one only finishes its last read
+        assertTrue("rate " + rate, rate > 0.8 * RATE);
+        assertTrue("background bytes " + backgroundDuring, backgroundDuring <= 64 * 1024);
+        background.join(10000);
+        assertNull(error.get());
+        assertEquals(4 * RATE, backgroundProgress.get());
+    }
+
+    private long download(String path, int priority, final AtomicLong progress) throws IOException {
+        BandwidthScheduler.Transfer transfer = scheduler.open(priority);
+        try {
+            // like the engine: no request before the transfer may run
+            transfer.consume(0);
+            ResumableDownloader downloader = new ResumableDownloader(PackageDownloadEngine.createHttpClient(1),
+                    BUFFER_SIZE);
+            return downloader.download(server.url(path), new File(directory, path.substring(1)),
+                    progress == null ? null : new ResumableDownloader.ProgressListener() {
+
+                        @Override
+                        public void onProgress(long downloadedBytes, long totalBytes) {
+                            progress.set(downloadedBytes);
+                        }
+                    }, transfer);
+        } finally {
+            transfer.close();
+        }
+    }
+
+    private Thread startDownload(final String path, final int priority, final AtomicLong progress,
+                                 final AtomicReference<IOException> error) {
+        Thread thread = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    download(path, priority, progress);
+                } catch (IOException e) {
+                    error.set(e);
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        new Random(length).nextBytes(content);
+        return content;
+    }
+
+    private static double seconds(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1e9;
+    }
+}
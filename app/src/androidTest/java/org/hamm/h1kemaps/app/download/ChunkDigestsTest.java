@@ -0,0 +1,133 @@
+package org.hamm.h1kemaps.app.download;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests the chunk table of a download file and its sidecar file.
+ */
+public class ChunkDigestsTest extends TestCase {
+
+    private static final int FILE_LENGTH = 2 * ChunkDigests.CHUNK_SIZE + ChunkDigests.CHUNK_SIZE / 2;
+
+    private File target;
+
+    private byte[] content;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        target = File.createTempFile("digests", ".skm");
+        content = new byte[FILE_LENGTH];
+        new Random(3).nextBytes(content);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ChunkDigests.delete(target);
+        target.delete();
+        super.tearDown();
+    }
+
+    public void testSavedTableIsReadWithAllChunks() throws Exception {
+        ChunkDigests digests = write();
+
+        ChunkDigests read = ChunkDigests.read(target);
+        assertEquals(FILE_LENGTH, read.getLength());
+        assertTrue(read.isComplete());
+        assertEquals(FILE_LENGTH, read.getHashedEnd());
+        assertEquals(digests.getFileDigest(), read.getFileDigest());
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        md5.update(content, 2 * ChunkDigests.CHUNK_SIZE, FILE_LENGTH - 2 * ChunkDigests.CHUNK_SIZE);
+        assertTrue("the short last chunk has its own digest", Arrays.equals(md5.digest(), read.getChunk(2)));
+        assertFalse(new File(ChunkDigests.getFile(target).getPath() + ".tmp").exists());
+    }
+
+    public void testChunksBehindTheEndOfTheFileAreDropped() throws Exception {
+        write();
+        // the table was stored, but the file lost its last bytes
+        RandomAccessFile file = new RandomAccessFile(target, "rw");
+        try {
+            file.setLength(ChunkDigests.CHUNK_SIZE + 10);
+        } finally {
+            file.close();
+        }
+
+        ChunkDigests read = ChunkDigests.read(target);
+        assertFalse(read.isComplete());
+        assertNull(read.getFileDigest());
+        assertEquals(ChunkDigests.CHUNK_SIZE, read.getHashedEnd());
+        assertNull(read.getChunk(1));
+    }
+
+    public void testTruncateDropsTheChunksOfTheWrittenRegion() throws Exception {
+        ChunkDigests digests = write();
+
+        digests.truncate(ChunkDigests.CHUNK_SIZE + 10, ChunkDigests.CHUNK_SIZE + 20);
+        assertFalse(digests.isComplete());
+        assertNotNull(digests.getChunk(0));
+        assertNull(digests.getChunk(1));
+        assertNotNull("chunks behind the region are kept", digests.getChunk(2));
+        assertEquals(ChunkDigests.CHUNK_SIZE, digests.getHashedEnd());
+
+        digests.truncate(10);
+        assertNull(digests.getChunk(0));
+        assertNull(digests.getChunk(2));
+        assertEquals(0, digests.getHashedEnd());
+    }
+
+    public void testOpenedHasherContinuesTheUnfinishedChunk() throws Exception {
+        ChunkDigests complete = write();
+        ChunkDigests.delete(target);
+
+        ChunkDigests digests = new ChunkDigests();
+        digests.setLength(FILE_LENGTH);
+        RandomAccessFile file = new RandomAccessFile(target, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            channel.write(ByteBuffer.wrap(content), 0);
+            // the first chunk and a part of the second were written by an earlier attempt
+            int position = ChunkDigests.CHUNK_SIZE + 1000;
+            ChunkDigests.Hasher hasher = digests.openHasher(channel, 0, 0);
+            hasher.update(ByteBuffer.wrap(content, 0, position));
+            digests.save(channel, target);
+
+            ChunkDigests resumed = ChunkDigests.read(target);
+            hasher = resumed.openHasher(channel, 0, position);
+            hasher.update(ByteBuffer.wrap(content, position, FILE_LENGTH - position));
+            hasher.finish();
+            assertEquals(complete.getFileDigest(), resumed.getFileDigest());
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Writes the content through a hasher and stores the table.
+     */
+    private ChunkDigests write() throws Exception {
+        ChunkDigests digests = new ChunkDigests();
+        digests.setLength(FILE_LENGTH);
+        RandomAccessFile file = new RandomAccessFile(target, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            ChunkDigests.Hasher hasher = digests.openHasher(channel, 0, 0);
+            ByteBuffer bytes = ByteBuffer.wrap(content);
+            channel.write(bytes, 0);
+            bytes.flip();
+            hasher.update(bytes);
+            hasher.finish();
+            digests.save(channel, target);
+        } finally {
+            file.close();
+        }
+        return digests;
+    }
+}
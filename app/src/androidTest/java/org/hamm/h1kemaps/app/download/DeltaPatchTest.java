@@ -0,0 +1,251 @@
+package org.hamm.h1kemaps.app.download;
+
+import junit.framework.TestCase;
+
+import org.hamm.h1kemaps.app.StandInHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Tests building a map of a new version from the installed map and a delta, on its own and in the
+ * download engine against a local stand-in server.
+ */
+public class DeltaPatchTest extends TestCase {
+
+    private static final int MAP_LENGTH = 3 * 1024 * 1024 + 1000;
+
+    private static final String MAP_PATH = "/20150310/DE.skm";
+
+    private static final String DELTA_PATH = MAP_PATH + ".20141201.delta";
+
+    private File directory;
+
+    private File base;
+
+    private File target;
+
+    private byte[] oldMap;
+
+    private byte[] newMap;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = File.createTempFile("delta", "");
+        directory.delete();
+        directory.mkdirs();
+        Random random = new Random(7);
+        oldMap = new byte[MAP_LENGTH];
+        random.nextBytes(oldMap);
+        // the new map changes a region, inserts one and moves the first megabyte to the end
+        newMap = new byte[MAP_LENGTH + 5000];
+        System.arraycopy(oldMap, 1024 * 1024, newMap, 0, 500 * 1000);
+        for (int i = 500 * 1000; i < 505 * 1000; i++) {
+            newMap[i] = (byte) random.nextInt();
+        }
+        System.arraycopy(oldMap, 1024 * 1024 + 500 * 1000, newMap, 505 * 1000,
+                MAP_LENGTH - 1024 * 1024 - 500 * 1000);
+        System.arraycopy(oldMap, 0, newMap, newMap.length - 1024 * 1024, 1024 * 1024);
+        newMap[newMap.length - 1] ^= 1;
+        base = new File(directory, "DE.skm.base");
+        writeFile(base, oldMap);
+        target = new File(directory, "DE.skm");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+        super.tearDown();
+    }
+
+    public void testDeltaBuildsTheNewMap() throws IOException {
+        File delta = new File(directory, "DE.skm.delta");
+        writeFile(delta, delta(oldMap.length));
+        assertTrue(delta.length() < newMap.length / 100);
+
+        long length = DeltaPatch.apply(base, delta, target, ByteBuffer.allocate(64 * 1024));
+
+        assertEquals(newMap.length, length);
+        assertTrue(Arrays.equals(newMap, readFile(target)));
+        // verified like a download, without reading the file again
+        ChunkDigests digests = ChunkDigests.read(target);
+        assertEquals(newMap.length, digests.getLength());
+        assertTrue(digests.isComplete());
+    }
+
+    public void testDeltaOfAnotherBaseIsRejected() throws IOException {
+        File delta = new File(directory, "DE.skm.delta");
+        writeFile(delta, delta(oldMap.length + 1));
+        try {
+            DeltaPatch.apply(base, delta, target, ByteBuffer.allocate(64 * 1024));
+            fail();
+        } catch (IOException e) {
+            assertFalse(ChunkDigests.getFile(target).exists());
+        }
+    }
+
+    public void testDamagedBaseIsDetected() throws IOException {
+        oldMap[2 * 1024 * 1024] ^= 1;
+        writeFile(base, oldMap);
+        File delta = new File(directory, "DE.skm.delta");
+        writeFile(delta, delta(oldMap.length));
+        try {
+            DeltaPatch.apply(base, delta, target, ByteBuffer.allocate(64 * 1024));
+            fail();
+        } catch (CorruptDownloadException e) {
+            assertFalse(ChunkDigests.getFile(target).exists());
+        }
+    }
+
+    public void testEngineDownloadsOnlyTheDelta() throws Exception {
+        StandInHttpServer server = new StandInHttpServer();
+        try {
+            server.put(MAP_PATH, newMap);
+            byte[] delta = delta(oldMap.length);
+            server.put(DELTA_PATH, delta);
+
+            installUpdate(server);
+
+            assertTrue(Arrays.equals(newMap, readFile(target)));
+            assertEquals(delta.length, server.getPayloadBytes());
+            assertFalse(DeltaPatch.getDeltaFile(target).exists());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    public void testEngineFallsBackToTheFullMapWithoutDelta() throws Exception {
+        StandInHttpServer server = new StandInHttpServer();
+        try {
+            server.put(MAP_PATH, newMap);
+
+            installUpdate(server);
+
+            assertTrue(Arrays.equals(newMap, readFile(target)));
+            assertEquals(newMap.length, server.getPayloadBytes());
+            // the missing delta is asked for once
+            assertEquals(2, server.getRequests());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    /**
+     * Downloads the map as update of the base file and waits until it is installed.
+     */
+    private void installUpdate(StandInHttpServer server) throws Exception {
+        PackageDownloadEngine engine = new PackageDownloadEngine(PackageDownloadEngine.createHttpClient(2), 2,
+                new PackageDownloadEngine.Installer() {
+
+                    @Override
+                    public boolean install(File directory, String packageCode) {
+                        return true;
+                    }
+                });
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<IOException> error = new AtomicReference<IOException>();
+        DownloadPart part = new DownloadPart(server.url(MAP_PATH), DownloadPart.EXTENSION_MAP, target, newMap.length)
+                .withDelta(server.url(DELTA_PATH), base);
+        engine.download("DE", Collections.singletonList(part), BandwidthScheduler.PRIORITY_BACKGROUND,
+                new PackageDownloadEngine.Listener() {
+
+                    @Override
+                    public void onInstalled(String packageCode) {
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onFailed(String packageCode, IOException e) {
+                        error.set(e);
+                        done.countDown();
+                    }
+                });
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        engine.shutdown();
+        if (error.get() != null) {
+            throw error.get();
+        }
+    }
+
+    /**
+     * Creates the delta from the old to the new map the way setUp built the new map.
+     * @param sourceLength = length of the map the delta claims to be made for.
+     */
+    private byte[] delta(long sourceLength) throws IOException {
+        int megabyte = 1024 * 1024;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(new DeflaterOutputStream(bytes));
+        output.writeInt(DeltaPatch.MAGIC);
+        output.writeLong(sourceLength);
+        output.writeLong(newMap.length);
+        output.write(ChunkDigests.newDigest().digest(newMap));
+        writeCopy(output, megabyte, 500 * 1000);
+        writeAdd(output, 500 * 1000, 5000);
+        writeCopy(output, megabyte + 500 * 1000, MAP_LENGTH - megabyte - 500 * 1000);
+        writeCopy(output, 0, megabyte - 1);
+        writeAdd(output, newMap.length - 1, 1);
+        output.write(DeltaPatch.OP_END);
+        output.close();
+        return bytes.toByteArray();
+    }
+
+    private static void writeCopy(DataOutputStream output, long offset, int length) throws IOException {
+        output.write(DeltaPatch.OP_COPY);
+        output.writeLong(offset);
+        output.writeInt(length);
+    }
+
+    private void writeAdd(DataOutputStream output, int offset, int length) throws IOException {
+        output.write(DeltaPatch.OP_ADD);
+        output.writeInt(length);
+        output.write(newMap, offset, length);
+    }
+
+    private static void writeFile(File file, byte[] content) throws IOException {
+        OutputStream output = new FileOutputStream(file);
+        try {
+            output.write(content);
+        } finally {
+            output.close();
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] content = new byte[(int) file.length()];
+        InputStream input = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < content.length) {
+                int read = input.read(content, offset, content.length - offset);
+                if (read < 0) {
+                    break;
+                }
+                offset += read;
+            }
+        } finally {
+            input.close();
+        }
+        return content;
+    }
+}
@@ -0,0 +1,97 @@
+package org.hamm.h1kemaps.app.download;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+/**
+ * Tests the space estimates of packages against a storage of fixed size.
+ */
+public class DiskSpaceAdmissionTest extends TestCase {
+
+    private static final long MB = 1024 * 1024;
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = File.createTempFile("staging", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+        super.tearDown();
+    }
+
+    public void testPartsOfUnknownSizeAreEstimatedFromTheMap() {
+        long[] sizes = DownloadPart.estimateSizes(parts("DE", 100 * MB));
+
+        assertEquals(100 * MB, sizes[0]);
+        assertTrue(sizes[1] > 0);
+        // the name-browser archive stands for both of its files
+        assertTrue(sizes[2] > 0 && sizes[2] < sizes[0]);
+    }
+
+    public void testWrittenBytesAreNotRequiredAgain() throws IOException {
+        List<DownloadPart> parts = parts("DE", 100 * MB);
+        long required = DiskSpaceAdmission.getRequiredBytes(parts);
+
+        RandomAccessFile map = new RandomAccessFile(parts.get(0).getTarget(), "rw");
+        map.setLength(40 * MB);
+        map.close();
+
+        assertEquals(required - 40 * MB, DiskSpaceAdmission.getRequiredBytes(parts));
+    }
+
+    public void testPackageThatDoesNotFitIsRejected() throws IOException {
+        DiskSpaceAdmission admission = admission(200 * MB, 10 * MB);
+        List<DownloadPart> small = parts("LU", 20 * MB);
+        List<DownloadPart> large = parts("DE", 400 * MB);
+
+        admission.check("LU", small);
+        try {
+            admission.check("DE", large);
+            fail("the package is larger than the free space");
+        } catch (NotEnoughSpaceException e) {
+            assertEquals(200 * MB, e.getUsableBytes());
+            assertTrue(e.getRequiredBytes() > 400 * MB);
+        }
+    }
+
+    public void testPackageWaitsForTheSpaceOfRunningPackages() {
+        DiskSpaceAdmission admission = admission(200 * MB, 10 * MB);
+        List<DownloadPart> running = parts("FR", 100 * MB);
+        List<DownloadPart> queued = parts("DE", 60 * MB);
+
+        assertTrue(admission.fits(queued, 0));
+        assertFalse(admission.fits(queued, DiskSpaceAdmission.getRequiredBytes(running)));
+    }
+
+    private List<DownloadPart> parts(String packageCode, long mapSize) {
+        return DownloadPart.forPackage(packageCode, "http://maps/" + packageCode + ".skm",
+                "http://maps/" + packageCode + ".txg", "http://maps/" + packageCode + ".zip", directory, mapSize);
+    }
+
+    private DiskSpaceAdmission admission(final long usableSpace, long reserveBytes) {
+        return new DiskSpaceAdmission(directory, reserveBytes) {
+
+            @Override
+            long getUsableSpace() {
+                return usableSpace;
+            }
+        };
+    }
+}
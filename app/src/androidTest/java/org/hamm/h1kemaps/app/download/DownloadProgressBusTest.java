@@ -0,0 +1,132 @@
+package org.hamm.h1kemaps.app.download;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests the snapshots of the progress bus while threads write the counters like the downloads do.
+ */
+public class DownloadProgressBusTest extends TestCase {
+
+    private static final long TICK_MILLIS = 20;
+
+    private DownloadProgressBus bus;
+
+    private final AtomicInteger snapshots = new AtomicInteger();
+
+    private final AtomicReference<DownloadProgressBus.Snapshot> lastSnapshot =
+            new AtomicReference<DownloadProgressBus.Snapshot>();
+
+    private final DownloadProgressBus.Listener listener = new DownloadProgressBus.Listener() {
+
+        @Override
+        public void onSnapshot(DownloadProgressBus.Snapshot snapshot) {
+            snapshots.incrementAndGet();
+            lastSnapshot.set(snapshot);
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        bus = new DownloadProgressBus(TICK_MILLIS);
+        bus.addListener(listener);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        bus.removeListener(listener);
+        super.tearDown();
+    }
+
+    public void testSnapshotCombinesPackagesAndParts() throws InterruptedException {
+        DownloadProgressBus.Tracker germany = bus.track("DE", new long[]{1000, 200});
+        DownloadProgressBus.Tracker france = bus.track("FR", new long[]{-1});
+        germany.setProgress(0, 400, 1200);
+        germany.setState(0, DownloadProgressBus.PART_DOWNLOADING);
+        germany.setProgress(1, 200, 200);
+        germany.setState(1, DownloadProgressBus.PART_CHECKING);
+        france.setProgress(0, 50, -1);
+        Thread.sleep(5 * TICK_MILLIS);
+
+        DownloadProgressBus.Snapshot snapshot = lastSnapshot.get();
+        DownloadProgressBus.PackageProgress pack = snapshot.getPackage("DE");
+        assertEquals(600, pack.getDownloadedBytes());
+        assertEquals(1400, pack.getTotalBytes());
+        assertEquals(DownloadProgressBus.PART_DOWNLOADING, pack.getPartState(0));
+        assertEquals(DownloadProgressBus.PART_CHECKING, pack.getPartState(1));
+        // a part of unknown size counts with what is on the device
+        assertEquals(50, snapshot.getPackage("FR").getTotalBytes());
+        assertEquals(650, snapshot.getDownloadedBytes());
+
+        france.close();
+        Thread.sleep(5 * TICK_MILLIS);
+        assertNull(lastSnapshot.get().getPackage("FR"));
+        assertNotNull(lastSnapshot.get().getPackage("DE"));
+    }
+
+    public void testRateAndEta() throws InterruptedException {
+        final int bytesPerSecond = 1000 * 1000;
+        final DownloadProgressBus.Tracker tracker = bus.track("DE", new long[]{10L * bytesPerSecond});
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < 1000L * 1000 * 1000) {
+            tracker.setProgress(0, (System.nanoTime() - start) * bytesPerSecond / 1000000000L, -1);
+            Thread.sleep(1);
+        }
+
+        DownloadProgressBus.PackageProgress pack = lastSnapshot.get().getPackage("DE");
+        assertTrue("rate " + pack.getBytesPerSecond(), pack.getBytesPerSecond() > 0.8 * bytesPerSecond
+                && pack.getBytesPerSecond() < 1.2 * bytesPerSecond);
+        assertTrue("eta " + pack.getEtaSeconds(), pack.getEtaSeconds() >= 8 && pack.getEtaSeconds() <= 12);
+    }
+
+    public void testSnapshotsDoNotDependOnTheNumberOfWriters() throws InterruptedException {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        List<Thread> writers = new ArrayList<Thread>();
+        for (int i = 0; i < 16; i++) {
+            final DownloadProgressBus.Tracker tracker = bus.track("P" + i, new long[]{Long.MAX_VALUE});
+            Thread writer = new Thread() {
+
+                @Override
+                public void run() {
+                    for (long bytes = 0; running.get(); bytes += 8192) {
+                        tracker.setProgress(0, bytes, -1);
+                    }
+                }
+            };
+            writer.start();
+            writers.add(writer);
+        }
+        long start = System.nanoTime();
+        int before = snapshots.get();
+        Thread.sleep(50 * TICK_MILLIS);
+        int published = snapshots.get() - before;
+        // the busy writers may delay the wake-up, the ticks are counted from the time that passed
+        long ticks = (System.nanoTime() - start) / 1000000 / TICK_MILLIS;
+        running.set(false);
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        assertTrue("snapshots " + published + " in " + ticks + " ticks",
+                published >= ticks / 2 && published <= ticks + 2);
+        assertEquals(16, lastSnapshot.get().getPackages().size());
+    }
+
+    public void testIdleBusPublishesNothing() throws InterruptedException {
+        DownloadProgressBus.Tracker tracker = bus.track("DE", new long[]{100});
+        Thread.sleep(3 * TICK_MILLIS);
+        tracker.close();
+        Thread.sleep(3 * TICK_MILLIS);
+        assertTrue(lastSnapshot.get().getPackages().isEmpty());
+
+        int before = snapshots.get();
+        Thread.sleep(10 * TICK_MILLIS);
+        assertEquals(before, snapshots.get());
+    }
+}
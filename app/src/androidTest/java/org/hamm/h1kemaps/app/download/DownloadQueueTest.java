@@ -0,0 +1,240 @@
+package org.hamm.h1kemaps.app.download;
+
+import junit.framework.TestCase;
+
+import org.hamm.h1kemaps.app.StandInHttpServer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the queue and the engine with foreground packages that are queued behind background
+ * packages which may not run or are still downloading.
+ */
+public class DownloadQueueTest extends TestCase {
+
+    private static final int THREADS = 4;
+
+    private static final int MAP_LENGTH = 512 * 1024;
+
+    private static final String[] BACKGROUND_CODES = {"AT", "CH", "LU", "NL"};
+
+    private StandInHttpServer server;
+
+    private final Map<String, StandInHttpServer.Resource> maps = new HashMap<String, StandInHttpServer.Resource>();
+
+    private File directory;
+
+    private BandwidthScheduler scheduler;
+
+    private PackageDownloadEngine engine;
+
+    private DownloadQueue queue;
+
+    /**
+     * Counted down for every installed package
+     */
+    private CountDownLatch installedBackground;
+
+    private CountDownLatch installedForeground;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new StandInHttpServer();
+        for (String code : BACKGROUND_CODES) {
+            maps.put(code, server.put("/" + code + ".skm", content(code)));
+        }
+        maps.put("DE", server.put("/DE.skm", content("DE")));
+        directory = File.createTempFile("queue", "");
+        directory.delete();
+        directory.mkdirs();
+        installedBackground = new CountDownLatch(BACKGROUND_CODES.length);
+        installedForeground = new CountDownLatch(1);
+
+        scheduler = new BandwidthScheduler();
+        scheduler.setWifiOnly(BandwidthScheduler.PRIORITY_BACKGROUND, true);
+        engine = new PackageDownloadEngine(PackageDownloadEngine.createHttpClient(THREADS + 1), THREADS,
+                new PackageDownloadEngine.Installer() {
+
+                    @Override
+                    public boolean install(File packageDirectory, String packageCode) {
+                        return true;
+                    }
+                });
+        engine.setScheduler(scheduler);
+        queue = new DownloadQueue(engine, new File(directory, "queue.journal"), THREADS);
+        queue.addListener(new DownloadQueue.Listener() {
+
+            @Override
+            public void onStateChanged(String packageCode, int state) {
+                if (state != DownloadQueue.STATE_INSTALLED) {
+                    return;
+                }
+                if ("DE".equals(packageCode)) {
+                    installedForeground.countDown();
+                } else {
+                    installedBackground.countDown();
+                }
+            }
+
+            @Override
+            public void onIdle() {
+            }
+        });
+        queue.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        engine.shutdown();
+        server.shutdown();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                SegmentedDownloader.deleteDownload(file);
+                file.delete();
+            }
+        }
+        directory.delete();
+        super.tearDown();
+    }
+
+    public void testForegroundPackageRunsWhileBackgroundPackagesWaitForWifi() throws Exception {
+        scheduler.setNetworkState(true, false);
+        for (String code : BACKGROUND_CODES) {
+            assertTrue(queue.enqueue(code, parts(code), BandwidthScheduler.PRIORITY_BACKGROUND));
+        }
+        // the background packages are handed to the engine, their parts wait without a thread
+        assertTrue(queue.enqueue("DE", parts("DE"), BandwidthScheduler.PRIORITY_FOREGROUND));
+
+        assertTrue(installedForeground.await(10, TimeUnit.SECONDS));
+        assertEquals(BACKGROUND_CODES.length, installedBackground.getCount());
+        for (String code : BACKGROUND_CODES) {
+            assertEquals(0, maps.get(code).getRequests());
+        }
+
+        scheduler.setNetworkState(true, true);
+        assertTrue(installedBackground.await(10, TimeUnit.SECONDS));
+        assertFalse(queue.hasPendingJobs());
+    }
+
+    public void testForegroundPackageTakesTheThreadsOfRunningBackgroundPackages() throws Exception {
+        scheduler.setNetworkState(true, true);
+        for (String code : BACKGROUND_CODES) {
+            // several seconds per package
+            maps.get(code).throttle(MAP_LENGTH / 4);
+            assertTrue(queue.enqueue(code, parts(code), BandwidthScheduler.PRIORITY_BACKGROUND));
+        }
+        Thread.sleep(500);
+        assertTrue(queue.enqueue("DE", parts("DE"), BandwidthScheduler.PRIORITY_FOREGROUND));
+
+        assertTrue(installedForeground.await(10, TimeUnit.SECONDS));
+        assertEquals(BACKGROUND_CODES.length, installedBackground.getCount());
+
+        // the paused packages continue with the bytes they had
+        assertTrue(installedBackground.await(20, TimeUnit.SECONDS));
+        for (String code : BACKGROUND_CODES) {
+            assertEquals(MAP_LENGTH, new File(directory, code + ".skm").length());
+        }
+        assertTrue(server.getPayloadBytes() < (BACKGROUND_CODES.length + 2) * MAP_LENGTH);
+    }
+
+    public void testRegionIsJournaledAtOnce() throws Exception {
+        scheduler.setNetworkState(true, false);
+        Map<String, List<DownloadPart>> region = new LinkedHashMap<String, List<DownloadPart>>();
+        for (String code : BACKGROUND_CODES) {
+            region.put(code, parts(code));
+        }
+        assertEquals(BACKGROUND_CODES.length, queue.enqueueAll(region, BandwidthScheduler.PRIORITY_BACKGROUND));
+        assertEquals(0, queue.enqueueAll(region, BandwidthScheduler.PRIORITY_BACKGROUND));
+        assertTrue(queue.hasPendingJobs(BandwidthScheduler.PRIORITY_BACKGROUND));
+        assertFalse(queue.hasPendingJobs(BandwidthScheduler.PRIORITY_FOREGROUND));
+
+        // a queue of the next process restores the region and reports it to its listeners
+        final List<String> restored = new ArrayList<String>();
+        DownloadQueue next = new DownloadQueue(engine, new File(directory, "queue.journal"), THREADS);
+        next.addListener(new DownloadQueue.Listener() {
+
+            @Override
+            public void onStateChanged(String packageCode, int state) {
+                restored.add(packageCode);
+            }
+
+            @Override
+            public void onIdle() {
+            }
+        });
+        next.start();
+        assertEquals(Arrays.asList(BACKGROUND_CODES), restored.subList(0, BACKGROUND_CODES.length));
+        for (String code : BACKGROUND_CODES) {
+            assertEquals(DownloadQueue.STATE_DOWNLOADING, next.getState(code));
+        }
+    }
+
+    public void testWaitingPackagesOfAReplacedPlanAreRemoved() throws Exception {
+        scheduler.setNetworkState(true, false);
+        // one package at a time, the others wait in the queue
+        File journalFile = new File(directory, "plan.journal");
+        DownloadQueue planQueue = new DownloadQueue(engine, journalFile, 1);
+        final List<String> removed = new ArrayList<String>();
+        planQueue.addListener(new DownloadQueue.Listener() {
+
+            @Override
+            public void onStateChanged(String packageCode, int state) {
+                if (state == DownloadQueue.STATE_REMOVED) {
+                    removed.add(packageCode);
+                }
+            }
+
+            @Override
+            public void onIdle() {
+            }
+        });
+        planQueue.start();
+        Map<String, List<DownloadPart>> plan = new LinkedHashMap<String, List<DownloadPart>>();
+        for (String code : BACKGROUND_CODES) {
+            plan.put(code, parts(code));
+        }
+        assertEquals(BACKGROUND_CODES.length, planQueue.enqueueAll(plan, BandwidthScheduler.PRIORITY_BACKGROUND));
+        // the user asks for one of the waiting packages, it is not part of the plan anymore
+        assertTrue(planQueue.enqueue("LU", parts("LU"), BandwidthScheduler.PRIORITY_FOREGROUND));
+        assertFalse(planQueue.enqueue("LU", parts("LU"), BandwidthScheduler.PRIORITY_BACKGROUND));
+
+        assertEquals(2, planQueue.dequeueAll(Arrays.asList(BACKGROUND_CODES), BandwidthScheduler.PRIORITY_BACKGROUND));
+
+        assertEquals(Arrays.asList("CH", "NL"), removed);
+        assertEquals(DownloadQueue.STATE_DOWNLOADING, planQueue.getState("AT"));
+        assertEquals(DownloadQueue.STATE_REMOVED, planQueue.getState("CH"));
+        // the foreground package does not wait behind the background package
+        assertEquals(DownloadQueue.STATE_DOWNLOADING, planQueue.getState("LU"));
+        // the removals are journaled
+        DownloadQueue next = new DownloadQueue(engine, journalFile, 1);
+        next.start();
+        assertEquals(DownloadQueue.STATE_REMOVED, next.getState("CH"));
+        assertEquals(DownloadQueue.STATE_REMOVED, next.getState("NL"));
+        // the foreground package takes the slot first after the restart
+        assertEquals(DownloadQueue.STATE_DOWNLOADING, next.getState("LU"));
+        assertEquals(DownloadQueue.STATE_QUEUED, next.getState("AT"));
+    }
+
+    private List<DownloadPart> parts(String code) {
+        return Collections.singletonList(new DownloadPart(server.url("/" + code + ".skm"),
+                DownloadPart.EXTENSION_MAP, new File(directory, code + ".skm"), MAP_LENGTH));
+    }
+
+    private static byte[] content(String code) {
+        byte[] content = new byte[MAP_LENGTH];
+        new Random(code.hashCode()).nextBytes(content);
+        return content;
+    }
+}
@@ -0,0 +1,171 @@
+package org.hamm.h1kemaps.app.download;
+
+import junit.framework.TestCase;
+
+import org.hamm.h1kemaps.app.StandInHttpServer;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests the completeness check of the download engine before a package is installed.
+ */
+public class PackageDownloadEngineTest extends TestCase {
+
+    private static final String MAP_PATH = "/DE.skm";
+
+    private static final String TEXTURES_PATH = "/DE.txg";
+
+    private StandInHttpServer server;
+
+    private File directory;
+
+    private StandInHttpServer.Resource map;
+
+    private StandInHttpServer.Resource textures;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new StandInHttpServer();
+        directory = File.createTempFile("engine", "");
+        directory.delete();
+        directory.mkdirs();
+        Random random = new Random(5);
+        byte[] mapContent = new byte[1500 * 1024];
+        random.nextBytes(mapContent);
+        byte[] texturesContent = new byte[200 * 1024];
+        random.nextBytes(texturesContent);
+        map = server.put(MAP_PATH, mapContent);
+        textures = server.put(TEXTURES_PATH, texturesContent);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.shutdown();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+        super.tearDown();
+    }
+
+    public void testIncompletePartIsDownloadedAgainOnce() throws Exception {
+        final AtomicBoolean dropped = new AtomicBoolean();
+        IOException error = download(new ChunkTableLoss() {
+
+            @Override
+            boolean lose(File file) {
+                // the table of the map is lost once, as if the last save did not reach the device
+                return file.getName().endsWith(DownloadPart.EXTENSION_MAP) && dropped.compareAndSet(false, true);
+            }
+        });
+
+        assertNull(error);
+        assertEquals(2, map.getRequests());
+        // the complete part was kept
+        assertEquals(1, textures.getRequests());
+        assertTrue(Arrays.equals(map.getContent(), readMap()));
+    }
+
+    public void testPartThatStaysIncompleteFailsThePackage() throws Exception {
+        final AtomicInteger losses = new AtomicInteger();
+        IOException error = download(new ChunkTableLoss() {
+
+            @Override
+            boolean lose(File file) {
+                if (file.getName().endsWith(DownloadPart.EXTENSION_MAP)) {
+                    losses.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        });
+
+        assertNotNull(error);
+        assertEquals(2, losses.get());
+        assertEquals(2, map.getRequests());
+    }
+
+    /**
+     * Decides which files lose their chunk table before they are checked.
+     */
+    private abstract static class ChunkTableLoss {
+
+        abstract boolean lose(File file);
+    }
+
+    /**
+     * Downloads the package with a map and textures part.
+     * @return the error of the download, null if the package was installed.
+     */
+    private IOException download(final ChunkTableLoss loss) throws Exception {
+        PackageDownloadEngine engine = new PackageDownloadEngine(PackageDownloadEngine.createHttpClient(2), 2,
+                new PackageDownloadEngine.Installer() {
+
+                    @Override
+                    public boolean install(File packageDirectory, String packageCode) {
+                        return true;
+                    }
+                }) {
+
+            @Override
+            protected void checkComplete(DownloadPart part, long length) throws IOException {
+                for (File file : part.getFiles()) {
+                    if (loss.lose(file)) {
+                        ChunkDigests.delete(file);
+                    }
+                }
+                super.checkComplete(part, length);
+            }
+        };
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<IOException> error = new AtomicReference<IOException>();
+        List<DownloadPart> parts = Arrays.asList(
+                new DownloadPart(server.url(MAP_PATH), DownloadPart.EXTENSION_MAP, new File(directory, "DE.skm"),
+                        map.getContent().length),
+                new DownloadPart(server.url(TEXTURES_PATH), DownloadPart.EXTENSION_TEXTURES,
+                        new File(directory, "DE.txg"), textures.getContent().length));
+        engine.download("DE", parts, BandwidthScheduler.PRIORITY_FOREGROUND, new PackageDownloadEngine.Listener() {
+
+            @Override
+            public void onInstalled(String packageCode) {
+                done.countDown();
+            }
+
+            @Override
+            public void onFailed(String packageCode, IOException e) {
+                error.set(e);
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        engine.shutdown();
+        return error.get();
+    }
+
+    private byte[] readMap() throws IOException {
+        File file = new File(directory, "DE.skm");
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream input = new DataInputStream(new FileInputStream(file));
+        try {
+            input.readFully(bytes);
+        } finally {
+            input.close();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,135 @@
+package org.hamm.h1kemaps.app.download;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Tests that a committed package holds only its synced files and which directories survive the
+ * recovery after a crash.
+ */
+public class PackageStagingTest extends TestCase {
+
+    private File directory;
+
+    private final List<File> synced = new ArrayList<File>();
+
+    private PackageStaging staging;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = File.createTempFile("staging", "");
+        directory.delete();
+        directory.mkdirs();
+        staging = new PackageStaging(directory) {
+
+            @Override
+            protected void sync(File target) throws IOException {
+                // the files are synced while they are still in the staging directory
+                assertTrue(target.isFile());
+                synced.add(target);
+                super.sync(target);
+            }
+        };
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(directory);
+        super.tearDown();
+    }
+
+    public void testCommitSyncsTheFilesAndRemovesTheSidecars() throws Exception {
+        File staged = staging.getDirectory("DE");
+        File map = new File(staged, "DE" + DownloadPart.EXTENSION_MAP);
+        File archive = new File(staged, "DE" + DownloadPart.EXTENSION_NAME_BROWSER);
+        File archiveData = new File(staged, "DE" + DownloadPart.EXTENSION_NAME_BROWSER_DATA);
+        File base = new File(map.getPath() + ".base");
+        for (File file : Arrays.asList(map, archive, archiveData, base, ResumableDownloader.getMetaFile(map),
+                SegmentedDownloader.getSegmentsFile(map), ChunkDigests.getFile(map),
+                ChunkDigests.getFile(archiveData))) {
+            write(file);
+        }
+        List<DownloadPart> parts = Arrays.asList(
+                new DownloadPart("http://maps.example/DE.skm", DownloadPart.EXTENSION_MAP, map, 3)
+                        .withDelta("http://maps.example/DE.skm.3.delta", base),
+                new DownloadPart("http://maps.example/DE.zip", DownloadPart.EXTENSION_NAME_BROWSER_ARCHIVE,
+                        archive, 3));
+
+        File committed = staging.commit("DE", parts);
+
+        assertEquals(Arrays.asList(map, archive, archiveData), synced);
+        assertEquals(staging.getCommittedDirectory("DE"), committed);
+        assertTrue(staging.isCommitted("DE"));
+        assertFalse(staged.exists());
+        List<String> names = Arrays.asList(committed.list());
+        assertEquals(new HashSet<String>(Arrays.asList(map.getName(), archive.getName(), archiveData.getName())),
+                new HashSet<String>(names));
+    }
+
+    public void testPartsOutsideTheStagingDirectoryStay() throws Exception {
+        File outside = new File(directory, "maps");
+        File map = new File(outside, "AT" + DownloadPart.EXTENSION_MAP);
+        write(map);
+        write(ChunkDigests.getFile(map));
+
+        File committed = staging.commit("AT", Arrays.asList(
+                new DownloadPart("http://maps.example/AT.skm", DownloadPart.EXTENSION_MAP, map, 3)));
+
+        assertEquals(outside, committed);
+        assertEquals(Arrays.asList(map), synced);
+        assertTrue(map.isFile());
+        assertFalse(ChunkDigests.getFile(map).exists());
+        assertFalse(staging.isCommitted("AT"));
+    }
+
+    public void testRecoverKeepsOpenAndCommittedPackages() throws Exception {
+        // downloading
+        write(new File(staging.getDirectory("DE"), "DE.skm"));
+        // committed, waits for its installation
+        write(new File(staging.getCommittedDirectory("AT"), "AT.skm"));
+        // committed, but the staging directory of a restarted download was left behind
+        write(new File(staging.getDirectory("LU"), "LU.skm"));
+        write(new File(staging.getCommittedDirectory("LU"), "LU.skm"));
+        // neither queued nor failed anymore
+        write(new File(staging.getDirectory("FR"), "FR.skm"));
+        write(new File(staging.getCommittedDirectory("IT"), "IT.skm"));
+
+        staging.recover(new HashSet<String>(Arrays.asList("DE", "AT", "LU")));
+
+        assertTrue(new File(staging.getDirectory("DE"), "DE.skm").isFile());
+        assertTrue(staging.isCommitted("AT"));
+        assertTrue(staging.isCommitted("LU"));
+        assertFalse(staging.getDirectory("LU").exists());
+        assertFalse(staging.getDirectory("FR").exists());
+        assertFalse(staging.getCommittedDirectory("IT").exists());
+        assertEquals(3, directory.list().length);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static void write(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(new byte[]{1, 2, 3});
+        } finally {
+            output.close();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.hamm.h1kemaps.app.download;
+
+import junit.framework.TestCase;
+
+import org.hamm.h1kemaps.app.model.MapPack;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests how the updater selects the outdated packages, builds their update parts and keeps the
+ * moved maps of the former version.
+ */
+public class PackageUpdaterTest extends TestCase {
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = File.createTempFile("updater", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(directory);
+        super.tearDown();
+    }
+
+    public void testOutdatedPackagesAreOlderAndOffered() {
+        Map<String, Integer> installed = new LinkedHashMap<String, Integer>();
+        installed.put("DE", 3);
+        installed.put("AT", 5);
+        installed.put("LU", 3);
+        Map<String, MapPack> catalog = new HashMap<String, MapPack>();
+        catalog.put("DE", new MapPack());
+        catalog.put("AT", new MapPack());
+
+        // AT is up to date, LU is not offered in the new version
+        assertEquals(Arrays.asList("DE"), PackageUpdater.getOutdatedPackages(installed, catalog, 5));
+        assertTrue(PackageUpdater.getOutdatedPackages(installed, catalog, 3).isEmpty());
+    }
+
+    public void testDeltaUrlNamesTheFormerVersion() {
+        assertEquals("http://maps.example/20/DE.skm.3.delta",
+                PackageUpdater.getDeltaUrl("http://maps.example/20/DE.skm", 3));
+    }
+
+    public void testOnlyTheMapWithABaseIsDownloadedAsDelta() throws Exception {
+        List<DownloadPart> parts = DownloadPart.forPackage("DE", "http://maps.example/DE.skm",
+                "http://maps.example/DE.txg", "http://maps.example/DE.zip", directory, 1000);
+
+        List<DownloadPart> withoutBase = PackageUpdater.withDeltas(parts, 3);
+        assertEquals(parts.size(), withoutBase.size());
+        for (DownloadPart part : withoutBase) {
+            assertNull(part.getDeltaUrl());
+            assertNull(part.getBaseFile());
+        }
+
+        File base = PackageUpdater.getBaseFile(new File(directory, "DE" + DownloadPart.EXTENSION_MAP));
+        write(base);
+        List<DownloadPart> updated = PackageUpdater.withDeltas(parts, 3);
+        assertEquals(parts.size(), updated.size());
+        for (int i = 0; i < parts.size(); i++) {
+            DownloadPart part = updated.get(i);
+            assertEquals(parts.get(i).getTarget(), part.getTarget());
+            if (DownloadPart.EXTENSION_MAP.equals(part.getExtension())) {
+                assertEquals("http://maps.example/DE.skm.3.delta", part.getDeltaUrl());
+                assertEquals(base, part.getBaseFile());
+            } else {
+                assertNull(part.getDeltaUrl());
+                assertSame(parts.get(i), part);
+            }
+        }
+    }
+
+    public void testMovedMapsAreRestoredAfterACrash() throws Exception {
+        PackageStaging staging = new PackageStaging(new File(directory, "staging"));
+        File maps = new File(directory, "maps");
+        File installedDe = new File(maps, "DE.skm");
+        File installedAt = new File(maps, "AT.skm");
+        File baseDe = PackageUpdater.getBaseFile(new File(staging.getDirectory("DE"), "DE.skm"));
+        File baseAt = PackageUpdater.getBaseFile(new File(staging.getDirectory("AT"), "AT.skm"));
+        Map<File, File> moves = new LinkedHashMap<File, File>();
+        moves.put(baseDe, installedDe);
+        moves.put(baseAt, installedAt);
+        staging.journalMoves(moves);
+        // the process ended after the maps were moved, only the update of DE was queued
+        write(baseDe);
+        write(baseAt);
+
+        staging.recover(Collections.singleton("DE"));
+        assertTrue(baseDe.isFile());
+        assertFalse(installedDe.exists());
+        assertTrue(installedAt.isFile());
+        assertFalse(staging.getDirectory("AT").exists());
+
+        // the journal is done, DE stays with its queued update
+        staging.recover(Collections.<String>emptySet());
+        assertFalse(installedDe.exists());
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static void write(File file) throws Exception {
+        file.getParentFile().mkdirs();
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(new byte[]{1, 2, 3});
+        } finally {
+            output.close();
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package org.hamm.h1kemaps.app.download;
+
+import junit.framework.TestCase;
+
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.hamm.h1kemaps.app.StandInHttpServer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Tests resuming downloads against a local stand-in server that drops connections in the middle
+ * of the body.
+ */
+public class ResumableDownloaderTest extends TestCase {
+
+    private static final String MAP_PATH = "/DE.skm";
+
+    private static final int MAP_LENGTH = 300 * 1024;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private StandInHttpServer server;
+
+    private File directory;
+
+    private File target;
+
+    private byte[] content;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new StandInHttpServer();
+        content = new byte[MAP_LENGTH];
+        new Random(42).nextBytes(content);
+        directory = File.createTempFile("downloads", "");
+        directory.delete();
+        directory.mkdirs();
+        target = new File(directory, "DE.skm");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.shutdown();
+        ResumableDownloader.deleteDownload(target);
+        directory.delete();
+        super.tearDown();
+    }
+
+    public void testDroppedTransferResumesWithRange() throws IOException {
+        StandInHttpServer.Resource resource = server.put(MAP_PATH, content).dropConnections(2, 100 * 1024);
+        ResumableDownloader downloader = new ResumableDownloader(new DefaultHttpClient(), BUFFER_SIZE);
+        downloader.setMaxAttempts(3);
+
+        assertEquals(MAP_LENGTH, downloader.download(server.url(MAP_PATH), target, null));
+
+        assertTrue(Arrays.equals(content, readFile(target)));
+        assertEquals(3, resource.getRequests());
+        // every byte went over the network once
+        assertEquals(MAP_LENGTH, server.getPayloadBytes());
+    }
+
+    public void testInterruptedDownloadIsContinuedLater() throws IOException {
+        server.put(MAP_PATH, content).dropConnections(1, 50 * 1024);
+        ResumableDownloader downloader = new ResumableDownloader(new DefaultHttpClient(), BUFFER_SIZE);
+        try {
+            downloader.download(server.url(MAP_PATH), target, null);
+            fail("the dropped connection has to be reported");
+        } catch (IOException e) {
+            // expected
+        }
+        // allocated with the length the server sent, the next request continues the written bytes
+        assertEquals(MAP_LENGTH, target.length());
+
+        final long[] firstProgress = {-1};
+        downloader.download(server.url(MAP_PATH), target, new ResumableDownloader.ProgressListener() {
+
+            @Override
+            public void onProgress(long downloadedBytes, long totalBytes) {
+                if (firstProgress[0] < 0) {
+                    firstProgress[0] = downloadedBytes;
+                }
+                assertEquals(MAP_LENGTH, totalBytes);
+            }
+        });
+        assertTrue(Arrays.equals(content, readFile(target)));
+        assertTrue(firstProgress[0] > 50 * 1024);
+        assertEquals(MAP_LENGTH, server.getPayloadBytes());
+    }
+
+    public void testAllocatedFileIsContinuedAfterTheSyncedBytes() throws IOException {
+        StandInHttpServer.Resource resource = server.put(MAP_PATH, content).dropConnections(1, 100 * 1024);
+        ResumableDownloader downloader = new ResumableDownloader(new DefaultHttpClient(), BUFFER_SIZE);
+        try {
+            downloader.download(server.url(MAP_PATH), target, null);
+            fail("the dropped connection has to be reported");
+        } catch (IOException e) {
+            // expected
+        }
+        // the process died before the written bytes were recorded: only the allocation is known
+        Properties meta = new Properties();
+        InputStream input = new FileInputStream(ResumableDownloader.getMetaFile(target));
+        meta.load(input);
+        input.close();
+        meta.setProperty("written", "0");
+        OutputStream output = new FileOutputStream(ResumableDownloader.getMetaFile(target));
+        meta.store(output, null);
+        output.close();
+
+        assertEquals(MAP_LENGTH, downloader.download(server.url(MAP_PATH), target, null));
+
+        // the zeros of the allocation were not taken for downloaded bytes
+        assertTrue(Arrays.equals(content, readFile(target)));
+        assertEquals(2, resource.getRequests());
+    }
+
+    public void testAllocatedFileWithoutWrittenEntryIsNotTakenAsComplete() throws IOException {
+        server.put(MAP_PATH, content).dropConnections(1, 100 * 1024);
+        ResumableDownloader downloader = new ResumableDownloader(new DefaultHttpClient(), BUFFER_SIZE);
+        try {
+            downloader.download(server.url(MAP_PATH), target, null);
+            fail("the dropped connection has to be reported");
+        } catch (IOException e) {
+            // expected
+        }
+        // a torn sidecar file kept the validator but lost the written bytes
+        Properties meta = new Properties();
+        InputStream input = new FileInputStream(ResumableDownloader.getMetaFile(target));
+        meta.load(input);
+        input.close();
+        meta.remove("written");
+        OutputStream output = new FileOutputStream(ResumableDownloader.getMetaFile(target));
+        meta.store(output, null);
+        output.close();
+
+        assertEquals(MAP_LENGTH, downloader.download(server.url(MAP_PATH), target, null));
+
+        // the allocated length was not taken for the end of the bytes, no 416 marked zeros complete
+        assertTrue(Arrays.equals(content, readFile(target)));
+        assertTrue(ChunkDigests.read(target).isComplete());
+    }
+
+    public void testBodyNotMatchingItsContentMd5IsRequestedAgain() throws IOException {
+        StandInHttpServer.Resource resource = server.put(MAP_PATH, content).sendContentMd5().corruptBodies(1);
+        ResumableDownloader downloader = new ResumableDownloader(new DefaultHttpClient(), BUFFER_SIZE);
+        downloader.setMaxAttempts(3);
+
+        assertEquals(MAP_LENGTH, downloader.download(server.url(MAP_PATH), target, null));
+
+        assertTrue(Arrays.equals(content, readFile(target)));
+        assertEquals(2, resource.getRequests());
+        assertTrue(ChunkDigests.read(target).isComplete());
+    }
+
+    public void testBodyThatStaysDamagedIsReportedAsCorrupt() throws IOException {
+        server.put(MAP_PATH, content).sendContentMd5().corruptBodies(3);
+        ResumableDownloader downloader = new ResumableDownloader(new DefaultHttpClient(), BUFFER_SIZE);
+        downloader.setMaxAttempts(3);
+        try {
+            downloader.download(server.url(MAP_PATH), target, null);
+            fail("the damaged body has to be reported");
+        } catch (CorruptDownloadException e) {
+            // expected
+        }
+        // the damaged bytes were cut off, no digest covers them
+        assertEquals(0, target.length());
+        assertEquals(0, ChunkDigests.read(target).getHashedEnd());
+    }
+
+    public void testChangedResourceReplacesPartialFile() throws IOException {
+        server.put(MAP_PATH, content).dropConnections(1, 100 * 1024);
+        ResumableDownloader downloader = new ResumableDownloader(new DefaultHttpClient(), BUFFER_SIZE);
+        try {
+            downloader.download(server.url(MAP_PATH), target, null);
+            fail("the dropped connection has to be reported");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // the server got a new version, If-Range does not match anymore
+        byte[] changed = new byte[MAP_LENGTH / 2];
+        new Random(7).nextBytes(changed);
+        server.put(MAP_PATH, changed);
+
+        assertEquals(changed.length, downloader.download(server.url(MAP_PATH), target, null));
+        assertTrue(Arrays.equals(changed, readFile(target)));
+    }
+
+    public void testServerIgnoringRangeTruncatesFile() throws IOException {
+        StandInHttpServer.Resource resource = server.put(MAP_PATH, content).ignoreRanges()
+                .dropConnections(1, 100 * 1024);
+        ResumableDownloader downloader = new ResumableDownloader(new DefaultHttpClient(), BUFFER_SIZE);
+        downloader.setMaxAttempts(2);
+
+        downloader.download(server.url(MAP_PATH), target, null);
+
+        // the second response started at byte 0 and must not be appended
+        assertEquals(MAP_LENGTH, target.length());
+        assertTrue(Arrays.equals(content, readFile(target)));
+        assertEquals(2, resource.getRequests());
+    }
+
+    public void testCompleteFileIsNotRequestedAgain() throws IOException {
+        StandInHttpServer.Resource resource = server.put(MAP_PATH, content);
+        ResumableDownloader downloader = new ResumableDownloader(new DefaultHttpClient(), BUFFER_SIZE);
+        downloader.download(server.url(MAP_PATH), target, null);
+        downloader.download(server.url(MAP_PATH), target, null);
+
+        assertEquals(1, resource.getRequests());
+        assertTrue(Arrays.equals(content, readFile(target)));
+    }
+
+    public void testFileWithoutValidatorsIsDownloadedAgain() throws IOException {
+        server.put(MAP_PATH, content);
+        // bytes of the old implementation that appended without Range
+        OutputStream output = new FileOutputStream(target);
+        output.write(new byte[1000]);
+        output.close();
+
+        new ResumableDownloader(new DefaultHttpClient(), BUFFER_SIZE).download(server.url(MAP_PATH), target, null);
+
+        assertTrue(Arrays.equals(content, readFile(target)));
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        InputStream input = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                int read = input.read(bytes, offset, bytes.length - offset);
+                if (read < 0) {
+                    break;
+                }
+                offset += read;
+            }
+        } finally {
+            input.close();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,142 @@
+package org.hamm.h1kemaps.app.download;
+
+import junit.framework.TestCase;
+
+import org.hamm.h1kemaps.app.model.MapPack;
+import org.hamm.h1kemaps.app.model.MapPackInfo;
+import org.hamm.h1kemaps.app.model.MapPackIndex;
+import org.hamm.h1kemaps.app.model.PackageBoundsIndex;
+import org.hamm.h1kemaps.app.util.CatalogSnapshot;
+import org.hamm.h1kemaps.app.util.MapDataParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests finding the packages along a route in a catalog of one degree tiles.
+ */
+public class RoutePrefetchPlannerTest extends TestCase {
+
+    /**
+     * Tiles of one degree between 40 and 60 north and 0 and 30 east
+     */
+    private List<MapPack> tiles;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        tiles = new ArrayList<MapPack>();
+        for (int lat = 40; lat < 60; lat++) {
+            for (int lon = 0; lon < 30; lon++) {
+                tiles.add(pack(lat + "_" + lon, lat, lon, lat + 1, lon + 1));
+            }
+        }
+        // a package without bounds is not indexed
+        tiles.add(new MapPack());
+    }
+
+    public void testSearchFindsTheSameTilesAsAScan() {
+        PackageBoundsIndex index = new PackageBoundsIndex(tiles);
+        assertEquals(600, index.size());
+        Random random = new Random(5);
+        for (int i = 0; i < 200; i++) {
+            double latMin = 38 + random.nextDouble() * 24;
+            double lonMin = -2 + random.nextDouble() * 34;
+            double latMax = latMin + random.nextDouble() * 3;
+            double lonMax = lonMin + random.nextDouble() * 3;
+            List<MapPackInfo> found = new ArrayList<MapPackInfo>();
+            index.search(latMin, lonMin, latMax, lonMax, found);
+
+            List<MapPackInfo> expected = new ArrayList<MapPackInfo>();
+            for (MapPack pack : tiles) {
+                if (pack.hasBounds() && pack.getLatMin() <= latMax && pack.getLatMax() >= latMin
+                        && pack.getLonMin() <= lonMax && pack.getLonMax() >= lonMin) {
+                    expected.add(pack);
+                }
+            }
+            assertEquals(expected.size(), found.size());
+            assertEquals(new HashSet<MapPackInfo>(expected), new HashSet<MapPackInfo>(found));
+        }
+    }
+
+    public void testPackagesAreInRouteOrder() {
+        RoutePrefetchPlanner planner = new RoutePrefetchPlanner(new PackageBoundsIndex(tiles));
+        // east along 50.5 north, then north along 13.5 east
+        List<MapPackInfo> planned = planner.plan(new double[]{50.5, 50.5, 53.5}, new double[]{10.5, 13.5, 13.5}, 1000);
+
+        assertEquals(Arrays.asList("50_10", "50_11", "50_12", "50_13", "51_13", "52_13", "53_13"), codes(planned));
+    }
+
+    public void testCorridorReachesNeighbouringPackages() {
+        RoutePrefetchPlanner planner = new RoutePrefetchPlanner(new PackageBoundsIndex(tiles));
+        // 0.05 degrees south of the border to 51 north, about 5.6 km
+        double[] latitudes = {50.95, 50.95};
+        double[] longitudes = {10.5, 11.5};
+
+        assertEquals(Arrays.asList("50_10", "50_11"), codes(planner.plan(latitudes, longitudes, 5000)));
+        assertEquals(Arrays.asList("50_10", "51_10", "50_11", "51_11"),
+                codes(planner.plan(latitudes, longitudes, 6000)));
+    }
+
+    public void testSinglePinPlansItsSurroundings() {
+        RoutePrefetchPlanner planner = new RoutePrefetchPlanner(new PackageBoundsIndex(tiles));
+
+        assertEquals(Arrays.asList("45_5"), codes(planner.plan(new double[]{45.5}, new double[]{5.5}, 1000)));
+        assertEquals(4, planner.plan(new double[]{45.01}, new double[]{5.01}, 5000).size());
+        assertTrue(planner.plan(new double[0], new double[0], 1000).isEmpty());
+    }
+
+    public void testBoundsOfTheCatalogReachThePlanner() throws Exception {
+        String xml = "<root><packages>"
+                + "<DE><type>country</type><size>100</size>"
+                + "<bbox><latMin>47.27</latMin><latMax>55.06</latMax><longMin>5.86</longMin><longMax>15.04</longMax></bbox>"
+                + "</DE>"
+                + "<AT><type>country</type><size>50</size>"
+                + "<bbox><latMin>46.37</latMin><latMax>49.02</latMax><longMin>9.53</longMin><longMax>17.16</longMax></bbox>"
+                + "</AT>"
+                + "<EUR><type>continent</type></EUR>"
+                + "</packages><world><EUR><DE/><AT/></EUR></world></root>";
+        MapDataParser parser = new MapDataParser("http://localhost/Maps.xml");
+        parser.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+        File directory = File.createTempFile("snapshot", "");
+        directory.delete();
+        CatalogSnapshot snapshot = new CatalogSnapshot(directory.getPath(), 1);
+        try {
+            assertTrue(snapshot.write(parser.getPackIndex()));
+            MapPackIndex packIndex = snapshot.read();
+            MapPack germany = packIndex.get("DE");
+            assertEquals(47.27, germany.getLatMin(), 0);
+            assertEquals(15.04, germany.getLonMax(), 0);
+            assertFalse(packIndex.get("EUR").hasBounds());
+
+            RoutePrefetchPlanner planner = new RoutePrefetchPlanner(
+                    new PackageBoundsIndex(packIndex.getPackMap().values()));
+            // from Hamburg to Vienna
+            assertEquals(Arrays.asList("DE", "AT"),
+                    codes(planner.plan(new double[]{53.55, 48.21}, new double[]{9.99, 16.37}, 1000)));
+        } finally {
+            snapshot.getFile().delete();
+            directory.delete();
+        }
+    }
+
+    private static MapPack pack(String code, double latMin, double lonMin, double latMax, double lonMax) {
+        MapPack pack = new MapPack();
+        pack.setCode(code);
+        pack.setBounds(latMin, lonMin, latMax, lonMax);
+        return pack;
+    }
+
+    private static List<String> codes(List<? extends MapPackInfo> packs) {
+        List<String> codes = new ArrayList<String>();
+        for (MapPackInfo pack : packs) {
+            codes.add(pack.getCode());
+        }
+        return codes;
+    }
+}
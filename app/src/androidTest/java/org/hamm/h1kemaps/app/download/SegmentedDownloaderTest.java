@@ -0,0 +1,151 @@
+package org.hamm.h1kemaps.app.download;
+
+import junit.framework.TestCase;
+
+import org.apache.http.client.HttpClient;
+import org.hamm.h1kemaps.app.StandInHttpServer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests segmented downloads that share the threads of one pool.
+ */
+public class SegmentedDownloaderTest extends TestCase {
+
+    private static final int MAP_LENGTH = 6 * 1024 * 1024;
+
+    private static final int SEGMENT_COUNT = 2;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private StandInHttpServer server;
+
+    private File directory;
+
+    private ExecutorService segmentExecutor;
+
+    private SegmentedDownloader downloader;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new StandInHttpServer();
+        directory = File.createTempFile("segments", "");
+        directory.delete();
+        directory.mkdirs();
+        // two downloads at a time, their segments share SEGMENT_COUNT threads
+        HttpClient httpClient = PackageDownloadEngine.createHttpClient(2 + SEGMENT_COUNT);
+        segmentExecutor = SegmentedDownloader.createExecutor(SEGMENT_COUNT);
+        downloader = new SegmentedDownloader(httpClient, new DirectBufferPool(BUFFER_SIZE, SEGMENT_COUNT),
+                SEGMENT_COUNT, segmentExecutor);
+        downloader.setMaxAttempts(3);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        segmentExecutor.shutdownNow();
+        server.shutdown();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+        super.tearDown();
+    }
+
+    public void testParallelDownloadsShareTheSegmentThreads() throws Exception {
+        final List<byte[]> contents = new ArrayList<byte[]>();
+        for (int i = 0; i < 2; i++) {
+            byte[] content = new byte[MAP_LENGTH];
+            new Random(i).nextBytes(content);
+            contents.add(content);
+            // every segment is cut off once behind the first save of the progress
+            server.put("/map" + i + ".skm", content).dropConnections(SEGMENT_COUNT, 2 * 1024 * 1024);
+        }
+        ExecutorService parts = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<Long>> lengths = new ArrayList<Future<Long>>();
+            for (int i = 0; i < 2; i++) {
+                final int index = i;
+                lengths.add(parts.submit(new Callable<Long>() {
+
+                    @Override
+                    public Long call() throws IOException {
+                        return downloader.download(server.url("/map" + index + ".skm"),
+                                new File(directory, "map" + index + ".skm"), null);
+                    }
+                }));
+            }
+            for (int i = 0; i < 2; i++) {
+                assertEquals(MAP_LENGTH, lengths.get(i).get().longValue());
+                File target = new File(directory, "map" + i + ".skm");
+                assertTrue(Arrays.equals(contents.get(i), read(target)));
+                assertFalse(SegmentedDownloader.getSegmentsFile(target).exists());
+                assertTrue(ChunkDigests.read(target).isComplete());
+            }
+        } finally {
+            parts.shutdownNow();
+        }
+    }
+
+    public void testSegmentNotMatchingItsContentMd5IsRequestedAgain() throws Exception {
+        byte[] content = new byte[MAP_LENGTH];
+        new Random(7).nextBytes(content);
+        server.put("/map.skm", content).sendContentMd5().corruptBodies(1);
+        File target = new File(directory, "map.skm");
+
+        assertEquals(MAP_LENGTH, downloader.download(server.url("/map.skm"), target, null));
+
+        assertTrue(Arrays.equals(content, read(target)));
+        assertTrue(ChunkDigests.read(target).isComplete());
+        // only the damaged segment went over the network twice
+        assertTrue(server.getPayloadBytes() > MAP_LENGTH);
+        assertTrue(server.getPayloadBytes() <= MAP_LENGTH + MAP_LENGTH / SEGMENT_COUNT);
+    }
+
+    public void testSegmentThatStaysDamagedIsReportedAsCorrupt() throws Exception {
+        byte[] content = new byte[MAP_LENGTH];
+        new Random(7).nextBytes(content);
+        // more damaged bodies than attempts of a segment
+        server.put("/map.skm", content).sendContentMd5().corruptBodies(2 * SEGMENT_COUNT * 3);
+        File target = new File(directory, "map.skm");
+        try {
+            downloader.download(server.url("/map.skm"), target, null);
+            fail("the damaged segment has to be reported");
+        } catch (CorruptDownloadException e) {
+            // expected
+        }
+        assertFalse(ChunkDigests.read(target).isComplete());
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        InputStream input = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                int read = input.read(bytes, offset, bytes.length - offset);
+                if (read < 0) {
+                    break;
+                }
+                offset += read;
+            }
+        } finally {
+            input.close();
+        }
+        return bytes;
+    }
+}
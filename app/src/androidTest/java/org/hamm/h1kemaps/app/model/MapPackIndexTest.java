@@ -0,0 +1,175 @@
+package org.hamm.h1kemaps.app.model;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests the lookups of the MapPackIndex against the full scan the package list used before, on
+ * a synthetic catalog of continents, countries and states. The timing of both is measured by
+ * the CatalogLookupBenchmark of the benchmarks module.
+ */
+public class MapPackIndexTest extends TestCase {
+
+    private static final int PACKAGE_COUNT = 5000;
+
+    private static final int CONTINENTS = 6;
+
+    private static final int COUNTRIES_PER_CONTINENT = 40;
+
+    private Map<String, MapPack> packMap;
+
+    private List<String> rootCodes;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        packMap = new HashMap<String, MapPack>();
+        rootCodes = new ArrayList<String>();
+
+        List<MapPack> countries = new ArrayList<MapPack>();
+        for (int c = 0; c < CONTINENTS; c++) {
+            MapPack continent = newPack("CONT" + c, null, "continent");
+            rootCodes.add(continent.getCode());
+            for (int i = 0; i < COUNTRIES_PER_CONTINENT; i++) {
+                countries.add(newPack(continent.getCode() + "C" + i, continent, "country"));
+            }
+        }
+        // spread the remaining packages as states over all countries
+        for (int i = 0; packMap.size() < PACKAGE_COUNT; i++) {
+            MapPack country = countries.get(i % countries.size());
+            newPack(country.getCode() + "S" + i, country, "state").setSize(10);
+        }
+    }
+
+    private MapPack newPack(String code, MapPack parent, String type) {
+        MapPack pack = new MapPack();
+        pack.setCode(code);
+        pack.setName("Name " + code);
+        pack.setType(type);
+        if (parent != null) {
+            pack.setParentCode(parent.getCode());
+            parent.getChildrenCodes().add(code);
+        }
+        packMap.put(code, pack);
+        return pack;
+    }
+
+    /**
+     * The former MapPackagesListActivity.searchByParentCode.
+     */
+    private List<MapPack> scanByParentCode(String parentCode) {
+        List<MapPack> results = new ArrayList<MapPack>();
+        for (MapPack pack : packMap.values()) {
+            if (parentCode == null) {
+                if (pack.getParentCode() == null) {
+                    results.add(pack);
+                }
+            } else if (parentCode.equals(pack.getParentCode())) {
+                results.add(pack);
+            }
+        }
+        return results;
+    }
+
+    public void testIndexMatchesScan() {
+        MapPackIndex index = new MapPackIndex(packMap, rootCodes);
+
+        assertEquals(rootCodes.size(), index.getRoots().size());
+        for (MapPack root : index.getRoots()) {
+            assertEquals(scanByParentCode(root.getCode()).size(), index.getChildren(root.getCode()).size());
+            for (MapPack country : index.getChildren(root.getCode())) {
+                List<MapPack> expected = scanByParentCode(country.getCode());
+                List<MapPack> actual = index.getChildren(country.getCode());
+                assertEquals(expected.size(), actual.size());
+                assertTrue(actual.containsAll(expected));
+            }
+        }
+        assertTrue(index.getChildren("unknown").isEmpty());
+    }
+
+    public void testChildrenAreInCatalogOrder() {
+        MapPackIndex index = new MapPackIndex(packMap, rootCodes);
+
+        assertEquals(rootCodes, codes(index.getRoots()));
+        assertSame(index.getRoots(), index.getChildren(null));
+        MapPack country = packMap.get("CONT2C7");
+        assertEquals(country.getChildrenCodes(), codes(index.getChildren("CONT2C7")));
+        assertSame(country, index.get("CONT2C7"));
+        assertNull(index.get("unknown"));
+    }
+
+    public void testRootsMissingInTheListAreAppended() {
+        MapPack island = newPack("ISLAND", null, "continent");
+        MapPackIndex index = new MapPackIndex(packMap, Arrays.asList("CONT1", "CONT0", "unknown"));
+
+        List<String> roots = codes(index.getRoots());
+        assertEquals(Arrays.asList("CONT1", "CONT0"), roots.subList(0, 2));
+        assertEquals(CONTINENTS + 1, roots.size());
+        assertTrue(roots.contains(island.getCode()));
+    }
+
+    public void testSubtreesAreAggregated() {
+        MapPackIndex index = new MapPackIndex(packMap, rootCodes);
+
+        int states = PACKAGE_COUNT - CONTINENTS - CONTINENTS * COUNTRIES_PER_CONTINENT;
+        long total = 0;
+        int leaves = 0;
+        for (MapPack root : index.getRoots()) {
+            total += root.getSubtreeSize();
+            leaves += root.getLeafCount();
+        }
+        assertEquals(states * 10L, total);
+        assertEquals(states, leaves);
+        MapPack country = index.get("CONT0C0");
+        assertEquals(country.getChildrenCodes().size(), country.getLeafCount());
+    }
+
+    public void testCompactIndexMatchesIndex() {
+        MapPackIndex index = new MapPackIndex(packMap, rootCodes);
+        MapPackCatalog compact = CompactCatalog.from(index);
+
+        assertEquals(codes(index.getRoots()), codes(compact.getRoots()));
+        assertEquals(packMap.size(), compact.getPackMap().size());
+        for (MapPack pack : packMap.values()) {
+            MapPackInfo view = compact.get(pack.getCode());
+            assertEquals(pack.getName(), view.getName());
+            assertEquals(pack.getParentCode(), view.getParentCode());
+            assertEquals(pack.getSubtreeSize(), view.getSubtreeSize());
+            assertEquals(codes(index.getChildren(pack.getCode())), codes(compact.getChildren(pack.getCode())));
+        }
+        assertEquals(compact.get("CONT2C7"), compact.getPackMap().get("CONT2C7"));
+        assertNull(compact.get("unknown"));
+        assertTrue(compact.getChildren("unknown").isEmpty());
+    }
+
+    public void testRegionMapsAreTheTopmostMapPackages() {
+        // the US is no map of its own, its states are
+        MapPack us = newPack("US", packMap.get("CONT0"), "country");
+        newPack("USCA", us, "state");
+        newPack("USNY", us, "state");
+        MapPackIndex index = new MapPackIndex(packMap, rootCodes);
+        CompactCatalog catalog = CompactCatalog.from(index);
+
+        List<MapPackInfo> continentMaps = index.getRegionMaps(packMap.get("CONT0"));
+        assertEquals(COUNTRIES_PER_CONTINENT + 2, continentMaps.size());
+        assertEquals("CONT0C0", continentMaps.get(0).getCode());
+        assertEquals(Arrays.asList("USCA", "USNY"),
+                codes(continentMaps.subList(COUNTRIES_PER_CONTINENT, continentMaps.size())));
+        // a map package is its own region, its states are not downloaded on their own
+        assertEquals(Arrays.asList("CONT1C3"), codes(index.getRegionMaps(packMap.get("CONT1C3"))));
+        assertEquals(codes(continentMaps), codes(catalog.getRegionMaps(catalog.get("CONT0"))));
+    }
+
+    private static List<String> codes(List<? extends MapPackInfo> packs) {
+        List<String> codes = new ArrayList<String>();
+        for (MapPackInfo pack : packs) {
+            codes.add(pack.getCode());
+        }
+        return codes;
+    }
+}
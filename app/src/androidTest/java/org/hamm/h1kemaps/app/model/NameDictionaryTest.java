@@ -0,0 +1,69 @@
+package org.hamm.h1kemaps.app.model;
+
+import junit.framework.TestCase;
+
+import org.hamm.h1kemaps.app.util.MapDataParser;
+
+import java.io.ByteArrayInputStream;
+import java.util.Locale;
+
+/**
+ * Tests the shared dictionary of the localized package names and the name a package shows in
+ * the language of the user.
+ */
+public class NameDictionaryTest extends TestCase {
+
+    private static final String XML = "<root><packages>"
+            + "<EUR><type>continent</type><languages><en>Europe</en><de>Europa</de><fr>Europe</fr></languages></EUR>"
+            + "<LU><type>country</type><languages><en>Luxembourg</en><de>Luxemburg</de>"
+            + "<fr>Luxembourg</fr></languages></LU>"
+            + "<LUCITY01><type>city</type><languages><en>Luxembourg</en><fr>Luxembourg</fr></languages></LUCITY01>"
+            + "</packages><world><EUR><LU><LUCITY01/></LU></EUR></world></root>";
+
+    public void testEnglishNameIsTheFallback() throws Exception {
+        MapPackIndex packIndex = parse();
+        MapPack city = packIndex.get("LUCITY01");
+
+        assertEquals("Luxemburg", packIndex.get("LU").getName(Locale.GERMANY));
+        // the city has no German name, Italian is no language of the catalog
+        assertEquals("Luxembourg", city.getName(Locale.GERMANY));
+        assertEquals("Luxembourg", city.getName(Locale.ITALY));
+        assertEquals(NameDictionary.NO_NAME, city.getNameId(packIndex.getNameDictionary().getLanguageId("de")));
+
+        MapPack withoutNames = new MapPack();
+        withoutNames.setName("Andorra");
+        assertEquals("Andorra", withoutNames.getName(Locale.GERMANY));
+
+        CompactCatalog catalog = CompactCatalog.from(packIndex);
+        assertEquals("Luxemburg", catalog.get("LU").getName(Locale.GERMANY));
+        assertEquals("Luxembourg", catalog.get("LUCITY01").getName(Locale.GERMANY));
+        assertEquals("Luxembourg", catalog.get("LUCITY01").getName(Locale.ITALY));
+    }
+
+    public void testSharedNamesAreInterned() throws Exception {
+        NameDictionary dictionary = new NameDictionary();
+        String name = new String("Luxembourg");
+        int id = dictionary.addName(name);
+        assertEquals(id, dictionary.addName(new String("Luxembourg")));
+        assertEquals(1, dictionary.getNameCount());
+        assertSame(name, dictionary.intern(new String("Luxembourg")));
+        String unknown = "Andorra";
+        assertSame(unknown, dictionary.intern(unknown));
+        assertNull(dictionary.intern(null));
+
+        MapPackIndex packIndex = parse();
+        NameDictionary nameDictionary = packIndex.getNameDictionary();
+        // Europe, Europa, Luxembourg, Luxemburg
+        assertEquals(4, nameDictionary.getNameCount());
+        assertEquals(3, nameDictionary.getLanguageCount());
+        assertSame(packIndex.get("LU").getName(), packIndex.get("LUCITY01").getName());
+        assertSame(packIndex.get("LU").getName(),
+                packIndex.get("LUCITY01").getName(Locale.FRANCE));
+    }
+
+    private static MapPackIndex parse() throws Exception {
+        MapDataParser parser = new MapDataParser("http://localhost/Maps.xml");
+        parser.parse(new ByteArrayInputStream(XML.getBytes("UTF-8")));
+        return parser.getPackIndex();
+    }
+}
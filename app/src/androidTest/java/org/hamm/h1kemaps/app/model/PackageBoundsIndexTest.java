@@ -0,0 +1,125 @@
+package org.hamm.h1kemaps.app.model;
+
+import junit.framework.TestCase;
+
+import org.hamm.h1kemaps.app.util.CatalogSnapshot;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests finding the packages that cover a position in a small catalog: a continent, two
+ * countries, a state with a triangular outline and a city.
+ */
+public class PackageBoundsIndexTest extends TestCase {
+
+    private Map<String, MapPack> packMap;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        packMap = new HashMap<String, MapPack>();
+        add("EUR", null, 35, -10, 70, 40);
+        add("DE", "EUR", 47, 6, 55, 15);
+        add("AT", "EUR", 46, 9.6, 49, 17);
+        // the state covers the south-western half of its box
+        add("DEBY", "DE", 47, 9, 51, 14).setPolygon(new float[]{47, 9, 51, 9, 47, 14});
+        add("DEBYCITY01", "DEBY", 48, 11, 48.3, 11.8);
+        MapPack withoutBounds = new MapPack();
+        withoutBounds.setCode("NOBOUNDS");
+        packMap.put("NOBOUNDS", withoutBounds);
+    }
+
+    public void testPointIsCoveredSmallestFirst() {
+        PackageBoundsIndex index = new PackageBoundsIndex(packMap.values());
+
+        assertEquals(Arrays.asList("DEBYCITY01", "DEBY", "AT", "DE", "EUR"), codes(index.findCovering(48.1, 11.5)));
+        assertEquals(Arrays.asList("DE", "EUR"), codes(index.findCovering(52.5, 13.4)));
+        assertTrue(index.findCovering(10, 10).isEmpty());
+    }
+
+    public void testOutlineLimitsThePackage() {
+        PackageBoundsIndex index = new PackageBoundsIndex(packMap.values());
+
+        // inside the box of the state, but beyond the diagonal of its outline
+        assertEquals(Arrays.asList("DE", "EUR"), codes(index.findCovering(50.5, 13.5)));
+        assertEquals(Arrays.asList("DEBY", "DE", "EUR"), codes(index.findCovering(47.5, 9.5)));
+    }
+
+    public void testBoxIsCoveredAsAWhole() {
+        PackageBoundsIndex index = new PackageBoundsIndex(packMap.values());
+
+        assertEquals(Arrays.asList("DEBY", "DE", "EUR"), codes(index.findCovering(47.2, 9.2, 48, 10)));
+        // reaches across the border of Germany
+        assertEquals(Arrays.asList("EUR"), codes(index.findCovering(54, 14, 56, 16)));
+    }
+
+    public void testDownloadedAreaFollowsThePosition() {
+        DownloadedArea area = new DownloadedArea(Arrays.asList(packMap.get("DEBY"), packMap.get("AT")));
+
+        assertEquals("DEBY", area.locate(47.5, 9.5).getCode());
+        // still in the state, the package of the last position is kept
+        assertEquals("DEBY", area.locate(48.1, 11.5).getCode());
+        assertEquals("AT", area.locate(46.5, 15).getCode());
+        assertFalse(area.contains(52.5, 13.4));
+        assertTrue(area.contains(47.5, 10));
+    }
+
+    public void testBoundsAndOutlinesAreKept() {
+        MapPackIndex packIndex = new MapPackIndex(packMap, Collections.singletonList("EUR"));
+        CompactCatalog catalog = CompactCatalog.from(packIndex);
+        assertEquals(47, catalog.get("DEBY").getLatMin(), 0);
+        assertTrue(catalog.get("DEBY").isInOutline(47.5, 9.5));
+        assertFalse(catalog.get("DEBY").isInOutline(50.5, 13.5));
+        // without outline the box is the area
+        assertTrue(catalog.get("DE").isInOutline(50.5, 13.5));
+        assertFalse(catalog.get("NOBOUNDS").hasBounds());
+        DownloadedArea area = new DownloadedArea(Arrays.asList(catalog.get("DEBY"), catalog.get("AT")));
+        assertEquals("DEBY", area.locate(47.5, 9.5).getCode());
+        // beyond the diagonal, the outline is tested in the shared array of the catalog
+        assertFalse(area.contains(50.5, 13.5));
+
+        File directory = new File(System.getProperty("java.io.tmpdir"), "bounds" + System.nanoTime());
+        CatalogSnapshot snapshot = new CatalogSnapshot(directory.getPath(), 1);
+        try {
+            assertTrue(snapshot.write(packIndex));
+            MapPackIndex read = snapshot.read();
+            assertEquals(48.3, read.get("DEBYCITY01").getLatMax(), 0);
+            assertTrue(Arrays.equals(packMap.get("DEBY").getPolygon(), read.get("DEBY").getPolygon()));
+            assertNull(read.get("AT").getPolygon());
+
+            PackageBoundsIndex index = new PackageBoundsIndex(read.getPackMap().values());
+            assertEquals(5, index.size());
+            assertEquals(Arrays.asList("DE", "EUR"), codes(index.findCovering(50.5, 13.5)));
+        } finally {
+            snapshot.getFile().delete();
+            directory.delete();
+        }
+    }
+
+    private MapPack add(String code, String parentCode, double latMin, double lonMin, double latMax, double lonMax) {
+        MapPack pack = new MapPack();
+        pack.setCode(code);
+        pack.setParentCode(parentCode);
+        pack.setType("country");
+        pack.setBounds(latMin, lonMin, latMax, lonMax);
+        if (parentCode != null) {
+            packMap.get(parentCode).getChildrenCodes().add(code);
+        }
+        packMap.put(code, pack);
+        return pack;
+    }
+
+    private static List<String> codes(List<? extends MapPackInfo> packs) {
+        List<String> codes = new ArrayList<String>();
+        for (MapPackInfo pack : packs) {
+            codes.add(pack.getCode());
+        }
+        return codes;
+    }
+}
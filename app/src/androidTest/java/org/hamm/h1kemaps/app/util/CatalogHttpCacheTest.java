@@ -0,0 +1,126 @@
+package org.hamm.h1kemaps.app.util;
+
+import junit.framework.TestCase;
+
+import org.hamm.h1kemaps.app.StandInHttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Tests the conditional catalog fetch against a local stand-in server that counts the payload
+ * bytes it serves.
+ */
+public class CatalogHttpCacheTest extends TestCase {
+
+    private static final String CATALOG_PATH = "/Maps.xml";
+
+    private static final String CATALOG = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<root><packages>"
+            + "<EUR><type>continent</type><languages><en>Europe</en></languages><size>10</size></EUR>"
+            + "<DE><type>country</type><languages><en>Germany</en></languages><size>20</size></DE>"
+            + "</packages><world><EUR><DE/></EUR></world></root>\n";
+
+    private StandInHttpServer server;
+
+    private File cacheDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new StandInHttpServer();
+        server.put(CATALOG_PATH, CATALOG.getBytes("UTF-8"));
+        cacheDirectory = File.createTempFile("catalogcache", "");
+        cacheDirectory.delete();
+        cacheDirectory.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.shutdown();
+        new CatalogHttpCache(cacheDirectory.getPath()).clear();
+        cacheDirectory.delete();
+        super.tearDown();
+    }
+
+    public void testRevalidationTransfersNoPayload() throws IOException {
+        CatalogHttpCache cache = new CatalogHttpCache(cacheDirectory.getPath());
+
+        CatalogHttpCache.Response first = cache.fetch(server.url(CATALOG_PATH));
+        assertFalse(first.isNotModified());
+        assertEquals(CATALOG, readFully(first));
+        long servedAfterFirst = server.getPayloadBytes();
+        assertEquals(CATALOG.length(), servedAfterFirst);
+
+        for (int i = 0; i < 3; i++) {
+            CatalogHttpCache.Response next = cache.fetch(server.url(CATALOG_PATH));
+            assertTrue(next.isNotModified());
+            assertEquals(CATALOG, readFully(next));
+        }
+        assertEquals(servedAfterFirst, server.getPayloadBytes());
+        assertEquals(4, server.getRequests());
+    }
+
+    public void testChangedCatalogIsDownloadedAgain() throws IOException {
+        CatalogHttpCache cache = new CatalogHttpCache(cacheDirectory.getPath());
+        readFully(cache.fetch(server.url(CATALOG_PATH)));
+
+        String changed = CATALOG.replace("Germany", "Deutschland");
+        server.put(CATALOG_PATH, changed.getBytes("UTF-8"));
+
+        CatalogHttpCache.Response response = cache.fetch(server.url(CATALOG_PATH));
+        assertFalse(response.isNotModified());
+        assertEquals(changed, readFully(response));
+
+        response = cache.fetch(server.url(CATALOG_PATH));
+        assertTrue(response.isNotModified());
+        assertEquals(changed, readFully(response));
+    }
+
+    public void testIncompleteBodyIsNotCached() throws IOException {
+        CatalogHttpCache cache = new CatalogHttpCache(cacheDirectory.getPath());
+        CatalogHttpCache.Response response = cache.fetch(server.url(CATALOG_PATH));
+        response.getBody().read(new byte[10]);
+        response.close();
+
+        response = cache.fetch(server.url(CATALOG_PATH));
+        assertFalse(response.isNotModified());
+        assertEquals(CATALOG, readFully(response));
+    }
+
+    public void testParserReusesLocalParseOnNotModified() {
+        CatalogHttpCache cache = new CatalogHttpCache(cacheDirectory.getPath());
+
+        MapDataParser parser = new MapDataParser(server.url(CATALOG_PATH), cache);
+        assertTrue(parser.parse());
+        assertEquals(2, parser.getPackMap().size());
+        assertEquals("Germany", parser.getPackMap().get("DE").getName());
+        long served = server.getPayloadBytes();
+
+        MapDataParser refresh = new MapDataParser(server.url(CATALOG_PATH), cache);
+        assertFalse(refresh.parseIfModified());
+        assertTrue(refresh.isNotModified());
+        assertTrue(refresh.getPackMap().isEmpty());
+
+        // without a local parse the cached body is parsed
+        MapDataParser offline = new MapDataParser(server.url(CATALOG_PATH), cache);
+        assertTrue(offline.parse());
+        assertTrue(offline.isNotModified());
+        assertEquals("EUR", offline.getPackMap().get("DE").getParentCode());
+
+        assertEquals(served, server.getPayloadBytes());
+    }
+
+    private static String readFully(CatalogHttpCache.Response response) throws IOException {
+        InputStream body = response.getBody();
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64];
+        int read;
+        while ((read = body.read(buffer)) >= 0) {
+            content.write(buffer, 0, read);
+        }
+        response.close();
+        return content.toString("UTF-8");
+    }
+}
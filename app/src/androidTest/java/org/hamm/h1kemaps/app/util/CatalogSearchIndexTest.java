@@ -0,0 +1,229 @@
+package org.hamm.h1kemaps.app.util;
+
+import junit.framework.TestCase;
+
+import org.hamm.h1kemaps.app.model.CompactCatalog;
+import org.hamm.h1kemaps.app.model.MapPack;
+import org.hamm.h1kemaps.app.model.MapPackIndex;
+import org.hamm.h1kemaps.app.model.MapPackInfo;
+import org.hamm.h1kemaps.app.model.NameDictionary;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tests the ranking of the type-ahead search over a small catalog and that only the results of
+ * the last query reach the list.
+ */
+public class CatalogSearchIndexTest extends TestCase {
+
+    private Map<String, MapPack> packMap;
+
+    private NameDictionary nameDictionary;
+
+    private MapPackIndex packIndex;
+
+    private ExecutorService executor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        packMap = new HashMap<String, MapPack>();
+        nameDictionary = new NameDictionary();
+        add("EUR", null, "Europe", "continent");
+        add("CH", "EUR", "Switzerland", "country");
+        add("DE", "EUR", "Germany", "country");
+        // every kind of match for the query "bern", all on the same level
+        add("BERN", "CH", "Capital Region", "state");
+        add("CHBE", "CH", "Bern", "state");
+        add("CHBO", "CH", "Berner Oberland", "state");
+        add("CHKB", "CH", "Kanton Bern", "state");
+        add("CHLA", "CH", "Lauterbernau", "state");
+        add("CHZH", "CH", "Zürich", "state");
+        add("DEBY", "DE", "Bavaria", "state").setLocalizedNames(nameDictionary,
+                new int[]{nameDictionary.addName("Bayern")});
+        nameDictionary.addLanguage("de");
+        packIndex = new MapPackIndex(packMap, Collections.singletonList("EUR"));
+        packIndex.setNameDictionary(nameDictionary);
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+        super.tearDown();
+    }
+
+    public void testMatchesAreRankedByKind() {
+        CatalogSearchIndex index = new CatalogSearchIndex(packIndex);
+
+        // exact code, exact name, name prefix, word prefix, substring
+        assertEquals(Arrays.asList("BERN", "CHBE", "CHBO", "CHKB", "CHLA"), codes(index.search("Bern", 10)));
+        assertEquals(Arrays.asList("BERN", "CHBE"), codes(index.search("bern", 2)));
+    }
+
+    public void testSubstringIsFoundThroughTheTrigrams() {
+        CatalogSearchIndex index = new CatalogSearchIndex(packIndex);
+
+        assertEquals(Arrays.asList("DEBY"), codes(index.search("varia", 10)));
+        assertEquals(Arrays.asList("CHLA"), codes(index.search("terb", 10)));
+        // the accent is dropped from names and queries
+        assertEquals(Arrays.asList("CHZH"), codes(index.search("urich", 10)));
+        assertTrue(index.search("xyz", 10).isEmpty());
+    }
+
+    public void testLocalizedNamesAreFound() {
+        CatalogSearchIndex index = new CatalogSearchIndex(packIndex);
+        assertEquals(Arrays.asList("DEBY"), codes(index.search("bayer", 10)));
+
+        // the compact catalog hands the names out per language
+        CatalogSearchIndex compactIndex = new CatalogSearchIndex(CompactCatalog.from(packIndex));
+        assertEquals(Arrays.asList("DEBY"), codes(compactIndex.search("Bayern", 10)));
+        assertEquals(Arrays.asList("DEBY"), codes(compactIndex.search("ayer", 10)));
+    }
+
+    public void testScoresOfTheFormerQueryAreNotReused() {
+        CatalogSearchIndex index = new CatalogSearchIndex(packIndex);
+        index.search("bern", 10);
+
+        assertEquals(Arrays.asList("CHBO"), codes(index.search("berner", 10)));
+        assertEquals(Arrays.asList("CHZH"), codes(index.search("zurich", 10)));
+    }
+
+    public void testWaitingQueryIsDroppedForTheNextOne() throws Exception {
+        final CatalogSearchIndex index = new CatalogSearchIndex(packIndex);
+        CatalogSearch search = new CatalogSearch(executor);
+        CountDownLatch release = block();
+        final AtomicBoolean formerSearched = new AtomicBoolean();
+        ResultRecorder results = new ResultRecorder();
+
+        search.search(new Callable<List<MapPackInfo>>() {
+
+            @Override
+            public List<MapPackInfo> call() {
+                formerSearched.set(true);
+                return index.search("ber", 10);
+            }
+        }, results);
+        int generation = search.search(query(index, "bavaria"), results);
+        release.countDown();
+        drain();
+
+        assertFalse(formerSearched.get());
+        assertEquals(Collections.singletonList(generation), results.generations);
+        assertEquals(Arrays.asList("DEBY"), codes(results.results.get(0)));
+        assertTrue(search.isCurrent(generation));
+    }
+
+    public void testResultsOfAnOvertakenQueryAreDropped() throws Exception {
+        CatalogSearchIndex index = new CatalogSearchIndex(packIndex);
+        CatalogSearch search = new CatalogSearch(executor);
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<List<MapPackInfo>> slowQuery = query(index, "bern");
+        ResultRecorder results = new ResultRecorder();
+
+        int former = search.search(new Callable<List<MapPackInfo>>() {
+
+            @Override
+            public List<MapPackInfo> call() throws Exception {
+                running.countDown();
+                release.await();
+                return slowQuery.call();
+            }
+        }, results);
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        // the user cleared the query while the search ran
+        search.cancel();
+        release.countDown();
+        drain();
+
+        assertFalse(search.isCurrent(former));
+        assertTrue(results.generations.isEmpty());
+    }
+
+    /**
+     * Records the delivered results.
+     */
+    private static class ResultRecorder implements CatalogSearch.OnSearchResultListener {
+
+        final List<Integer> generations = Collections.synchronizedList(new ArrayList<Integer>());
+
+        final List<List<MapPackInfo>> results = Collections.synchronizedList(new ArrayList<List<MapPackInfo>>());
+
+        @Override
+        public void onSearchResult(int generation, List<MapPackInfo> results) {
+            generations.add(generation);
+            this.results.add(results);
+        }
+    }
+
+    private static Callable<List<MapPackInfo>> query(final CatalogSearchIndex index, final String query) {
+        return new Callable<List<MapPackInfo>>() {
+
+            @Override
+            public List<MapPackInfo> call() {
+                return index.search(query, 10);
+            }
+        };
+    }
+
+    /**
+     * Keeps the search thread busy until the returned latch is released.
+     */
+    private CountDownLatch block() {
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.submit(new Callable<Void>() {
+
+            @Override
+            public Void call() throws Exception {
+                release.await();
+                return null;
+            }
+        });
+        return release;
+    }
+
+    /**
+     * Waits until the searches submitted so far ran.
+     */
+    private void drain() throws Exception {
+        executor.submit(new Runnable() {
+
+            @Override
+            public void run() {
+            }
+        }).get(5, TimeUnit.SECONDS);
+    }
+
+    private MapPack add(String code, String parentCode, String name, String type) {
+        MapPack pack = new MapPack();
+        pack.setCode(code);
+        pack.setParentCode(parentCode);
+        pack.setName(name);
+        pack.setType(type);
+        if (parentCode != null) {
+            packMap.get(parentCode).getChildrenCodes().add(code);
+        }
+        packMap.put(code, pack);
+        return pack;
+    }
+
+    private static List<String> codes(List<MapPackInfo> packs) {
+        List<String> codes = new ArrayList<String>();
+        for (MapPackInfo pack : packs) {
+            codes.add(pack.getCode());
+        }
+        return codes;
+    }
+}
@@ -0,0 +1,110 @@
+package org.hamm.h1kemaps.app.util;
+
+import junit.framework.TestCase;
+
+import org.hamm.h1kemaps.app.model.MapPack;
+import org.hamm.h1kemaps.app.model.MapPackIndex;
+import org.hamm.h1kemaps.app.model.NameDictionary;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Tests the strings and the localized names of the catalog snapshot.
+ */
+public class CatalogSnapshotTest extends TestCase {
+
+    private File directory;
+
+    private CatalogSnapshot snapshot;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        directory = new File(System.getProperty("java.io.tmpdir"), "snapshot" + System.nanoTime());
+        snapshot = new CatalogSnapshot(directory.getPath(), 1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        snapshot.getFile().delete();
+        directory.delete();
+        super.tearDown();
+    }
+
+    public void testStringsAndNullAreKept() {
+        MapPack pack = pack("DE", "Deutschland ü");
+        pack.setType(null);
+        assertTrue(snapshot.write(index(pack)));
+
+        MapPack read = snapshot.read().get("DE");
+        assertEquals("Deutschland ü", read.getName());
+        assertNull(read.getType());
+    }
+
+    public void testTooLongStringIsNotWritten() {
+        char[] name = new char[0xFFFF];
+        Arrays.fill(name, 'a');
+        assertFalse(snapshot.write(index(pack("DE", new String(name)))));
+        assertFalse(snapshot.getFile().exists());
+
+        // one byte less still fits
+        String longest = new String(name, 0, 0xFFFE);
+        assertTrue(snapshot.write(index(pack("DE", longest))));
+        assertEquals(longest, snapshot.read().get("DE").getName());
+    }
+
+    public void testNameDictionaryAndNameTablesAreKept() throws Exception {
+        String xml = "<root><packages>"
+                + "<EUR><type>continent</type><languages><en>Europe</en><de>Europa</de></languages></EUR>"
+                + "<LU><type>country</type><languages><en>Luxembourg</en><de>Luxemburg</de>"
+                + "<fr>Luxembourg</fr></languages></LU>"
+                + "<LUCITY01><type>city</type><languages><en>Luxembourg</en></languages></LUCITY01>"
+                + "</packages><world><EUR><LU><LUCITY01/></LU></EUR></world></root>";
+        MapDataParser parser = new MapDataParser("http://localhost/Maps.xml");
+        parser.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+        MapPackIndex written = parser.getPackIndex();
+        assertTrue(snapshot.write(written));
+
+        MapPackIndex read = snapshot.read();
+        NameDictionary writtenNames = written.getNameDictionary();
+        NameDictionary readNames = read.getNameDictionary();
+        assertEquals(writtenNames.getLanguageCount(), readNames.getLanguageCount());
+        for (int i = 0; i < writtenNames.getLanguageCount(); i++) {
+            assertEquals(writtenNames.getLanguage(i), readNames.getLanguage(i));
+        }
+        assertEquals(writtenNames.getNameCount(), readNames.getNameCount());
+        for (int i = 0; i < writtenNames.getNameCount(); i++) {
+            assertEquals(writtenNames.getName(i), readNames.getName(i));
+        }
+        for (MapPack pack : written.getPackMap().values()) {
+            MapPack readPack = read.get(pack.getCode());
+            assertSame(readNames, readPack.getNameDictionary());
+            assertTrue(pack.getCode(), Arrays.equals(pack.getNameIds(), readPack.getNameIds()));
+            for (Locale locale : new Locale[]{Locale.ENGLISH, Locale.GERMAN, Locale.FRENCH, Locale.ITALIAN}) {
+                assertEquals(pack.getName(locale), readPack.getName(locale));
+            }
+        }
+        // the read names are the instances of the dictionary
+        assertSame(read.get("LU").getName(), read.get("LUCITY01").getName());
+        assertSame(read.get("LU").getName(), read.get("LU").getName(Locale.FRENCH));
+    }
+
+    private static MapPack pack(String code, String name) {
+        MapPack pack = new MapPack();
+        pack.setCode(code);
+        pack.setName(name);
+        pack.setType("country");
+        return pack;
+    }
+
+    private static MapPackIndex index(MapPack pack) {
+        Map<String, MapPack> packMap = new HashMap<String, MapPack>();
+        packMap.put(pack.getCode(), pack);
+        return new MapPackIndex(packMap, Arrays.asList(pack.getCode()));
+    }
+}
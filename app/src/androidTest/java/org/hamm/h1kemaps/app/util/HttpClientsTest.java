@@ -0,0 +1,126 @@
+package org.hamm.h1kemaps.app.util;
+
+import junit.framework.TestCase;
+
+import org.apache.http.client.HttpClient;
+import org.hamm.h1kemaps.app.StandInHttpServer;
+import org.hamm.h1kemaps.app.download.ResumableDownloader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests the shared client against a local stand-in server that counts the connections and the
+ * payload bytes it serves.
+ */
+public class HttpClientsTest extends TestCase {
+
+    private static final String CATALOG_PATH = "/Maps.xml";
+
+    private StandInHttpServer server;
+
+    private File directory;
+
+    private HttpClient httpClient;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new StandInHttpServer();
+        server.put(CATALOG_PATH, catalog().getBytes("UTF-8")).gzip();
+        directory = File.createTempFile("httpclients", "");
+        directory.delete();
+        directory.mkdirs();
+        httpClient = HttpClients.create(4);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        httpClient.getConnectionManager().shutdown();
+        server.shutdown();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+        super.tearDown();
+    }
+
+    public void testCatalogIsTransferredCompressed() {
+        MapDataParser parser = new MapDataParser(server.url(CATALOG_PATH), httpClient);
+        assertTrue(parser.parse());
+        assertEquals(101, parser.getPackMap().size());
+        assertEquals("Country 42", parser.getPackMap().get("C42").getName());
+        assertTrue(server.getPayloadBytes() < catalog().length() / 4);
+    }
+
+    public void testDownloadsAreNotCompressed() throws IOException {
+        byte[] content = new byte[256 * 1024];
+        Arrays.fill(content, (byte) 'a');
+        server.put("/DE.skm", content).gzip();
+
+        File target = new File(directory, "DE.skm");
+        new ResumableDownloader(httpClient, 8192).download(server.url("/DE.skm"), target, null);
+
+        assertEquals(content.length, server.getPayloadBytes());
+        assertTrue(Arrays.equals(content, readFile(target)));
+    }
+
+    public void testDownloadsReuseTheConnectionOfTheCatalog() throws IOException {
+        String[] paths = {"/DE.skm", "/DE.ngi", "/DE.txg"};
+        Random random = new Random(1);
+        for (String path : paths) {
+            byte[] content = new byte[64 * 1024];
+            random.nextBytes(content);
+            server.put(path, content);
+        }
+
+        CatalogHttpCache cache = new CatalogHttpCache(directory.getPath(), httpClient);
+        assertTrue(new MapDataParser(server.url(CATALOG_PATH), cache).parse());
+        ResumableDownloader downloader = new ResumableDownloader(httpClient, 8192);
+        for (String path : paths) {
+            downloader.download(server.url(path), new File(directory, path.substring(1)), null);
+        }
+
+        assertEquals(4, server.getRequests());
+        assertEquals(1, server.getConnections());
+    }
+
+    private static String catalog() {
+        StringBuilder catalog = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<root><packages>");
+        catalog.append("<EUR><type>continent</type><languages><en>Europe</en></languages><size>10</size></EUR>");
+        for (int i = 0; i < 100; i++) {
+            catalog.append("<C").append(i).append("><type>country</type><languages><en>Country ").append(i)
+                    .append("</en></languages><size>20</size></C").append(i).append(">");
+        }
+        catalog.append("</packages><world><EUR>");
+        for (int i = 0; i < 100; i++) {
+            catalog.append("<C").append(i).append("/>");
+        }
+        return catalog.append("</EUR></world></root>\n").toString();
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] content = new byte[(int) file.length()];
+        InputStream input = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < content.length) {
+                int read = input.read(content, offset, content.length - offset);
+                if (read < 0) {
+                    break;
+                }
+                offset += read;
+            }
+        } finally {
+            input.close();
+        }
+        return content;
+    }
+}
@@ -0,0 +1,59 @@
+package org.hamm.h1kemaps.app.util;
+
+import junit.framework.TestCase;
+
+import org.hamm.h1kemaps.app.model.MapPack;
+import org.xml.sax.SAXException;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests that the index of the parsed packages is only published for a complete Maps.xml file.
+ */
+public class MapDataParserTest extends TestCase {
+
+    private static final String XML = "<root><packages>"
+            + "<EUR><type>continent</type></EUR>"
+            + "<DE><type>country</type><size>100</size></DE>"
+            + "</packages><world><EUR><DE/></EUR></world></root>";
+
+    public void testCompleteFileIsPublished() throws Exception {
+        MapDataParser parser = new MapDataParser("http://localhost/Maps.xml");
+        parser.parse(new ByteArrayInputStream(XML.getBytes("UTF-8")));
+
+        assertEquals("EUR", parser.getPackIndex().getRoots().get(0).getCode());
+        assertEquals("DE", parser.getPackIndex().getChildren("EUR").get(0).getCode());
+    }
+
+    public void testInterruptedFileIsNotPublished() throws Exception {
+        MapDataParser parser = new MapDataParser("http://localhost/Maps.xml");
+        final List<MapPack> streamed = new ArrayList<MapPack>();
+        parser.setOnCatalogProgressListener(new MapDataParser.OnCatalogProgressListener() {
+
+            @Override
+            public void onPackageParsed(MapPack pack) {
+                streamed.add(pack);
+            }
+
+            @Override
+            public void onPackageLinked(MapPack parent, MapPack pack) {
+            }
+        });
+        // the connection broke in the world section
+        String truncated = XML.substring(0, XML.indexOf("<DE/>"));
+        try {
+            parser.parse(new ByteArrayInputStream(truncated.getBytes("UTF-8")));
+            fail("Truncated XML was accepted");
+        } catch (SAXException e) {
+            // expected
+        }
+
+        assertEquals(2, streamed.size());
+        assertNull(parser.getPackIndex());
+
+        parser.parse(new ByteArrayInputStream(XML.getBytes("UTF-8")));
+        assertEquals(2, parser.getPackIndex().getPackMap().size());
+    }
+}
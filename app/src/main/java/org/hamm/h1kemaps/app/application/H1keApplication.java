@@ -9,15 +9,47 @@ package org.hamm.h1kemaps.app.application;
  * http://developer.skobbler.de/getting-started/android#sec000_
  */
 
+import android.content.Intent;
+import com.skobbler.ngx.SKCoordinate;
 import com.skobbler.ngx.map.SKAnnotation;
-import org.hamm.h1kemaps.app.model.MapPack;
+import com.skobbler.ngx.packages.SKPackage;
+import com.skobbler.ngx.packages.SKPackageManager;
+import com.skobbler.ngx.packages.SKPackageURLInfo;
+import com.skobbler.ngx.versioning.SKVersioningManager;
+import org.hamm.h1kemaps.app.download.BandwidthScheduler;
+import org.hamm.h1kemaps.app.download.DiskSpaceAdmission;
+import org.hamm.h1kemaps.app.download.DownloadPart;
+import org.hamm.h1kemaps.app.download.DownloadQueue;
+import org.hamm.h1kemaps.app.download.DownloadService;
+import org.hamm.h1kemaps.app.download.NotEnoughSpaceException;
+import org.hamm.h1kemaps.app.download.PackageDownloadEngine;
+import org.hamm.h1kemaps.app.download.PackageStaging;
+import org.hamm.h1kemaps.app.download.PackageUpdater;
+import org.hamm.h1kemaps.app.download.RoutePrefetchPlanner;
+import org.hamm.h1kemaps.app.model.DownloadedArea;
+import org.hamm.h1kemaps.app.model.MapPackCatalog;
+import org.hamm.h1kemaps.app.model.MapPackInfo;
+import org.hamm.h1kemaps.app.model.PackageBoundsIndex;
+import org.hamm.h1kemaps.app.util.CatalogSearchIndex;
+import org.hamm.h1kemaps.app.util.CatalogSnapshot;
+import org.hamm.h1kemaps.app.util.HttpClients;
+import org.apache.http.client.HttpClient;
 import com.google.gson.Gson;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 /**
@@ -27,14 +59,90 @@ import java.util.TreeMap;
  */
 public class H1keApplication extends android.app.Application {
 
+    /**
+     * Number of files that are downloaded at the same time
+     */
+    private static final int MAX_CONCURRENT_DOWNLOADS = 4;
+
+    /**
+     * Number of connections a large .skm file is downloaded on
+     */
+    private static final int SEGMENTS_PER_DOWNLOAD = 4;
+
+    /**
+     * Size from which on a file is downloaded in segments
+     */
+    private static final long MIN_SEGMENTED_SIZE = 8L * 1024 * 1024;
+
+    /**
+     * Number of packages of the download queue that are downloaded at the same time
+     */
+    private static final int MAX_ACTIVE_PACKAGES = 2;
+
+    /**
+     * Connections the catalog requests may use besides the downloads
+     */
+    private static final int CATALOG_CONNECTIONS = 2;
+
+    /**
+     * Space that stays free on the storage of the maps, packages that do not fit are not queued
+     */
+    private static final long MIN_FREE_SPACE = 64L * 1024 * 1024;
+
+    /**
+     * Journal of the download queue in the private files of the app
+     */
+    private static final String DOWNLOAD_JOURNAL = "download-queue.journal";
+
+    /**
+     * Directory below the map resources the packages are staged in until they are installed
+     */
+    private static final String STAGING_DIRECTORY = "Maps/staging";
+
+    /**
+     * Default distance from a planned route in meters up to which its packages are prefetched
+     */
+    private static final double DEFAULT_ROUTE_CORRIDOR = 10000;
+
     /**
      * Path to the Map resources which are needed by Skobblers Map Rendering engine
      */
     private String resourcePath;
     /**
-    * Packages obtained from Map.XML
+    * Packages obtained from Map.XML and their hierarchy, read without lock by the UI, search and queue threads
     */
-    private Map<String, MapPack> mapPackages;
+    private volatile MapPackCatalog mapPackIndex;
+
+    /**
+     * Search index over the names and codes of the packages, built from mapPackIndex
+     */
+    private CatalogSearchIndex catalogSearchIndex;
+
+    /**
+     * Finds the map packages along a route, built from mapPackIndex or the catalog snapshot
+     */
+    private RoutePrefetchPlanner routePrefetchPlanner;
+
+    /**
+     * Distance from a planned route in meters up to which its packages are prefetched
+     */
+    private volatile double routeCorridor = DEFAULT_ROUTE_CORRIDOR;
+
+    /**
+     * True if the user lets the app download the packages along a planned route, off by default
+     */
+    private volatile boolean routePrefetchEnabled;
+
+    /**
+     * Packages the last route plan queued, only used on the queue thread
+     */
+    private final Set<String> routePackageCodes = new HashSet<String>();
+
+    /**
+     * Area of the installed packages, built on the queue thread once the resources or the catalog
+     * are known and again after a package was installed. Null until it was built the first time
+     */
+    private volatile DownloadedArea downloadedArea;
 
     /**
      * Path for the MapCreator
@@ -68,6 +176,41 @@ public class H1keApplication extends android.app.Application {
 
     private boolean mNavigationInProgress;
 
+    /**
+     * Queue of the map packages to download, created on first use
+     */
+    private DownloadQueue downloadQueue;
+
+    private PackageStaging packageStaging;
+
+    /**
+     * Updates the installed packages to new map versions, created on first use
+     */
+    private PackageUpdater packageUpdater;
+
+    /**
+     * Client of the catalog and the downloads, created on first use
+     */
+    private HttpClient httpClient;
+
+    /**
+     * Paces the downloads, background prefetching only runs on Wi-Fi
+     */
+    private final BandwidthScheduler bandwidthScheduler = new BandwidthScheduler();
+
+    /**
+     * Starts the download queue, writes its journal and builds the downloaded area, so the UI
+     * thread does not wait for the disk
+     */
+    private final ExecutorService queueExecutor = Executors.newSingleThreadExecutor();
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        // continues the downloads that were queued before the process ended, the service
+        // stops at once if there are none
+        startService(new Intent(this, DownloadService.class));
+    }
 
     public boolean isCompassToggle() {
         return compassToggle;
@@ -79,6 +222,7 @@ public class H1keApplication extends android.app.Application {
 
     public H1keApplication () {
         annotationList = new TreeMap<Integer, SKAnnotation>();
+        bandwidthScheduler.setWifiOnly(BandwidthScheduler.PRIORITY_BACKGROUND, true);
     }
 
     public TreeMap<Integer, SKAnnotation> getAnnotationList() {
@@ -111,14 +255,358 @@ public class H1keApplication extends android.app.Application {
 
     public void setResourcePath(String mMapAssetsDirectory) {
         this.resourcePath = mMapAssetsDirectory;
+        // the catalog snapshot of the resources gives the area before the catalog is loaded
+        updateDownloadedArea();
+    }
+
+    public Map<String, ? extends MapPackInfo> getMapPackages() {
+        // read once, the catalog may be replaced in between
+        MapPackCatalog packIndex = mapPackIndex;
+        return packIndex != null ? packIndex.getPackMap() : null;
+    }
+
+    public MapPackCatalog getMapPackIndex() {
+        return mapPackIndex;
+    }
+
+    public synchronized void setMapPackIndex(MapPackCatalog mapPackIndex) {
+        this.mapPackIndex = mapPackIndex;
+        // the search index and the planner belong to the former catalog, the area is built anew
+        this.catalogSearchIndex = null;
+        this.routePrefetchPlanner = null;
+        updateDownloadedArea();
+    }
+
+    public synchronized CatalogSearchIndex getCatalogSearchIndex() {
+        return catalogSearchIndex;
+    }
+
+    public synchronized void setCatalogSearchIndex(CatalogSearchIndex catalogSearchIndex) {
+        this.catalogSearchIndex = catalogSearchIndex;
+    }
+
+    /**
+     * Gets the download queue, it is created on first use and started from its journal on the
+     * queue thread. Until then it does not know the packages of the journal, so the queue is
+     * changed through runOnQueueThread. The packages are installed in the Skobbler package
+     * manager once all of their files are complete.
+     */
+    public synchronized DownloadQueue getDownloadQueue() {
+        if (downloadQueue == null) {
+            PackageDownloadEngine engine = new PackageDownloadEngine(
+                    getHttpClient(),
+                    MAX_CONCURRENT_DOWNLOADS,
+                    new PackageDownloadEngine.Installer() {
+
+                        @Override
+                        public boolean install(File directory, String packageCode) {
+                            return SKPackageManager.getInstance().addOfflinePackage(directory.getPath() + "/",
+                                    packageCode) == SKPackageManager.ADD_PACKAGE_SUCCESS_RESULT;
+                        }
+                    });
+            engine.setSegmentedDownloads(SEGMENTS_PER_DOWNLOAD, MIN_SEGMENTED_SIZE);
+            engine.setStaging(getPackageStaging());
+            engine.setScheduler(bandwidthScheduler);
+            downloadQueue = new DownloadQueue(engine, new File(getFilesDir(), DOWNLOAD_JOURNAL), MAX_ACTIVE_PACKAGES);
+            downloadQueue.setDiskSpaceAdmission(new DiskSpaceAdmission(getPackageStaging().getRoot(), MIN_FREE_SPACE));
+            downloadQueue.addListener(new DownloadQueue.Listener() {
+
+                @Override
+                public void onStateChanged(String packageCode, int state) {
+                    if (state == DownloadQueue.STATE_INSTALLED) {
+                        updateDownloadedArea();
+                    }
+                }
+
+                @Override
+                public void onIdle() {
+                }
+            });
+            final DownloadQueue queue = downloadQueue;
+            queueExecutor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                    try {
+                        queue.start();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+        return downloadQueue;
+    }
+
+    /**
+     * Runs a task on the queue thread, after the download queue was started.
+     * @param task = e.g. queues packages or reads the states of the queue.
+     */
+    public void runOnQueueThread(Runnable task) {
+        getDownloadQueue();
+        queueExecutor.execute(task);
+    }
+
+    /**
+     * Gets the HTTP client of the app. The catalog and the downloads share its pooled
+     * connections, so a download after the catalog refresh starts on a warm connection.
+     */
+    public synchronized HttpClient getHttpClient() {
+        if (httpClient == null) {
+            httpClient = HttpClients.create(MAX_CONCURRENT_DOWNLOADS + SEGMENTS_PER_DOWNLOAD + CATALOG_CONNECTIONS,
+                    HttpClients.DEFAULT_CONNECT_TIMEOUT, HttpClients.DEFAULT_SOCKET_TIMEOUT);
+        }
+        return httpClient;
     }
 
-    public Map<String, MapPack> getMapPackages() {
-        return mapPackages;
+    /**
+     * Gets the updater of the installed packages. The updates run in the download queue as
+     * background packages, the maps are built from deltas where the server offers them.
+     */
+    public synchronized PackageUpdater getPackageUpdater() {
+        if (packageUpdater == null) {
+            packageUpdater = new PackageUpdater(getDownloadQueue(), getPackageStaging(), getHttpClient());
+        }
+        return packageUpdater;
     }
 
-    public void setMapPackages(Map<String, MapPack> mapPackages) {
-        this.mapPackages = mapPackages;
+    /**
+     * Updates the installed packages to a new map version on the queue thread and lets the
+     * download service run the queued updates.
+     * @param newVersion = map version announced by the SKVersioningManager.
+     */
+    public void updateInstalledPackages(final int newVersion) {
+        runOnQueueThread(new Runnable() {
+
+            @Override
+            public void run() {
+                if (getPackageUpdater().update(newVersion) > 0) {
+                    startService(new Intent(H1keApplication.this, DownloadService.class));
+                }
+            }
+        });
+    }
+
+    public double getRouteCorridor() {
+        return routeCorridor;
+    }
+
+    public void setRouteCorridor(double routeCorridor) {
+        this.routeCorridor = routeCorridor;
+    }
+
+    public boolean isRoutePrefetchEnabled() {
+        return routePrefetchEnabled;
+    }
+
+    /**
+     * @param routePrefetchEnabled = true to queue the packages along a planned route, false to
+     *                             only remove the waiting packages of the last plan on the next one.
+     */
+    public void setRoutePrefetchEnabled(boolean routePrefetchEnabled) {
+        this.routePrefetchEnabled = routePrefetchEnabled;
+    }
+
+    /**
+     * Gets the planner of the packages along a route. It indexes the packages the download
+     * activity offers as maps of their own, so a route through a country does not queue its
+     * states as well.
+     * @return the planner or null if the catalog was neither loaded nor stored before.
+     */
+    public synchronized RoutePrefetchPlanner getRoutePrefetchPlanner() {
+        if (routePrefetchPlanner == null) {
+            MapPackCatalog packIndex = getCatalog();
+            if (packIndex == null) {
+                return null;
+            }
+            List<MapPackInfo> maps = new ArrayList<MapPackInfo>();
+            for (MapPackInfo root : packIndex.getRoots()) {
+                maps.addAll(packIndex.getRegionMaps(root));
+            }
+            routePrefetchPlanner = new RoutePrefetchPlanner(new PackageBoundsIndex(maps));
+        }
+        return routePrefetchPlanner;
+    }
+
+    /**
+     * Gets the area covered by the installed packages, to tell on a position fix whether the
+     * position is still on the downloaded maps. It is only read here, the queue thread builds it.
+     * @return the area or null if it was not built yet.
+     */
+    public DownloadedArea getDownloadedArea() {
+        return downloadedArea;
+    }
+
+    /**
+     * Builds the area of the installed packages on the queue thread and publishes it. The former
+     * area stays in use until then.
+     */
+    private void updateDownloadedArea() {
+        queueExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                MapPackCatalog packIndex = getCatalog();
+                if (packIndex == null) {
+                    return;
+                }
+                List<MapPackInfo> installed = new ArrayList<MapPackInfo>();
+                SKPackage[] packages = SKPackageManager.getInstance().getInstalledPackages();
+                if (packages != null) {
+                    for (SKPackage pack : packages) {
+                        MapPackInfo installedPack = packIndex.get(pack.getName());
+                        if (installedPack != null) {
+                            installed.add(installedPack);
+                        }
+                    }
+                }
+                downloadedArea = new DownloadedArea(installed);
+            }
+        });
+    }
+
+    /**
+     * @return the catalog the app loaded or, if it was not loaded yet, the catalog snapshot of the
+     * local map version; null if there is neither.
+     */
+    private MapPackCatalog getCatalog() {
+        MapPackCatalog packIndex = mapPackIndex;
+        if (packIndex == null && resourcePath != null) {
+            packIndex = new CatalogSnapshot(resourcePath,
+                    SKVersioningManager.getInstance().getLocalMapVersion()).read();
+        }
+        return packIndex;
+    }
+
+    /**
+     * Queues the map packages within the route corridor on the queue thread, in the order the
+     * route reaches them, and lets the download service run them. Installed and queued packages
+     * are skipped, so the route can be planned again whenever a pin moves. The new plan replaces
+     * the former one: its packages that did not start yet and are off the new route are removed
+     * from the queue. While the user did not enable the prefetching nothing is queued, the
+     * former plan is only removed.
+     * @param route = the pins or the coordinates of a calculated route in route order, empty
+     *              to remove the former plan.
+     */
+    public void prefetchAlongRoute(List<SKCoordinate> route) {
+        int count = routePrefetchEnabled ? route.size() : 0;
+        final double[] latitudes = new double[count];
+        final double[] longitudes = new double[count];
+        int i = 0;
+        for (SKCoordinate coordinate : route.subList(0, count)) {
+            latitudes[i] = coordinate.getLatitude();
+            longitudes[i] = coordinate.getLongitude();
+            i++;
+        }
+        runOnQueueThread(new Runnable() {
+
+            @Override
+            public void run() {
+                if (prefetch(latitudes, longitudes)) {
+                    startService(new Intent(H1keApplication.this, DownloadService.class));
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues the packages along the route as background downloads, with one write of the journal,
+     * and removes the waiting packages of the former route that the new one does not reach.
+     * @return true if packages were queued.
+     */
+    private boolean prefetch(double[] latitudes, double[] longitudes) {
+        RoutePrefetchPlanner planner = getRoutePrefetchPlanner();
+        if (planner == null) {
+            return false;
+        }
+        List<MapPackInfo> plan = latitudes.length > 0 ? planner.plan(latitudes, longitudes, routeCorridor)
+                : Collections.<MapPackInfo>emptyList();
+        Set<String> planCodes = new HashSet<String>();
+        for (MapPackInfo pack : plan) {
+            planCodes.add(pack.getCode());
+        }
+        DownloadQueue queue = getDownloadQueue();
+        List<String> staleCodes = new ArrayList<String>();
+        for (String code : routePackageCodes) {
+            if (!planCodes.contains(code)) {
+                staleCodes.add(code);
+            }
+        }
+        routePackageCodes.removeAll(staleCodes);
+        try {
+            queue.dequeueAll(staleCodes, BandwidthScheduler.PRIORITY_BACKGROUND);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (plan.isEmpty()) {
+            return false;
+        }
+        SKPackageManager packageManager = SKPackageManager.getInstance();
+        Set<String> installed = new HashSet<String>();
+        SKPackage[] packages = packageManager.getInstalledPackages();
+        if (packages != null) {
+            for (SKPackage pack : packages) {
+                installed.add(pack.getName());
+            }
+        }
+        Map<String, List<DownloadPart>> routePackages = new LinkedHashMap<String, List<DownloadPart>>();
+        for (MapPackInfo pack : plan) {
+            int state = queue.getState(pack.getCode());
+            if (installed.contains(pack.getCode())
+                    || (state != DownloadQueue.STATE_REMOVED && state != DownloadQueue.STATE_FAILED)) {
+                // installed or queued by the user, an update or the former plan
+                continue;
+            }
+            SKPackageURLInfo info = packageManager.getURLInfoForPackageWithCode(pack.getCode());
+            if (info == null) {
+                // the package manager does not offer the package for the current map version
+                continue;
+            }
+            routePackages.put(pack.getCode(), DownloadPart.forPackage(pack.getCode(), info.getMapURL(),
+                    info.getTexturesURL(), info.getNameBrowserFilesURL(),
+                    getPackageStaging().getDirectory(pack.getCode()), pack.getSize()));
+        }
+        boolean queued;
+        try {
+            queued = queue.enqueueAll(routePackages, BandwidthScheduler.PRIORITY_BACKGROUND) > 0;
+        } catch (NotEnoughSpaceException e) {
+            // the packages the route reaches first are queued
+            e.printStackTrace();
+            queued = queue.hasPendingJobs(BandwidthScheduler.PRIORITY_BACKGROUND);
+        } catch (IOException e) {
+            e.printStackTrace();
+            queued = false;
+        }
+        for (String code : routePackages.keySet()) {
+            int state = queue.getState(code);
+            if (state == DownloadQueue.STATE_QUEUED || state == DownloadQueue.STATE_DOWNLOADING) {
+                routePackageCodes.add(code);
+            }
+        }
+        return queued;
+    }
+
+    public BandwidthScheduler getBandwidthScheduler() {
+        return bandwidthScheduler;
+    }
+
+    /**
+     * Gets the staging directories of the packages. The download service can run before the
+     * AppStartActivity set the resource path, so the path is determined the same way here.
+     */
+    public synchronized PackageStaging getPackageStaging() {
+        if (packageStaging == null) {
+            File resources;
+            if (resourcePath != null) {
+                resources = new File(resourcePath);
+            } else {
+                File externalDir = getExternalFilesDir(null);
+                resources = new File(externalDir != null ? externalDir : getFilesDir(), "SKMaps");
+            }
+            packageStaging = new PackageStaging(new File(resources, STAGING_DIRECTORY));
+        }
+        return packageStaging;
     }
 
     public String[] getMapStylesArray() {
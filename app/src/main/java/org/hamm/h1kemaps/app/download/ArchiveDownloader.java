@@ -0,0 +1,258 @@
+package org.hamm.h1kemaps.app.download;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.hamm.h1kemaps.app.util.HttpClients;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Downloads a zip archive and inflates its entries straight into their files while the body
+ * arrives. The archive itself is never written, so there is no copy of it on the device. Every
+ * entry is hashed while it is written (see ChunkDigests) and checked against the CRC of the
+ * archive by the ZipInputStream. An archive can not be continued in the middle of the stream, an
+ * interrupted archive is downloaded again; files that were extracted completely before are not.
+ */
+public class ArchiveDownloader {
+
+    private final HttpClient httpClient;
+
+    private final DirectBufferPool bufferPool;
+
+    /**
+     * Number of requests a download may take before it fails
+     */
+    private int maxAttempts = 1;
+
+    /**
+     * @param httpClient = client used for the requests.
+     * @param bufferPool = pool of the buffers the entries are written with.
+     */
+    public ArchiveDownloader(HttpClient httpClient, DirectBufferPool bufferPool) {
+        this.httpClient = httpClient;
+        this.bufferPool = bufferPool;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Downloads the archive and extracts the entries that belong to the files. An entry belongs
+     * to the file whose name has the same extension (the part from the first dot on), the
+     * directories in the archive are ignored, so no entry is written outside of the files.
+     * @param url = URL of the archive.
+     * @param files = files to extract.
+     * @param listener = receives the compressed bytes that arrived, may be null.
+     * @param transfer = paces the body, may be null.
+     * @return the length of the archive, the length of the files if they were extracted before.
+     * @throws FileNotFoundException = if the server does not have the archive.
+     * @throws ZipException = if the body is no archive or does not hold all files.
+     */
+    public long download(String url, List<File> files, ResumableDownloader.ProgressListener listener,
+                         BandwidthScheduler.Transfer transfer) throws IOException {
+        if (isComplete(url, files)) {
+            long length = 0;
+            for (File file : files) {
+                length += file.length();
+            }
+            return length;
+        }
+        File parent = files.get(0).getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return downloadOnce(url, files, listener, transfer);
+            } catch (FileNotFoundException e) {
+                throw e;
+            } catch (ZipException e) {
+                // another request brings the same archive
+                throw e;
+            } catch (TransferPausedException e) {
+                throw e;
+            } catch (IOException e) {
+                if (attempt >= maxAttempts) {
+                    throw e;
+                }
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private long downloadOnce(String url, List<File> files, ResumableDownloader.ProgressListener listener,
+                              BandwidthScheduler.Transfer transfer) throws IOException {
+        HttpGet request = new HttpGet(url);
+        // the archive is compressed already
+        request.setHeader(HttpClients.HEADER_ACCEPT_ENCODING, HttpClients.ENCODING_IDENTITY);
+        ByteBuffer buffer = bufferPool.acquire();
+        boolean complete = false;
+        HttpEntity entity = null;
+        try {
+            HttpResponse response = httpClient.execute(request);
+            int status = response.getStatusLine().getStatusCode();
+            entity = response.getEntity();
+            if (status == HttpStatus.SC_NOT_FOUND || status == HttpStatus.SC_GONE) {
+                throw new FileNotFoundException("No archive at " + url);
+            } else if (status != HttpStatus.SC_OK || entity == null) {
+                throw new IOException("Unexpected response " + status + " for " + url);
+            }
+            long total = entity.getContentLength();
+            InputStream body = transfer != null ? transfer.wrap(entity.getContent()) : entity.getContent();
+            CountingInputStream counter = new CountingInputStream(body, listener, total);
+            ZipInputStream zip = new ZipInputStream(counter);
+            boolean[] extracted = new boolean[files.size()];
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                int index = entry.isDirectory() ? -1 : getFileIndex(files, entry.getName());
+                if (index < 0) {
+                    continue;
+                }
+                File file = files.get(index);
+                if (ResumableDownloader.isComplete(url, file)) {
+                    // extracted completely by an earlier attempt
+                    extracted[index] = true;
+                    continue;
+                }
+                long length = extract(zip, file, buffer);
+                ResumableDownloader.markComplete(url, file, length);
+                extracted[index] = true;
+            }
+            for (int i = 0; i < extracted.length; i++) {
+                if (!extracted[i]) {
+                    throw new ZipException(url + " holds no entry for " + files.get(i).getName());
+                }
+            }
+            complete = true;
+            return counter.count;
+        } finally {
+            bufferPool.release(buffer);
+            if (!complete) {
+                request.abort();
+            } else if (entity != null) {
+                entity.consumeContent();
+            }
+        }
+    }
+
+    /**
+     * Writes the current entry of the archive into the file and stores the digests of its chunks.
+     * @return the length of the file.
+     */
+    private static long extract(ZipInputStream zip, File file, ByteBuffer buffer) throws IOException {
+        ChunkDigests.delete(file);
+        ChunkDigests digests = new ChunkDigests();
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            output.setLength(0);
+            FileChannel channel = output.getChannel();
+            ChunkDigests.Hasher hasher = digests.openHasher(channel, 0, 0);
+            // the ZipInputStream ends at the end of the entry and checks its CRC there
+            long length = ChannelCopy.copy(zip, channel, 0, -1, buffer, hasher, null);
+            digests.setLength(length);
+            hasher.finish();
+            digests.save(channel, file);
+            return length;
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * @return true if all files were extracted completely from the archive.
+     */
+    static boolean isComplete(String url, List<File> files) {
+        for (File file : files) {
+            if (!ResumableDownloader.isComplete(url, file)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the index of the file the entry belongs to or -1.
+     */
+    private static int getFileIndex(List<File> files, String entryName) {
+        String extension = getExtension(entryName.substring(entryName.lastIndexOf('/') + 1));
+        for (int i = 0; i < files.size(); i++) {
+            if (extension != null && extension.equals(getExtension(files.get(i).getName()))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the part of the name from the first dot on (.ngi.dat) or null.
+     */
+    private static String getExtension(String name) {
+        int dot = name.indexOf('.');
+        return dot >= 0 ? name.substring(dot) : null;
+    }
+
+    /**
+     * Counts the compressed bytes that are read from the body and reports them.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        private final ResumableDownloader.ProgressListener listener;
+
+        private final long total;
+
+        private long count;
+
+        CountingInputStream(InputStream input, ResumableDownloader.ProgressListener listener, long total) {
+            super(input);
+            this.listener = listener;
+            this.total = total;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value >= 0) {
+                counted(1);
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = super.read(bytes, offset, length);
+            if (read > 0) {
+                counted(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            counted(skipped);
+            return skipped;
+        }
+
+        private void counted(long bytes) {
+            count += bytes;
+            if (listener != null) {
+                listener.onProgress(count, total);
+            }
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package org.hamm.h1kemaps.app.download;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Decides when and how fast the downloads may transfer. All transfers take their bytes from one
+ * token bucket, so together they stay below the rate limit no matter how many connections run.
+ * A transfer only runs on a network its priority is allowed to use, otherwise it waits until the
+ * network changes. Background transfers (prefetching) wait while a foreground transfer (a package
+ * the user asked for) is open, so they never take bandwidth from it.
+ * The transfers wait inside the reads of their response bodies, the server then slows down with
+ * the TCP window instead of filling buffers on the device. A pausable transfer does not wait while
+ * it must not run, its reads throw a TransferPausedException instead, so the download thread is
+ * free for other downloads until a listener is told that the state changed.
+ */
+public class BandwidthScheduler {
+
+    public static final int PRIORITY_FOREGROUND = 0;
+
+    public static final int PRIORITY_BACKGROUND = 1;
+
+    /**
+     * Time the bucket saves tokens for while the transfers are idle, bounds the burst after a pause
+     */
+    private static final long BURST_MILLIS = 250;
+
+    /**
+     * Smallest burst, one read of a transfer should fit into the bucket
+     */
+    private static final long MIN_BURST = 64 * 1024;
+
+    /**
+     * Receives the changes that may let paused transfers run again.
+     */
+    public interface Listener {
+
+        /**
+         * Called after the network, the Wi-Fi settings or the open foreground transfers changed.
+         * The callback runs on the thread that made the change, see isAllowed.
+         */
+        void onStateChanged();
+    }
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    /**
+     * Bytes per second of all transfers together, 0 for no limit. Guarded by this like all state.
+     */
+    private long bytesPerSecond;
+
+    /**
+     * Bytes the transfers may read without waiting, negative after a read that took more
+     */
+    private double tokens;
+
+    private long lastRefillTime = System.nanoTime();
+
+    /**
+     * Per priority: true if the transfers may only run on Wi-Fi
+     */
+    private final boolean[] wifiOnly = new boolean[2];
+
+    private boolean connected = true;
+
+    private boolean wifi = true;
+
+    private int openForegroundTransfers;
+
+    /**
+     * @param bytesPerSecond = rate limit of all transfers together, 0 for no limit.
+     */
+    public synchronized void setRateLimit(long bytesPerSecond) {
+        refill();
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+        tokens = Math.min(tokens, getBurst());
+        notifyAll();
+    }
+
+    public synchronized long getRateLimit() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @param priority = priority of the transfers, see PRIORITY_*.
+     * @param wifiOnly = true if transfers of the priority must not use the mobile network.
+     */
+    public void setWifiOnly(int priority, boolean wifiOnly) {
+        synchronized (this) {
+            this.wifiOnly[priority] = wifiOnly;
+            notifyAll();
+        }
+        fireStateChanged();
+    }
+
+    /**
+     * Updates the network the device is on, waiting transfers continue if it allows them.
+     * @param connected = true if the device has a network connection.
+     * @param wifi = true if the connection is Wi-Fi, false for the mobile network.
+     */
+    public void setNetworkState(boolean connected, boolean wifi) {
+        synchronized (this) {
+            this.connected = connected;
+            this.wifi = wifi;
+            notifyAll();
+        }
+        fireStateChanged();
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Tells the listeners about a change, outside the lock so they can ask isAllowed.
+     */
+    private void fireStateChanged() {
+        for (Listener listener : listeners) {
+            listener.onStateChanged();
+        }
+    }
+
+    /**
+     * @param priority = priority of a transfer, see PRIORITY_*.
+     * @return true if a transfer of the priority may run now.
+     */
+    public synchronized boolean isAllowed(int priority) {
+        if (!connected || (wifiOnly[priority] && !wifi)) {
+            return false;
+        }
+        return priority == PRIORITY_FOREGROUND || openForegroundTransfers == 0;
+    }
+
+    /**
+     * Opens a transfer that waits while it must not run, it has to be closed when the download ends.
+     * @param priority = priority of the transfer, see PRIORITY_*.
+     * @return the transfer.
+     */
+    public Transfer open(int priority) {
+        return open(priority, false);
+    }
+
+    /**
+     * Opens a transfer, it has to be closed when the download ends. A foreground transfer holds
+     * the background transfers back from the time it is opened, so a download that waits for a
+     * thread opens it before it gets one.
+     * @param priority = priority of the transfer, see PRIORITY_*.
+     * @param pausable = true if the reads throw a TransferPausedException while the transfer must
+     *                 not run, false if they wait.
+     * @return the transfer.
+     */
+    public synchronized Transfer open(int priority, boolean pausable) {
+        if (priority == PRIORITY_FOREGROUND) {
+            openForegroundTransfers++;
+        }
+        return new Transfer(priority, pausable);
+    }
+
+    private void close(int priority) {
+        if (priority != PRIORITY_FOREGROUND) {
+            return;
+        }
+        synchronized (this) {
+            openForegroundTransfers--;
+            notifyAll();
+        }
+        fireStateChanged();
+    }
+
+    /**
+     * Waits until the priority may run and the bucket is not in debt, then takes the bytes. A
+     * read may take more bytes than the bucket holds, the next read waits for the debt.
+     * @param pausable = true to return at once if the priority must not run.
+     * @return false if the priority must not run and the transfer is pausable, no bytes were taken.
+     */
+    private synchronized boolean consume(int priority, long bytes, boolean pausable) throws InterruptedException {
+        while (true) {
+            if (!isAllowed(priority)) {
+                if (pausable) {
+                    return false;
+                }
+                wait();
+                continue;
+            }
+            if (bytesPerSecond <= 0) {
+                return true;
+            }
+            refill();
+            if (tokens >= 0) {
+                tokens -= bytes;
+                return true;
+            }
+            long waitMillis = (long) Math.ceil(-tokens * 1000 / bytesPerSecond);
+            wait(Math.max(1, waitMillis));
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (bytesPerSecond > 0) {
+            tokens = Math.min(getBurst(), tokens + (now - lastRefillTime) * bytesPerSecond / 1e9);
+        }
+        lastRefillTime = now;
+    }
+
+    private long getBurst() {
+        return Math.max(MIN_BURST, bytesPerSecond * BURST_MILLIS / 1000);
+    }
+
+    /**
+     * A download that takes its bandwidth from the scheduler. The methods may be called from
+     * several threads, like the segments of a download.
+     */
+    public class Transfer {
+
+        private final int priority;
+
+        private final boolean pausable;
+
+        private boolean closed;
+
+        Transfer(int priority, boolean pausable) {
+            this.priority = priority;
+            this.pausable = pausable;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        /**
+         * Takes bytes from the bucket, waits while the transfer must not run.
+         * @param bytes = number of bytes that were read, 0 to only wait for the network and priority.
+         * @throws TransferPausedException = if the transfer is pausable and must not run.
+         */
+        public void consume(long bytes) throws IOException {
+            boolean allowed;
+            try {
+                allowed = BandwidthScheduler.this.consume(priority, bytes, pausable);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Transfer interrupted");
+            }
+            if (!allowed) {
+                throw new TransferPausedException("Transfer of priority " + priority + " paused");
+            }
+        }
+
+        /**
+         * @param input = response body.
+         * @return a stream whose reads take their bytes from the scheduler.
+         */
+        public InputStream wrap(InputStream input) {
+            return new FilterInputStream(input) {
+
+                @Override
+                public int read() throws IOException {
+                    int value = super.read();
+                    if (value >= 0) {
+                        consume(1);
+                    }
+                    return value;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    int read = super.read(buffer, offset, length);
+                    if (read > 0) {
+                        consume(read);
+                    }
+                    return read;
+                }
+            };
+        }
+
+        /**
+         * Ends the transfer, waiting background transfers continue once no foreground transfer is open.
+         */
+        public void close() {
+            synchronized (BandwidthScheduler.this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            BandwidthScheduler.this.close(priority);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.hamm.h1kemaps.app.download;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Copies a stream into a region of a file through its FileChannel. A stream that is backed by a
+ * file is handed to FileChannel.transferFrom, so the bytes do not pass through the Java heap,
+ * every other stream is read into a (pooled, direct) buffer that is written at the position.
+ * The written bytes can be hashed on the way, so a download needs no second pass over its file
+ * to compute its digests.
+ */
+public final class ChannelCopy {
+
+    /**
+     * Size of the reads from a stream. Channels.newChannel is not used for the streams, its
+     * channel closes the stream when the thread is interrupted and HttpClient then reads the
+     * rest of the body in the interrupting thread.
+     */
+    private static final int READ_SIZE = 8192;
+
+    /**
+     * Receives the position after every write. The callback runs on the copying thread.
+     */
+    public interface Progress {
+
+        /**
+         * @param position = position in the file up to which the bytes are written.
+         */
+        void onWritten(long position) throws IOException;
+    }
+
+    private ChannelCopy() {
+    }
+
+    /**
+     * @param input = source of the bytes.
+     * @param target = channel of the file, its own position is not changed.
+     * @param position = position in the file the first byte is written to.
+     * @param count = number of bytes to copy, -1 to copy until the end of the stream.
+     * @param buffer = buffer for the copy, its capacity is also the size of one transfer.
+     * @param hasher = hashes the written bytes, may be null. Streams backed by a file are copied
+     *               through the buffer then.
+     * @param progress = receives the progress, may be null.
+     * @return the position behind the last written byte.
+     */
+    public static long copy(InputStream input, FileChannel target, long position, long count, ByteBuffer buffer,
+                            ChunkDigests.Hasher hasher, Progress progress) throws IOException {
+        long end = count >= 0 ? position + count : Long.MAX_VALUE;
+        if (input instanceof FileInputStream && hasher == null) {
+            FileChannel source = ((FileInputStream) input).getChannel();
+            while (position < end) {
+                long transferred = target.transferFrom(source, position, Math.min(buffer.capacity(), end - position));
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+                if (progress != null) {
+                    progress.onWritten(position);
+                }
+            }
+            return position;
+        }
+
+        byte[] chunk = new byte[Math.min(READ_SIZE, buffer.capacity())];
+        boolean endOfStream = false;
+        while (position < end && !endOfStream) {
+            buffer.clear();
+            if (end - position < buffer.capacity()) {
+                buffer.limit((int) (end - position));
+            }
+            // fills the buffer with the bytes that arrived, so the file gets few large writes
+            do {
+                int read = input.read(chunk, 0, Math.min(chunk.length, buffer.remaining()));
+                if (read < 0) {
+                    endOfStream = true;
+                    break;
+                }
+                buffer.put(chunk, 0, read);
+            } while (buffer.hasRemaining() && input.available() > 0);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += target.write(buffer, position);
+            }
+            if (hasher != null) {
+                // after the write, a chunk is only in the table once its bytes are in the file
+                buffer.rewind();
+                hasher.update(buffer);
+            }
+            if (progress != null) {
+                progress.onWritten(position);
+            }
+        }
+        return position;
+    }
+}
@@ -0,0 +1,464 @@
+package org.hamm.h1kemaps.app.download;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * MD5 digests of the chunks of a download file, computed while the bytes are written. The table
+ * is kept in a sidecar file next to the download, so a resumed download only hashes the bytes
+ * of its last, unfinished chunk again instead of the whole file. A file whose table covers every
+ * chunk went through the digests completely. The digest of the whole file is the MD5 of the
+ * chunk digests in order.
+ */
+public class ChunkDigests {
+
+    /**
+     * Size of a chunk, segments of a segmented download start at chunk boundaries
+     */
+    public static final int CHUNK_SIZE = 1024 * 1024;
+
+    private static final String ALGORITHM = "MD5";
+
+    private static final String SUFFIX = ".chk";
+
+    private static final String KEY_LENGTH = "length";
+
+    private static final String KEY_CHUNK = "chunk.";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final String BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    /**
+     * Size of the reads when the bytes of an unfinished chunk are hashed again
+     */
+    private static final int TAIL_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Digest per chunk, null for chunks that are not written completely, guarded by this
+     */
+    private byte[][] chunks;
+
+    /**
+     * Length of the file once it is known, -1 before
+     */
+    private long length = -1;
+
+    public ChunkDigests() {
+        this.chunks = new byte[0][];
+    }
+
+    /**
+     * @param target = download file.
+     * @return the sidecar file holding the digests of the chunks.
+     */
+    public static File getFile(File target) {
+        return new File(target.getPath() + SUFFIX);
+    }
+
+    /**
+     * Reads the digests of a download. Digests of chunks behind the end of the file are
+     * dropped, their bytes were not written completely.
+     * @param target = download file.
+     * @return the digests, empty if there are none.
+     */
+    public static ChunkDigests read(File target) {
+        ChunkDigests digests = new ChunkDigests();
+        File file = getFile(target);
+        if (!file.isFile()) {
+            return digests;
+        }
+        Properties properties = new Properties();
+        InputStream input = null;
+        try {
+            input = new FileInputStream(file);
+            properties.load(input);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return digests;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        try {
+            digests.length = Long.parseLong(properties.getProperty(KEY_LENGTH, "-1"));
+        } catch (NumberFormatException e) {
+            digests.length = -1;
+        }
+        long fileLength = target.length();
+        for (String key : properties.stringPropertyNames()) {
+            if (!key.startsWith(KEY_CHUNK)) {
+                continue;
+            }
+            try {
+                int index = Integer.parseInt(key.substring(KEY_CHUNK.length()));
+                byte[] digest = parseHex(properties.getProperty(key));
+                if (index >= 0 && digest != null && getChunkEnd(index, digests.length) <= fileLength) {
+                    digests.setChunk(index, digest);
+                }
+            } catch (NumberFormatException e) {
+                // broken entry, the chunk is hashed again
+            }
+        }
+        return digests;
+    }
+
+    /**
+     * Writes the digests to the sidecar file. The caller forces the bytes of the file to the
+     * device first, so the table never holds digests of bytes that could be lost. The sidecar
+     * file is replaced in one step, a crash leaves the former table.
+     * @param target = download file.
+     */
+    public synchronized void store(File target) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(KEY_LENGTH, String.valueOf(length));
+        for (int i = 0; i < chunks.length; i++) {
+            if (chunks[i] != null) {
+                properties.setProperty(KEY_CHUNK + i, toHex(chunks[i]));
+            }
+        }
+        File file = getFile(target);
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream output = new FileOutputStream(tempFile);
+        try {
+            properties.store(output, null);
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    /**
+     * Removes the sidecar file of a download.
+     * @param target = download file.
+     */
+    public static void delete(File target) {
+        getFile(target).delete();
+    }
+
+    /**
+     * Sets the length of the file, digests of chunks behind it are dropped.
+     * @param length = length of the file, -1 while it is unknown.
+     */
+    public synchronized void setLength(long length) {
+        this.length = length;
+        int count = getChunkCount(length);
+        if (length >= 0 && chunks.length > count) {
+            chunks = Arrays.copyOf(chunks, count);
+        }
+    }
+
+    public synchronized long getLength() {
+        return length;
+    }
+
+    /**
+     * Drops the digests of all chunks that reach behind the position, their bytes are written again.
+     * @param position = position from which on the file is written again.
+     */
+    public void truncate(long position) {
+        truncate(position, Long.MAX_VALUE);
+    }
+
+    /**
+     * Drops the digests of the chunks that overlap a region, its bytes are written again.
+     * @param position = first byte of the region.
+     * @param end = last byte of the region.
+     */
+    public synchronized void truncate(long position, long end) {
+        long last = Math.min(end / CHUNK_SIZE, chunks.length - 1);
+        for (int i = (int) (position / CHUNK_SIZE); i <= last; i++) {
+            chunks[i] = null;
+        }
+    }
+
+    /**
+     * @return true if the length is known and every chunk of the file has its digest.
+     */
+    public synchronized boolean isComplete() {
+        if (length < 0 || chunks.length < getChunkCount(length)) {
+            return false;
+        }
+        for (int i = 0; i < getChunkCount(length); i++) {
+            if (chunks[i] == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the end of the chunks from the start of the file on that all have their digest,
+     * their bytes are on the device.
+     */
+    public synchronized long getHashedEnd() {
+        int chunk = 0;
+        while (chunk < chunks.length && chunks[chunk] != null) {
+            chunk++;
+        }
+        return getChunkEnd(chunk - 1, length);
+    }
+
+    /**
+     * @return the MD5 over the digests of all chunks as hex string or null if the table is not complete.
+     */
+    public synchronized String getFileDigest() {
+        if (!isComplete()) {
+            return null;
+        }
+        MessageDigest digest = newDigest();
+        for (int i = 0; i < getChunkCount(length); i++) {
+            digest.update(chunks[i]);
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Starts hashing a sequential write at a position. The chunks from start on that are not in
+     * the table yet are read again from the file up to the position, usually only the unfinished
+     * last chunk. All chunks before are known from the table.
+     * @param channel = channel of the download file.
+     * @param start = first byte of the region the write belongs to, a chunk boundary.
+     * @param position = position the next written byte goes to.
+     * @return the hasher for the write.
+     */
+    public Hasher openHasher(FileChannel channel, long start, long position) throws IOException {
+        long hashed = start;
+        while (hashed + CHUNK_SIZE <= position && getChunk((int) (hashed / CHUNK_SIZE)) != null) {
+            hashed += CHUNK_SIZE;
+        }
+        Hasher hasher = new Hasher(hashed);
+        ByteBuffer tail = ByteBuffer.allocate((int) Math.min(TAIL_BUFFER_SIZE, position - hashed));
+        while (hashed < position) {
+            tail.clear();
+            if (position - hashed < tail.capacity()) {
+                tail.limit((int) (position - hashed));
+            }
+            while (tail.hasRemaining()) {
+                if (channel.read(tail, hashed + tail.position()) < 0) {
+                    throw new IOException("File ends before " + position);
+                }
+            }
+            tail.flip();
+            hasher.update(tail);
+            hashed += tail.limit();
+        }
+        return hasher;
+    }
+
+    /**
+     * Stores the digests of the bytes that are written so far. The table is copied before the
+     * file is forced to the device, so it only holds chunks whose bytes are on the device.
+     * @param channel = channel of the download file.
+     * @param target = download file.
+     */
+    public void save(FileChannel channel, File target) throws IOException {
+        ChunkDigests saved = copy();
+        channel.force(false);
+        saved.store(target);
+    }
+
+    /**
+     * @return a copy of the table, the digests of the chunks are shared.
+     */
+    public synchronized ChunkDigests copy() {
+        ChunkDigests copy = new ChunkDigests();
+        copy.chunks = chunks.clone();
+        copy.length = length;
+        return copy;
+    }
+
+    private synchronized void setChunk(int index, byte[] digest) {
+        if (index >= chunks.length) {
+            chunks = Arrays.copyOf(chunks, Math.max(index + 1, chunks.length * 2));
+        }
+        chunks[index] = digest;
+    }
+
+    /**
+     * @return the digest of the chunk or null if it is not complete.
+     */
+    synchronized byte[] getChunk(int index) {
+        return index < chunks.length ? chunks[index] : null;
+    }
+
+    private static int getChunkCount(long length) {
+        return (int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    private static long getChunkEnd(int index, long length) {
+        long end = (long) (index + 1) * CHUNK_SIZE;
+        return length >= 0 ? Math.min(end, length) : end;
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java and Android runtime has MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    static byte[] parseHex(String hex) {
+        if (hex == null || hex.length() % 2 != 0) {
+            return null;
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+
+    /**
+     * Decodes base64 as used by the Content-MD5 header, without the Android framework so the class
+     * also runs on the JVM.
+     * @return the bytes or null if the string is not padded base64.
+     */
+    static byte[] parseBase64(String base64) {
+        if (base64 == null || base64.length() % 4 != 0) {
+            return null;
+        }
+        int padding = base64.endsWith("==") ? 2 : base64.endsWith("=") ? 1 : 0;
+        byte[] bytes = new byte[base64.length() / 4 * 3 - padding];
+        int buffer = 0;
+        int index = 0;
+        for (int i = 0; i < base64.length() - padding; i++) {
+            int value = BASE64.indexOf(base64.charAt(i));
+            if (value < 0) {
+                return null;
+            }
+            buffer = buffer << 6 | value;
+            if (i % 4 == 3) {
+                bytes[index++] = (byte) (buffer >> 16);
+                bytes[index++] = (byte) (buffer >> 8);
+                bytes[index++] = (byte) buffer;
+                buffer = 0;
+            }
+        }
+        // the last group without its padding
+        if (padding == 1) {
+            bytes[index++] = (byte) (buffer >> 10);
+            bytes[index] = (byte) (buffer >> 2);
+        } else if (padding == 2) {
+            bytes[index] = (byte) (buffer >> 4);
+        }
+        return bytes;
+    }
+
+    /**
+     * Hashes the bytes of one sequential write, chunk by chunk. The bytes have to be passed in the
+     * order they are written, the digest of every chunk goes into the table when the chunk is full
+     * or the write ends at the end of the file.
+     */
+    public class Hasher {
+
+        private final MessageDigest chunkDigest = newDigest();
+
+        /**
+         * Digest of the bytes since digestBody was called, null before
+         */
+        private MessageDigest bodyDigest;
+
+        /**
+         * Position of the next byte
+         */
+        private long position;
+
+        Hasher(long position) {
+            this.position = position;
+        }
+
+        /**
+         * Hashes the following bytes also as a whole, for a response body whose digest the
+         * server sent.
+         */
+        public void digestBody() {
+            bodyDigest = newDigest();
+        }
+
+        /**
+         * @return the MD5 of the bytes since digestBody was called, the body digest is reset.
+         */
+        public byte[] getBodyDigest() {
+            return bodyDigest != null ? bodyDigest.digest() : null;
+        }
+
+        /**
+         * @return the position of the next byte, the bytes before it went through the hasher.
+         */
+        public long getPosition() {
+            return position;
+        }
+
+        /**
+         * @param bytes = written bytes from position to limit, the position of the buffer is not changed.
+         */
+        public void update(ByteBuffer bytes) {
+            int start = bytes.position();
+            int limit = bytes.limit();
+            if (bodyDigest != null) {
+                bodyDigest.update(bytes);
+                bytes.position(start);
+            }
+            while (bytes.position() < limit) {
+                long chunkEnd = position - position % CHUNK_SIZE + CHUNK_SIZE;
+                int count = (int) Math.min(limit - bytes.position(), chunkEnd - position);
+                bytes.limit(bytes.position() + count);
+                chunkDigest.update(bytes);
+                bytes.limit(limit);
+                position += count;
+                if (position == chunkEnd) {
+                    finishChunk();
+                }
+            }
+            bytes.position(start);
+        }
+
+        /**
+         * Ends the write. The last chunk of the file is complete even if it is shorter than CHUNK_SIZE.
+         */
+        public void finish() {
+            long fileLength = getLength();
+            if (fileLength >= 0 && position == fileLength && position % CHUNK_SIZE != 0) {
+                finishChunk();
+            }
+        }
+
+        private void finishChunk() {
+            setChunk((int) ((position - 1) / CHUNK_SIZE), chunkDigest.digest());
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package org.hamm.h1kemaps.app.download;
+
+import java.io.IOException;
+
+/**
+ * The bytes of a download do not match their digest. The bytes are discarded, so downloading
+ * the file again fetches them anew.
+ */
+public class CorruptDownloadException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public CorruptDownloadException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,167 @@
+package org.hamm.h1kemaps.app.download;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Applies the binary delta between two versions of a map file. The delta is deflated as a whole
+ * and holds a header (magic, length of the source, length and MD5 of the target) followed by
+ * instructions that write the target from front to back:
+ * COPY (offset and length of a region of the source) and ADD (length and the bytes), the last
+ * instruction is END. The delta is read as a stream and the source through its channel, so
+ * neither file is held in memory. The target is hashed while it is written, its digests are
+ * stored like the ones of a download.
+ */
+public final class DeltaPatch {
+
+    /**
+     * "SKD1"
+     */
+    static final int MAGIC = 0x534b4431;
+
+    static final int OP_END = 0;
+
+    static final int OP_COPY = 1;
+
+    static final int OP_ADD = 2;
+
+    private static final int MD5_LENGTH = 16;
+
+    private static final String SUFFIX = ".delta";
+
+    private DeltaPatch() {
+    }
+
+    /**
+     * @param target = file the delta is applied to.
+     * @return the file the delta is downloaded to.
+     */
+    public static File getDeltaFile(File target) {
+        return new File(target.getPath() + SUFFIX);
+    }
+
+    /**
+     * Writes the target from the source and the delta. A target that was written before is
+     * replaced.
+     * @param source = file of the former version.
+     * @param delta = downloaded delta.
+     * @param target = file of the new version.
+     * @param buffer = buffer for the regions that are copied from the source.
+     * @return the length of the target.
+     * @throws IOException = if the delta is broken or was not made for the source.
+     * @throws CorruptDownloadException = if the written target does not match its digest.
+     */
+    public static long apply(File source, File delta, File target, ByteBuffer buffer) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(new FileInputStream(delta))));
+        RandomAccessFile sourceFile = null;
+        RandomAccessFile targetFile = null;
+        try {
+            if (input.readInt() != MAGIC) {
+                throw new IOException(delta + " is no delta");
+            }
+            long sourceLength = input.readLong();
+            long targetLength = input.readLong();
+            byte[] expectedDigest = new byte[MD5_LENGTH];
+            input.readFully(expectedDigest);
+            sourceFile = new RandomAccessFile(source, "r");
+            if (sourceFile.length() != sourceLength) {
+                throw new IOException(source + " is not the file the delta was made for");
+            }
+            FileChannel sourceChannel = sourceFile.getChannel();
+
+            ChunkDigests.delete(target);
+            targetFile = new RandomAccessFile(target, "rw");
+            targetFile.setLength(0);
+            // allocated at once like a download
+            targetFile.setLength(targetLength);
+            FileChannel targetChannel = targetFile.getChannel();
+            ChunkDigests digests = new ChunkDigests();
+            digests.setLength(targetLength);
+            ChunkDigests.Hasher hasher = digests.openHasher(targetChannel, 0, 0);
+            hasher.digestBody();
+
+            long position = 0;
+            for (int op = input.readUnsignedByte(); op != OP_END; op = input.readUnsignedByte()) {
+                if (op == OP_COPY) {
+                    long offset = input.readLong();
+                    int length = input.readInt();
+                    if (offset < 0 || length < 0 || offset + length > sourceLength
+                            || position + length > targetLength) {
+                        throw new IOException("Copy of " + length + " bytes at " + offset + " is out of bounds");
+                    }
+                    position = copyRegion(sourceChannel, offset, length, targetChannel, position, buffer, hasher);
+                } else if (op == OP_ADD) {
+                    int length = input.readInt();
+                    if (length < 0 || position + length > targetLength) {
+                        throw new IOException("Add of " + length + " bytes at " + position + " is out of bounds");
+                    }
+                    long end = ChannelCopy.copy(input, targetChannel, position, length, buffer, hasher, null);
+                    if (end != position + length) {
+                        throw new EOFException("Delta ends within an add at " + position);
+                    }
+                    position = end;
+                } else {
+                    throw new IOException("Unknown instruction " + op + " in " + delta);
+                }
+            }
+            if (position != targetLength) {
+                throw new IOException("Delta wrote " + position + " of " + targetLength + " bytes");
+            }
+            if (!Arrays.equals(expectedDigest, hasher.getBodyDigest())) {
+                throw new CorruptDownloadException("Digest mismatch in " + target + " after applying " + delta);
+            }
+            hasher.finish();
+            digests.save(targetChannel, target);
+            return targetLength;
+        } finally {
+            input.close();
+            if (sourceFile != null) {
+                sourceFile.close();
+            }
+            if (targetFile != null) {
+                targetFile.close();
+            }
+        }
+    }
+
+    /**
+     * Copies a region of the source to the position in the target and hashes it.
+     * @return the position behind the copied bytes.
+     */
+    private static long copyRegion(FileChannel source, long offset, int length, FileChannel target, long position,
+                                   ByteBuffer buffer, ChunkDigests.Hasher hasher) throws IOException {
+        long end = offset + length;
+        while (offset < end) {
+            buffer.clear();
+            if (end - offset < buffer.capacity()) {
+                buffer.limit((int) (end - offset));
+            }
+            while (buffer.hasRemaining()) {
+                int read = source.read(buffer, offset + buffer.position());
+                if (read < 0) {
+                    throw new EOFException("Source ends before " + end);
+                }
+            }
+            buffer.flip();
+            int count = buffer.limit();
+            while (buffer.hasRemaining()) {
+                target.write(buffer, position + buffer.position());
+            }
+            buffer.rewind();
+            hasher.update(buffer);
+            offset += count;
+            position += count;
+        }
+        return position;
+    }
+}
@@ -0,0 +1,79 @@
+package org.hamm.h1kemaps.app.download;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Small pool of direct buffers shared by the download threads. A FileChannel writes a direct
+ * buffer without copying it into native memory first, and reusing the buffers keeps the
+ * downloads from allocating garbage. The pool hands out at most capacity buffers, a thread that
+ * asks for one more waits until another download returns its buffer, so the memory of the
+ * downloads is bounded no matter how many run.
+ */
+public class DirectBufferPool {
+
+    private final int bufferSize;
+
+    /**
+     * One permit per buffer that may be handed out
+     */
+    private final Semaphore permits;
+
+    /**
+     * Returned buffers, they are allocated on first use
+     */
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    /**
+     * @param bufferSize = size of every buffer.
+     * @param capacity = number of buffers the pool hands out at the same time.
+     */
+    public DirectBufferPool(int bufferSize, int capacity) {
+        this.bufferSize = bufferSize;
+        this.permits = new Semaphore(capacity, true);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Allows more buffers to be handed out at the same time.
+     * @param count = number of additional buffers.
+     */
+    public void grow(int count) {
+        permits.release(count);
+    }
+
+    /**
+     * Takes a buffer from the pool and waits if all buffers are in use.
+     * @return a cleared buffer, it has to be given back with release.
+     * @throws InterruptedIOException = if the thread was interrupted while waiting.
+     */
+    public ByteBuffer acquire() throws InterruptedIOException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a buffer");
+        }
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool.
+     * @param buffer = buffer from acquire, it must not be used afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        buffer.clear();
+        buffers.offer(buffer);
+        permits.release();
+    }
+}
@@ -0,0 +1,76 @@
+package org.hamm.h1kemaps.app.download;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Decides whether a package fits into the storage the packages are downloaded to. A package needs
+ * the estimated size of its parts (see DownloadPart.estimateSizes) minus the bytes that are
+ * already on the device, a reserve stays free so the device keeps working.
+ */
+public class DiskSpaceAdmission {
+
+    private final File directory;
+
+    private final long reserveBytes;
+
+    /**
+     * @param directory = directory the packages are downloaded to, it does not need to exist yet.
+     * @param reserveBytes = bytes that are left free.
+     */
+    public DiskSpaceAdmission(File directory, long reserveBytes) {
+        this.directory = directory;
+        this.reserveBytes = reserveBytes;
+    }
+
+    /**
+     * @return the bytes the app can write to the storage of the directory.
+     */
+    long getUsableSpace() {
+        File existing = directory;
+        while (existing != null && !existing.exists()) {
+            existing = existing.getParentFile();
+        }
+        return existing != null ? existing.getUsableSpace() : 0;
+    }
+
+    /**
+     * @param parts = parts of a package.
+     * @return the bytes the package still needs. Allocated files count as written, their space
+     * is taken already.
+     */
+    public static long getRequiredBytes(List<DownloadPart> parts) {
+        long[] sizes = DownloadPart.estimateSizes(parts);
+        long required = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            long written = 0;
+            for (File file : parts.get(i).getFiles()) {
+                written += file.isFile() ? file.length() : 0;
+            }
+            required += Math.max(0, sizes[i] - written);
+        }
+        return required;
+    }
+
+    /**
+     * @param parts = parts of a package.
+     * @param reservedBytes = bytes other packages still need, e.g. the running downloads.
+     * @return true if the package fits next to the other packages and the reserve.
+     */
+    public boolean fits(List<DownloadPart> parts, long reservedBytes) {
+        return getRequiredBytes(parts) + reservedBytes + reserveBytes <= getUsableSpace();
+    }
+
+    /**
+     * @param packageCode = code of the package.
+     * @param parts = parts of the package.
+     * @throws NotEnoughSpaceException = if the package does not fit even without other packages.
+     */
+    public void check(String packageCode, List<DownloadPart> parts) throws NotEnoughSpaceException {
+        long required = getRequiredBytes(parts) + reserveBytes;
+        long usable = getUsableSpace();
+        if (required > usable) {
+            throw new NotEnoughSpaceException(packageCode, required, usable);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package org.hamm.h1kemaps.app.download;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One resource of a map package: the map itself (.skm), the textures (.txg) or the zip archive
+ * of the name-browser files (.ngi, .ngi.dat) that are needed for offline searches. The archive
+ * is extracted while it is downloaded, its part stands for both files.
+ */
+public class DownloadPart {
+
+    public static final String EXTENSION_MAP = ".skm";
+
+    public static final String EXTENSION_TEXTURES = ".txg";
+
+    public static final String EXTENSION_NAME_BROWSER = ".ngi";
+
+    public static final String EXTENSION_NAME_BROWSER_DATA = ".ngi.dat";
+
+    public static final String EXTENSION_NAME_BROWSER_ARCHIVE = ".zip";
+
+    /**
+     * Estimated size of a textures file, the catalog only knows the size of the map
+     */
+    private static final long TEXTURES_SIZE_ESTIMATE = 4L * 1024 * 1024;
+
+    /**
+     * Estimated sizes of the name-browser files as share of the map size, on the safe side
+     */
+    private static final double NAME_BROWSER_SHARE = 0.1;
+
+    private static final double NAME_BROWSER_DATA_SHARE = 0.3;
+
+    /**
+     * URL of the resource
+     */
+    private final String url;
+
+    /**
+     * File extension of the resource, see EXTENSION_*
+     */
+    private final String extension;
+
+    /**
+     * File the resource is downloaded to
+     */
+    private final File target;
+
+    /**
+     * Length of the resource as known from the catalog, -1 if unknown
+     */
+    private final long expectedSize;
+
+    /**
+     * URL of a delta that turns baseFile into the resource, null if the part is downloaded in full
+     */
+    private final String deltaUrl;
+
+    /**
+     * Installed file of the former map version the delta is applied to, null without delta
+     */
+    private final File baseFile;
+
+    public DownloadPart(String url, String extension, File target, long expectedSize) {
+        this(url, extension, target, expectedSize, null, null);
+    }
+
+    public DownloadPart(String url, String extension, File target, long expectedSize, String deltaUrl,
+                        File baseFile) {
+        this.url = url;
+        this.extension = extension;
+        this.target = target;
+        this.expectedSize = expectedSize;
+        this.deltaUrl = deltaUrl;
+        this.baseFile = baseFile;
+    }
+
+    /**
+     * Creates the parts of a map package.
+     * @param packageCode = code of the package (e.g. DE).
+     * @param mapUrl = URL of the SKM file.
+     * @param texturesUrl = URL of the textures file.
+     * @param nameBrowserFilesUrl = URL of the zipped name-browser files.
+     * @param directory = directory the files are downloaded to.
+     * @param mapSize = size of the SKM file from the catalog, -1 if unknown.
+     * @return the parts in the order .skm, .txg, .zip; the target of the archive is the .ngi file.
+     */
+    public static List<DownloadPart> forPackage(String packageCode, String mapUrl, String texturesUrl,
+                                                String nameBrowserFilesUrl, File directory, long mapSize) {
+        List<DownloadPart> parts = new ArrayList<DownloadPart>(3);
+        parts.add(new DownloadPart(mapUrl, EXTENSION_MAP, new File(directory, packageCode + EXTENSION_MAP), mapSize));
+        parts.add(new DownloadPart(texturesUrl, EXTENSION_TEXTURES,
+                new File(directory, packageCode + EXTENSION_TEXTURES), -1));
+        parts.add(new DownloadPart(nameBrowserFilesUrl, EXTENSION_NAME_BROWSER_ARCHIVE,
+                new File(directory, packageCode + EXTENSION_NAME_BROWSER), -1));
+        return parts;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    public File getTarget() {
+        return target;
+    }
+
+    public long getExpectedSize() {
+        return expectedSize;
+    }
+
+    public String getDeltaUrl() {
+        return deltaUrl;
+    }
+
+    public File getBaseFile() {
+        return baseFile;
+    }
+
+    /**
+     * @return the files of the part: the target, for the name-browser archive also the .ngi.dat
+     * file next to it.
+     */
+    public List<File> getFiles() {
+        List<File> files = new ArrayList<File>(2);
+        files.add(target);
+        if (EXTENSION_NAME_BROWSER_ARCHIVE.equals(extension)) {
+            String name = target.getName();
+            files.add(new File(target.getParentFile(), name.substring(0, name.length()
+                    - EXTENSION_NAME_BROWSER.length()) + EXTENSION_NAME_BROWSER_DATA));
+        }
+        return files;
+    }
+
+    /**
+     * Servers that do not offer the name-browser archive have the unzipped files next to it.
+     * @return the URL of every file of getFiles on its own.
+     */
+    public List<String> getFileUrls() {
+        List<String> urls = new ArrayList<String>(2);
+        if (EXTENSION_NAME_BROWSER_ARCHIVE.equals(extension)) {
+            urls.add(url.replaceFirst("\\.zip", EXTENSION_NAME_BROWSER));
+            urls.add(url.replaceFirst("\\.zip", EXTENSION_NAME_BROWSER_DATA));
+        } else {
+            urls.add(url);
+        }
+        return urls;
+    }
+
+    /**
+     * @param deltaUrl = URL of the delta from the base file to the resource.
+     * @param baseFile = installed file of the former map version.
+     * @return the part built from the base file and the delta, downloaded in full if that fails.
+     */
+    public DownloadPart withDelta(String deltaUrl, File baseFile) {
+        return new DownloadPart(url, extension, target, expectedSize, deltaUrl, baseFile);
+    }
+
+    /**
+     * Estimates the sizes of the parts of a package. The size of the map comes from the catalog,
+     * the other parts are estimated from it.
+     * @param parts = parts of a package as created by forPackage.
+     * @return the expected or estimated size per part, 0 if nothing is known about it.
+     */
+    public static long[] estimateSizes(List<DownloadPart> parts) {
+        long mapSize = 0;
+        for (DownloadPart part : parts) {
+            if (EXTENSION_MAP.equals(part.extension)) {
+                mapSize = Math.max(0, part.expectedSize);
+            }
+        }
+        long[] sizes = new long[parts.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            DownloadPart part = parts.get(i);
+            if (part.expectedSize >= 0) {
+                sizes[i] = part.expectedSize;
+            } else if (EXTENSION_TEXTURES.equals(part.extension)) {
+                sizes[i] = TEXTURES_SIZE_ESTIMATE;
+            } else if (EXTENSION_NAME_BROWSER.equals(part.extension)) {
+                sizes[i] = (long) (mapSize * NAME_BROWSER_SHARE);
+            } else if (EXTENSION_NAME_BROWSER_DATA.equals(part.extension)) {
+                sizes[i] = (long) (mapSize * NAME_BROWSER_DATA_SHARE);
+            } else if (EXTENSION_NAME_BROWSER_ARCHIVE.equals(part.extension)) {
+                // the extracted files, the archive is not stored
+                sizes[i] = (long) (mapSize * (NAME_BROWSER_SHARE + NAME_BROWSER_DATA_SHARE));
+            }
+        }
+        return sizes;
+    }
+
+    @Override
+    public String toString() {
+        return target.getName();
+    }
+}
@@ -0,0 +1,396 @@
+package org.hamm.h1kemaps.app.download;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects the progress of the running package downloads. The download threads only write
+ * their counters, they never call out. While listeners are registered a ticker reads all
+ * counters at a fixed rate and publishes one snapshot with bytes, rate, remaining time and the
+ * state of every part, so a listener that updates the UI does the same work per tick no matter
+ * how many downloads and connections are running.
+ */
+public class DownloadProgressBus {
+
+    public static final int PART_WAITING = 0;
+
+    public static final int PART_DOWNLOADING = 1;
+
+    public static final int PART_CHECKING = 2;
+
+    public static final int PART_COMPLETE = 3;
+
+    public static final int PART_FAILED = 4;
+
+    /**
+     * Time between two snapshots, about the rate a progress bar needs
+     */
+    private static final long DEFAULT_TICK_MILLIS = 200;
+
+    /**
+     * Weight of the newest tick in the rate, smooths the bursts of the reads
+     */
+    private static final double RATE_SMOOTHING = 0.3;
+
+    /**
+     * Receives the snapshots. The callback runs on the ticker thread.
+     */
+    public interface Listener {
+
+        void onSnapshot(Snapshot snapshot);
+    }
+
+    private final long tickMillis;
+
+    private final List<Tracker> trackers = new CopyOnWriteArrayList<Tracker>();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    /**
+     * Runs while listeners are registered, guarded by this
+     */
+    private ScheduledExecutorService ticker;
+
+    private volatile Snapshot lastSnapshot = new Snapshot(Collections.<PackageProgress>emptyList());
+
+    public DownloadProgressBus() {
+        this(DEFAULT_TICK_MILLIS);
+    }
+
+    /**
+     * @param tickMillis = time between two snapshots.
+     */
+    public DownloadProgressBus(long tickMillis) {
+        this.tickMillis = tickMillis;
+    }
+
+    /**
+     * Registers a listener, the ticker starts with the first one.
+     */
+    public synchronized void addListener(Listener listener) {
+        listeners.add(listener);
+        if (ticker == null) {
+            ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "DownloadProgressBus");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            ticker.scheduleAtFixedRate(new Runnable() {
+
+                @Override
+                public void run() {
+                    tick();
+                }
+            }, 0, tickMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Removes a listener, the ticker stops with the last one.
+     */
+    public synchronized void removeListener(Listener listener) {
+        listeners.remove(listener);
+        if (listeners.isEmpty() && ticker != null) {
+            ticker.shutdown();
+            ticker = null;
+        }
+    }
+
+    /**
+     * @return the last published snapshot, empty before the first tick.
+     */
+    public Snapshot getSnapshot() {
+        return lastSnapshot;
+    }
+
+    /**
+     * Starts following the download of a package.
+     * @param packageCode = code of the package.
+     * @param expectedSizes = expected size per part, -1 if unknown.
+     * @return the counters the download threads write.
+     */
+    public Tracker track(String packageCode, long[] expectedSizes) {
+        Tracker tracker = new Tracker(packageCode, expectedSizes);
+        trackers.add(tracker);
+        return tracker;
+    }
+
+    /**
+     * Reads the counters of all downloads and publishes the snapshot. An idle bus publishes
+     * nothing after the snapshot that showed the last download ending.
+     */
+    void tick() {
+        if (trackers.isEmpty() && lastSnapshot.getPackages().isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        List<PackageProgress> packages = new ArrayList<PackageProgress>(trackers.size());
+        for (Tracker tracker : trackers) {
+            packages.add(tracker.sample(now));
+        }
+        Snapshot snapshot = new Snapshot(packages);
+        lastSnapshot = snapshot;
+        for (Listener listener : listeners) {
+            try {
+                listener.onSnapshot(snapshot);
+            } catch (RuntimeException e) {
+                // a broken listener must not stop the ticker
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return remaining seconds at the rate, -1 if the rate or the size is not known.
+     */
+    private static long getEtaSeconds(long downloadedBytes, long totalBytes, double bytesPerSecond) {
+        if (bytesPerSecond <= 0 || totalBytes <= 0) {
+            return -1;
+        }
+        return (long) Math.ceil(Math.max(0, totalBytes - downloadedBytes) / bytesPerSecond);
+    }
+
+    /**
+     * Counters of one package download. The download threads write them without locks, only the
+     * ticker reads them.
+     */
+    public class Tracker {
+
+        private final String packageCode;
+
+        private final AtomicLongArray downloaded;
+
+        /**
+         * Size per part, the expected size until the download knows it
+         */
+        private final AtomicLongArray totals;
+
+        private final AtomicIntegerArray states;
+
+        /**
+         * Bytes and time of the last sample and the smoothed rate, only used by the ticker
+         */
+        private long sampledBytes = -1;
+
+        private long sampleTime;
+
+        private double bytesPerSecond;
+
+        Tracker(String packageCode, long[] expectedSizes) {
+            this.packageCode = packageCode;
+            this.downloaded = new AtomicLongArray(expectedSizes.length);
+            this.totals = new AtomicLongArray(expectedSizes);
+            this.states = new AtomicIntegerArray(expectedSizes.length);
+        }
+
+        /**
+         * @param part = index of the part.
+         * @param downloadedBytes = bytes of the part on the device.
+         * @param totalBytes = size of the part, -1 keeps the size known so far.
+         */
+        public void setProgress(int part, long downloadedBytes, long totalBytes) {
+            downloaded.set(part, downloadedBytes);
+            if (totalBytes >= 0) {
+                totals.set(part, totalBytes);
+            }
+        }
+
+        /**
+         * @param part = index of the part.
+         * @param state = state of the part, see PART_*.
+         */
+        public void setState(int part, int state) {
+            states.set(part, state);
+        }
+
+        public long getDownloadedBytes(int part) {
+            return downloaded.get(part);
+        }
+
+        public long getTotalBytes(int part) {
+            return totals.get(part);
+        }
+
+        /**
+         * Stops following the package, the next snapshot does not contain it anymore.
+         */
+        public void close() {
+            trackers.remove(this);
+        }
+
+        PackageProgress sample(long now) {
+            int count = downloaded.length();
+            long[] partDownloaded = new long[count];
+            long[] partTotals = new long[count];
+            int[] partStates = new int[count];
+            long downloadedBytes = 0;
+            long totalBytes = 0;
+            for (int i = 0; i < count; i++) {
+                partDownloaded[i] = downloaded.get(i);
+                partTotals[i] = Math.max(totals.get(i), partDownloaded[i]);
+                partStates[i] = states.get(i);
+                downloadedBytes += partDownloaded[i];
+                totalBytes += partTotals[i];
+            }
+            if (sampledBytes >= 0 && now > sampleTime) {
+                // a part that is downloaded again goes back, that is no negative rate
+                double rate = Math.max(0, downloadedBytes - sampledBytes) * 1e9 / (now - sampleTime);
+                bytesPerSecond += RATE_SMOOTHING * (rate - bytesPerSecond);
+            }
+            sampledBytes = downloadedBytes;
+            sampleTime = now;
+            return new PackageProgress(packageCode, downloadedBytes, totalBytes, bytesPerSecond,
+                    partDownloaded, partTotals, partStates);
+        }
+    }
+
+    /**
+     * Progress of one package at the time of a snapshot.
+     */
+    public static class PackageProgress {
+
+        private final String packageCode;
+
+        private final long downloadedBytes;
+
+        private final long totalBytes;
+
+        private final double bytesPerSecond;
+
+        private final long[] partDownloaded;
+
+        private final long[] partTotals;
+
+        private final int[] partStates;
+
+        PackageProgress(String packageCode, long downloadedBytes, long totalBytes, double bytesPerSecond,
+                        long[] partDownloaded, long[] partTotals, int[] partStates) {
+            this.packageCode = packageCode;
+            this.downloadedBytes = downloadedBytes;
+            this.totalBytes = totalBytes;
+            this.bytesPerSecond = bytesPerSecond;
+            this.partDownloaded = partDownloaded;
+            this.partTotals = partTotals;
+            this.partStates = partStates;
+        }
+
+        public String getPackageCode() {
+            return packageCode;
+        }
+
+        public long getDownloadedBytes() {
+            return downloadedBytes;
+        }
+
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        public double getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        /**
+         * @return remaining seconds at the current rate, -1 if not known.
+         */
+        public long getEtaSeconds() {
+            return DownloadProgressBus.getEtaSeconds(downloadedBytes, totalBytes, bytesPerSecond);
+        }
+
+        public int getPartCount() {
+            return partStates.length;
+        }
+
+        public long getPartDownloadedBytes(int part) {
+            return partDownloaded[part];
+        }
+
+        public long getPartTotalBytes(int part) {
+            return partTotals[part];
+        }
+
+        /**
+         * @return the state of the part, see PART_*.
+         */
+        public int getPartState(int part) {
+            return partStates[part];
+        }
+    }
+
+    /**
+     * Progress of all running package downloads at one tick.
+     */
+    public static class Snapshot {
+
+        private final List<PackageProgress> packages;
+
+        private final long downloadedBytes;
+
+        private final long totalBytes;
+
+        private final double bytesPerSecond;
+
+        Snapshot(List<PackageProgress> packages) {
+            this.packages = Collections.unmodifiableList(packages);
+            long downloaded = 0;
+            long total = 0;
+            double rate = 0;
+            for (PackageProgress pack : packages) {
+                downloaded += pack.downloadedBytes;
+                total += pack.totalBytes;
+                rate += pack.bytesPerSecond;
+            }
+            this.downloadedBytes = downloaded;
+            this.totalBytes = total;
+            this.bytesPerSecond = rate;
+        }
+
+        public List<PackageProgress> getPackages() {
+            return packages;
+        }
+
+        /**
+         * @param packageCode = code of a package.
+         * @return the progress of the package or null if it is not downloading.
+         */
+        public PackageProgress getPackage(String packageCode) {
+            for (PackageProgress pack : packages) {
+                if (pack.packageCode.equals(packageCode)) {
+                    return pack;
+                }
+            }
+            return null;
+        }
+
+        public long getDownloadedBytes() {
+            return downloadedBytes;
+        }
+
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        public double getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        /**
+         * @return remaining seconds of all downloads at the current rate, -1 if not known.
+         */
+        public long getEtaSeconds() {
+            return DownloadProgressBus.getEtaSeconds(downloadedBytes, totalBytes, bytesPerSecond);
+        }
+    }
+}
@@ -0,0 +1,644 @@
+package org.hamm.h1kemaps.app.download;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Queue of package downloads that survives the process. Every change of the queue is appended
+ * to a journal file and synced to the device before it takes effect, so after a restart the
+ * queue is rebuilt from the journal and downloads that were running continue where their files
+ * stopped. A package goes from STATE_QUEUED to STATE_DOWNLOADING and ends in STATE_INSTALLED or,
+ * after MAX_PACKAGE_ATTEMPTS failed downloads, in STATE_FAILED. At most maxActivePackages
+ * packages download at the same time, their parts share the threads of the engine. Foreground
+ * packages start before background packages that were queued earlier. On start the
+ * engine cleans up the staging directories of the packages that are not in the queue anymore.
+ * With a DiskSpaceAdmission a package that does not fit into the free space is not queued, and
+ * a queued package waits until it fits next to the running ones. Packages that did not start
+ * yet can be removed again, e.g. the background packages of a route that was planned anew.
+ */
+public class DownloadQueue {
+
+    public static final int STATE_QUEUED = 0;
+
+    public static final int STATE_DOWNLOADING = 1;
+
+    public static final int STATE_INSTALLED = 2;
+
+    public static final int STATE_FAILED = 3;
+
+    /**
+     * The queue does not know the package (anymore), it is not in the journal
+     */
+    public static final int STATE_REMOVED = -1;
+
+    /**
+     * Names of the states in the journal, indexed by state
+     */
+    private static final String[] STATE_NAMES = {"QUEUED", "DOWNLOADING", "INSTALLED", "FAILED"};
+
+    /**
+     * Number of times a package is downloaded before it fails, every try continues the files
+     */
+    private static final int MAX_PACKAGE_ATTEMPTS = 3;
+
+    private static final String RECORD_ADD = "ADD";
+
+    private static final String RECORD_STATE = "STATE";
+
+    private static final String RECORD_REMOVE = "REMOVE";
+
+    private static final String SEPARATOR = "\t";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Receives the changes of the queue. The callbacks run on the download threads, the progress
+     * of the downloads is published by the DownloadProgressBus of the engine.
+     */
+    public interface Listener {
+
+        /**
+         * @param packageCode = code of the package.
+         * @param state = new state, see STATE_*, STATE_REMOVED if the package was removed.
+         */
+        void onStateChanged(String packageCode, int state);
+
+        /**
+         * Called when the last queued package ended and nothing is left to download.
+         */
+        void onIdle();
+    }
+
+    private final PackageDownloadEngine engine;
+
+    private final File journalFile;
+
+    private final int maxActivePackages;
+
+    /**
+     * Packages in the order they were queued, guarded by this
+     */
+    private final Map<String, Job> jobs = new LinkedHashMap<String, Job>();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    /**
+     * Journal opened for appending, null before start
+     */
+    private FileOutputStream journal;
+
+    private int activePackages;
+
+    private int activeForegroundPackages;
+
+    /**
+     * Checks the free space before packages are queued and started, null to not check it
+     */
+    private DiskSpaceAdmission diskSpace;
+
+    /**
+     * @param engine = downloads and installs the packages.
+     * @param journalFile = file the queue is kept in.
+     * @param maxActivePackages = number of packages that are downloaded at the same time.
+     */
+    public DownloadQueue(PackageDownloadEngine engine, File journalFile, int maxActivePackages) {
+        this.engine = engine;
+        this.journalFile = journalFile;
+        this.maxActivePackages = maxActivePackages;
+    }
+
+    /**
+     * Rebuilds the queue from the journal and starts the downloads that did not end. The journal
+     * is rewritten with the open packages only, so it does not grow over time. This reads and
+     * syncs the journal, so it should not run on the UI thread. The listeners learn the state of
+     * every package that was restored.
+     */
+    public synchronized void start() throws IOException {
+        if (journal != null) {
+            return;
+        }
+        readJournal();
+        for (Job job : jobs.values()) {
+            if (job.state == STATE_DOWNLOADING) {
+                // the process died during the download, the files are continued
+                job.state = STATE_QUEUED;
+            }
+        }
+        compactJournal();
+        // the installed packages were dropped, the remaining ones keep their staged files
+        engine.recover(new HashSet<String>(jobs.keySet()));
+        journal = new FileOutputStream(journalFile, true);
+        for (Job job : jobs.values()) {
+            fireStateChanged(job);
+        }
+        dispatch();
+    }
+
+    /**
+     * Lets the queue check the free space for the packages. Has to be called before start.
+     * @param diskSpace = the admission of the storage the packages are downloaded to.
+     */
+    public void setDiskSpaceAdmission(DiskSpaceAdmission diskSpace) {
+        this.diskSpace = diskSpace;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Adds a package the user asked for to the end of the queue, see enqueue(packageCode, parts, priority).
+     */
+    public boolean enqueue(String packageCode, List<DownloadPart> parts) throws IOException {
+        return enqueue(packageCode, parts, BandwidthScheduler.PRIORITY_FOREGROUND);
+    }
+
+    /**
+     * Adds a package to the end of the queue. A package that failed before is queued again, a
+     * package that waits with a lower priority is queued again with the higher one.
+     * @param packageCode = code of the package.
+     * @param parts = files of the package.
+     * @param priority = priority of the download, see BandwidthScheduler.PRIORITY_*.
+     * @return false if the package is already queued, downloading or installed.
+     * @throws NotEnoughSpaceException = if the package does not fit into the free space.
+     */
+    public synchronized boolean enqueue(String packageCode, List<DownloadPart> parts, int priority)
+            throws IOException {
+        if (!isAddable(jobs.get(packageCode), priority)) {
+            return false;
+        }
+        return add(packageCode, parts, priority);
+    }
+
+    /**
+     * Adds the packages of a region to the end of the queue, see enqueue(packageCode, parts,
+     * priority). All of them are journaled with one write and one sync of the journal.
+     * @param packages = files per package code, in the order the packages are queued.
+     * @param priority = priority of the downloads, see BandwidthScheduler.PRIORITY_*.
+     * @return the number of queued packages, the packages that are already queued, downloading
+     * or installed are skipped.
+     * @throws NotEnoughSpaceException = if a package does not fit into the free space, the
+     * packages before it are queued.
+     */
+    public synchronized int enqueueAll(Map<String, List<DownloadPart>> packages, int priority)
+            throws IOException {
+        List<Job> added = new ArrayList<Job>();
+        NotEnoughSpaceException notEnoughSpace = null;
+        for (Map.Entry<String, List<DownloadPart>> entry : packages.entrySet()) {
+            if (!isAddable(jobs.get(entry.getKey()), priority)) {
+                continue;
+            }
+            try {
+                added.add(newJob(entry.getKey(), entry.getValue(), priority));
+            } catch (NotEnoughSpaceException e) {
+                notEnoughSpace = e;
+                break;
+            }
+        }
+        add(added);
+        if (notEnoughSpace != null) {
+            throw notEnoughSpace;
+        }
+        return added.size();
+    }
+
+    /**
+     * @param job = the job of the package, null if the queue does not know it.
+     * @param priority = priority the package is to be queued with.
+     * @return true if the package is not in the queue, failed or waits with a lower priority.
+     */
+    private static boolean isAddable(Job job, int priority) {
+        return job == null || job.state == STATE_FAILED || (job.state == STATE_QUEUED && priority < job.priority);
+    }
+
+    /**
+     * Removes packages that did not start yet. Running, installed and failed packages and the
+     * packages of another priority stay in the queue. The removals are journaled with one write
+     * and one sync of the journal, the files of a removed package are cleaned up with the
+     * staging directories on the next start.
+     * @param packageCodes = codes of the packages.
+     * @param priority = priority of the packages to remove, see BandwidthScheduler.PRIORITY_*.
+     * @return the number of removed packages.
+     */
+    public synchronized int dequeueAll(Collection<String> packageCodes, int priority) throws IOException {
+        List<Job> removed = new ArrayList<Job>();
+        for (String packageCode : packageCodes) {
+            Job job = jobs.get(packageCode);
+            if (job != null && job.state == STATE_QUEUED && job.priority == priority) {
+                removed.add(job);
+            }
+        }
+        if (removed.isEmpty()) {
+            return 0;
+        }
+        List<String> records = new ArrayList<String>(removed.size());
+        for (Job job : removed) {
+            records.add(RECORD_REMOVE + SEPARATOR + job.packageCode);
+        }
+        appendRecords(records);
+        for (Job job : removed) {
+            jobs.remove(job.packageCode);
+            job.state = STATE_REMOVED;
+            fireStateChanged(job);
+        }
+        dispatch();
+        return removed.size();
+    }
+
+    /**
+     * Adds the update of an installed package to the end of the queue, see PackageUpdater.
+     * @param packageCode = code of the package.
+     * @param parts = files of the new map version, the map may come with a delta.
+     * @param priority = priority of the download, see BandwidthScheduler.PRIORITY_*.
+     * @return false if the package is already queued or downloading.
+     * @throws NotEnoughSpaceException = if the package does not fit into the free space.
+     */
+    public synchronized boolean enqueueUpdate(String packageCode, List<DownloadPart> parts, int priority)
+            throws IOException {
+        Job job = jobs.get(packageCode);
+        if (job != null && (job.state == STATE_QUEUED || job.state == STATE_DOWNLOADING)) {
+            return false;
+        }
+        return add(packageCode, parts, priority);
+    }
+
+    /**
+     * Journals a new job for the package, it replaces the former one.
+     */
+    private boolean add(String packageCode, List<DownloadPart> parts, int priority) throws IOException {
+        add(Collections.singletonList(newJob(packageCode, parts, priority)));
+        return true;
+    }
+
+    /**
+     * @throws NotEnoughSpaceException = if the package does not fit into the free space.
+     */
+    private Job newJob(String packageCode, List<DownloadPart> parts, int priority) throws IOException {
+        if (diskSpace != null) {
+            diskSpace.check(packageCode, parts);
+        }
+        return new Job(packageCode, parts, priority);
+    }
+
+    /**
+     * Journals new jobs, they replace the former ones of their packages.
+     */
+    private void add(List<Job> added) throws IOException {
+        if (added.isEmpty()) {
+            return;
+        }
+        List<String> records = new ArrayList<String>(added.size());
+        for (Job job : added) {
+            records.add(formatAdd(job));
+        }
+        appendRecords(records);
+        for (Job job : added) {
+            jobs.remove(job.packageCode);
+            jobs.put(job.packageCode, job);
+            fireStateChanged(job);
+        }
+        dispatch();
+    }
+
+    /**
+     * @param packageCode = code of the package.
+     * @return the state of the package, see STATE_*, or STATE_REMOVED if the queue does not know it.
+     */
+    public synchronized int getState(String packageCode) {
+        Job job = jobs.get(packageCode);
+        return job != null ? job.state : STATE_REMOVED;
+    }
+
+    /**
+     * @return the bus the running downloads publish their progress on.
+     */
+    public DownloadProgressBus getProgressBus() {
+        return engine.getProgressBus();
+    }
+
+    /**
+     * @return true if a package is queued or downloading.
+     */
+    public synchronized boolean hasPendingJobs() {
+        return hasPendingJobs(BandwidthScheduler.PRIORITY_FOREGROUND)
+                || hasPendingJobs(BandwidthScheduler.PRIORITY_BACKGROUND);
+    }
+
+    /**
+     * @param priority = priority of the downloads, see BandwidthScheduler.PRIORITY_*.
+     * @return true if a package of the priority is queued or downloading.
+     */
+    public synchronized boolean hasPendingJobs(int priority) {
+        for (Job job : jobs.values()) {
+            if (job.priority == priority && (job.state == STATE_QUEUED || job.state == STATE_DOWNLOADING)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Starts queued packages while there are free slots, the foreground packages first. Running
+     * background packages do not take the slots of foreground packages, their parts pause in the
+     * engine and give their threads to the foreground parts while a foreground package downloads.
+     */
+    private void dispatch() {
+        if (journal == null) {
+            return;
+        }
+        for (int priority = BandwidthScheduler.PRIORITY_FOREGROUND; priority <= BandwidthScheduler.PRIORITY_BACKGROUND;
+             priority++) {
+            Iterator<Job> iterator = jobs.values().iterator();
+            while (getActivePackages(priority) < maxActivePackages && iterator.hasNext()) {
+                Job job = iterator.next();
+                if (job.state != STATE_QUEUED || job.priority != priority) {
+                    continue;
+                }
+                if (diskSpace != null && !diskSpace.fits(job.parts, getRunningRequiredBytes())) {
+                    if (activePackages == 0) {
+                        // does not fit on its own anymore, the space was taken since it was queued
+                        setState(job, STATE_FAILED);
+                    }
+                    // otherwise it waits until a running package ended
+                    continue;
+                }
+                if (!setState(job, STATE_DOWNLOADING)) {
+                    return;
+                }
+                activePackages++;
+                if (priority == BandwidthScheduler.PRIORITY_FOREGROUND) {
+                    activeForegroundPackages++;
+                }
+                startJob(job);
+            }
+        }
+        if (activePackages == 0 && !hasPendingJobs()) {
+            for (Listener listener : listeners) {
+                listener.onIdle();
+            }
+        }
+    }
+
+    /**
+     * @return the bytes the running packages still need.
+     */
+    private long getRunningRequiredBytes() {
+        long required = 0;
+        for (Job job : jobs.values()) {
+            if (job.state == STATE_DOWNLOADING) {
+                required += DiskSpaceAdmission.getRequiredBytes(job.parts);
+            }
+        }
+        return required;
+    }
+
+    /**
+     * @return the running packages that count against the slots of the priority.
+     */
+    private int getActivePackages(int priority) {
+        return priority == BandwidthScheduler.PRIORITY_FOREGROUND ? activeForegroundPackages : activePackages;
+    }
+
+    /**
+     * Hands a package to the engine.
+     */
+    private void startJob(final Job job) {
+        engine.download(job.packageCode, job.parts, job.priority, new PackageDownloadEngine.Listener() {
+
+            @Override
+            public void onInstalled(String packageCode) {
+                finished(job, true);
+            }
+
+            @Override
+            public void onFailed(String packageCode, IOException error) {
+                error.printStackTrace();
+                finished(job, false);
+            }
+        });
+    }
+
+    private synchronized void finished(Job job, boolean installed) {
+        activePackages--;
+        if (job.priority == BandwidthScheduler.PRIORITY_FOREGROUND) {
+            activeForegroundPackages--;
+        }
+        if (installed) {
+            setState(job, STATE_INSTALLED);
+        } else if (++job.attempts < MAX_PACKAGE_ATTEMPTS) {
+            // behind the other packages, a broken package does not block the queue
+            jobs.remove(job.packageCode);
+            jobs.put(job.packageCode, job);
+            setState(job, STATE_QUEUED);
+        } else {
+            setState(job, STATE_FAILED);
+        }
+        dispatch();
+    }
+
+    /**
+     * Journals and applies a new state.
+     * @return false if the journal could not be written, the state is unchanged then.
+     */
+    private boolean setState(Job job, int state) {
+        try {
+            appendRecord(RECORD_STATE + SEPARATOR + job.packageCode + SEPARATOR + STATE_NAMES[state]);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        job.state = state;
+        fireStateChanged(job);
+        return true;
+    }
+
+    private void fireStateChanged(Job job) {
+        for (Listener listener : listeners) {
+            listener.onStateChanged(job.packageCode, job.state);
+        }
+    }
+
+    /**
+     * Appends a record to the journal and waits until it is on the device.
+     */
+    private void appendRecord(String record) throws IOException {
+        appendRecords(Collections.singletonList(record));
+    }
+
+    /**
+     * Appends records to the journal with one write and waits once until they are on the device.
+     */
+    private void appendRecords(List<String> records) throws IOException {
+        if (journal == null) {
+            throw new IOException("Download queue is not started");
+        }
+        StringBuilder lines = new StringBuilder();
+        for (String record : records) {
+            lines.append(record).append('\n');
+        }
+        journal.write(lines.toString().getBytes(UTF_8));
+        journal.getFD().sync();
+    }
+
+    /**
+     * Formats an ADD record: code, number of parts, URL, extension, path and expected size of
+     * every part and the priority, followed by index, delta URL and base path of every part with
+     * delta. Records without priority are from before there were priorities.
+     */
+    private static String formatAdd(Job job) {
+        StringBuilder record = new StringBuilder(RECORD_ADD).append(SEPARATOR).append(job.packageCode)
+                .append(SEPARATOR).append(job.parts.size());
+        for (DownloadPart part : job.parts) {
+            record.append(SEPARATOR).append(part.getUrl())
+                    .append(SEPARATOR).append(part.getExtension())
+                    .append(SEPARATOR).append(part.getTarget().getPath())
+                    .append(SEPARATOR).append(part.getExpectedSize());
+        }
+        record.append(SEPARATOR).append(job.priority);
+        for (int i = 0; i < job.parts.size(); i++) {
+            DownloadPart part = job.parts.get(i);
+            if (part.getDeltaUrl() != null) {
+                record.append(SEPARATOR).append(i)
+                        .append(SEPARATOR).append(part.getDeltaUrl())
+                        .append(SEPARATOR).append(part.getBaseFile().getPath());
+            }
+        }
+        return record.toString();
+    }
+
+    /**
+     * Replays the journal. A line that was cut off by a crash is ignored.
+     */
+    private void readJournal() throws IOException {
+        jobs.clear();
+        if (!journalFile.isFile()) {
+            return;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(SEPARATOR);
+                try {
+                    if (RECORD_ADD.equals(fields[0])) {
+                        int partCount = Integer.parseInt(fields[2]);
+                        List<DownloadPart> parts = new ArrayList<DownloadPart>(partCount);
+                        for (int i = 0; i < partCount; i++) {
+                            int field = 3 + 4 * i;
+                            parts.add(new DownloadPart(fields[field], fields[field + 1], new File(fields[field + 2]),
+                                    Long.parseLong(fields[field + 3])));
+                        }
+                        int priorityField = 3 + 4 * partCount;
+                        int priority = fields.length > priorityField ? Integer.parseInt(fields[priorityField])
+                                : BandwidthScheduler.PRIORITY_FOREGROUND;
+                        for (int field = priorityField + 1; field + 2 < fields.length; field += 3) {
+                            int index = Integer.parseInt(fields[field]);
+                            parts.set(index, parts.get(index).withDelta(fields[field + 1], new File(fields[field + 2])));
+                        }
+                        jobs.remove(fields[1]);
+                        jobs.put(fields[1], new Job(fields[1], parts, priority));
+                    } else if (RECORD_REMOVE.equals(fields[0])) {
+                        jobs.remove(fields[1]);
+                    } else if (RECORD_STATE.equals(fields[0])) {
+                        Job job = jobs.get(fields[1]);
+                        int state = getStateByName(fields[2]);
+                        if (job != null && state >= 0) {
+                            job.state = state;
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    // incomplete record at the end of the journal
+                    e.printStackTrace();
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes the open packages into a new journal and replaces the old one with it. The installed
+     * packages are dropped.
+     */
+    private void compactJournal() throws IOException {
+        File parent = journalFile.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        File compacted = new File(journalFile.getPath() + ".tmp");
+        FileOutputStream output = new FileOutputStream(compacted);
+        try {
+            Iterator<Job> iterator = jobs.values().iterator();
+            while (iterator.hasNext()) {
+                Job job = iterator.next();
+                if (job.state == STATE_INSTALLED) {
+                    iterator.remove();
+                    continue;
+                }
+                output.write((formatAdd(job) + "\n").getBytes(UTF_8));
+                if (job.state != STATE_QUEUED) {
+                    output.write((RECORD_STATE + SEPARATOR + job.packageCode + SEPARATOR + STATE_NAMES[job.state]
+                            + "\n").getBytes(UTF_8));
+                }
+            }
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+        if (!compacted.renameTo(journalFile)) {
+            throw new IOException("Could not replace " + journalFile);
+        }
+    }
+
+    private static int getStateByName(String name) {
+        for (int state = 0; state < STATE_NAMES.length; state++) {
+            if (STATE_NAMES[state].equals(name)) {
+                return state;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A queued package.
+     */
+    private static class Job {
+
+        private final String packageCode;
+
+        private final List<DownloadPart> parts;
+
+        private final int priority;
+
+        private int state = STATE_QUEUED;
+
+        /**
+         * Failed downloads of the package in this process
+         */
+        private int attempts;
+
+        Job(String packageCode, List<DownloadPart> parts, int priority) {
+            this.packageCode = packageCode;
+            this.parts = parts;
+            this.priority = priority;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package org.hamm.h1kemaps.app.download;
+
+import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.wifi.WifiManager;
+import android.os.IBinder;
+import android.os.PowerManager;
+import org.hamm.h1kemaps.app.application.H1keApplication;
+
+/**
+ * Keeps the process alive while the download queue has work. The service is started whenever
+ * packages are queued and on every start of the application, it stops itself once the queue is
+ * idle. If the system kills the process the service is restarted and the queue continues from
+ * its journal, so a region can be queued overnight without keeping the app open.
+ * While it runs the service tells the BandwidthScheduler which network the device is on. The
+ * CPU and Wi-Fi are only kept awake while a queued package may download, not while all of
+ * them wait for a network.
+ */
+public class DownloadService extends Service implements DownloadQueue.Listener, BandwidthScheduler.Listener {
+
+    private static final String LOCK_TAG = "H1keMaps downloads";
+
+    private H1keApplication app;
+
+    private DownloadQueue downloadQueue;
+
+    /**
+     * Keep CPU and Wi-Fi awake while the screen is off, held while a transfer may run
+     */
+    private PowerManager.WakeLock wakeLock;
+
+    private WifiManager.WifiLock wifiLock;
+
+    private BandwidthScheduler bandwidthScheduler;
+
+    /**
+     * Passes the changes of the network to the scheduler
+     */
+    private final BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            updateNetworkState();
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, LOCK_TAG);
+        wakeLock.setReferenceCounted(false);
+        WifiManager wifiManager = (WifiManager) getSystemService(Context.WIFI_SERVICE);
+        wifiLock = wifiManager.createWifiLock(WifiManager.WIFI_MODE_FULL, LOCK_TAG);
+        wifiLock.setReferenceCounted(false);
+        app = (H1keApplication) getApplication();
+        bandwidthScheduler = app.getBandwidthScheduler();
+        bandwidthScheduler.addListener(this);
+        downloadQueue = app.getDownloadQueue();
+        downloadQueue.addListener(this);
+        updateNetworkState();
+        registerReceiver(connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    /**
+     * Holds the locks while a pending package has a priority that may download on the current
+     * network, and releases them while every pending package waits. Runs on the queue thread,
+     * so the changes are applied in order and the UI thread does not wait for the queue.
+     */
+    private final Runnable updateLocks = new Runnable() {
+
+        @Override
+        public void run() {
+            boolean running = false;
+            for (int priority = BandwidthScheduler.PRIORITY_FOREGROUND;
+                 priority <= BandwidthScheduler.PRIORITY_BACKGROUND; priority++) {
+                running |= bandwidthScheduler.isAllowed(priority) && downloadQueue.hasPendingJobs(priority);
+            }
+            setLocksHeld(running);
+        }
+    };
+
+    private void setLocksHeld(boolean held) {
+        if (held && !wakeLock.isHeld()) {
+            wakeLock.acquire();
+            wifiLock.acquire();
+        } else if (!held && wakeLock.isHeld()) {
+            wifiLock.release();
+            wakeLock.release();
+        }
+    }
+
+    private void updateNetworkState() {
+        ConnectivityManager connectivityManager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        boolean connected = networkInfo != null && networkInfo.isConnected();
+        bandwidthScheduler.setNetworkState(connected,
+                connected && networkInfo.getType() == ConnectivityManager.TYPE_WIFI);
+    }
+
+    /**
+     * Stops the service if the queue has nothing to download. The queue is asked on the queue
+     * thread, once it was started from its journal.
+     */
+    @Override
+    public int onStartCommand(Intent intent, int flags, final int startId) {
+        app.runOnQueueThread(new Runnable() {
+
+            @Override
+            public void run() {
+                if (!downloadQueue.hasPendingJobs()) {
+                    stopSelf(startId);
+                } else {
+                    updateLocks.run();
+                }
+            }
+        });
+        // restarted with the journal after the process was killed
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        downloadQueue.removeListener(this);
+        bandwidthScheduler.removeListener(this);
+        unregisterReceiver(connectivityReceiver);
+        // behind the updates that were posted before
+        app.runOnQueueThread(new Runnable() {
+
+            @Override
+            public void run() {
+                setLocksHeld(false);
+            }
+        });
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public void onStateChanged(String packageCode, int state) {
+        app.runOnQueueThread(updateLocks);
+    }
+
+    /**
+     * The network changed or a foreground transfer opened or closed.
+     */
+    @Override
+    public void onStateChanged() {
+        app.runOnQueueThread(updateLocks);
+    }
+
+    @Override
+    public void onIdle() {
+        stopSelf();
+    }
+}
@@ -0,0 +1,29 @@
+package org.hamm.h1kemaps.app.download;
+
+import java.io.IOException;
+
+/**
+ * A package does not fit into the free space of the storage, it is not queued.
+ */
+public class NotEnoughSpaceException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long requiredBytes;
+
+    private final long usableBytes;
+
+    public NotEnoughSpaceException(String packageCode, long requiredBytes, long usableBytes) {
+        super(packageCode + " needs " + requiredBytes + " bytes, " + usableBytes + " bytes are free");
+        this.requiredBytes = requiredBytes;
+        this.usableBytes = usableBytes;
+    }
+
+    public long getRequiredBytes() {
+        return requiredBytes;
+    }
+
+    public long getUsableBytes() {
+        return usableBytes;
+    }
+}
@@ -0,0 +1,616 @@
+package org.hamm.h1kemaps.app.download;
+
+import org.apache.http.client.HttpClient;
+import org.hamm.h1kemaps.app.util.HttpClients;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.ZipException;
+
+/**
+ * Downloads the parts of map packages in parallel. The parts of all packages share a pool of
+ * download threads, so at most maxConcurrentDownloads files are transferred at the same time.
+ * A package is installed after the last of its parts arrived and all parts were found complete,
+ * so the time for a package is bounded by its largest file and not by the sum of its files.
+ * The catalog has no digests of the map files, so the check only makes sure that every file has
+ * its full length and that all of its bytes were hashed while they were written (see
+ * ChunkDigests); bodies that came with a Content-MD5 were already checked by the downloaders.
+ * A part that is not complete is downloaded again once on its own before the package is
+ * installed, the other parts are kept.
+ * With a PackageStaging the complete package is committed before it is installed, a package
+ * that was committed when the process ended is installed without a download.
+ * Waiting parts start in the order of their priority, foreground packages before background
+ * ones. With a BandwidthScheduler every part takes its bandwidth from the scheduler. A part that
+ * must not run on the current network or next to a foreground package is paused: it gives its
+ * thread back and is started again once the scheduler allows it, so parts waiting for Wi-Fi
+ * never keep the threads from foreground packages.
+ * A part with a delta is built from the installed file of the former map version, it is only
+ * downloaded in full if the delta can not be used. The name-browser archive is extracted while
+ * it is downloaded.
+ */
+public class PackageDownloadEngine {
+
+    /**
+     * Size of the pooled buffers, every running transfer holds one
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Number of requests per part, every request continues where the last one stopped
+     */
+    private static final int MAX_ATTEMPTS = 5;
+
+    /**
+     * Installs a package whose parts are all downloaded completely
+     */
+    public interface Installer {
+
+        /**
+         * @param directory = directory holding the files of the package.
+         * @param packageCode = code of the package.
+         * @return true if the package was installed.
+         */
+        boolean install(File directory, String packageCode);
+    }
+
+    /**
+     * Receives the result of a package download. The callbacks run on the download threads, the
+     * progress is published by the DownloadProgressBus.
+     */
+    public interface Listener {
+
+        /**
+         * Called once all parts were complete and the package was installed.
+         */
+        void onInstalled(String packageCode);
+
+        /**
+         * Called if a part could not be downloaded completely or the installation failed. The
+         * downloaded bytes stay on the device, downloading the package again continues them.
+         */
+        void onFailed(String packageCode, IOException error);
+    }
+
+    private final HttpClient httpClient;
+
+    /**
+     * Buffers of all transfers of the engine, one per parallel connection
+     */
+    private final DirectBufferPool bufferPool;
+
+    private final ResumableDownloader downloader;
+
+    private final ArchiveDownloader archiveDownloader;
+
+    private final ExecutorService executor;
+
+    private final Installer installer;
+
+    /**
+     * Downloads the large parts on several connections, null if every part uses one connection
+     */
+    private SegmentedDownloader segmentedDownloader;
+
+    /**
+     * Runs the segments of the segmentedDownloader, null if every part uses one connection
+     */
+    private ExecutorService segmentExecutor;
+
+    /**
+     * Parts whose expected size reaches this length are downloaded by the segmentedDownloader
+     */
+    private long minSegmentedLength;
+
+    /**
+     * Directories the packages are committed in before their installation, null to install the
+     * packages where they were downloaded
+     */
+    private PackageStaging staging;
+
+    /**
+     * Paces the transfers, null to download at full speed
+     */
+    private BandwidthScheduler scheduler;
+
+    /**
+     * Receives the counters of the running downloads
+     */
+    private DownloadProgressBus progressBus = new DownloadProgressBus();
+
+    /**
+     * Order of the tasks within a priority
+     */
+    private final AtomicLong taskSequence = new AtomicLong();
+
+    /**
+     * Part tasks whose transfers must not run, they hold no thread. Guarded by itself.
+     */
+    private final List<Task> pausedTasks = new ArrayList<Task>();
+
+    /**
+     * @param httpClient = client used for the requests, it has to allow as many parallel
+     *                   connections as maxConcurrentDownloads.
+     * @param maxConcurrentDownloads = number of files that are downloaded at the same time.
+     * @param installer = installs the downloaded packages.
+     */
+    public PackageDownloadEngine(HttpClient httpClient, int maxConcurrentDownloads, Installer installer) {
+        this.httpClient = httpClient;
+        this.bufferPool = new DirectBufferPool(BUFFER_SIZE, maxConcurrentDownloads);
+        this.downloader = new ResumableDownloader(httpClient, bufferPool);
+        this.downloader.setMaxAttempts(MAX_ATTEMPTS);
+        this.archiveDownloader = new ArchiveDownloader(httpClient, bufferPool);
+        this.archiveDownloader.setMaxAttempts(MAX_ATTEMPTS);
+        // the queue hands out the waiting tasks by priority
+        this.executor = new ThreadPoolExecutor(maxConcurrentDownloads, maxConcurrentDownloads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>());
+        this.installer = installer;
+    }
+
+    /**
+     * Lets large parts be downloaded in segments on several connections. Has to be called before
+     * the first download. The segments of all parts share segmentCount threads.
+     * @param segmentCount = number of connections a large part is downloaded on, the client
+     *                     needs that many connections in addition to maxConcurrentDownloads.
+     * @param minLength = expected size from which on a part is downloaded in segments.
+     */
+    public void setSegmentedDownloads(int segmentCount, long minLength) {
+        // the segments of a part run next to the other parts of the package
+        bufferPool.grow(segmentCount);
+        segmentExecutor = SegmentedDownloader.createExecutor(segmentCount);
+        segmentedDownloader = new SegmentedDownloader(httpClient, bufferPool, segmentCount, segmentExecutor);
+        segmentedDownloader.setMaxAttempts(MAX_ATTEMPTS);
+        minSegmentedLength = minLength;
+    }
+
+    /**
+     * Lets the packages be committed in their staging directory before they are installed. Has to
+     * be called before the first download.
+     * @param staging = staging directories of the packages.
+     */
+    public void setStaging(PackageStaging staging) {
+        this.staging = staging;
+    }
+
+    /**
+     * Lets the transfers take their bandwidth from a scheduler. Has to be called before the first
+     * download.
+     * @param scheduler = the scheduler.
+     */
+    public void setScheduler(BandwidthScheduler scheduler) {
+        this.scheduler = scheduler;
+        scheduler.addListener(new BandwidthScheduler.Listener() {
+
+            @Override
+            public void onStateChanged() {
+                resumePausedTasks();
+            }
+        });
+    }
+
+    /**
+     * Keeps a task whose transfer was paused until the scheduler lets it run.
+     */
+    private void pause(Task task) {
+        synchronized (pausedTasks) {
+            if (scheduler.isAllowed(task.priority) && !executor.isShutdown()) {
+                // the state changed since the transfer was paused
+                executor.execute(task);
+            } else {
+                pausedTasks.add(task);
+            }
+        }
+    }
+
+    /**
+     * Hands the paused tasks that may run now back to the download threads.
+     */
+    private void resumePausedTasks() {
+        synchronized (pausedTasks) {
+            Iterator<Task> iterator = pausedTasks.iterator();
+            while (iterator.hasNext() && !executor.isShutdown()) {
+                Task task = iterator.next();
+                if (scheduler.isAllowed(task.priority)) {
+                    iterator.remove();
+                    executor.execute(task);
+                }
+            }
+        }
+    }
+
+    /**
+     * Lets the downloads publish their progress on a bus shared with the UI. Has to be called
+     * before the first download.
+     * @param progressBus = the bus.
+     */
+    public void setProgressBus(DownloadProgressBus progressBus) {
+        this.progressBus = progressBus;
+    }
+
+    public DownloadProgressBus getProgressBus() {
+        return progressBus;
+    }
+
+    /**
+     * Cleans up the staging directories after a restart, see PackageStaging.recover.
+     * @param openPackages = codes of the packages that are not installed yet.
+     */
+    public void recover(Set<String> openPackages) {
+        if (staging != null) {
+            staging.recover(openPackages);
+        }
+    }
+
+    /**
+     * Creates a client that can run maxConnections requests at the same time. The app shares one
+     * client between the catalog and the downloads, see HttpClients.
+     * @param maxConnections = number of parallel connections, to one host and in total.
+     * @return the client.
+     */
+    public static HttpClient createHttpClient(int maxConnections) {
+        return HttpClients.create(maxConnections);
+    }
+
+    /**
+     * Starts the download of a package. The method returns immediately.
+     * @param packageCode = code of the package.
+     * @param parts = files of the package, all in the same directory.
+     * @param priority = priority of the package, see BandwidthScheduler.PRIORITY_*.
+     * @param listener = receives the result.
+     */
+    public void download(final String packageCode, List<DownloadPart> parts, int priority, final Listener listener) {
+        final PackageDownload download = new PackageDownload(packageCode, parts, priority, listener);
+        if (staging != null && staging.isCommitted(packageCode)) {
+            // committed before the process ended, only the installation is missing
+            executor.execute(new Task(priority) {
+
+                @Override
+                public void run() {
+                    try {
+                        download.install(staging.getCommittedDirectory(packageCode));
+                    } catch (IOException e) {
+                        download.fail(e);
+                    }
+                }
+            });
+            return;
+        }
+        for (int i = 0; i < parts.size(); i++) {
+            executor.execute(download.new PartTask(i));
+        }
+    }
+
+    /**
+     * Stops the download threads. Running transfers are interrupted, the downloaded bytes stay
+     * on the device.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        if (segmentExecutor != null) {
+            segmentExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Checks that a downloaded part is complete before the package is installed. The file is not
+     * read again and not compared with a reference digest, only its length and the chunk table
+     * that was written with it are checked.
+     * @param part = the part.
+     * @param length = length of the resource as reported by the server, -1 if unknown.
+     * @throws IOException = if a file is missing, has the wrong length or not all of its bytes
+     * were hashed while they were written.
+     */
+    protected void checkComplete(DownloadPart part, long length) throws IOException {
+        List<File> files = part.getFiles();
+        // the length of an archive is not the length of its files
+        long expected = files.size() > 1 ? -1 : (length >= 0 ? length : part.getExpectedSize());
+        for (File file : files) {
+            if (!file.isFile() || (expected >= 0 && file.length() != expected)) {
+                throw new IOException(file.getName() + " is incomplete: " + file.length() + " of " + expected
+                        + " bytes");
+            }
+            ChunkDigests digests = ChunkDigests.read(file);
+            if (digests.getLength() != file.length() || !digests.isComplete()) {
+                throw new IOException(file.getName() + " was not hashed completely while it was written");
+            }
+        }
+    }
+
+    /**
+     * Downloads the name-browser archive of a package and extracts its files while it arrives, see
+     * ArchiveDownloader. A server without the archive, or with one that lacks a file, gets a
+     * request per file instead.
+     * @param part = part of the archive.
+     * @param listener = receives the progress.
+     * @param transfer = paces the downloads, may be null.
+     * @return the length of the archive or of the files.
+     */
+    private long extract(DownloadPart part, ResumableDownloader.ProgressListener listener,
+                         BandwidthScheduler.Transfer transfer) throws IOException {
+        List<File> files = part.getFiles();
+        try {
+            return archiveDownloader.download(part.getUrl(), files, listener, transfer);
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+        } catch (ZipException e) {
+            e.printStackTrace();
+        }
+        List<String> urls = part.getFileUrls();
+        long length = 0;
+        for (int i = 0; i < files.size(); i++) {
+            length += downloader.download(urls.get(i), files.get(i), listener, transfer);
+        }
+        return length;
+    }
+
+    /**
+     * Builds a part from the installed file of the former map version and the delta the server
+     * offers for it. The delta is downloaded like a part, so an interrupted delta is continued,
+     * and then applied to the base file, see DeltaPatch.
+     * @param part = part with delta.
+     * @param listener = receives the progress of the delta download.
+     * @param transfer = paces the delta download, may be null.
+     * @return the length of the part or -1 if the part has to be downloaded in full, because the
+     * server has no delta, the base file is missing or the delta does not fit it.
+     */
+    private long patch(DownloadPart part, ResumableDownloader.ProgressListener listener,
+                       BandwidthScheduler.Transfer transfer) throws IOException {
+        File target = part.getTarget();
+        if (ResumableDownloader.isComplete(part.getDeltaUrl(), target)) {
+            // patched before the process ended
+            return target.length();
+        }
+        if (part.getBaseFile() == null || !part.getBaseFile().isFile()) {
+            return -1;
+        }
+        File delta = DeltaPatch.getDeltaFile(target);
+        try {
+            downloader.download(part.getDeltaUrl(), delta, listener, transfer);
+            long length;
+            ByteBuffer buffer = bufferPool.acquire();
+            try {
+                length = DeltaPatch.apply(part.getBaseFile(), delta, target, buffer);
+            } finally {
+                bufferPool.release(buffer);
+            }
+            ResumableDownloader.markComplete(part.getDeltaUrl(), target, length);
+            ResumableDownloader.deleteDownload(delta);
+            return length;
+        } catch (IOException e) {
+            if (Thread.currentThread().isInterrupted()) {
+                // the bytes of the delta are continued with the next try
+                throw e;
+            }
+            e.printStackTrace();
+            ResumableDownloader.deleteDownload(delta);
+            ResumableDownloader.deleteDownload(target);
+            return -1;
+        }
+    }
+
+    /**
+     * Task of the download threads, ordered by priority and then by the time it was started.
+     */
+    private abstract class Task implements Runnable, Comparable<Task> {
+
+        private final int priority;
+
+        private final long sequence = taskSequence.getAndIncrement();
+
+        Task(int priority) {
+            this.priority = priority;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * State of the download of one package.
+     */
+    private class PackageDownload {
+
+        private final String packageCode;
+
+        private final List<DownloadPart> parts;
+
+        private final int priority;
+
+        private final Listener listener;
+
+        /**
+         * Bytes on the device and size per part, written by the part tasks
+         */
+        private final DownloadProgressBus.Tracker progress;
+
+        private final AtomicInteger remaining;
+
+        private final AtomicReference<IOException> error = new AtomicReference<IOException>();
+
+        /**
+         * Parts that were downloaded again after they were found incomplete, written by the last
+         * part task only
+         */
+        private final boolean[] redownloaded;
+
+        PackageDownload(String packageCode, List<DownloadPart> parts, int priority, Listener listener) {
+            this.packageCode = packageCode;
+            this.parts = parts;
+            this.priority = priority;
+            this.listener = listener;
+            long[] expectedSizes = new long[parts.size()];
+            for (int i = 0; i < parts.size(); i++) {
+                expectedSizes[i] = parts.get(i).getExpectedSize();
+            }
+            this.progress = progressBus.track(packageCode, expectedSizes);
+            this.remaining = new AtomicInteger(parts.size());
+            this.redownloaded = new boolean[parts.size()];
+        }
+
+        /**
+         * Downloads one part and records its progress.
+         * @param transfer = paces the download, may be null.
+         * @throws TransferPausedException = if the transfer must not run, the part is continued later.
+         */
+        private void downloadPart(final int index, BandwidthScheduler.Transfer transfer) throws IOException {
+            DownloadPart part = parts.get(index);
+            ResumableDownloader.ProgressListener progressListener = new ResumableDownloader.ProgressListener() {
+
+                @Override
+                public void onProgress(long downloadedBytes, long totalBytes) {
+                    progress.setProgress(index, downloadedBytes, totalBytes);
+                }
+            };
+            long length;
+            try {
+                if (transfer != null) {
+                    // no request is sent while the network or a foreground download holds the part back
+                    transfer.consume(0);
+                }
+                progress.setState(index, DownloadProgressBus.PART_DOWNLOADING);
+                length = -1;
+                if (part.getDeltaUrl() != null) {
+                    length = patch(part, progressListener, transfer);
+                }
+                if (length < 0) {
+                    if (DownloadPart.EXTENSION_NAME_BROWSER_ARCHIVE.equals(part.getExtension())) {
+                        length = extract(part, progressListener, transfer);
+                    } else if (segmentedDownloader != null && part.getExpectedSize() >= minSegmentedLength) {
+                        length = segmentedDownloader.download(part.getUrl(), part.getTarget(), progressListener,
+                                transfer);
+                    } else {
+                        length = downloader.download(part.getUrl(), part.getTarget(), progressListener, transfer);
+                    }
+                }
+            } catch (TransferPausedException e) {
+                progress.setState(index, DownloadProgressBus.PART_WAITING);
+                throw e;
+            } catch (IOException e) {
+                progress.setState(index, DownloadProgressBus.PART_FAILED);
+                throw e;
+            }
+            progress.setProgress(index, length, length);
+            progress.setState(index, DownloadProgressBus.PART_CHECKING);
+        }
+
+        /**
+         * Called by every part task when it ends, the last one checks and installs the package.
+         */
+        private void partFinished() {
+            if (remaining.decrementAndGet() > 0) {
+                return;
+            }
+            try {
+                if (error.get() != null) {
+                    throw error.get();
+                }
+                for (int i = 0; i < parts.size(); i++) {
+                    try {
+                        checkComplete(parts.get(i), progress.getTotalBytes(i));
+                    } catch (IOException e) {
+                        if (redownloaded[i]) {
+                            throw e;
+                        }
+                        // only the incomplete part is downloaded again, the package is checked once
+                        // more when it arrived
+                        e.printStackTrace();
+                        redownloaded[i] = true;
+                        for (File file : parts.get(i).getFiles()) {
+                            SegmentedDownloader.deleteDownload(file);
+                        }
+                        remaining.set(1);
+                        executor.execute(new PartTask(i));
+                        return;
+                    }
+                    progress.setState(i, DownloadProgressBus.PART_COMPLETE);
+                }
+                install(staging != null ? staging.commit(packageCode, parts) : parts.get(0).getTarget().getParentFile());
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Ends the download of the package without installing it.
+         */
+        private void fail(IOException error) {
+            progress.close();
+            listener.onFailed(packageCode, error);
+        }
+
+        /**
+         * Installs the files of the package and removes what is left of its staging directories.
+         * @param directory = directory holding the complete files of the package.
+         */
+        private void install(File directory) throws IOException {
+            boolean installed = installer.install(directory, packageCode);
+            if (staging != null) {
+                // after a failed installation the next try downloads the package again
+                staging.remove(packageCode);
+            }
+            if (!installed) {
+                throw new IOException("Installation of " + packageCode + " failed");
+            }
+            progress.close();
+            listener.onInstalled(packageCode);
+        }
+
+        /**
+         * Downloads one part of the package. A paused part keeps its transfer open, so a waiting
+         * foreground part holds the background parts back before it has a thread.
+         */
+        private class PartTask extends Task {
+
+            private final int index;
+
+            private final BandwidthScheduler.Transfer transfer;
+
+            PartTask(int index) {
+                super(priority);
+                this.index = index;
+                this.transfer = scheduler != null ? scheduler.open(priority, true) : null;
+            }
+
+            @Override
+            public void run() {
+                boolean paused = false;
+                try {
+                    if (error.get() == null) {
+                        downloadPart(index, transfer);
+                    }
+                } catch (TransferPausedException e) {
+                    // continued with the bytes on the device once the transfer may run
+                    paused = true;
+                    pause(this);
+                } catch (IOException e) {
+                    // the other parts of the package are not started anymore
+                    error.compareAndSet(null, e);
+                } finally {
+                    if (!paused) {
+                        if (transfer != null) {
+                            transfer.close();
+                        }
+                        partFinished();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package org.hamm.h1kemaps.app.download;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Directories the packages are downloaded into before they are installed. Every package gets a
+ * staging directory of its own (staging/CODE). Once all parts are complete the files are synced
+ * to the device and the directory is renamed to CODE.committed in one step, so a package is
+ * either still downloading or complete, never half written. Only a committed package is handed
+ * to the Skobbler package manager.
+ * Installed files that are moved into a staging directory (the maps of the former version that
+ * an update is built from) are journaled before they are moved, so after a crash they are put
+ * back unless a queued package uses them.
+ */
+public class PackageStaging {
+
+    private static final String COMMITTED_SUFFIX = ".committed";
+
+    /**
+     * File in the root that lists the moved files, it is no package directory
+     */
+    private static final String MOVES_FILE = "moves.journal";
+
+    private static final String SEPARATOR = "\t";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File root;
+
+    /**
+     * @param root = directory holding the staging directories of all packages.
+     */
+    public PackageStaging(File root) {
+        this.root = root;
+    }
+
+    /**
+     * @return the directory holding the staging directories of all packages.
+     */
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * @param packageCode = code of the package.
+     * @return the directory the parts of the package are downloaded into.
+     */
+    public File getDirectory(String packageCode) {
+        return new File(root, packageCode);
+    }
+
+    /**
+     * @param packageCode = code of the package.
+     * @return the directory of the package after it was committed.
+     */
+    public File getCommittedDirectory(String packageCode) {
+        return new File(root, packageCode + COMMITTED_SUFFIX);
+    }
+
+    /**
+     * @param packageCode = code of the package.
+     * @return true if the package was committed and waits for its installation.
+     */
+    public boolean isCommitted(String packageCode) {
+        return getCommittedDirectory(packageCode).isDirectory();
+    }
+
+    /**
+     * Commits the complete parts of a package: the files are synced to the device, the sidecar
+     * files of the downloads and the base files of deltas are removed and the staging directory
+     * is renamed. Parts that are not
+     * in the staging directory of the package (queued before packages were staged) are only
+     * synced and stay where they are.
+     * @param packageCode = code of the package.
+     * @param parts = complete parts of the package.
+     * @return the directory holding the files of the package.
+     * @throws IOException = if a file could not be synced or the directory could not be renamed.
+     */
+    public File commit(String packageCode, List<DownloadPart> parts) throws IOException {
+        for (DownloadPart part : parts) {
+            for (File target : part.getFiles()) {
+                sync(target);
+                ResumableDownloader.getMetaFile(target).delete();
+                SegmentedDownloader.getSegmentsFile(target).delete();
+                ChunkDigests.delete(target);
+            }
+            if (part.getBaseFile() != null) {
+                // the file of the former map version is not needed anymore
+                part.getBaseFile().delete();
+            }
+        }
+        File directory = parts.get(0).getTarget().getParentFile();
+        File staged = getDirectory(packageCode);
+        if (!staged.equals(directory)) {
+            return directory;
+        }
+        File committed = getCommittedDirectory(packageCode);
+        // left over from an installation that failed
+        deleteRecursively(committed);
+        if (!staged.renameTo(committed)) {
+            throw new IOException("Could not commit " + staged);
+        }
+        return committed;
+    }
+
+    /**
+     * Forces the bytes of a downloaded file to the device.
+     * @param target = file of a complete part.
+     * @throws IOException = if the file could not be synced.
+     */
+    protected void sync(File target) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(target, "rw");
+        try {
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Journals files that are moved from their installation into the staging directories of
+     * their packages and waits until the journal is on the device. Has to be called before the
+     * files are moved, restoreMoves ends the moves.
+     * @param moves = installed file per file in the staging directory of its package.
+     */
+    public void journalMoves(Map<File, File> moves) throws IOException {
+        root.mkdirs();
+        StringBuilder lines = new StringBuilder();
+        for (Map.Entry<File, File> move : moves.entrySet()) {
+            lines.append(move.getKey().getPath()).append(SEPARATOR).append(move.getValue().getPath()).append('\n');
+        }
+        FileOutputStream output = new FileOutputStream(new File(root, MOVES_FILE));
+        try {
+            output.write(lines.toString().getBytes(UTF_8));
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Ends the journaled moves: the moved files of the kept packages stay in their staging
+     * directories, the others are put back where they were installed if nothing took their place.
+     * @param keptPackages = codes of the packages whose moved files a queued download uses.
+     */
+    public void restoreMoves(Set<String> keptPackages) {
+        File journal = new File(root, MOVES_FILE);
+        if (!journal.isFile()) {
+            return;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), UTF_8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split(SEPARATOR);
+                    if (fields.length < 2) {
+                        continue;
+                    }
+                    File moved = new File(fields[0]);
+                    File installed = new File(fields[1]);
+                    if (!keptPackages.contains(moved.getParentFile().getName()) && moved.isFile()
+                            && !installed.exists()) {
+                        installed.getParentFile().mkdirs();
+                        if (!moved.renameTo(installed)) {
+                            throw new IOException("Could not restore " + installed);
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // the journal stays, the next start tries again
+            e.printStackTrace();
+            return;
+        }
+        journal.delete();
+    }
+
+    /**
+     * Removes the staging and the committed directory of a package.
+     * @param packageCode = code of the package.
+     */
+    public void remove(String packageCode) {
+        deleteRecursively(getDirectory(packageCode));
+        deleteRecursively(getCommittedDirectory(packageCode));
+    }
+
+    /**
+     * Cleans up after a crash. Installed files that were moved for packages which are not open
+     * are put back first. Then only the directory is listed, no file is read: directories of
+     * packages that are not open anymore are removed, staging directories of open packages stay
+     * so their downloads continue and committed packages stay for their installation.
+     * @param openPackages = codes of the packages that are queued, downloading or failed.
+     */
+    public void recover(Set<String> openPackages) {
+        restoreMoves(openPackages);
+        File[] entries = root.listFiles();
+        if (entries == null) {
+            return;
+        }
+        for (File entry : entries) {
+            String name = entry.getName();
+            if (name.equals(MOVES_FILE)) {
+                // could not be read, kept for the next start
+                continue;
+            }
+            boolean committed = name.endsWith(COMMITTED_SUFFIX);
+            String packageCode = committed ? name.substring(0, name.length() - COMMITTED_SUFFIX.length()) : name;
+            if (!openPackages.contains(packageCode) || (!committed && isCommitted(packageCode))) {
+                deleteRecursively(entry);
+            }
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
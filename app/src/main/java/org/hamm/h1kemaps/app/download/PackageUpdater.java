@@ -0,0 +1,230 @@
+package org.hamm.h1kemaps.app.download;
+
+import com.skobbler.ngx.packages.SKPackage;
+import com.skobbler.ngx.packages.SKPackageManager;
+import com.skobbler.ngx.packages.SKPackageURLInfo;
+import com.skobbler.ngx.versioning.SKVersioningManager;
+import org.apache.http.client.HttpClient;
+import org.hamm.h1kemaps.app.model.MapPack;
+import org.hamm.h1kemaps.app.util.MapDataParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Updates the installed packages to a new map version. The installed packages are compared with
+ * the catalog of the new version, every package that is still in it is queued in the background.
+ * The installed map of a package is kept as base file in its staging directory, so the map of
+ * the new version can be built from it and a delta the server offers next to the map
+ * (MAP_URL.VERSION.delta for the version the delta starts from). Without delta the package is
+ * downloaded in full.
+ * The installed maps are moved into the staging directories before the SDK switches the
+ * version, the moves are journaled in the PackageStaging first. A map whose package could not be
+ * queued is put back, also by PackageStaging.recover if the process ends in between.
+ */
+public class PackageUpdater {
+
+    private static final String DELTA_SUFFIX = ".delta";
+
+    private static final String BASE_SUFFIX = ".base";
+
+    /**
+     * Depth up to which the installed maps are looked for below the maps directory of the SDK
+     */
+    private static final int MAX_SEARCH_DEPTH = 4;
+
+    private final DownloadQueue queue;
+
+    private final PackageStaging staging;
+
+    private final HttpClient httpClient;
+
+    /**
+     * Last version the packages were updated to in this process, guarded by this
+     */
+    private int updatedVersion;
+
+    /**
+     * @param queue = queue the updates are downloaded by.
+     * @param staging = staging directories of the packages, they take the base files.
+     * @param httpClient = client for the catalog of the new version.
+     */
+    public PackageUpdater(DownloadQueue queue, PackageStaging staging, HttpClient httpClient) {
+        this.queue = queue;
+        this.staging = staging;
+        this.httpClient = httpClient;
+    }
+
+    /**
+     * Queues the updates of the installed packages and switches the SDK to the new version. Does
+     * network requests, it must not be called on the UI thread. A version that is announced
+     * several times is updated once.
+     * @param newVersion = new map version.
+     * @return the number of queued packages.
+     */
+    public synchronized int update(int newVersion) {
+        if (newVersion <= updatedVersion) {
+            return 0;
+        }
+        SKPackageManager packageManager = SKPackageManager.getInstance();
+        MapDataParser parser = new MapDataParser(packageManager.getMapsXMLPathForVersion(newVersion), httpClient);
+        if (!parser.parse()) {
+            return 0;
+        }
+        Map<String, Integer> installed = new LinkedHashMap<String, Integer>();
+        SKPackage[] packages = packageManager.getInstalledPackages();
+        if (packages != null) {
+            for (SKPackage pack : packages) {
+                installed.put(pack.getName(), pack.getVersion());
+            }
+        }
+        Map<String, MapPack> catalog = parser.getPackMap();
+        List<String> outdated = getOutdatedPackages(installed, catalog, newVersion);
+
+        // the SDK removes the installed packages when it switches the version, so their maps are
+        // moved aside first; on the same storage that is a rename
+        File mapsDirectory = new File(packageManager.getMapsDownloadBasePath());
+        Map<File, File> bases = new LinkedHashMap<File, File>();
+        for (String packageCode : outdated) {
+            String name = packageCode + DownloadPart.EXTENSION_MAP;
+            File installedMap = findFile(mapsDirectory, name, MAX_SEARCH_DEPTH, staging.getRoot());
+            if (installedMap != null) {
+                bases.put(getBaseFile(new File(staging.getDirectory(packageCode), name)), installedMap);
+            }
+        }
+        try {
+            staging.journalMoves(bases);
+        } catch (IOException e) {
+            // a crash would lose maps that were moved without journal
+            e.printStackTrace();
+            return 0;
+        }
+        for (Map.Entry<File, File> entry : bases.entrySet()) {
+            entry.getKey().getParentFile().mkdirs();
+            entry.getValue().renameTo(entry.getKey());
+        }
+        if (!SKVersioningManager.getInstance().updateMapsVersion(newVersion)) {
+            // the installed packages stay usable in the former version
+            staging.restoreMoves(Collections.<String>emptySet());
+            return 0;
+        }
+        updatedVersion = newVersion;
+
+        int queued = 0;
+        Set<String> updating = new HashSet<String>();
+        for (String packageCode : outdated) {
+            SKPackageURLInfo info = packageManager.getURLInfoForPackageWithCode(packageCode);
+            MapPack pack = catalog.get(packageCode);
+            if (info == null || pack == null) {
+                // not offered in the new version, its map is put back
+                continue;
+            }
+            List<DownloadPart> parts = DownloadPart.forPackage(packageCode, info.getMapURL(), info.getTexturesURL(),
+                    info.getNameBrowserFilesURL(), staging.getDirectory(packageCode), pack.getSize());
+            try {
+                if (queue.enqueueUpdate(packageCode, withDeltas(parts, installed.get(packageCode)),
+                        BandwidthScheduler.PRIORITY_BACKGROUND)) {
+                    queued++;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            int state = queue.getState(packageCode);
+            if (state == DownloadQueue.STATE_QUEUED || state == DownloadQueue.STATE_DOWNLOADING) {
+                updating.add(packageCode);
+            }
+        }
+        // the base files of the queued updates are removed when their packages are committed
+        staging.restoreMoves(updating);
+        return queued;
+    }
+
+    /**
+     * @param installed = version per code of the installed packages.
+     * @param catalog = packages of the catalog of the new version.
+     * @param newVersion = new map version.
+     * @return the codes of the installed packages that are older than the new version and still
+     * in its catalog.
+     */
+    static List<String> getOutdatedPackages(Map<String, Integer> installed, Map<String, MapPack> catalog,
+                                            int newVersion) {
+        List<String> outdated = new ArrayList<String>();
+        for (Map.Entry<String, Integer> entry : installed.entrySet()) {
+            if (entry.getValue() < newVersion && catalog.containsKey(entry.getKey())) {
+                outdated.add(entry.getKey());
+            }
+        }
+        return outdated;
+    }
+
+    /**
+     * Lets the map of a package be built from its base file, if the base file was kept.
+     * @param parts = parts of the package in the new version.
+     * @param installedVersion = version of the base file.
+     * @return the parts, the map with delta.
+     */
+    static List<DownloadPart> withDeltas(List<DownloadPart> parts, int installedVersion) {
+        List<DownloadPart> updated = new ArrayList<DownloadPart>(parts.size());
+        for (DownloadPart part : parts) {
+            File base = getBaseFile(part.getTarget());
+            if (DownloadPart.EXTENSION_MAP.equals(part.getExtension()) && base.isFile()) {
+                part = part.withDelta(getDeltaUrl(part.getUrl(), installedVersion), base);
+            }
+            updated.add(part);
+        }
+        return updated;
+    }
+
+    /**
+     * @param mapUrl = URL of the map in the new version.
+     * @param fromVersion = version of the installed map.
+     * @return the URL of the delta from the installed map to the new one.
+     */
+    static String getDeltaUrl(String mapUrl, int fromVersion) {
+        return mapUrl + "." + fromVersion + DELTA_SUFFIX;
+    }
+
+    /**
+     * @param target = file of the new version.
+     * @return the file the installed file of the former version is kept in.
+     */
+    static File getBaseFile(File target) {
+        return new File(target.getPath() + BASE_SUFFIX);
+    }
+
+    /**
+     * The SDK does not tell where it keeps an installed package, so its file is looked for below
+     * the maps directory. Only directories are listed, no file is read.
+     * @param excluded = directory that is not searched, the staged downloads.
+     * @return the file or null if it was not found.
+     */
+    private static File findFile(File directory, String name, int depth, File excluded) {
+        File[] entries = directory.listFiles();
+        if (entries == null) {
+            return null;
+        }
+        for (File entry : entries) {
+            if (entry.isFile() && entry.getName().equals(name)) {
+                return entry;
+            }
+        }
+        if (depth > 0) {
+            for (File entry : entries) {
+                if (entry.isDirectory() && !entry.equals(excluded)) {
+                    File file = findFile(entry, name, depth - 1, excluded);
+                    if (file != null) {
+                        return file;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+}
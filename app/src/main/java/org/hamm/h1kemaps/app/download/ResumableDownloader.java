@@ -0,0 +1,558 @@
+package org.hamm.h1kemaps.app.download;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.hamm.h1kemaps.app.util.HttpClients;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * Downloads a resource into a file and continues an interrupted download where it stopped.
+ * The validators of the resource (ETag, Last-Modified) are kept in a sidecar file next to the
+ * download. A resumed request asks for the missing bytes with a Range header and sends the
+ * validator as If-Range, so a server that has a different version of the resource answers with
+ * the whole new body instead of a part that does not fit to the bytes on the device.
+ * The written bytes are hashed chunk by chunk (see ChunkDigests). A body that comes with a
+ * Content-MD5 header is checked against it, a damaged body is cut off the file again and the
+ * next attempt requests only its bytes.
+ * A file whose length the server sends is allocated with that length before the body is written,
+ * so it does not fragment while it grows. The sidecar file then records up to where the bytes
+ * were written and synced, a resumed download continues there. The sidecar file is replaced
+ * atomically, and the written bytes are only recorded after they were forced to the device.
+ */
+public class ResumableDownloader {
+
+    private static final String HEADER_RANGE = "Range";
+
+    private static final String HEADER_IF_RANGE = "If-Range";
+
+    private static final String HEADER_CONTENT_RANGE = "Content-Range";
+
+    private static final String HEADER_ETAG = "ETag";
+
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+
+    private static final String HEADER_CONTENT_MD5 = "Content-MD5";
+
+    private static final int MD5_LENGTH = 16;
+
+    /**
+     * Number of bytes after which the digests of the chunks are written to their sidecar file
+     */
+    private static final long SAVE_INTERVAL = 4L * 1024 * 1024;
+
+    private static final String META_SUFFIX = ".meta";
+
+    private static final String KEY_URL = "url";
+
+    private static final String KEY_ETAG = "etag";
+
+    private static final String KEY_LAST_MODIFIED = "lastModified";
+
+    private static final String KEY_LENGTH = "length";
+
+    private static final String KEY_COMPLETE = "complete";
+
+    private static final String KEY_WRITTEN = "written";
+
+    /**
+     * Receives the progress of a download. The callback runs on the downloading thread.
+     */
+    public interface ProgressListener {
+
+        /**
+         * @param downloadedBytes = bytes of the resource that are in the file, including the
+         *                        bytes of earlier attempts.
+         * @param totalBytes = length of the resource or -1 if the server did not send it.
+         */
+        void onProgress(long downloadedBytes, long totalBytes);
+    }
+
+    private final HttpClient httpClient;
+
+    /**
+     * Buffers the bodies are copied with, a download holds one while it runs
+     */
+    private final DirectBufferPool bufferPool;
+
+    /**
+     * Number of requests a download may take before it fails, every attempt continues where the
+     * previous one stopped
+     */
+    private int maxAttempts = 1;
+
+    /**
+     * @param httpClient = client used for the requests.
+     * @param bufferPool = pool of the buffers that are used to copy the bodies into the files,
+     *                   parallel downloads wait if the pool has no free buffer.
+     */
+    public ResumableDownloader(HttpClient httpClient, DirectBufferPool bufferPool) {
+        this.httpClient = httpClient;
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Creates a downloader for one thread, it has a single buffer of its own.
+     * @param httpClient = client used for the requests.
+     * @param bufferSize = size of the buffer that is used to copy the body into the file.
+     */
+    public ResumableDownloader(HttpClient httpClient, int bufferSize) {
+        this(httpClient, new DirectBufferPool(bufferSize, 1));
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Downloads the resource into the file. A file that was partially downloaded from the same
+     * URL before is continued, a file that was downloaded completely is not requested again.
+     * @param url = URL of the resource.
+     * @param target = file the resource is written to.
+     * @param listener = receives the progress, may be null.
+     * @return the length of the downloaded file.
+     * @throws IOException = if the resource could not be downloaded completely within the
+     * allowed number of attempts. The downloaded part stays on the device for the next try.
+     * @throws FileNotFoundException = if the server does not have the resource, it is not requested again.
+     */
+    public long download(String url, File target, ProgressListener listener) throws IOException {
+        return download(url, target, listener, null);
+    }
+
+    /**
+     * Downloads the resource like download(url, target, listener), the body is read at the pace
+     * the scheduler allows.
+     * @param transfer = transfer of a BandwidthScheduler, may be null.
+     */
+    public long download(String url, File target, ProgressListener listener, BandwidthScheduler.Transfer transfer)
+            throws IOException {
+        File parent = target.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return downloadOnce(url, target, listener, transfer);
+            } catch (FileNotFoundException e) {
+                // another request does not make the resource appear
+                throw e;
+            } catch (TransferPausedException e) {
+                // continued when the transfer may run again, not by another request now
+                throw e;
+            } catch (IOException e) {
+                if (attempt >= maxAttempts) {
+                    throw e;
+                }
+                // the next attempt continues with the bytes that arrived
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @param target = download file.
+     * @return the sidecar file holding the validators of the download.
+     */
+    public static File getMetaFile(File target) {
+        return new File(target.getPath() + META_SUFFIX);
+    }
+
+    private long downloadOnce(String url, File target, ProgressListener listener, BandwidthScheduler.Transfer transfer)
+            throws IOException {
+        File metaFile = getMetaFile(target);
+        Properties meta = readMeta(metaFile);
+        if (meta != null && !url.equals(meta.getProperty(KEY_URL))) {
+            meta = null;
+        }
+        long offset = target.isFile() ? target.length() : 0;
+        if (meta != null && Boolean.parseBoolean(meta.getProperty(KEY_COMPLETE))
+                && offset == parseLong(meta.getProperty(KEY_LENGTH))) {
+            return offset;
+        }
+        if (meta != null && meta.getProperty(KEY_WRITTEN) != null) {
+            // the file was allocated with its whole length, only the written bytes are continued
+            offset = Math.min(offset, Math.max(0, parseLong(meta.getProperty(KEY_WRITTEN))));
+        } else if (meta != null) {
+            // files of older versions end where they were written, but an allocated file ends
+            // behind its bytes; only the bytes of the saved chunks are known to be on the device
+            offset = Math.min(offset, ChunkDigests.read(target).getHashedEnd());
+        }
+        String validator = meta != null ? getRangeValidator(meta) : null;
+        if (validator == null) {
+            // without validator the bytes on the device can not be continued safely
+            offset = 0;
+        }
+
+        HttpGet request = new HttpGet(url);
+        // byte ranges, lengths and digests refer to the file, not to a compressed body
+        request.setHeader(HttpClients.HEADER_ACCEPT_ENCODING, HttpClients.ENCODING_IDENTITY);
+        if (offset > 0) {
+            request.setHeader(HEADER_RANGE, "bytes=" + offset + "-");
+            request.setHeader(HEADER_IF_RANGE, validator);
+        }
+        // the buffer is taken before the request, so no connection idles while waiting for one
+        ByteBuffer buffer = bufferPool.acquire();
+        HttpEntity entity = null;
+        boolean complete = false;
+        try {
+            HttpResponse response = httpClient.execute(request);
+            int status = response.getStatusLine().getStatusCode();
+            entity = response.getEntity();
+            long total;
+            if (status == HttpStatus.SC_PARTIAL_CONTENT && offset > 0) {
+                long[] contentRange = parseContentRange(response.getFirstHeader(HEADER_CONTENT_RANGE));
+                if (contentRange == null || contentRange[0] != offset) {
+                    // a part that does not start where the file ends, begin again
+                    deleteDownload(target);
+                    throw new IOException("Unexpected range " + response.getFirstHeader(HEADER_CONTENT_RANGE));
+                }
+                total = contentRange[2];
+            } else if (status == HttpStatus.SC_OK) {
+                // a new version of the resource or a server that ignores the range
+                offset = 0;
+                total = entity != null ? entity.getContentLength() : -1;
+                writeMeta(metaFile, url, response, total);
+            } else if (status == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE && offset > 0) {
+                long[] contentRange = parseContentRange(response.getFirstHeader(HEADER_CONTENT_RANGE));
+                if (contentRange != null && contentRange[2] == offset) {
+                    // the file was already complete
+                    hashTail(target, offset);
+                    meta.setProperty(KEY_LENGTH, String.valueOf(offset));
+                    meta.setProperty(KEY_COMPLETE, String.valueOf(true));
+                    storeMeta(metaFile, meta);
+                    complete = true;
+                    return offset;
+                }
+                deleteDownload(target);
+                throw new IOException("Range not satisfiable for " + url);
+            } else if (status == HttpStatus.SC_NOT_FOUND || status == HttpStatus.SC_GONE) {
+                throw new FileNotFoundException("No resource at " + url);
+            } else {
+                throw new IOException("Unexpected response " + status + " for " + url);
+            }
+
+            long length = copy(url, entity, target, offset, total, getContentMd5(response), buffer, listener, transfer);
+            Properties completeMeta = readMeta(metaFile);
+            if (completeMeta == null) {
+                completeMeta = new Properties();
+                completeMeta.setProperty(KEY_URL, url);
+            }
+            completeMeta.setProperty(KEY_LENGTH, String.valueOf(length));
+            completeMeta.setProperty(KEY_COMPLETE, String.valueOf(true));
+            storeMeta(metaFile, completeMeta);
+            complete = true;
+            return length;
+        } finally {
+            bufferPool.release(buffer);
+            if (!complete) {
+                // releases the connection without reading the rest of the body
+                request.abort();
+            } else if (entity != null) {
+                entity.consumeContent();
+            }
+        }
+    }
+
+    /**
+     * Copies the body into the file starting at the offset and hashes it on the way. Bytes behind
+     * the offset are cut off first, so a body that starts at 0 never leaves old bytes at the end
+     * of the file.
+     * @param expectedDigest = MD5 of the body sent by the server or null.
+     * @param transfer = paces the reads of the body, may be null.
+     * @return the length of the file.
+     */
+    private long copy(String url, HttpEntity entity, final File target, final long offset, final long total,
+                      byte[] expectedDigest, ByteBuffer buffer, final ProgressListener listener,
+                      BandwidthScheduler.Transfer transfer) throws IOException {
+        final ChunkDigests digests = offset > 0 ? ChunkDigests.read(target) : new ChunkDigests();
+        digests.setLength(total);
+        digests.truncate(offset);
+        RandomAccessFile file = new RandomAccessFile(target, "rw");
+        try {
+            file.setLength(offset);
+            if (total > offset) {
+                // allocated at once, the file system finds one free region instead of many
+                file.setLength(total);
+            }
+            final FileChannel channel = file.getChannel();
+            // only the chunks that are not in the table yet are read again
+            ChunkDigests.Hasher hasher = digests.openHasher(channel, 0, offset);
+            if (expectedDigest != null) {
+                hasher.digestBody();
+            }
+            long length = offset;
+            if (entity != null) {
+                try {
+                    InputStream input = transfer != null ? transfer.wrap(entity.getContent()) : entity.getContent();
+                    length = ChannelCopy.copy(input, channel, offset, -1, buffer, hasher,
+                            new ChannelCopy.Progress() {
+
+                                private long savedPosition = offset;
+
+                                @Override
+                                public void onWritten(long position) throws IOException {
+                                    if (position - savedPosition >= SAVE_INTERVAL) {
+                                        save(digests, channel, target, position);
+                                        savedPosition = position;
+                                    }
+                                    if (listener != null) {
+                                        listener.onProgress(position, total);
+                                    }
+                                }
+                            });
+                } catch (IOException e) {
+                    // the next attempt continues with the hashed bytes; an interrupt that ended the
+                    // copy also closed the channel, the bytes can not be forced then and the
+                    // download continues behind the last save
+                    if (channel.isOpen()) {
+                        save(digests, channel, target, hasher.getPosition());
+                    }
+                    throw e;
+                }
+            }
+            if (total >= 0 && length != total) {
+                save(digests, channel, target, length);
+                throw new IOException("Connection closed after " + length + " of " + total + " bytes of " + url);
+            }
+            if (expectedDigest != null && !Arrays.equals(expectedDigest, hasher.getBodyDigest())) {
+                // the body was damaged on the way, only its bytes are requested again
+                file.setLength(offset);
+                digests.truncate(offset);
+                save(digests, channel, target, offset);
+                throw new CorruptDownloadException("Digest mismatch in " + (length - offset) + " bytes of " + url);
+            }
+            digests.setLength(length);
+            hasher.finish();
+            save(digests, channel, target, length);
+            return length;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Saves the digests and records the written bytes once they are forced to the device. The
+     * written bytes are recorded nowhere else, so the record never points behind bytes that
+     * could be lost.
+     * @param position = end of the bytes that were written.
+     */
+    private static void save(ChunkDigests digests, FileChannel channel, File target, long position)
+            throws IOException {
+        digests.save(channel, target);
+        recordWritten(target, position);
+    }
+
+    /**
+     * Records up to where the allocated file holds downloaded bytes, a resumed download continues
+     * there. Only called by save, after the bytes were forced.
+     * @param position = end of the bytes that were written.
+     */
+    private static void recordWritten(File target, long position) throws IOException {
+        File metaFile = getMetaFile(target);
+        Properties meta = readMeta(metaFile);
+        if (meta != null) {
+            meta.setProperty(KEY_WRITTEN, String.valueOf(position));
+            storeMeta(metaFile, meta);
+        }
+    }
+
+    /**
+     * Completes the digests of a file whose bytes all arrived, only the chunks that are not in
+     * the table are read.
+     */
+    private static void hashTail(File target, long length) throws IOException {
+        ChunkDigests digests = ChunkDigests.read(target);
+        digests.setLength(length);
+        RandomAccessFile file = new RandomAccessFile(target, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            digests.openHasher(channel, 0, length).finish();
+            digests.save(channel, target);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Removes the download, its validators and the digests of its chunks.
+     * @param target = download file.
+     */
+    public static void deleteDownload(File target) {
+        target.delete();
+        getMetaFile(target).delete();
+        ChunkDigests.delete(target);
+    }
+
+    /**
+     * @param url = URL of the resource.
+     * @param target = download file.
+     * @return true if the file holds the complete resource of the URL.
+     */
+    static boolean isComplete(String url, File target) {
+        Properties meta = readMeta(getMetaFile(target));
+        return meta != null && url.equals(meta.getProperty(KEY_URL))
+                && Boolean.parseBoolean(meta.getProperty(KEY_COMPLETE))
+                && target.isFile() && target.length() == parseLong(meta.getProperty(KEY_LENGTH));
+    }
+
+    /**
+     * Marks a file that was downloaded by other means as complete, so it is not requested again.
+     * @param url = URL of the resource.
+     * @param target = download file.
+     * @param length = length of the resource.
+     */
+    static void markComplete(String url, File target, long length) throws IOException {
+        Properties meta = new Properties();
+        meta.setProperty(KEY_URL, url);
+        meta.setProperty(KEY_LENGTH, String.valueOf(length));
+        meta.setProperty(KEY_COMPLETE, String.valueOf(true));
+        storeMeta(getMetaFile(target), meta);
+    }
+
+    /**
+     * Strong ETags identify the bytes exactly and are preferred, a weak ETag must not be used
+     * for a range request so the date is taken instead.
+     */
+    private static String getRangeValidator(Properties meta) {
+        return getRangeValidator(meta.getProperty(KEY_ETAG), meta.getProperty(KEY_LAST_MODIFIED));
+    }
+
+    /**
+     * @param etag = ETag of the resource or null.
+     * @param lastModified = Last-Modified date of the resource or null.
+     * @return the validator for an If-Range header or null if there is none.
+     */
+    static String getRangeValidator(String etag, String lastModified) {
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return lastModified;
+    }
+
+    /**
+     * Parses a Content-Range header of a partial response ("bytes first-last/length") or of a
+     * range that could not be satisfied (an asterisk instead of first-last).
+     * @return first byte, last byte and length of the resource (-1 if unknown) or null.
+     */
+    static long[] parseContentRange(Header header) {
+        if (header == null) {
+            return null;
+        }
+        String value = header.getValue().trim();
+        if (!value.startsWith("bytes")) {
+            return null;
+        }
+        value = value.substring("bytes".length()).trim();
+        int slash = value.indexOf('/');
+        if (slash < 0) {
+            return null;
+        }
+        String range = value.substring(0, slash).trim();
+        String length = value.substring(slash + 1).trim();
+        long[] result = {-1, -1, "*".equals(length) ? -1 : parseLong(length)};
+        int dash = range.indexOf('-');
+        if (dash > 0) {
+            result[0] = parseLong(range.substring(0, dash).trim());
+            result[1] = parseLong(range.substring(dash + 1).trim());
+        }
+        return result;
+    }
+
+    /**
+     * @return the MD5 of the body from the Content-MD5 header or null if the server sent none.
+     * The digest of a partial response covers only the sent range.
+     */
+    static byte[] getContentMd5(HttpResponse response) {
+        Header header = response.getFirstHeader(HEADER_CONTENT_MD5);
+        if (header == null) {
+            return null;
+        }
+        byte[] digest = ChunkDigests.parseBase64(header.getValue().trim());
+        return digest != null && digest.length == MD5_LENGTH ? digest : null;
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void writeMeta(File metaFile, String url, HttpResponse response, long length) throws IOException {
+        Properties meta = new Properties();
+        meta.setProperty(KEY_URL, url);
+        Header etag = response.getFirstHeader(HEADER_ETAG);
+        if (etag != null) {
+            meta.setProperty(KEY_ETAG, etag.getValue());
+        }
+        Header lastModified = response.getFirstHeader(HEADER_LAST_MODIFIED);
+        if (lastModified != null) {
+            meta.setProperty(KEY_LAST_MODIFIED, lastModified.getValue());
+        }
+        meta.setProperty(KEY_LENGTH, String.valueOf(length));
+        meta.setProperty(KEY_COMPLETE, String.valueOf(false));
+        // nothing is written yet, the allocated bytes do not count
+        meta.setProperty(KEY_WRITTEN, String.valueOf(0));
+        storeMeta(metaFile, meta);
+    }
+
+    /**
+     * Writes the sidecar file to a temporary file and replaces the former one with it, so a crash
+     * leaves either the old or the new entries.
+     */
+    private static void storeMeta(File metaFile, Properties meta) throws IOException {
+        File tempFile = new File(metaFile.getPath() + ".tmp");
+        FileOutputStream output = new FileOutputStream(tempFile);
+        try {
+            meta.store(output, null);
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+        if (!tempFile.renameTo(metaFile)) {
+            throw new IOException("Could not replace " + metaFile);
+        }
+    }
+
+    private static Properties readMeta(File metaFile) {
+        if (!metaFile.isFile()) {
+            return null;
+        }
+        InputStream input = null;
+        try {
+            input = new FileInputStream(metaFile);
+            Properties meta = new Properties();
+            meta.load(input);
+            return meta;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package org.hamm.h1kemaps.app.download;
+
+import org.hamm.h1kemaps.app.model.MapPackInfo;
+import org.hamm.h1kemaps.app.model.PackageBoundsIndex;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds the map packages a planned route needs. A package is needed if its bounding box meets
+ * the corridor around the route, i.e. comes closer to one of the route segments than the width
+ * of the corridor. Every segment is looked up in the PackageBoundsIndex with its box grown by
+ * the corridor; the candidates are checked against the segment itself in an equirectangular
+ * projection around the segment. The packages are returned in the order the route reaches them,
+ * so the first ones to download are the ones needed first.
+ */
+public class RoutePrefetchPlanner {
+
+    /**
+     * Length of one degree of latitude on the mean earth radius
+     */
+    private static final double METERS_PER_DEGREE = 6371000 * Math.PI / 180;
+
+    /**
+     * Smallest cosine of a latitude the corridor is widened with, so it stays finite at the poles
+     */
+    private static final double MIN_COSINE = 0.01;
+
+    private final PackageBoundsIndex index;
+
+    /**
+     * @param index = bounding boxes of the packages that can be downloaded.
+     */
+    public RoutePrefetchPlanner(PackageBoundsIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * @param latitudes = latitudes of the route points in degrees, in route order.
+     * @param longitudes = longitudes of the route points in degrees.
+     * @param corridor = distance from the route in meters up to which a package is needed.
+     * @return the packages that meet the corridor, in the order the route reaches them.
+     */
+    public List<MapPackInfo> plan(double[] latitudes, double[] longitudes, double corridor) {
+        Set<MapPackInfo> planned = new LinkedHashSet<MapPackInfo>();
+        List<MapPackInfo> candidates = new ArrayList<MapPackInfo>();
+        List<Hit> hits = new ArrayList<Hit>();
+        int count = Math.min(latitudes.length, longitudes.length);
+        // a single point is a segment of length 0
+        int segments = count > 1 ? count - 1 : count;
+        for (int i = 0; i < segments; i++) {
+            int next = Math.min(i + 1, count - 1);
+            double latA = latitudes[i];
+            double lonA = longitudes[i];
+            double latB = latitudes[next];
+            double lonB = longitudes[next];
+
+            double latMargin = corridor / METERS_PER_DEGREE;
+            double latMin = Math.min(latA, latB) - latMargin;
+            double latMax = Math.max(latA, latB) + latMargin;
+            double cosine = Math.cos(Math.toRadians(Math.min(90, Math.max(Math.abs(latMin), Math.abs(latMax)))));
+            double lonMargin = latMargin / Math.max(cosine, MIN_COSINE);
+            candidates.clear();
+            index.search(latMin, Math.min(lonA, lonB) - lonMargin, latMax, Math.max(lonA, lonB) + lonMargin,
+                    candidates);
+
+            hits.clear();
+            double metersPerLon = METERS_PER_DEGREE * Math.max(Math.cos(Math.toRadians((latA + latB) / 2)), MIN_COSINE);
+            for (MapPackInfo pack : candidates) {
+                if (planned.contains(pack)) {
+                    continue;
+                }
+                // the segment starts in the origin, the package box is relative to it
+                Hit hit = new Hit(pack);
+                measure(hit, (lonB - lonA) * metersPerLon, (latB - latA) * METERS_PER_DEGREE,
+                        (pack.getLonMin() - lonA) * metersPerLon, (pack.getLatMin() - latA) * METERS_PER_DEGREE,
+                        (pack.getLonMax() - lonA) * metersPerLon, (pack.getLatMax() - latA) * METERS_PER_DEGREE);
+                if (hit.distance <= corridor) {
+                    hits.add(hit);
+                }
+            }
+            Collections.sort(hits, HIT_ORDER);
+            for (Hit hit : hits) {
+                planned.add(hit.pack);
+            }
+        }
+        return new ArrayList<MapPackInfo>(planned);
+    }
+
+    /**
+     * Measures the distance between the segment from the origin to (x, y) and the box and the
+     * position on the segment (0 to 1) where the segment comes closest to the box or enters it.
+     */
+    private static void measure(Hit hit, double x, double y,
+                                double boxXMin, double boxYMin, double boxXMax, double boxYMax) {
+        // clips the segment at the box (Liang-Barsky), a remaining part means they meet
+        double enter = 0;
+        double leave = 1;
+        double[] directions = {-x, x, -y, y};
+        double[] limits = {-boxXMin, boxXMax, -boxYMin, boxYMax};
+        for (int i = 0; i < 4 && enter <= leave; i++) {
+            if (directions[i] == 0) {
+                if (limits[i] < 0) {
+                    leave = -1;
+                }
+            } else {
+                double t = limits[i] / directions[i];
+                if (directions[i] < 0) {
+                    enter = Math.max(enter, t);
+                } else {
+                    leave = Math.min(leave, t);
+                }
+            }
+        }
+        if (enter <= leave) {
+            hit.distance = 0;
+            hit.position = enter;
+            return;
+        }
+
+        hit.distance = Double.POSITIVE_INFINITY;
+        closerPoint(hit, 0, distanceToBox(0, 0, boxXMin, boxYMin, boxXMax, boxYMax));
+        closerPoint(hit, 1, distanceToBox(x, y, boxXMin, boxYMin, boxXMax, boxYMax));
+        double lengthSquared = x * x + y * y;
+        double[] cornerXs = {boxXMin, boxXMax, boxXMin, boxXMax};
+        double[] cornerYs = {boxYMin, boxYMin, boxYMax, boxYMax};
+        for (int i = 0; i < 4; i++) {
+            double t = lengthSquared > 0 ? (cornerXs[i] * x + cornerYs[i] * y) / lengthSquared : 0;
+            t = Math.max(0, Math.min(1, t));
+            closerPoint(hit, t, Math.hypot(cornerXs[i] - t * x, cornerYs[i] - t * y));
+        }
+    }
+
+    private static void closerPoint(Hit hit, double position, double distance) {
+        if (distance < hit.distance) {
+            hit.distance = distance;
+            hit.position = position;
+        }
+    }
+
+    private static double distanceToBox(double x, double y,
+                                        double boxXMin, double boxYMin, double boxXMax, double boxYMax) {
+        double dx = Math.max(Math.max(boxXMin - x, x - boxXMax), 0);
+        double dy = Math.max(Math.max(boxYMin - y, y - boxYMax), 0);
+        return Math.hypot(dx, dy);
+    }
+
+    /**
+     * Orders the packages met by a segment by the position the segment reaches them, packages
+     * reached at the same position by their distance to the segment
+     */
+    private static final Comparator<Hit> HIT_ORDER = new Comparator<Hit>() {
+
+        @Override
+        public int compare(Hit first, Hit second) {
+            int order = Double.compare(first.position, second.position);
+            return order != 0 ? order : Double.compare(first.distance, second.distance);
+        }
+    };
+
+    /**
+     * Package met by a segment
+     */
+    private static class Hit {
+
+        final MapPackInfo pack;
+
+        /**
+         * Distance between the segment and the package box in meters
+         */
+        double distance;
+
+        /**
+         * Position on the segment where it reaches the package, 0 at its start and 1 at its end
+         */
+        double position;
+
+        Hit(MapPackInfo pack) {
+            this.pack = pack;
+        }
+    }
+}
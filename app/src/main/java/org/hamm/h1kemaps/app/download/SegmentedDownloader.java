@@ -0,0 +1,701 @@
+package org.hamm.h1kemaps.app.download;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.hamm.h1kemaps.app.util.HttpClients;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads a large resource on several connections. The file is allocated with the length of
+ * the resource and split into byte ranges, every range (segment) is requested on its own
+ * connection and written into its region of the file with positional FileChannel writes.
+ * A segment that fails is requested again from where it stopped without touching the others.
+ * The progress of the segments is kept in a sidecar file, so an interrupted download continues
+ * with the missing bytes of every segment. Segments start at chunk boundaries, so every segment
+ * hashes its own chunks while it writes them (see ChunkDigests), a segment whose body does not
+ * match its Content-MD5 is requested again on its own. The segments of all downloads run on one
+ * pool of segmentCount threads, so parallel downloads share the connections instead of each
+ * opening segmentCount of their own.
+ * Resources that are too small to be split or servers without range support are downloaded on
+ * one connection by a ResumableDownloader.
+ */
+public class SegmentedDownloader {
+
+    private static final String HEADER_RANGE = "Range";
+
+    private static final String HEADER_IF_RANGE = "If-Range";
+
+    private static final String HEADER_CONTENT_RANGE = "Content-Range";
+
+    private static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+
+    private static final String HEADER_ETAG = "ETag";
+
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+
+    private static final String SEGMENTS_SUFFIX = ".segments";
+
+    private static final String KEY_URL = "url";
+
+    private static final String KEY_VALIDATOR = "validator";
+
+    private static final String KEY_LENGTH = "length";
+
+    private static final String KEY_COUNT = "count";
+
+    private static final String KEY_SEGMENT = "segment.";
+
+    /**
+     * Number of bytes after which the progress of the segments is written to the sidecar file
+     */
+    private static final long SAVE_INTERVAL = 4L * 1024 * 1024;
+
+    /**
+     * Time an idle segment thread is kept
+     */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final HttpClient httpClient;
+
+    /**
+     * Buffers the segments are copied with, a segment holds one while its request runs
+     */
+    private final DirectBufferPool bufferPool;
+
+    private final int segmentCount;
+
+    /**
+     * Runs the segments of all downloads
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Downloads the resources that are not split
+     */
+    private final ResumableDownloader singleDownloader;
+
+    /**
+     * Number of requests a segment may take before the download fails
+     */
+    private int maxAttempts = 1;
+
+    /**
+     * Smallest segment, shorter resources get fewer segments
+     */
+    private long minSegmentLength = 1024 * 1024;
+
+    /**
+     * @param httpClient = client used for the requests, it has to allow segmentCount parallel
+     *                   connections.
+     * @param bufferPool = pool of the buffers the segments copy their bodies with, it should hold
+     *                   a buffer for every segment.
+     * @param segmentCount = number of connections a resource is downloaded on.
+     * @param executor = runs the segments, shared by all downloads. It should have segmentCount
+     *                 threads, see createExecutor.
+     */
+    public SegmentedDownloader(HttpClient httpClient, DirectBufferPool bufferPool, int segmentCount,
+                               ExecutorService executor) {
+        this.httpClient = httpClient;
+        this.bufferPool = bufferPool;
+        this.segmentCount = segmentCount;
+        this.executor = executor;
+        this.singleDownloader = new ResumableDownloader(httpClient, bufferPool);
+    }
+
+    /**
+     * Creates a downloader whose segments run on a pool of its own.
+     * @param httpClient = client used for the requests, it has to allow segmentCount parallel
+     *                   connections.
+     * @param bufferPool = pool of the buffers the segments copy their bodies with, it should hold
+     *                   a buffer for every segment.
+     * @param segmentCount = number of connections a resource is downloaded on.
+     */
+    public SegmentedDownloader(HttpClient httpClient, DirectBufferPool bufferPool, int segmentCount) {
+        this(httpClient, bufferPool, segmentCount, createExecutor(segmentCount));
+    }
+
+    /**
+     * Creates a downloader with a buffer pool of its own that holds one buffer per segment.
+     * @param httpClient = client used for the requests, it has to allow segmentCount parallel
+     *                   connections.
+     * @param bufferSize = size of the buffer every segment copies its body with.
+     * @param segmentCount = number of connections a resource is downloaded on.
+     */
+    public SegmentedDownloader(HttpClient httpClient, int bufferSize, int segmentCount) {
+        this(httpClient, new DirectBufferPool(bufferSize, Math.max(1, segmentCount)), segmentCount);
+    }
+
+    /**
+     * Creates the pool the segments run on. Its threads end when they are idle, so a pool that is
+     * never shut down does not keep them.
+     * @param segmentCount = number of segments that run at the same time.
+     * @return the pool.
+     */
+    public static ExecutorService createExecutor(int segmentCount) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(segmentCount, segmentCount, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+        singleDownloader.setMaxAttempts(maxAttempts);
+    }
+
+    public void setMinSegmentLength(long minSegmentLength) {
+        this.minSegmentLength = minSegmentLength;
+    }
+
+    /**
+     * Downloads the resource into the file. A download that was interrupted before continues
+     * with the missing bytes of each segment.
+     * @param url = URL of the resource.
+     * @param target = file the resource is written to.
+     * @param listener = receives the progress of all segments together, the callback runs on
+     *                 the segment threads. May be null.
+     * @return the length of the downloaded file.
+     * @throws IOException = if a segment could not be downloaded within the allowed number of
+     * attempts. The finished bytes of all segments stay on the device for the next try.
+     */
+    public long download(String url, File target, ResumableDownloader.ProgressListener listener) throws IOException {
+        return download(url, target, listener, null);
+    }
+
+    /**
+     * Downloads the resource like download(url, target, listener), all segments read their bodies
+     * at the pace the scheduler allows.
+     * @param transfer = transfer of a BandwidthScheduler, shared by the segments. May be null.
+     */
+    public long download(String url, File target, ResumableDownloader.ProgressListener listener,
+                         BandwidthScheduler.Transfer transfer) throws IOException {
+        File parent = target.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        if (ResumableDownloader.isComplete(url, target)) {
+            return target.length();
+        }
+        Segments segments = readSegments(url, target);
+        for (boolean restarted = false; ; restarted = true) {
+            if (segments == null) {
+                segments = createSegments(url, target);
+                if (segments == null) {
+                    // not worth splitting or the server can not serve ranges
+                    getSegmentsFile(target).delete();
+                    return singleDownloader.download(url, target, listener, transfer);
+                }
+            }
+            try {
+                downloadSegments(segments, target, listener, transfer);
+                ResumableDownloader.markComplete(url, target, segments.length);
+                getSegmentsFile(target).delete();
+                return segments.length;
+            } catch (ResourceChangedException e) {
+                // the bytes on the device belong to the former version of the resource
+                deleteDownload(target);
+                if (restarted) {
+                    throw e;
+                }
+                segments = null;
+            }
+        }
+    }
+
+    /**
+     * @param target = download file.
+     * @return the sidecar file holding the progress of the segments.
+     */
+    public static File getSegmentsFile(File target) {
+        return new File(target.getPath() + SEGMENTS_SUFFIX);
+    }
+
+    /**
+     * Removes the download, its validators and the progress of its segments.
+     * @param target = download file.
+     */
+    public static void deleteDownload(File target) {
+        ResumableDownloader.deleteDownload(target);
+        getSegmentsFile(target).delete();
+    }
+
+    /**
+     * Asks the server for length and validator of the resource, allocates the file and splits
+     * it into segments.
+     * @return the segments or null if the resource is downloaded on one connection.
+     */
+    private Segments createSegments(String url, File target) throws IOException {
+        if (segmentCount < 2) {
+            return null;
+        }
+        HttpHead request = new HttpHead(url);
+        // the length of the file, not of a compressed body
+        request.setHeader(HttpClients.HEADER_ACCEPT_ENCODING, HttpClients.ENCODING_IDENTITY);
+        HttpResponse response = httpClient.execute(request);
+        try {
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+                return null;
+            }
+            Header acceptRanges = response.getFirstHeader(HEADER_ACCEPT_RANGES);
+            Header contentLength = response.getFirstHeader("Content-Length");
+            Header etag = response.getFirstHeader(HEADER_ETAG);
+            Header lastModified = response.getFirstHeader(HEADER_LAST_MODIFIED);
+            String validator = ResumableDownloader.getRangeValidator(etag != null ? etag.getValue() : null,
+                    lastModified != null ? lastModified.getValue() : null);
+            long length = contentLength != null ? parseLong(contentLength.getValue()) : -1;
+            if (acceptRanges == null || !"bytes".equalsIgnoreCase(acceptRanges.getValue().trim())
+                    || validator == null || length < 2 * minSegmentLength) {
+                return null;
+            }
+
+            int count = (int) Math.min(segmentCount, length / minSegmentLength);
+            // every chunk belongs to one segment
+            long segmentLength = Math.max(ChunkDigests.CHUNK_SIZE,
+                    length / count / ChunkDigests.CHUNK_SIZE * ChunkDigests.CHUNK_SIZE);
+            count = (int) Math.min(count, (length + segmentLength - 1) / segmentLength);
+            if (count < 2) {
+                return null;
+            }
+            Segments segments = new Segments(url, validator, length, count, new ChunkDigests());
+            segments.digests.setLength(length);
+            for (int i = 0; i < count; i++) {
+                segments.starts[i] = i * segmentLength;
+                segments.positions[i] = segments.starts[i];
+                segments.ends[i] = i == count - 1 ? length - 1 : (i + 1) * segmentLength - 1;
+            }
+            // the validators of a single stream download do not describe the allocated file
+            ResumableDownloader.deleteDownload(target);
+            RandomAccessFile file = new RandomAccessFile(target, "rw");
+            try {
+                file.setLength(length);
+            } finally {
+                file.close();
+            }
+            storeSegments(segments, segments.positions, target);
+            return segments;
+        } finally {
+            request.abort();
+        }
+    }
+
+    /**
+     * Downloads the unfinished segments in parallel and waits for all of them.
+     */
+    private void downloadSegments(final Segments segments, final File target,
+                                  final ResumableDownloader.ProgressListener listener,
+                                  final BandwidthScheduler.Transfer transfer) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(target, "rw");
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        try {
+            final FileChannel channel = file.getChannel();
+            for (int i = 0; i < segments.starts.length; i++) {
+                if (segments.positions[i] <= segments.ends[i]) {
+                    final int index = i;
+                    futures.add(executor.submit(new Callable<Void>() {
+
+                        @Override
+                        public Void call() throws IOException {
+                            downloadSegment(segments, index, channel, target, listener, transfer);
+                            return null;
+                        }
+                    }));
+                }
+            }
+            IOException error = null;
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    IOException cause = e.getCause() instanceof IOException
+                            ? (IOException) e.getCause() : new IOException(e.getCause().toString());
+                    // a pause is reported over the cancellations it caused in the other segments
+                    if (error == null || cause instanceof TransferPausedException) {
+                        error = cause;
+                    }
+                    // the download fails, the other segments stop as well
+                    segments.cancel();
+                } catch (InterruptedException e) {
+                    segments.cancel();
+                    throw new InterruptedIOException("Download of " + segments.url + " interrupted");
+                }
+            }
+            segments.save(channel, target);
+            if (error != null) {
+                throw error;
+            }
+        } finally {
+            // segments that did not start yet must not write into the closed file
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+            file.close();
+        }
+    }
+
+    /**
+     * Downloads the missing bytes of a segment, a failed request is repeated from where it
+     * stopped.
+     */
+    private void downloadSegment(Segments segments, int index, FileChannel channel, File target,
+                                 ResumableDownloader.ProgressListener listener,
+                                 BandwidthScheduler.Transfer transfer) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                fetchSegment(segments, index, channel, target, listener, transfer);
+                return;
+            } catch (ResourceChangedException e) {
+                throw e;
+            } catch (TransferPausedException e) {
+                throw e;
+            } catch (IOException e) {
+                if (segments.isCancelled() || attempt >= maxAttempts) {
+                    throw e;
+                }
+                // the next attempt continues with the bytes that arrived
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void fetchSegment(final Segments segments, final int index, final FileChannel channel, final File target,
+                              final ResumableDownloader.ProgressListener listener,
+                              BandwidthScheduler.Transfer transfer) throws IOException {
+        long position = segments.getPosition(index);
+        long end = segments.ends[index];
+        if (position > end) {
+            return;
+        }
+        HttpGet request = new HttpGet(segments.url);
+        request.setHeader(HttpClients.HEADER_ACCEPT_ENCODING, HttpClients.ENCODING_IDENTITY);
+        request.setHeader(HEADER_RANGE, "bytes=" + position + "-" + end);
+        request.setHeader(HEADER_IF_RANGE, segments.validator);
+        if (!segments.setRequest(index, request)) {
+            throw new InterruptedIOException("Download of " + segments.url + " cancelled");
+        }
+        // the buffer is taken before the request, so no connection idles while waiting for one
+        ByteBuffer buffer = bufferPool.acquire();
+        HttpEntity entity = null;
+        boolean complete = false;
+        try {
+            HttpResponse response = httpClient.execute(request);
+            int status = response.getStatusLine().getStatusCode();
+            entity = response.getEntity();
+            if (status == HttpStatus.SC_OK) {
+                // the whole body: a new version of the resource
+                throw new ResourceChangedException("Resource changed: " + segments.url);
+            } else if (status != HttpStatus.SC_PARTIAL_CONTENT || entity == null) {
+                throw new IOException("Unexpected response " + status + " for " + segments.url);
+            }
+            long[] contentRange = ResumableDownloader.parseContentRange(response.getFirstHeader(HEADER_CONTENT_RANGE));
+            if (contentRange == null || contentRange[0] != position) {
+                throw new IOException("Unexpected range " + response.getFirstHeader(HEADER_CONTENT_RANGE));
+            }
+            if (contentRange[2] != segments.length) {
+                throw new ResourceChangedException("Length of " + segments.url + " changed to " + contentRange[2]);
+            }
+
+            long start = position;
+            ChunkDigests.Hasher hasher = segments.digests.openHasher(channel, segments.starts[index], position);
+            byte[] expectedDigest = ResumableDownloader.getContentMd5(response);
+            if (expectedDigest != null) {
+                hasher.digestBody();
+            }
+            InputStream input = transfer != null ? transfer.wrap(entity.getContent()) : entity.getContent();
+            position = ChannelCopy.copy(input, channel, position, end - position + 1, buffer, hasher,
+                    new ChannelCopy.Progress() {
+
+                        @Override
+                        public void onWritten(long writtenPosition) throws IOException {
+                            if (segments.isCancelled()) {
+                                throw new InterruptedIOException("Download of " + segments.url + " cancelled");
+                            }
+                            long downloaded = segments.advance(index, writtenPosition, channel, target);
+                            if (listener != null) {
+                                listener.onProgress(downloaded, segments.length);
+                            }
+                        }
+                    });
+            if (segments.isCancelled()) {
+                throw new InterruptedIOException("Download of " + segments.url + " cancelled");
+            }
+            if (position <= end) {
+                throw new IOException("Connection closed at " + position + " of segment ending at " + end
+                        + " of " + segments.url);
+            }
+            if (expectedDigest != null && !Arrays.equals(expectedDigest, hasher.getBodyDigest())) {
+                // the body was damaged on the way, the segment requests its bytes again
+                segments.reset(index, start, channel, target);
+                throw new CorruptDownloadException("Digest mismatch in bytes " + start + "-" + end + " of "
+                        + segments.url);
+            }
+            hasher.finish();
+            complete = true;
+        } finally {
+            bufferPool.release(buffer);
+            segments.setRequest(index, null);
+            if (!complete) {
+                request.abort();
+            } else {
+                entity.consumeContent();
+            }
+        }
+    }
+
+    /**
+     * Reads the segments of an interrupted download of the same URL.
+     * @return the segments or null if there are none or they do not fit to the file.
+     */
+    private static Segments readSegments(String url, File target) {
+        File segmentsFile = getSegmentsFile(target);
+        if (!segmentsFile.isFile()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        InputStream input = null;
+        try {
+            input = new FileInputStream(segmentsFile);
+            properties.load(input);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        long length = parseLong(properties.getProperty(KEY_LENGTH));
+        int count = (int) parseLong(properties.getProperty(KEY_COUNT));
+        String validator = properties.getProperty(KEY_VALIDATOR);
+        if (!url.equals(properties.getProperty(KEY_URL)) || validator == null || count < 1
+                || length < 0 || target.length() != length) {
+            return null;
+        }
+        ChunkDigests digests = ChunkDigests.read(target);
+        digests.setLength(length);
+        Segments segments = new Segments(url, validator, length, count, digests);
+        for (int i = 0; i < count; i++) {
+            String[] values = properties.getProperty(KEY_SEGMENT + i, "").split(" ");
+            if (values.length != 3) {
+                return null;
+            }
+            segments.starts[i] = parseLong(values[0]);
+            segments.ends[i] = parseLong(values[1]);
+            segments.positions[i] = parseLong(values[2]);
+            if (segments.starts[i] < 0 || segments.starts[i] % ChunkDigests.CHUNK_SIZE != 0
+                    || segments.positions[i] < segments.starts[i]
+                    || segments.ends[i] >= length || segments.positions[i] > segments.ends[i] + 1) {
+                return null;
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * @param positions = next byte of every segment, the positions the download continues at.
+     */
+    private static void storeSegments(Segments segments, long[] positions, File target) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(KEY_URL, segments.url);
+        properties.setProperty(KEY_VALIDATOR, segments.validator);
+        properties.setProperty(KEY_LENGTH, String.valueOf(segments.length));
+        properties.setProperty(KEY_COUNT, String.valueOf(segments.starts.length));
+        for (int i = 0; i < segments.starts.length; i++) {
+            properties.setProperty(KEY_SEGMENT + i,
+                    segments.starts[i] + " " + segments.ends[i] + " " + positions[i]);
+        }
+        OutputStream output = new FileOutputStream(getSegmentsFile(target));
+        try {
+            properties.store(output, null);
+        } finally {
+            output.close();
+        }
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * The server has a different version of the resource than the one the segments belong to.
+     */
+    private static class ResourceChangedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        ResourceChangedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Byte ranges of a download and the position up to which each of them is written.
+     */
+    private static class Segments {
+
+        private final String url;
+
+        private final String validator;
+
+        private final long length;
+
+        /**
+         * Digests of the chunks of the file, shared by the segments
+         */
+        private final ChunkDigests digests;
+
+        private final long[] starts;
+
+        /**
+         * Last byte of every segment (inclusive, like in a Range header)
+         */
+        private final long[] ends;
+
+        /**
+         * Next byte every segment writes, guarded by this
+         */
+        private final long[] positions;
+
+        /**
+         * Running request of every segment, aborted on cancel
+         */
+        private final HttpGet[] requests;
+
+        private long unsavedBytes;
+
+        private volatile boolean cancelled;
+
+        /**
+         * Held while the progress is written, so the sidecars are written by one segment at a time
+         * without blocking the others
+         */
+        private final Object saveLock = new Object();
+
+        Segments(String url, String validator, long length, int count, ChunkDigests digests) {
+            this.url = url;
+            this.validator = validator;
+            this.length = length;
+            this.digests = digests;
+            this.starts = new long[count];
+            this.ends = new long[count];
+            this.positions = new long[count];
+            this.requests = new HttpGet[count];
+        }
+
+        synchronized long getPosition(int index) {
+            return positions[index];
+        }
+
+        /**
+         * @return false if the download was cancelled and the request must not be sent.
+         */
+        synchronized boolean setRequest(int index, HttpGet request) {
+            requests[index] = request;
+            return !cancelled;
+        }
+
+        /**
+         * Records written bytes of a segment and stores the progress from time to time.
+         * @return the bytes of all segments that are in the file.
+         */
+        long advance(int index, long position, FileChannel channel, File target) throws IOException {
+            boolean save;
+            long downloaded = 0;
+            synchronized (this) {
+                unsavedBytes += position - positions[index];
+                positions[index] = position;
+                save = unsavedBytes >= SAVE_INTERVAL;
+                for (int i = 0; i < positions.length; i++) {
+                    downloaded += positions[i] - starts[i];
+                }
+            }
+            if (save) {
+                save(channel, target);
+            }
+            return downloaded;
+        }
+
+        /**
+         * Moves a segment back to a position, the bytes behind it and their digests are discarded.
+         */
+        void reset(int index, long position, FileChannel channel, File target) throws IOException {
+            synchronized (this) {
+                positions[index] = position;
+                digests.truncate(position, ends[index]);
+            }
+            save(channel, target);
+        }
+
+        /**
+         * Writes the progress to the sidecar files. The positions and digests are taken first and
+         * the data is forced to the device before they are written, so the sidecars never claim
+         * bytes that could be lost. The other segments keep writing while the data is forced.
+         */
+        void save(FileChannel channel, File target) throws IOException {
+            synchronized (saveLock) {
+                long[] savedPositions;
+                ChunkDigests savedDigests;
+                synchronized (this) {
+                    savedPositions = positions.clone();
+                    savedDigests = digests.copy();
+                    unsavedBytes = 0;
+                }
+                channel.force(false);
+                storeSegments(this, savedPositions, target);
+                savedDigests.store(target);
+            }
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Stops all segments, running requests are aborted so blocked reads return.
+         */
+        synchronized void cancel() {
+            cancelled = true;
+            for (HttpGet request : requests) {
+                if (request != null) {
+                    request.abort();
+                }
+            }
+        }
+    }
+}
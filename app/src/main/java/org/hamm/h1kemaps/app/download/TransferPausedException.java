@@ -0,0 +1,17 @@
+package org.hamm.h1kemaps.app.download;
+
+import java.io.IOException;
+
+/**
+ * A pausable transfer must not run on the current network or next to a foreground transfer, see
+ * BandwidthScheduler. The bytes that arrived stay on the device, the download continues with
+ * them once the transfer may run again.
+ */
+public class TransferPausedException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public TransferPausedException(String message) {
+        super(message);
+    }
+}
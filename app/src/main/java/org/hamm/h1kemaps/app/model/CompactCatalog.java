@@ -0,0 +1,663 @@
+package org.hamm.h1kemaps.app.model;
+
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Immutable catalog of map packages stored in primitive arrays instead of one MapPack object
+ * (with its strings and children list) per package. Every package code is interned into an int
+ * ID - the position of the code in the sorted code table. Codes and names are kept in shared
+ * char arrays, parents as int[], sizes and subtree sizes as long[], leaf counts as int[], bounding boxes as double[], types as byte IDs into a small type table,
+ * the outlines in one float array and the children in CSR form (an offset array into one array of child IDs). The localized names
+ * stay in the shared NameDictionary, the catalog only keeps the name IDs of every package in CSR form.
+ *
+ * The catalog hands out read-only MapPackInfo views that are created on demand, a view only holds
+ * the package ID and reads the arrays without copying them. The app keeps its catalog in this form,
+ * so the MapPack objects of the parser are only alive until the catalog is built.
+ */
+public class CompactCatalog implements MapPackCatalog {
+
+    private static final int NO_PACKAGE = -1;
+
+    /**
+     * Package codes in sorted order, the code of package i is codeChars[codeOffsets[i] .. codeOffsets[i + 1])
+     */
+    private final char[] codeChars;
+
+    private final int[] codeOffsets;
+
+    /**
+     * English names, the name of package i is nameChars[nameOffsets[i] .. nameOffsets[i + 1])
+     */
+    private final char[] nameChars;
+
+    private final int[] nameOffsets;
+
+    /**
+     * Localized names, null if the catalog only knows the English names
+     */
+    private final NameDictionary nameDictionary;
+
+    /**
+     * Name IDs by language ID of package i are localizedNames[localizedNameOffsets[i] .. localizedNameOffsets[i + 1])
+     */
+    private final int[] localizedNameOffsets;
+
+    private final int[] localizedNames;
+
+    /**
+     * ID of the parent of every package, -1 for the top level
+     */
+    private final int[] parents;
+
+    /**
+     * SKM file size of every package
+     */
+    private final long[] sizes;
+
+    /**
+     * Size of the SKM files of every package and the packages below it
+     */
+    private final long[] subtreeSizes;
+
+    /**
+     * Number of packages without children below every package
+     */
+    private final int[] leafCounts;
+
+    /**
+     * Bounding box of package i is bounds[4 * i .. 4 * i + 4) (latMin, lonMin, latMax, lonMax), NaN if unknown
+     */
+    private final double[] bounds;
+
+    /**
+     * The outline of package i is polygons[polygonOffsets[i] .. polygonOffsets[i + 1]), empty if the package has none
+     */
+    private final int[] polygonOffsets;
+
+    private final float[] polygons;
+
+    /**
+     * Type of every package as index into typeNames
+     */
+    private final byte[] types;
+
+    /**
+     * Distinct package types (continent, country, state, ...)
+     */
+    private final String[] typeNames;
+
+    /**
+     * The children of package i are children[childOffsets[i] .. childOffsets[i + 1]) in catalog order
+     */
+    private final int[] childOffsets;
+
+    private final int[] children;
+
+    /**
+     * Top level packages in catalog order
+     */
+    private final int[] roots;
+
+    private CompactCatalog(char[] codeChars, int[] codeOffsets, char[] nameChars, int[] nameOffsets,
+                           NameDictionary nameDictionary, int[] localizedNameOffsets, int[] localizedNames,
+                           int[] parents, long[] sizes, long[] subtreeSizes, int[] leafCounts,
+                           double[] bounds, int[] polygonOffsets, float[] polygons, byte[] types, String[] typeNames,
+                           int[] childOffsets, int[] children, int[] roots) {
+        this.codeChars = codeChars;
+        this.codeOffsets = codeOffsets;
+        this.nameChars = nameChars;
+        this.nameOffsets = nameOffsets;
+        this.nameDictionary = nameDictionary;
+        this.localizedNameOffsets = localizedNameOffsets;
+        this.localizedNames = localizedNames;
+        this.parents = parents;
+        this.sizes = sizes;
+        this.subtreeSizes = subtreeSizes;
+        this.leafCounts = leafCounts;
+        this.bounds = bounds;
+        this.polygonOffsets = polygonOffsets;
+        this.polygons = polygons;
+        this.types = types;
+        this.typeNames = typeNames;
+        this.childOffsets = childOffsets;
+        this.children = children;
+        this.roots = roots;
+    }
+
+    /**
+     * Builds the compact catalog from a parsed catalog. Afterwards the MapPack objects of the
+     * index are not needed anymore.
+     * @param packIndex = parsed packages and their hierarchy.
+     * @return the compact catalog.
+     */
+    public static CompactCatalog from(MapPackIndex packIndex) {
+        Map<String, MapPack> packMap = packIndex.getPackMap();
+        String[] codes = packMap.keySet().toArray(new String[packMap.size()]);
+        Arrays.sort(codes);
+        int count = codes.length;
+
+        int[] codeOffsets = new int[count + 1];
+        int[] nameOffsets = new int[count + 1];
+        int codeLength = 0;
+        int nameLength = 0;
+        int childCount = 0;
+        int polygonLength = 0;
+        for (int i = 0; i < count; i++) {
+            MapPack pack = packMap.get(codes[i]);
+            codeLength += codes[i].length();
+            polygonLength += pack.getPolygon() != null ? pack.getPolygon().length : 0;
+            nameLength += pack.getName() != null ? pack.getName().length() : 0;
+            childCount += pack.getChildrenCodes().size();
+        }
+
+        char[] codeChars = new char[codeLength];
+        char[] nameChars = new char[nameLength];
+        for (int i = 0; i < count; i++) {
+            String code = codes[i];
+            code.getChars(0, code.length(), codeChars, codeOffsets[i]);
+            codeOffsets[i + 1] = codeOffsets[i] + code.length();
+
+            String name = packMap.get(code).getName();
+            int length = name != null ? name.length() : 0;
+            if (length > 0) {
+                name.getChars(0, length, nameChars, nameOffsets[i]);
+            }
+            nameOffsets[i + 1] = nameOffsets[i] + length;
+        }
+
+        NameDictionary nameDictionary = packIndex.getNameDictionary();
+        int[] localizedNameOffsets = new int[count + 1];
+        int localizedNameCount = 0;
+        for (int i = 0; i < count; i++) {
+            localizedNameCount += localizedNameIds(packMap.get(codes[i]), nameDictionary).length;
+        }
+        int[] localizedNames = new int[localizedNameCount];
+        for (int i = 0; i < count; i++) {
+            int[] nameIds = localizedNameIds(packMap.get(codes[i]), nameDictionary);
+            System.arraycopy(nameIds, 0, localizedNames, localizedNameOffsets[i], nameIds.length);
+            localizedNameOffsets[i + 1] = localizedNameOffsets[i] + nameIds.length;
+        }
+
+        int[] parents = new int[count];
+        long[] sizes = new long[count];
+        long[] subtreeSizes = new long[count];
+        int[] leafCounts = new int[count];
+        double[] bounds = new double[count * 4];
+        int[] polygonOffsets = new int[count + 1];
+        float[] polygons = new float[polygonLength];
+        byte[] types = new byte[count];
+        List<String> typeNames = new ArrayList<String>();
+        int[] childOffsets = new int[count + 1];
+        int[] children = new int[childCount];
+
+        for (int i = 0; i < count; i++) {
+            MapPack pack = packMap.get(codes[i]);
+            parents[i] = pack.getParentCode() != null ? Arrays.binarySearch(codes, pack.getParentCode()) : NO_PACKAGE;
+            if (parents[i] < 0) {
+                parents[i] = NO_PACKAGE;
+            }
+            sizes[i] = pack.getSize();
+            subtreeSizes[i] = pack.getSubtreeSize();
+            leafCounts[i] = pack.getLeafCount();
+            bounds[4 * i] = pack.getLatMin();
+            bounds[4 * i + 1] = pack.getLonMin();
+            bounds[4 * i + 2] = pack.getLatMax();
+            bounds[4 * i + 3] = pack.getLonMax();
+            float[] polygon = pack.getPolygon();
+            int polygonSize = polygon != null ? polygon.length : 0;
+            if (polygonSize > 0) {
+                System.arraycopy(polygon, 0, polygons, polygonOffsets[i], polygonSize);
+            }
+            polygonOffsets[i + 1] = polygonOffsets[i] + polygonSize;
+
+            int type = typeNames.indexOf(pack.getType());
+            if (type < 0) {
+                type = typeNames.size();
+                typeNames.add(pack.getType());
+            }
+            types[i] = (byte) type;
+
+            int offset = childOffsets[i];
+            for (String childCode : pack.getChildrenCodes()) {
+                int child = Arrays.binarySearch(codes, childCode);
+                if (child >= 0) {
+                    children[offset++] = child;
+                }
+            }
+            childOffsets[i + 1] = offset;
+        }
+
+        List<MapPack> rootPacks = packIndex.getRoots();
+        int[] roots = new int[rootPacks.size()];
+        for (int i = 0; i < roots.length; i++) {
+            roots[i] = Arrays.binarySearch(codes, rootPacks.get(i).getCode());
+        }
+
+        return new CompactCatalog(codeChars, codeOffsets, nameChars, nameOffsets, nameDictionary,
+                localizedNameOffsets, localizedNames, parents, sizes, subtreeSizes,
+                leafCounts, bounds, polygonOffsets, polygons, types, typeNames.toArray(new String[typeNames.size()]),
+                childOffsets, Arrays.copyOf(children, childOffsets[count]), roots);
+    }
+
+    private static int[] localizedNameIds(MapPack pack, NameDictionary nameDictionary) {
+        if (nameDictionary == null || pack.getNameDictionary() != nameDictionary || pack.getNameIds() == null) {
+            return new int[0];
+        }
+        return pack.getNameIds();
+    }
+
+    /**
+     * @return number of packages.
+     */
+    public int size() {
+        return parents.length;
+    }
+
+    /**
+     * Looks up the ID of a package code with a binary search over the code table.
+     * @param code = package code.
+     * @return the ID or -1 if the catalog has no package with the code.
+     */
+    public int idOf(String code) {
+        int low = 0;
+        int high = parents.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int compared = compareCode(middle, code);
+            if (compared < 0) {
+                low = middle + 1;
+            } else if (compared > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return NO_PACKAGE;
+    }
+
+    /**
+     * Compares the code of a package with a string the way String.compareTo does.
+     */
+    private int compareCode(int id, String code) {
+        int start = codeOffsets[id];
+        int length = codeOffsets[id + 1] - start;
+        int common = Math.min(length, code.length());
+        for (int i = 0; i < common; i++) {
+            char c = codeChars[start + i];
+            char other = code.charAt(i);
+            if (c != other) {
+                return c - other;
+            }
+        }
+        return length - code.length();
+    }
+
+    public String getCode(int id) {
+        return new String(codeChars, codeOffsets[id], codeOffsets[id + 1] - codeOffsets[id]);
+    }
+
+    /**
+     * @param id = package ID.
+     * @return the English name or null if the package has none.
+     */
+    public String getName(int id) {
+        int length = nameOffsets[id + 1] - nameOffsets[id];
+        return length > 0 ? new String(nameChars, nameOffsets[id], length) : null;
+    }
+
+    /**
+     * @param id = package ID.
+     * @param language = language code (e.g. de).
+     * @return the name in the language or null if the package has no name in the language.
+     */
+    public String getName(int id, String language) {
+        int languageId = nameDictionary != null ? nameDictionary.getLanguageId(language) : -1;
+        if (languageId < 0 || languageId >= localizedNameOffsets[id + 1] - localizedNameOffsets[id]) {
+            return null;
+        }
+        int nameId = localizedNames[localizedNameOffsets[id] + languageId];
+        return nameId != NameDictionary.NO_NAME ? nameDictionary.getName(nameId) : null;
+    }
+
+    /**
+     * @param id = package ID.
+     * @return ID of the parent package or -1 for a top level package.
+     */
+    public int getParent(int id) {
+        return parents[id];
+    }
+
+    public long getSize(int id) {
+        return sizes[id];
+    }
+
+    /**
+     * @param id = package ID.
+     * @return size of the SKM files of the package and all packages below it.
+     */
+    public long getSubtreeSize(int id) {
+        return subtreeSizes[id];
+    }
+
+    /**
+     * @param id = package ID.
+     * @return number of packages without children below the package, 1 if it has no children.
+     */
+    public int getLeafCount(int id) {
+        return leafCounts[id];
+    }
+
+    /**
+     * @param id = package ID.
+     * @return the type ID of the package, see getTypeName.
+     */
+    public byte getType(int id) {
+        return types[id];
+    }
+
+    /**
+     * @param type = type ID.
+     * @return the type as written in the catalog (continent, country, state, ...).
+     */
+    public String getTypeName(byte type) {
+        return typeNames[type];
+    }
+
+    public int getChildCount(int id) {
+        return childOffsets[id + 1] - childOffsets[id];
+    }
+
+    /**
+     * @param id = package ID.
+     * @param index = position of the child in catalog order.
+     * @return ID of the child.
+     */
+    public int getChild(int id, int index) {
+        return children[childOffsets[id] + index];
+    }
+
+    public int getRootCount() {
+        return roots.length;
+    }
+
+    public int getRoot(int index) {
+        return roots[index];
+    }
+
+    @Override
+    public NameDictionary getNameDictionary() {
+        return nameDictionary;
+    }
+
+    /**
+     * @param code = package code.
+     * @return read-only view of the package or null if the catalog has no package with the code.
+     */
+    @Override
+    public MapPackInfo get(String code) {
+        int id = idOf(code);
+        return id != NO_PACKAGE ? new PackView(id) : null;
+    }
+
+    /**
+     * @param id = package ID.
+     * @return read-only view of the package.
+     */
+    public MapPackInfo get(int id) {
+        return new PackView(id);
+    }
+
+    /**
+     * @return read-only views of the top level packages in catalog order.
+     */
+    @Override
+    public List<MapPackInfo> getRoots() {
+        return new AbstractList<MapPackInfo>() {
+
+            @Override
+            public MapPackInfo get(int index) {
+                return new PackView(roots[index]);
+            }
+
+            @Override
+            public int size() {
+                return roots.length;
+            }
+        };
+    }
+
+    /**
+     * Gets the download packages having the given parent code.
+     * @param parentCode = code of the superior region or null for the top level.
+     * @return read-only views of the children in catalog order, empty if there are none.
+     */
+    @Override
+    public List<MapPackInfo> getChildren(String parentCode) {
+        if (parentCode == null) {
+            return getRoots();
+        }
+        final int parent = idOf(parentCode);
+        return new AbstractList<MapPackInfo>() {
+
+            @Override
+            public MapPackInfo get(int index) {
+                return new PackView(getChild(parent, index));
+            }
+
+            @Override
+            public int size() {
+                return parent != NO_PACKAGE ? getChildCount(parent) : 0;
+            }
+        };
+    }
+
+    @Override
+    public List<MapPackInfo> getRegionMaps(MapPackInfo region) {
+        return MapPackIndex.getRegionMaps(this, region);
+    }
+
+    /**
+     * @return read-only map of the packages by code, backed by this catalog.
+     */
+    @Override
+    public Map<String, MapPackInfo> getPackMap() {
+        return new AbstractMap<String, MapPackInfo>() {
+
+            @Override
+            public MapPackInfo get(Object key) {
+                return key instanceof String ? CompactCatalog.this.get((String) key) : null;
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return key instanceof String && idOf((String) key) != NO_PACKAGE;
+            }
+
+            @Override
+            public int size() {
+                return CompactCatalog.this.size();
+            }
+
+            @Override
+            public Set<Entry<String, MapPackInfo>> entrySet() {
+                return new AbstractSet<Entry<String, MapPackInfo>>() {
+
+                    @Override
+                    public Iterator<Entry<String, MapPackInfo>> iterator() {
+                        return new Iterator<Entry<String, MapPackInfo>>() {
+
+                            private int next;
+
+                            @Override
+                            public boolean hasNext() {
+                                return next < CompactCatalog.this.size();
+                            }
+
+                            @Override
+                            public Entry<String, MapPackInfo> next() {
+                                if (!hasNext()) {
+                                    throw new NoSuchElementException();
+                                }
+                                PackView view = new PackView(next++);
+                                return new SimpleImmutableEntry<String, MapPackInfo>(view.getCode(), view);
+                            }
+
+                            @Override
+                            public void remove() {
+                                throw new UnsupportedOperationException();
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int size() {
+                        return CompactCatalog.this.size();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Read-only package backed by the arrays of the catalog. Two views of the same package are equal.
+     */
+    private class PackView implements MapPackInfo {
+
+        private final int id;
+
+        PackView(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public String getCode() {
+            return CompactCatalog.this.getCode(id);
+        }
+
+        @Override
+        public String getParentCode() {
+            return parents[id] != NO_PACKAGE ? CompactCatalog.this.getCode(parents[id]) : null;
+        }
+
+        @Override
+        public String getName() {
+            return CompactCatalog.this.getName(id);
+        }
+
+        @Override
+        public String getName(Locale locale) {
+            String localizedName = CompactCatalog.this.getName(id, locale.getLanguage());
+            return localizedName != null ? localizedName : getName();
+        }
+
+        @Override
+        public NameDictionary getNameDictionary() {
+            return nameDictionary;
+        }
+
+        @Override
+        public int getNameId(int languageId) {
+            return languageId >= 0 && languageId < localizedNameOffsets[id + 1] - localizedNameOffsets[id]
+                    ? localizedNames[localizedNameOffsets[id] + languageId] : NameDictionary.NO_NAME;
+        }
+
+        @Override
+        public String getType() {
+            return typeNames[types[id]];
+        }
+
+        @Override
+        public long getSize() {
+            return sizes[id];
+        }
+
+        @Override
+        public long getSubtreeSize() {
+            return subtreeSizes[id];
+        }
+
+        @Override
+        public int getLeafCount() {
+            return leafCounts[id];
+        }
+
+        @Override
+        public boolean hasBounds() {
+            return !Double.isNaN(bounds[4 * id]) && !Double.isNaN(bounds[4 * id + 1])
+                    && !Double.isNaN(bounds[4 * id + 2]) && !Double.isNaN(bounds[4 * id + 3]);
+        }
+
+        @Override
+        public double getLatMin() {
+            return bounds[4 * id];
+        }
+
+        @Override
+        public double getLonMin() {
+            return bounds[4 * id + 1];
+        }
+
+        @Override
+        public double getLatMax() {
+            return bounds[4 * id + 2];
+        }
+
+        @Override
+        public double getLonMax() {
+            return bounds[4 * id + 3];
+        }
+
+        @Override
+        public boolean isInOutline(double latitude, double longitude) {
+            // tested on the shared array, a position fix does not copy the outline
+            return polygonOffsets[id] == polygonOffsets[id + 1]
+                    || PackageBoundsIndex.isInPolygon(polygons, polygonOffsets[id], polygonOffsets[id + 1],
+                    latitude, longitude);
+        }
+
+        @Override
+        public List<String> getChildrenCodes() {
+            return new AbstractList<String>() {
+
+                @Override
+                public String get(int index) {
+                    return CompactCatalog.this.getCode(getChild(id, index));
+                }
+
+                @Override
+                public int size() {
+                    return getChildCount(id);
+                }
+            };
+        }
+
+        @Override
+        public String toString() {
+            return getName();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof PackView && ((PackView) other).id == id && ((PackView) other).catalog() == catalog();
+        }
+
+        @Override
+        public int hashCode() {
+            return id;
+        }
+
+        private CompactCatalog catalog() {
+            return CompactCatalog.this;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package org.hamm.h1kemaps.app.model;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Area covered by the installed map packages. It is asked on every position fix, and a position
+ * fix is almost always in the package of the fix before it, so that package is tested first and
+ * the PackageBoundsIndex is only searched when the position left it.
+ */
+public class DownloadedArea {
+
+    private final PackageBoundsIndex index;
+
+    /**
+     * Smallest package that covered the last position, null if the last position was outside
+     */
+    private MapPackInfo lastPackage;
+
+    /**
+     * @param packages = the installed packages.
+     */
+    public DownloadedArea(Collection<? extends MapPackInfo> packages) {
+        this.index = new PackageBoundsIndex(packages);
+    }
+
+    /**
+     * @param latitude = latitude of the position in degrees.
+     * @param longitude = longitude of the position in degrees.
+     * @return the installed package that covers the position, the smallest one if the position
+     * entered it from outside, or null if no installed package covers the position.
+     */
+    public synchronized MapPackInfo locate(double latitude, double longitude) {
+        if (lastPackage != null && PackageBoundsIndex.covers(lastPackage, latitude, longitude)) {
+            return lastPackage;
+        }
+        List<MapPackInfo> covering = index.findCovering(latitude, longitude);
+        lastPackage = covering.isEmpty() ? null : covering.get(0);
+        return lastPackage;
+    }
+
+    /**
+     * @return true if an installed package covers the position.
+     */
+    public boolean contains(double latitude, double longitude) {
+        return locate(latitude, longitude) != null;
+    }
+}
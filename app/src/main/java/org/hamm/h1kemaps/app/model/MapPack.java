@@ -11,11 +11,12 @@ package org.hamm.h1kemaps.app.model;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 
 /**
  * This Class represents a MapPack wich can be downloaded by the user.
  */
-public class MapPack {
+public class MapPack implements MapPackInfo {
 
     /**
      * Package code (e.g. RO - for Romania)
@@ -32,6 +33,16 @@ public class MapPack {
      */
     private String name;
 
+    /**
+     * Dictionary holding the names of the package in all languages of the catalog
+     */
+    private NameDictionary nameDictionary;
+
+    /**
+     * ID of the name in the nameDictionary per language ID, -1 for a language without name
+     */
+    private int[] nameIds;
+
     /**
      * The type of the package (continent, country, state, region, city)
      */
@@ -42,6 +53,33 @@ public class MapPack {
      */
     private long size;
 
+    /**
+     * Size of the SKM files of the package and all packages below it
+     */
+    private long subtreeSize;
+
+    /**
+     * Number of packages without children below the package, 1 for a package without children
+     */
+    private int leafCount;
+
+    /**
+     * Bounding box of the area the package covers in degrees, NaN if the catalog has none
+     */
+    private double latMin = Double.NaN;
+
+    private double lonMin = Double.NaN;
+
+    private double latMax = Double.NaN;
+
+    private double lonMax = Double.NaN;
+
+    /**
+     * Simplified outline of the area as latitude and longitude pairs in degrees, null if only
+     * the bounding box is known
+     */
+    private float[] polygon;
+
     /**
      * Codes of the children pakages (e.g. ROCITY01)
      */
@@ -55,6 +93,44 @@ public class MapPack {
         this.name = name;
     }
 
+    /**
+     * Gets the name of the package in the language of the locale.
+     * @param locale = locale of the user (e.g. Locale.GERMANY).
+     * @return the localized name or the English name if the catalog has no name in the language.
+     */
+    public String getName(Locale locale) {
+        if (nameDictionary != null && nameIds != null) {
+            String localizedName = nameDictionary.getName(nameIds, locale.getLanguage());
+            if (localizedName != null) {
+                return localizedName;
+            }
+        }
+        return getName();
+    }
+
+    public NameDictionary getNameDictionary() {
+        return nameDictionary;
+    }
+
+    public int[] getNameIds() {
+        return nameIds;
+    }
+
+    public int getNameId(int languageId) {
+        return nameIds != null && languageId >= 0 && languageId < nameIds.length
+                ? nameIds[languageId] : NameDictionary.NO_NAME;
+    }
+
+    /**
+     * Sets the names of the package in all languages.
+     * @param nameDictionary = dictionary shared by all packages of the catalog.
+     * @param nameIds = ID of the name in the dictionary per language ID, -1 for a language without name.
+     */
+    public void setLocalizedNames(NameDictionary nameDictionary, int[] nameIds) {
+        this.nameDictionary = nameDictionary;
+        this.nameIds = nameIds;
+    }
+
     public String getType() {
         return type;
     }
@@ -71,6 +147,82 @@ public class MapPack {
         this.size = size;
     }
 
+    public long getSubtreeSize() {
+        return subtreeSize;
+    }
+
+    public void setSubtreeSize(long subtreeSize) {
+        this.subtreeSize = subtreeSize;
+    }
+
+    public int getLeafCount() {
+        return leafCount;
+    }
+
+    public void setLeafCount(int leafCount) {
+        this.leafCount = leafCount;
+    }
+
+    /**
+     * @return true if the catalog delivered the bounding box of the package.
+     */
+    public boolean hasBounds() {
+        return !Double.isNaN(getLatMin()) && !Double.isNaN(getLonMin())
+                && !Double.isNaN(getLatMax()) && !Double.isNaN(getLonMax());
+    }
+
+    public double getLatMin() {
+        return latMin;
+    }
+
+    public double getLonMin() {
+        return lonMin;
+    }
+
+    public double getLatMax() {
+        return latMax;
+    }
+
+    public double getLonMax() {
+        return lonMax;
+    }
+
+    /**
+     * Sets the bounding box of the area the package covers.
+     * @param latMin = southern border in degrees.
+     * @param lonMin = western border in degrees.
+     * @param latMax = northern border in degrees.
+     * @param lonMax = eastern border in degrees.
+     */
+    public void setBounds(double latMin, double lonMin, double latMax, double lonMax) {
+        this.latMin = latMin;
+        this.lonMin = lonMin;
+        this.latMax = latMax;
+        this.lonMax = lonMax;
+    }
+
+    public float[] getPolygon() {
+        return polygon;
+    }
+
+    /**
+     * @param latitude = latitude of the point in degrees.
+     * @param longitude = longitude of the point in degrees.
+     * @return true if the package has no outline or the point lies within its outline.
+     */
+    public boolean isInOutline(double latitude, double longitude) {
+        return polygon == null || PackageBoundsIndex.isInPolygon(polygon, 0, polygon.length, latitude, longitude);
+    }
+
+    /**
+     * Sets the outline of the area the package covers, it has to lie within the bounding box.
+     * @param polygon = latitude and longitude of every vertex in degrees, null to use the
+     *                bounding box as outline.
+     */
+    public void setPolygon(float[] polygon) {
+        this.polygon = polygon;
+    }
+
     public List<String> getChildrenCodes() {
         return childrenCodes;
     }
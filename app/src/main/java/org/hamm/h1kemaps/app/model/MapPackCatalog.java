@@ -0,0 +1,46 @@
+package org.hamm.h1kemaps.app.model;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only catalog of the map packages and their hierarchy, implemented by the MapPackIndex of
+ * the parser and by the CompactCatalog the app keeps.
+ */
+public interface MapPackCatalog {
+
+    /**
+     * @return the localized names of the packages, null if only the English names are known.
+     */
+    NameDictionary getNameDictionary();
+
+    /**
+     * @return read only map of the packages by code.
+     */
+    Map<String, ? extends MapPackInfo> getPackMap();
+
+    /**
+     * @param code = package code.
+     * @return the package with the code or null.
+     */
+    MapPackInfo get(String code);
+
+    /**
+     * @return the top level packages in catalog order.
+     */
+    List<? extends MapPackInfo> getRoots();
+
+    /**
+     * Gets the download packages having the given parent code.
+     * @param parentCode = code of the superior region (e.g. DE for Germany) or null for the top level.
+     * @return read only list of the children in catalog order, empty if there are none.
+     */
+    List<? extends MapPackInfo> getChildren(String parentCode);
+
+    /**
+     * Gets the maps that make up a region: the topmost map packages of the package tree below it.
+     * @param region = a package, a map package is its own region.
+     * @return the packages to download in catalog order.
+     */
+    List<MapPackInfo> getRegionMaps(MapPackInfo region);
+}
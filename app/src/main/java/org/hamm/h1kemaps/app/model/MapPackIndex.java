@@ -0,0 +1,220 @@
+package org.hamm.h1kemaps.app.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index over the map package hierarchy. It holds the top level packages and the children of
+ * every package in catalog order, so navigating the hierarchy costs O(children) instead of a
+ * scan over the whole catalog.
+ */
+public class MapPackIndex implements MapPackCatalog {
+
+    /**
+     * Packages by code
+     */
+    private final Map<String, MapPack> packMap;
+
+    /**
+     * Packages without parent (continents) in catalog order
+     */
+    private final List<MapPack> roots;
+
+    /**
+     * Children by parent code in catalog order
+     */
+    private final Map<String, List<MapPack>> children;
+
+    /**
+     * Localized names of the packages, null if only the English names are known
+     */
+    private NameDictionary nameDictionary;
+
+    /**
+     * Creates the index from the parsed packages.
+     * @param packMap = packages by code, the children codes of every package have to be set.
+     * @param rootCodes = codes of the top level packages in catalog order. Packages without parent
+     *                  that are missing in this list are appended to the top level.
+     */
+    public MapPackIndex(Map<String, MapPack> packMap, List<String> rootCodes) {
+        this(packMap, rootCodes, true);
+    }
+
+    /**
+     * Creates the index from the parsed packages.
+     * @param packMap = packages by code, the children codes of every package have to be set.
+     * @param rootCodes = codes of the top level packages in catalog order. Packages without parent
+     *                  that are missing in this list are appended to the top level.
+     * @param aggregate = true to compute the subtree sizes and leaf counts of the packages,
+     *                  false if they are already set (e.g. read from a catalog snapshot).
+     */
+    public MapPackIndex(Map<String, MapPack> packMap, List<String> rootCodes, boolean aggregate) {
+        this.packMap = packMap;
+
+        List<MapPack> rootList = new ArrayList<MapPack>(rootCodes.size());
+        Set<String> rootCodeSet = new HashSet<String>(rootCodes);
+        for (String code : rootCodes) {
+            MapPack pack = packMap.get(code);
+            if (pack != null && pack.getParentCode() == null) {
+                rootList.add(pack);
+            }
+        }
+
+        Map<String, List<MapPack>> childMap = new HashMap<String, List<MapPack>>(packMap.size() * 4 / 3 + 1);
+        for (MapPack pack : packMap.values()) {
+            List<String> childrenCodes = pack.getChildrenCodes();
+            if (!childrenCodes.isEmpty()) {
+                List<MapPack> childList = new ArrayList<MapPack>(childrenCodes.size());
+                for (String childCode : childrenCodes) {
+                    MapPack child = packMap.get(childCode);
+                    if (child != null) {
+                        childList.add(child);
+                    }
+                }
+                childMap.put(pack.getCode(), Collections.unmodifiableList(childList));
+            }
+            if (pack.getParentCode() == null && !rootCodeSet.contains(pack.getCode())) {
+                rootList.add(pack);
+            }
+        }
+        this.roots = Collections.unmodifiableList(rootList);
+        this.children = childMap;
+        if (aggregate) {
+            aggregateSubtrees();
+        }
+    }
+
+    /**
+     * Sets the subtree size and leaf count of every package in one post-order pass over the
+     * hierarchy, so the list and the download planning can read them without walking the tree.
+     * The pass uses an explicit stack, a package is summed up after all of its children.
+     */
+    private void aggregateSubtrees() {
+        List<MapPack> stack = new ArrayList<MapPack>();
+        List<Integer> nextChild = new ArrayList<Integer>();
+        for (MapPack pack : packMap.values()) {
+            // the leaf count of an aggregated package is at least 1
+            pack.setLeafCount(0);
+        }
+        for (MapPack start : packMap.values()) {
+            if (start.getLeafCount() > 0) {
+                continue;
+            }
+            stack.add(start);
+            nextChild.add(0);
+            while (!stack.isEmpty()) {
+                int top = stack.size() - 1;
+                MapPack pack = stack.get(top);
+                List<MapPack> childList = getChildren(pack.getCode());
+                int next = nextChild.get(top);
+                if (next < childList.size()) {
+                    nextChild.set(top, next + 1);
+                    MapPack child = childList.get(next);
+                    if (child.getLeafCount() == 0 && !stack.contains(child)) {
+                        stack.add(child);
+                        nextChild.add(0);
+                    }
+                    continue;
+                }
+                long subtreeSize = pack.getSize();
+                int leafCount = 0;
+                for (MapPack child : childList) {
+                    subtreeSize += child.getSubtreeSize();
+                    leafCount += child.getLeafCount();
+                }
+                pack.setSubtreeSize(subtreeSize);
+                pack.setLeafCount(Math.max(leafCount, 1));
+                stack.remove(top);
+                nextChild.remove(top);
+            }
+        }
+    }
+
+    @Override
+    public NameDictionary getNameDictionary() {
+        return nameDictionary;
+    }
+
+    public void setNameDictionary(NameDictionary nameDictionary) {
+        this.nameDictionary = nameDictionary;
+    }
+
+    @Override
+    public Map<String, MapPack> getPackMap() {
+        return packMap;
+    }
+
+    /**
+     * @param code = package code.
+     * @return the package with the code or null.
+     */
+    @Override
+    public MapPack get(String code) {
+        return packMap.get(code);
+    }
+
+    /**
+     * @return the top level packages in catalog order.
+     */
+    @Override
+    public List<MapPack> getRoots() {
+        return roots;
+    }
+
+    /**
+     * Gets the download packages having the given parent code.
+     * @param parentCode = code of the superior region (e.g. DE for Germany) or null for the top level.
+     * @return read only list of the children in catalog order, empty if there are none.
+     */
+    @Override
+    public List<MapPack> getChildren(String parentCode) {
+        if (parentCode == null) {
+            return roots;
+        }
+        List<MapPack> childList = children.get(parentCode);
+        return childList != null ? childList : Collections.<MapPack>emptyList();
+    }
+
+    /**
+     * @param pack = package of the catalog.
+     * @return true if the package is a map of its own: countries and US states.
+     */
+    public static boolean isMapPackage(MapPackInfo pack) {
+        return (pack.getType().equals("country") || pack.getType().equals("state")) && !pack.getCode().equals("US");
+    }
+
+    @Override
+    public List<MapPackInfo> getRegionMaps(MapPackInfo region) {
+        return getRegionMaps(this, region);
+    }
+
+    /**
+     * Gets the maps that make up a region: the topmost map packages of the package tree below it.
+     * @param catalog = catalog of the region.
+     * @param region = a package, a map package is its own region.
+     * @return the packages to download in catalog order.
+     */
+    static List<MapPackInfo> getRegionMaps(MapPackCatalog catalog, MapPackInfo region) {
+        List<MapPackInfo> maps = new ArrayList<MapPackInfo>();
+        List<MapPackInfo> stack = new ArrayList<MapPackInfo>();
+        stack.add(region);
+        while (!stack.isEmpty()) {
+            MapPackInfo pack = stack.remove(stack.size() - 1);
+            if (isMapPackage(pack)) {
+                maps.add(pack);
+                continue;
+            }
+            List<? extends MapPackInfo> childList = catalog.getChildren(pack.getCode());
+            // reversed, so the maps come off the stack in catalog order
+            for (int i = childList.size() - 1; i >= 0; i--) {
+                stack.add(childList.get(i));
+            }
+        }
+        return maps;
+    }
+}
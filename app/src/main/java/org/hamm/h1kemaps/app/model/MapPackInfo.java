@@ -0,0 +1,90 @@
+package org.hamm.h1kemaps.app.model;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Read-only view of a map package. The parser fills MapPack objects, the app reads the packages
+ * of its catalog through this interface, so a catalog can hand out views that are not MapPacks.
+ */
+public interface MapPackInfo {
+
+    /**
+     * @return the package code (e.g. RO - for Romania).
+     */
+    String getCode();
+
+    /**
+     * @return the code of the parent package or null for a top level package.
+     */
+    String getParentCode();
+
+    /**
+     * @return the English name or null if the package has none.
+     */
+    String getName();
+
+    /**
+     * Gets the name of the package in the language of the locale.
+     * @param locale = locale of the user (e.g. Locale.GERMANY).
+     * @return the localized name or the English name if the catalog has no name in the language.
+     */
+    String getName(Locale locale);
+
+    /**
+     * @return the dictionary holding the localized names or null if only the English name is known.
+     */
+    NameDictionary getNameDictionary();
+
+    /**
+     * @param languageId = language ID of the name dictionary.
+     * @return ID of the name in the dictionary, NameDictionary.NO_NAME if the package has no name
+     * in the language.
+     */
+    int getNameId(int languageId);
+
+    /**
+     * @return the type of the package (continent, country, state, region, city).
+     */
+    String getType();
+
+    /**
+     * @return the size of the SKM file in the package.
+     */
+    long getSize();
+
+    /**
+     * @return size of the SKM files of the package and all packages below it.
+     */
+    long getSubtreeSize();
+
+    /**
+     * @return number of packages without children below the package, 1 if it has no children.
+     */
+    int getLeafCount();
+
+    /**
+     * @return true if the catalog delivered the bounding box of the package.
+     */
+    boolean hasBounds();
+
+    double getLatMin();
+
+    double getLonMin();
+
+    double getLatMax();
+
+    double getLonMax();
+
+    /**
+     * @param latitude = latitude of the point in degrees.
+     * @param longitude = longitude of the point in degrees.
+     * @return true if the package has no outline or the point lies within its outline.
+     */
+    boolean isInOutline(double latitude, double longitude);
+
+    /**
+     * @return read only codes of the children packages in catalog order.
+     */
+    List<String> getChildrenCodes();
+}
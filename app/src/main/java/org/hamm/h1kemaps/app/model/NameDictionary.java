@@ -0,0 +1,104 @@
+package org.hamm.h1kemaps.app.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dictionary of the localized package names of a catalog. Every distinct name is stored once
+ * and identified by an int ID, every language code (en, de, ...) by a small language ID. A
+ * package keeps a table with one name ID per language ID, so "Berlin" is stored once although
+ * it is the name of the package in most languages.
+ */
+public class NameDictionary {
+
+    /**
+     * Marks a language without name in the name table of a package
+     */
+    public static final int NO_NAME = -1;
+
+    private final List<String> languages = new ArrayList<String>();
+
+    private final Map<String, Integer> languageIds = new HashMap<String, Integer>();
+
+    private final List<String> names = new ArrayList<String>();
+
+    private final Map<String, Integer> nameIds = new HashMap<String, Integer>();
+
+    /**
+     * @param language = language code as used in the catalog (e.g. de).
+     * @return the ID of the language, the language is added if it is new.
+     */
+    public int addLanguage(String language) {
+        Integer id = languageIds.get(language);
+        if (id == null) {
+            id = languages.size();
+            languages.add(language);
+            languageIds.put(language, id);
+        }
+        return id;
+    }
+
+    /**
+     * @param language = language code (e.g. de).
+     * @return the ID of the language or -1 if no package has a name in the language.
+     */
+    public int getLanguageId(String language) {
+        Integer id = languageIds.get(language);
+        return id != null ? id : -1;
+    }
+
+    public String getLanguage(int languageId) {
+        return languages.get(languageId);
+    }
+
+    public int getLanguageCount() {
+        return languages.size();
+    }
+
+    /**
+     * @param name = package name.
+     * @return the ID of the name, the name is added if it is new.
+     */
+    public int addName(String name) {
+        Integer id = nameIds.get(name);
+        if (id == null) {
+            id = names.size();
+            names.add(name);
+            nameIds.put(name, id);
+        }
+        return id;
+    }
+
+    public String getName(int nameId) {
+        return names.get(nameId);
+    }
+
+    /**
+     * @param name = package name.
+     * @return the instance of the name held by the dictionary or the given name if it is not part of it.
+     */
+    public String intern(String name) {
+        Integer id = name != null ? nameIds.get(name) : null;
+        return id != null ? names.get(id) : name;
+    }
+
+    public int getNameCount() {
+        return names.size();
+    }
+
+    /**
+     * Gets the name of a package in a language.
+     * @param packageNameIds = name ID per language ID of the package.
+     * @param language = language code (e.g. de).
+     * @return the name or null if the package has no name in the language.
+     */
+    public String getName(int[] packageNameIds, String language) {
+        int languageId = getLanguageId(language);
+        if (languageId < 0 || languageId >= packageNameIds.length || packageNameIds[languageId] == NO_NAME) {
+            return null;
+        }
+        return names.get(packageNameIds[languageId]);
+    }
+}
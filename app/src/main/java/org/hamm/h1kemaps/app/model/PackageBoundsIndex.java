@@ -0,0 +1,268 @@
+package org.hamm.h1kemaps.app.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Static R-tree over the bounding boxes of map packages. The tree is packed once with the
+ * Sort-Tile-Recursive method: the packages are sorted by the longitude of their centers, cut into
+ * vertical slices and sorted by latitude within every slice, so every leaf holds NODE_CAPACITY
+ * packages that lie close together. The upper levels group the consecutive nodes of the level
+ * below. All boxes are kept in one double[] per level, a query touches no objects but the
+ * packages it returns. Packages without bounding box are left out.
+ *
+ * Besides the packages that meet a box the index answers which packages cover a point or a box.
+ * A package covers a point within its bounding box and, if it has an outline, within the outline.
+ * The covering packages are returned smallest first, so the first one is the most detailed map
+ * of the position.
+ */
+public class PackageBoundsIndex {
+
+    /**
+     * Number of children of a node
+     */
+    private static final int NODE_CAPACITY = 16;
+
+    /**
+     * Packages in the order of the leaf level
+     */
+    private final MapPackInfo[] packs;
+
+    /**
+     * Boxes per level, level 0 holds the packages and the last level the root. Entry i of a level
+     * is boxes[level][4 * i .. 4 * i + 4) (latMin, lonMin, latMax, lonMax), its children are the
+     * entries NODE_CAPACITY * i .. NODE_CAPACITY * (i + 1) of the level below.
+     */
+    private final double[][] boxes;
+
+    /**
+     * Builds the index.
+     * @param packages = packages to index, packages without bounding box are skipped.
+     */
+    public PackageBoundsIndex(Collection<? extends MapPackInfo> packages) {
+        List<MapPackInfo> bounded = new ArrayList<MapPackInfo>(packages.size());
+        for (MapPackInfo pack : packages) {
+            if (pack.hasBounds()) {
+                bounded.add(pack);
+            }
+        }
+        packs = bounded.toArray(new MapPackInfo[bounded.size()]);
+        sortTiles(packs);
+
+        List<double[]> levels = new ArrayList<double[]>();
+        double[] level = new double[packs.length * 4];
+        for (int i = 0; i < packs.length; i++) {
+            level[4 * i] = packs[i].getLatMin();
+            level[4 * i + 1] = packs[i].getLonMin();
+            level[4 * i + 2] = packs[i].getLatMax();
+            level[4 * i + 3] = packs[i].getLonMax();
+        }
+        levels.add(level);
+        while (level.length > 4) {
+            level = group(level);
+            levels.add(level);
+        }
+        boxes = levels.toArray(new double[levels.size()][]);
+    }
+
+    /**
+     * @return number of indexed packages.
+     */
+    public int size() {
+        return packs.length;
+    }
+
+    /**
+     * Collects the packages whose bounding box meets the box. The order of the packages is
+     * the order of the leaves, not the catalog order.
+     * @param latMin = southern border in degrees.
+     * @param lonMin = western border in degrees.
+     * @param latMax = northern border in degrees.
+     * @param lonMax = eastern border in degrees.
+     * @param result = list the packages are added to.
+     */
+    public void search(double latMin, double lonMin, double latMax, double lonMax, List<MapPackInfo> result) {
+        if (packs.length == 0) {
+            return;
+        }
+        int[] levels = new int[boxes.length * NODE_CAPACITY];
+        int[] entries = new int[boxes.length * NODE_CAPACITY];
+        int top = 0;
+        levels[top] = boxes.length - 1;
+        entries[top] = 0;
+        top++;
+        while (top > 0) {
+            top--;
+            int level = levels[top];
+            int entry = entries[top];
+            double[] box = boxes[level];
+            if (box[4 * entry] > latMax || box[4 * entry + 2] < latMin
+                    || box[4 * entry + 1] > lonMax || box[4 * entry + 3] < lonMin) {
+                continue;
+            }
+            if (level == 0) {
+                result.add(packs[entry]);
+                continue;
+            }
+            int first = entry * NODE_CAPACITY;
+            int end = Math.min(first + NODE_CAPACITY, boxes[level - 1].length / 4);
+            // pushed in reverse, so the children are visited in order
+            for (int child = end - 1; child >= first; child--) {
+                levels[top] = level - 1;
+                entries[top] = child;
+                top++;
+            }
+        }
+    }
+
+    /**
+     * @param latitude = latitude of the point in degrees.
+     * @param longitude = longitude of the point in degrees.
+     * @return the packages that cover the point, smallest first.
+     */
+    public List<MapPackInfo> findCovering(double latitude, double longitude) {
+        return findCovering(latitude, longitude, latitude, longitude);
+    }
+
+    /**
+     * @param latMin = southern border in degrees.
+     * @param lonMin = western border in degrees.
+     * @param latMax = northern border in degrees.
+     * @param lonMax = eastern border in degrees.
+     * @return the packages that cover the whole box, smallest first. An outline covers the box
+     * if it holds all corners of the box.
+     */
+    public List<MapPackInfo> findCovering(double latMin, double lonMin, double latMax, double lonMax) {
+        List<MapPackInfo> candidates = new ArrayList<MapPackInfo>();
+        search(latMin, lonMin, latMax, lonMax, candidates);
+        List<MapPackInfo> covering = new ArrayList<MapPackInfo>(candidates.size());
+        for (MapPackInfo pack : candidates) {
+            if (pack.getLatMin() > latMin || pack.getLonMin() > lonMin
+                    || pack.getLatMax() < latMax || pack.getLonMax() < lonMax) {
+                continue;
+            }
+            if (pack.isInOutline(latMin, lonMin) && pack.isInOutline(latMin, lonMax)
+                    && pack.isInOutline(latMax, lonMin) && pack.isInOutline(latMax, lonMax)) {
+                covering.add(pack);
+            }
+        }
+        Collections.sort(covering, AREA_ORDER);
+        return covering;
+    }
+
+    /**
+     * @param pack = package with bounding box.
+     * @param latitude = latitude of the point in degrees.
+     * @param longitude = longitude of the point in degrees.
+     * @return true if the package covers the point.
+     */
+    public static boolean covers(MapPackInfo pack, double latitude, double longitude) {
+        if (pack.getLatMin() > latitude || pack.getLatMax() < latitude
+                || pack.getLonMin() > longitude || pack.getLonMax() < longitude) {
+            return false;
+        }
+        return pack.isInOutline(latitude, longitude);
+    }
+
+    /**
+     * Tests the point against the outline with the even-odd rule: a ray from the point to the
+     * east crosses the edges of the outline an odd number of times if the point lies within.
+     * @param polygon = latitude and longitude of every vertex.
+     * @param start = index of the latitude of the first vertex.
+     * @param end = index behind the longitude of the last vertex.
+     */
+    static boolean isInPolygon(float[] polygon, int start, int end, double latitude, double longitude) {
+        boolean inside = false;
+        for (int i = start, j = end - 2; i < end; j = i, i += 2) {
+            double latI = polygon[i];
+            double lonI = polygon[i + 1];
+            double latJ = polygon[j];
+            double lonJ = polygon[j + 1];
+            if ((latI > latitude) != (latJ > latitude)
+                    && longitude < lonI + (latitude - latI) * (lonJ - lonI) / (latJ - latI)) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    /**
+     * @return the area of the bounding box in square degrees, scaled to the width at its center.
+     */
+    private static double getArea(MapPackInfo pack) {
+        double width = (pack.getLonMax() - pack.getLonMin())
+                * Math.cos(Math.toRadians((pack.getLatMin() + pack.getLatMax()) / 2));
+        return width * (pack.getLatMax() - pack.getLatMin());
+    }
+
+    /**
+     * Orders packages by the area of their bounding boxes, smallest first
+     */
+    private static final Comparator<MapPackInfo> AREA_ORDER = new Comparator<MapPackInfo>() {
+
+        @Override
+        public int compare(MapPackInfo first, MapPackInfo second) {
+            return Double.compare(getArea(first), getArea(second));
+        }
+    };
+
+    /**
+     * Orders the packages so that every run of NODE_CAPACITY packages forms a compact leaf.
+     */
+    private static void sortTiles(MapPackInfo[] packs) {
+        Arrays.sort(packs, new Comparator<MapPackInfo>() {
+
+            @Override
+            public int compare(MapPackInfo first, MapPackInfo second) {
+                return Double.compare(first.getLonMin() + first.getLonMax(),
+                        second.getLonMin() + second.getLonMax());
+            }
+        });
+        int leafCount = (packs.length + NODE_CAPACITY - 1) / NODE_CAPACITY;
+        int sliceSize = (int) Math.ceil(Math.sqrt(leafCount)) * NODE_CAPACITY;
+        Comparator<MapPackInfo> latitudeOrder = new Comparator<MapPackInfo>() {
+
+            @Override
+            public int compare(MapPackInfo first, MapPackInfo second) {
+                return Double.compare(first.getLatMin() + first.getLatMax(),
+                        second.getLatMin() + second.getLatMax());
+            }
+        };
+        for (int start = 0; start < packs.length; start += sliceSize) {
+            Arrays.sort(packs, start, Math.min(start + sliceSize, packs.length), latitudeOrder);
+        }
+    }
+
+    /**
+     * @param children = boxes of a level.
+     * @return the boxes of the level above, one per NODE_CAPACITY children.
+     */
+    private static double[] group(double[] children) {
+        int childCount = children.length / 4;
+        int count = (childCount + NODE_CAPACITY - 1) / NODE_CAPACITY;
+        double[] nodes = new double[count * 4];
+        for (int i = 0; i < count; i++) {
+            int first = i * NODE_CAPACITY;
+            int end = Math.min(first + NODE_CAPACITY, childCount);
+            double latMin = Double.POSITIVE_INFINITY;
+            double lonMin = Double.POSITIVE_INFINITY;
+            double latMax = Double.NEGATIVE_INFINITY;
+            double lonMax = Double.NEGATIVE_INFINITY;
+            for (int child = first; child < end; child++) {
+                latMin = Math.min(latMin, children[4 * child]);
+                lonMin = Math.min(lonMin, children[4 * child + 1]);
+                latMax = Math.max(latMax, children[4 * child + 2]);
+                lonMax = Math.max(lonMax, children[4 * child + 3]);
+            }
+            nodes[4 * i] = latMin;
+            nodes[4 * i + 1] = lonMin;
+            nodes[4 * i + 2] = latMax;
+            nodes[4 * i + 3] = lonMax;
+        }
+        return nodes;
+    }
+}
@@ -0,0 +1,310 @@
+package org.hamm.h1kemaps.app.util;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * HTTP cache for the catalog (Maps.xml). The body of the last response is stored on the device
+ * together with its validators (ETag and Last-Modified). The next fetch of the same URL is sent
+ * as conditional request, so a catalog that did not change on the server is answered with
+ * 304 Not Modified and no payload is transferred.
+ */
+public class CatalogHttpCache {
+
+    private static final String HEADER_ETAG = "ETag";
+
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private static final String KEY_URL = "url";
+
+    private static final String KEY_ETAG = "etag";
+
+    private static final String KEY_LAST_MODIFIED = "lastModified";
+
+    /**
+     * Directory holding the cached bodies and their validators
+     */
+    private final File directory;
+
+    private final HttpClient httpClient;
+
+    /**
+     * Creates a cache that stores its files in the given directory.
+     * @param directory = cache directory, created if it does not exist.
+     */
+    public CatalogHttpCache(String directory) {
+        this(directory, HttpClients.create(1));
+    }
+
+    /**
+     * Creates a cache that stores its files in the given directory.
+     * @param directory = cache directory, created if it does not exist.
+     * @param httpClient = client used for the requests, usually the one the app shares.
+     */
+    public CatalogHttpCache(String directory, HttpClient httpClient) {
+        this.directory = new File(directory);
+        this.httpClient = httpClient;
+    }
+
+    /**
+     * Fetches the resource at the URL. If a copy is cached the request is conditional.
+     * The returned body has to be closed by the caller. A fresh body is written to the cache
+     * while it is read, it replaces the cached copy once it was read completely.
+     * @param url = URL of the resource.
+     * @return the response, never null.
+     * @throws IOException = if the request failed or the server answered with an unexpected status.
+     */
+    public Response fetch(String url) throws IOException {
+        File bodyFile = getBodyFile(url);
+        File metaFile = getMetaFile(url);
+        Properties meta = bodyFile.isFile() ? readMeta(metaFile) : null;
+        if (meta != null && !url.equals(meta.getProperty(KEY_URL))) {
+            meta = null;
+        }
+
+        HttpGet request = new HttpGet(url);
+        if (meta != null) {
+            String etag = meta.getProperty(KEY_ETAG);
+            String lastModified = meta.getProperty(KEY_LAST_MODIFIED);
+            if (etag != null) {
+                request.setHeader(HEADER_IF_NONE_MATCH, etag);
+            }
+            if (lastModified != null) {
+                request.setHeader(HEADER_IF_MODIFIED_SINCE, lastModified);
+            }
+        }
+
+        HttpResponse response = httpClient.execute(request);
+        int status = response.getStatusLine().getStatusCode();
+        HttpEntity entity = response.getEntity();
+
+        if (status == HttpStatus.SC_NOT_MODIFIED && meta != null) {
+            if (entity != null) {
+                entity.consumeContent();
+            }
+            return new Response(true, new FileInputStream(bodyFile));
+        }
+        if (status != HttpStatus.SC_OK || entity == null) {
+            if (entity != null) {
+                entity.consumeContent();
+            }
+            throw new IOException("Unexpected response " + status + " for " + url);
+        }
+
+        Properties newMeta = new Properties();
+        newMeta.setProperty(KEY_URL, url);
+        Header etag = response.getFirstHeader(HEADER_ETAG);
+        if (etag != null) {
+            newMeta.setProperty(KEY_ETAG, etag.getValue());
+        }
+        Header lastModified = response.getFirstHeader(HEADER_LAST_MODIFIED);
+        if (lastModified != null) {
+            newMeta.setProperty(KEY_LAST_MODIFIED, lastModified.getValue());
+        }
+
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        InputStream content = entity.getContent();
+        if (newMeta.size() == 1) {
+            // nothing to revalidate with - the body is not cached
+            return new Response(false, content);
+        }
+        return new Response(false, new CachingInputStream(content, bodyFile, metaFile, newMeta));
+    }
+
+    /**
+     * Deletes all cached bodies and validators.
+     */
+    public void clear() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private File getBodyFile(String url) {
+        return new File(directory, fileName(url) + ".body");
+    }
+
+    private File getMetaFile(String url) {
+        return new File(directory, fileName(url) + ".meta");
+    }
+
+    private static String fileName(String url) {
+        return "catalog_" + Integer.toHexString(url.hashCode());
+    }
+
+    private static Properties readMeta(File metaFile) {
+        if (!metaFile.isFile()) {
+            return null;
+        }
+        InputStream input = null;
+        try {
+            input = new FileInputStream(metaFile);
+            Properties meta = new Properties();
+            meta.load(input);
+            return meta;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Result of a fetch.
+     */
+    public static class Response {
+
+        /**
+         * True if the server answered 304 and the body comes from the cache
+         */
+        private final boolean notModified;
+
+        private final InputStream body;
+
+        Response(boolean notModified, InputStream body) {
+            this.notModified = notModified;
+            this.body = body;
+        }
+
+        public boolean isNotModified() {
+            return notModified;
+        }
+
+        public InputStream getBody() {
+            return body;
+        }
+
+        public void close() {
+            try {
+                body.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Stream that copies everything read from the network into a temporary file. When the end of
+     * the stream is reached the temporary file replaces the cached body and the validators are
+     * stored. If the stream is closed early the temporary file is dropped.
+     */
+    private static class CachingInputStream extends FilterInputStream {
+
+        private final File bodyFile;
+
+        private final File metaFile;
+
+        private final File tempFile;
+
+        private final Properties meta;
+
+        private OutputStream copy;
+
+        private boolean complete;
+
+        CachingInputStream(InputStream in, File bodyFile, File metaFile, Properties meta) throws IOException {
+            super(in);
+            this.bodyFile = bodyFile;
+            this.metaFile = metaFile;
+            this.meta = meta;
+            this.tempFile = new File(bodyFile.getPath() + ".tmp");
+            this.copy = new FileOutputStream(tempFile);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                copy.write(b);
+            } else {
+                commit();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                copy.write(buffer, offset, read);
+            } else if (read < 0) {
+                commit();
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            // skipped bytes would be missing in the copy
+            byte[] buffer = new byte[(int) Math.min(count, 8192)];
+            int read = read(buffer, 0, buffer.length);
+            return read < 0 ? 0 : read;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (!complete) {
+                    copy.close();
+                    tempFile.delete();
+                }
+            }
+        }
+
+        private void commit() throws IOException {
+            if (complete) {
+                return;
+            }
+            complete = true;
+            copy.close();
+            // the old validators must never describe the new body
+            metaFile.delete();
+            if (!tempFile.renameTo(bodyFile)) {
+                tempFile.delete();
+                return;
+            }
+            OutputStream output = new FileOutputStream(metaFile);
+            try {
+                meta.store(output, null);
+            } finally {
+                output.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.hamm.h1kemaps.app.util;
+
+import org.hamm.h1kemaps.app.model.MapPackInfo;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the searches the user types on a background thread, one at a time. Only the last query
+ * counts: a search that is still waiting is cancelled when the next one starts, and the results of
+ * a search that was overtaken while it ran are dropped.
+ */
+public class CatalogSearch {
+
+    /**
+     * Receives the results of the last query.
+     */
+    public interface OnSearchResultListener {
+
+        /**
+         * Called on the search thread. The results are still current as long as
+         * isCurrent(generation) is true.
+         * @param generation = generation of the query.
+         * @param results = the matching packages, best match first.
+         */
+        void onSearchResult(int generation, List<MapPackInfo> results);
+    }
+
+    private final ExecutorService executor;
+
+    /**
+     * Search that was started last, it is cancelled when the next one starts
+     */
+    private Future<?> pendingSearch;
+
+    /**
+     * Incremented for every query, results of older queries are dropped
+     */
+    private volatile int generation;
+
+    /**
+     * @param executor = single thread executor running the searches.
+     */
+    public CatalogSearch(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Starts a search and drops the one before it.
+     * @param search = runs the query, returns null if there is nothing to search in.
+     * @param listener = receives the results unless a newer query was started meanwhile.
+     * @return the generation of the query.
+     */
+    public synchronized int search(final Callable<List<MapPackInfo>> search, final OnSearchResultListener listener) {
+        final int started = cancel();
+        pendingSearch = executor.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                if (started != generation) {
+                    return;
+                }
+                List<MapPackInfo> results;
+                try {
+                    results = search.call();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    return;
+                }
+                if (results != null && started == generation) {
+                    listener.onSearchResult(started, results);
+                }
+            }
+        });
+        return started;
+    }
+
+    /**
+     * Drops the running and the waiting search, e.g. when the query was cleared.
+     * @return the new generation.
+     */
+    public synchronized int cancel() {
+        if (pendingSearch != null) {
+            pendingSearch.cancel(false);
+            pendingSearch = null;
+        }
+        return ++generation;
+    }
+
+    /**
+     * @param generation = generation of a query.
+     * @return true if no query was started or cancelled after it.
+     */
+    public boolean isCurrent(int generation) {
+        return generation == this.generation;
+    }
+}
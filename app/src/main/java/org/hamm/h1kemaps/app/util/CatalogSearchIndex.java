@@ -0,0 +1,477 @@
+package org.hamm.h1kemaps.app.util;
+
+import org.hamm.h1kemaps.app.model.MapPackCatalog;
+import org.hamm.h1kemaps.app.model.MapPackInfo;
+import org.hamm.h1kemaps.app.model.NameDictionary;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Type-ahead search over the names (in all languages of the catalog) and codes of the map
+ * packages. The index is built once from the parsed catalog and holds
+ * - a sorted table of prefix keys (the whole names, every word of the names and the code), so all
+ *   packages with a name or word starting with the query are one binary search away and
+ * - a trigram index (every 3 characters of a name to the packages containing them), so a query
+ *   that appears inside a name ("varia" for Bavaria) only looks at the packages sharing its rarest trigram.
+ * Short queries like "b" match a large part of the catalog, so the best results of every prefix
+ * that is shared by many keys are ranked when the index is built.
+ *
+ * Names and queries are compared in lower case and without accents, so a query typed without
+ * accents finds the names written with them.
+ */
+public class CatalogSearchIndex {
+
+    private static final int TRIGRAM_LENGTH = 3;
+
+    /**
+     * Prefixes shared by more keys than this get their results ranked in advance
+     */
+    private static final int FREQUENT_PREFIX_KEYS = 512;
+
+    /**
+     * Number of results ranked in advance for a frequent prefix
+     */
+    private static final int RANKED_RESULTS = 64;
+
+    /**
+     * Match quality, the higher the better
+     */
+    private static final int SCORE_CODE = 5;
+
+    private static final int SCORE_NAME = 4;
+
+    private static final int SCORE_NAME_PREFIX = 3;
+
+    private static final int SCORE_WORD_PREFIX = 2;
+
+    private static final int SCORE_SUBSTRING = 1;
+
+    private static final Pattern ACCENTS = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+
+    private static final Pattern WORD_SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    /**
+     * Kinds of prefix keys
+     */
+    private static final byte KEY_CODE = 0;
+
+    private static final byte KEY_NAME = 1;
+
+    private static final byte KEY_WORD = 2;
+
+    /**
+     * Separates the names of a package in its search text, it never appears in a query
+     */
+    private static final char NAME_SEPARATOR = '\n';
+
+    /**
+     * Packages by search ID
+     */
+    private final MapPackInfo[] packs;
+
+    /**
+     * Normalized English name of every package
+     */
+    private final String[] names;
+
+    /**
+     * Normalized names of every package in all languages, separated by NAME_SEPARATOR
+     */
+    private final String[] searchTexts;
+
+    /**
+     * Normalized code of every package
+     */
+    private final String[] codes;
+
+    /**
+     * Depth of every package in the hierarchy, 0 for continents
+     */
+    private final byte[] depths;
+
+    /**
+     * Sorted prefix keys and the package each key belongs to
+     */
+    private final String[] prefixKeys;
+
+    private final int[] prefixPacks;
+
+    private final byte[] prefixKinds;
+
+    /**
+     * Ascending package IDs by trigram
+     */
+    private final Map<String, int[]> trigrams;
+
+    /**
+     * Best RANKED_RESULTS package IDs of the frequent prefixes
+     */
+    private final Map<String, int[]> frequentPrefixes = new HashMap<String, int[]>();
+
+    /**
+     * Best score of every package in the running query, valid if the stamp matches the query
+     */
+    private final int[] scores;
+
+    private final int[] stamps;
+
+    private int stamp;
+
+    /**
+     * Builds the index. This takes a while for a big catalog and should not run on the UI thread.
+     * @param packIndex = parsed packages and their hierarchy.
+     */
+    public CatalogSearchIndex(MapPackCatalog packIndex) {
+        Map<String, ? extends MapPackInfo> packMap = packIndex.getPackMap();
+        int count = packMap.size();
+        packs = packMap.values().toArray(new MapPackInfo[count]);
+        names = new String[count];
+        searchTexts = new String[count];
+        codes = new String[count];
+        depths = new byte[count];
+
+        final List<String> keys = new ArrayList<String>(count * 3);
+        List<Integer> keyPacks = new ArrayList<Integer>(count * 3);
+        List<Byte> keyKinds = new ArrayList<Byte>(count * 3);
+        Map<String, IntList> trigramLists = new HashMap<String, IntList>();
+        // the same localized name is normalized only once
+        Map<String, String> normalizedNames = new HashMap<String, String>();
+
+        for (int id = 0; id < count; id++) {
+            MapPackInfo pack = packs[id];
+            names[id] = pack.getName() != null ? normalize(pack.getName()) : "";
+            codes[id] = normalize(pack.getCode());
+            depths[id] = (byte) Math.min(depth(packMap, pack), Byte.MAX_VALUE);
+
+            List<String> packNames = new ArrayList<String>();
+            if (names[id].length() > 0) {
+                packNames.add(names[id]);
+            }
+            NameDictionary nameDictionary = pack.getNameDictionary();
+            int languageCount = nameDictionary != null ? nameDictionary.getLanguageCount() : 0;
+            for (int languageId = 0; languageId < languageCount; languageId++) {
+                int nameId = pack.getNameId(languageId);
+                if (nameId == NameDictionary.NO_NAME) {
+                    continue;
+                }
+                String localizedName = nameDictionary.getName(nameId);
+                String normalizedName = normalizedNames.get(localizedName);
+                if (normalizedName == null) {
+                    normalizedName = normalize(localizedName);
+                    normalizedNames.put(localizedName, normalizedName);
+                }
+                if (normalizedName.length() > 0 && !packNames.contains(normalizedName)) {
+                    packNames.add(normalizedName);
+                }
+            }
+
+            List<String> packKeys = new ArrayList<String>();
+            List<Byte> packKinds = new ArrayList<Byte>();
+            packKeys.add(codes[id]);
+            packKinds.add(KEY_CODE);
+            for (String name : packNames) {
+                if (!packKeys.contains(name)) {
+                    packKeys.add(name);
+                    packKinds.add(KEY_NAME);
+                }
+            }
+            for (String name : packNames) {
+                for (String word : WORD_SEPARATORS.split(name)) {
+                    if (word.length() > 0 && !packKeys.contains(word)) {
+                        packKeys.add(word);
+                        packKinds.add(KEY_WORD);
+                    }
+                }
+            }
+            keys.addAll(packKeys);
+            keyKinds.addAll(packKinds);
+            for (int i = 0; i < packKeys.size(); i++) {
+                keyPacks.add(id);
+            }
+
+            StringBuilder searchText = new StringBuilder();
+            for (String name : packNames) {
+                if (searchText.length() > 0) {
+                    searchText.append(NAME_SEPARATOR);
+                }
+                searchText.append(name);
+            }
+            searchTexts[id] = packNames.size() == 1 ? names[id] : searchText.toString();
+
+            String text = searchTexts[id];
+            for (int i = 0; i + TRIGRAM_LENGTH <= text.length(); i++) {
+                String trigram = text.substring(i, i + TRIGRAM_LENGTH);
+                IntList ids = trigramLists.get(trigram);
+                if (ids == null) {
+                    ids = new IntList();
+                    trigramLists.put(trigram, ids);
+                }
+                ids.addOnce(id);
+            }
+        }
+
+        Integer[] order = new Integer[keys.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+
+            @Override
+            public int compare(Integer first, Integer second) {
+                return keys.get(first).compareTo(keys.get(second));
+            }
+        });
+        prefixKeys = new String[order.length];
+        prefixPacks = new int[order.length];
+        prefixKinds = new byte[order.length];
+        for (int i = 0; i < order.length; i++) {
+            prefixKeys[i] = keys.get(order[i]);
+            prefixPacks[i] = keyPacks.get(order[i]);
+            prefixKinds[i] = keyKinds.get(order[i]);
+        }
+
+        trigrams = new HashMap<String, int[]>(trigramLists.size() * 4 / 3 + 1);
+        for (Map.Entry<String, IntList> entry : trigramLists.entrySet()) {
+            trigrams.put(entry.getKey(), entry.getValue().toArray());
+        }
+
+        scores = new int[count];
+        stamps = new int[count];
+        rankFrequentPrefixes();
+    }
+
+    /**
+     * Ranks the results of all prefixes that are shared by more than FREQUENT_PREFIX_KEYS keys,
+     * one prefix length after the other until no prefix is that frequent anymore. The keys with a
+     * common prefix are adjacent in the sorted key table.
+     */
+    private void rankFrequentPrefixes() {
+        boolean frequent = true;
+        for (int length = 1; frequent; length++) {
+            frequent = false;
+            int start = 0;
+            while (start < prefixKeys.length) {
+                if (prefixKeys[start].length() < length) {
+                    start++;
+                    continue;
+                }
+                String prefix = prefixKeys[start].substring(0, length);
+                int end = start + 1;
+                while (end < prefixKeys.length && prefixKeys[end].startsWith(prefix)) {
+                    end++;
+                }
+                if (end - start > FREQUENT_PREFIX_KEYS) {
+                    frequent = true;
+                    int[] ranked = rankedMatches(prefix, RANKED_RESULTS);
+                    if (ranked.length == RANKED_RESULTS) {
+                        frequentPrefixes.put(prefix, ranked);
+                    }
+                }
+                start = end;
+            }
+        }
+    }
+
+    private static int depth(Map<String, ? extends MapPackInfo> packMap, MapPackInfo pack) {
+        int depth = 0;
+        for (MapPackInfo parent = packMap.get(pack.getParentCode()); parent != null && depth < packMap.size();
+             parent = packMap.get(parent.getParentCode())) {
+            depth++;
+        }
+        return depth;
+    }
+
+    /**
+     * Lower case without accents and surrounding white space.
+     */
+    static String normalize(String text) {
+        String lowerCase = text.trim().toLowerCase(Locale.US);
+        for (int i = 0; i < lowerCase.length(); i++) {
+            if (lowerCase.charAt(i) > 0x7F) {
+                String decomposed = Normalizer.normalize(lowerCase, Normalizer.Form.NFD);
+                return ACCENTS.matcher(decomposed).replaceAll("");
+            }
+        }
+        // plain ASCII has no accents
+        return lowerCase;
+    }
+
+    /**
+     * Searches the packages whose name or code matches the query. Calls are serialized, the
+     * index reuses its score tables between queries.
+     * @param query = text typed by the user.
+     * @param limit = maximum number of results.
+     * @return the matching packages, best match first: exact code, exact name, name prefix,
+     * word prefix and name substring. Equal matches are ordered higher level first, then by
+     * shorter name.
+     */
+    public synchronized List<MapPackInfo> search(String query, int limit) {
+        String normalized = normalize(query);
+        if (normalized.length() == 0 || limit <= 0) {
+            return Collections.emptyList();
+        }
+        int[] ids = frequentPrefixes.get(normalized);
+        if (ids == null || ids.length < limit) {
+            ids = rankedMatches(normalized, limit);
+        }
+        int size = Math.min(ids.length, limit);
+        List<MapPackInfo> results = new ArrayList<MapPackInfo>(size);
+        for (int i = 0; i < size; i++) {
+            results.add(packs[ids[i]]);
+        }
+        return results;
+    }
+
+    /**
+     * Scores all keys starting with the query and, if that does not give enough results, the
+     * names containing the query.
+     * @param normalized = normalized query.
+     * @param limit = maximum number of results.
+     * @return IDs of the best ranked packages, best first.
+     */
+    private int[] rankedMatches(String normalized, int limit) {
+        stamp++;
+        IntList candidates = new IntList();
+
+        int first = lowerBound(normalized);
+        for (int i = first; i < prefixKeys.length && prefixKeys[i].startsWith(normalized); i++) {
+            int id = prefixPacks[i];
+            boolean exact = prefixKeys[i].length() == normalized.length();
+            int score;
+            if (prefixKinds[i] == KEY_CODE && exact) {
+                score = SCORE_CODE;
+            } else if (prefixKinds[i] == KEY_NAME) {
+                score = exact ? SCORE_NAME : SCORE_NAME_PREFIX;
+            } else {
+                score = SCORE_WORD_PREFIX;
+            }
+            offer(id, score, candidates);
+        }
+
+        // a substring match never ranks above a prefix match
+        if (candidates.size < limit && normalized.length() >= TRIGRAM_LENGTH) {
+            int[] smallest = null;
+            for (int i = 0; i + TRIGRAM_LENGTH <= normalized.length(); i++) {
+                int[] ids = trigrams.get(normalized.substring(i, i + TRIGRAM_LENGTH));
+                if (ids == null) {
+                    smallest = null;
+                    break;
+                }
+                if (smallest == null || ids.length < smallest.length) {
+                    smallest = ids;
+                }
+            }
+            if (smallest != null) {
+                for (int id : smallest) {
+                    if (stamps[id] != stamp && searchTexts[id].contains(normalized)) {
+                        offer(id, SCORE_SUBSTRING, candidates);
+                    }
+                }
+            }
+        }
+
+        return best(candidates, limit);
+    }
+
+    private void offer(int id, int score, IntList candidates) {
+        if (stamps[id] != stamp) {
+            stamps[id] = stamp;
+            scores[id] = score;
+            candidates.add(id);
+        } else if (score > scores[id]) {
+            scores[id] = score;
+        }
+    }
+
+    /**
+     * Selects the best ranked candidates without sorting all of them.
+     */
+    private int[] best(IntList candidates, int limit) {
+        int[] top = new int[Math.min(limit, candidates.size)];
+        long[] topRanks = new long[top.length];
+        int size = 0;
+        for (int i = 0; i < candidates.size; i++) {
+            int id = candidates.values[i];
+            long rank = rank(id);
+            if (size == top.length && rank <= topRanks[size - 1]) {
+                continue;
+            }
+            int position = size < top.length ? size++ : size - 1;
+            while (position > 0 && topRanks[position - 1] < rank) {
+                top[position] = top[position - 1];
+                topRanks[position] = topRanks[position - 1];
+                position--;
+            }
+            top[position] = id;
+            topRanks[position] = rank;
+        }
+        return top;
+    }
+
+    /**
+     * Ranking of a scored candidate, the higher the better: score, then the inverted depth, then
+     * the inverted name length and the inverted ID, so equal ranks keep a stable order.
+     */
+    private long rank(int id) {
+        long rank = scores[id];
+        rank = (rank << 8) | (Byte.MAX_VALUE - depths[id]);
+        rank = (rank << 16) | (0xFFFF - Math.min(names[id].length(), 0xFFFF));
+        return (rank << 32) | (Integer.MAX_VALUE - id);
+    }
+
+    /**
+     * @return position of the first prefix key that is not less than the query.
+     */
+    private int lowerBound(String query) {
+        int low = 0;
+        int high = prefixKeys.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (prefixKeys[middle].compareTo(query) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Growing int array, avoids boxing the package IDs.
+     */
+    private static class IntList {
+
+        private int[] values = new int[4];
+
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        /**
+         * Adds the value unless it was the last one added. The IDs arrive in ascending order.
+         */
+        void addOnce(int value) {
+            if (size == 0 || values[size - 1] != value) {
+                add(value);
+            }
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package org.hamm.h1kemaps.app.util;
+
+import org.hamm.h1kemaps.app.model.MapPack;
+import org.hamm.h1kemaps.app.model.MapPackIndex;
+import org.hamm.h1kemaps.app.model.NameDictionary;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary copy of the parsed map package catalog. The snapshot is keyed by the map
+ * version, so a parsed Maps.xml is only stored once per version and later starts can load the
+ * packages from the device without the network and without parsing XML.
+ *
+ * Layout: header (magic, format version, map version, package count), the languages and the
+ * distinct localized names, one record per package (code, parent index, name, type, size,
+ * subtree size, leaf count, bounding box, outline, name index per language), the children of every package as indices into
+ * the package records and the top level packages in catalog order.
+ */
+public class CatalogSnapshot {
+
+    private static final int MAGIC = 0x484B4350;
+
+    private static final int FORMAT_VERSION = 6;
+
+    private static final String FILE_PREFIX = "catalog_v";
+
+    private static final String FILE_SUFFIX = ".bin";
+
+    private static final int NULL_STRING = 0xFFFF;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Directory holding the snapshot files
+     */
+    private final File directory;
+
+    /**
+     * Snapshot file for the map version
+     */
+    private final File file;
+
+    /**
+     * Map version the catalog belongs to
+     */
+    private final int mapVersion;
+
+    /**
+     * Creates a snapshot for the given map version.
+     * @param directory = directory where the snapshot is stored (e.g. the map resources path).
+     * @param mapVersion = map version the catalog belongs to.
+     */
+    public CatalogSnapshot(String directory, int mapVersion) {
+        this.directory = new File(directory);
+        this.file = new File(directory, FILE_PREFIX + mapVersion + FILE_SUFFIX);
+        this.mapVersion = mapVersion;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public boolean exists() {
+        return file.isFile();
+    }
+
+    /**
+     * Loads the packages from the snapshot file. The file is memory-mapped and read in one pass.
+     * @return the package index or null if there is no valid snapshot for the map version.
+     */
+    public MapPackIndex read() {
+        if (!exists()) {
+            return null;
+        }
+        FileInputStream input = null;
+        try {
+            input = new FileInputStream(file);
+            FileChannel channel = input.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                return null;
+            }
+            buffer.getInt(); // map version, already part of the file name
+
+            int count = buffer.getInt();
+            MapPack[] packs = new MapPack[count];
+            int[] parents = new int[count];
+            byte[] bytes = new byte[256];
+
+            NameDictionary nameDictionary = new NameDictionary();
+            int languageCount = buffer.getInt();
+            for (int i = 0; i < languageCount; i++) {
+                nameDictionary.addLanguage(readString(buffer, bytes));
+            }
+            int nameCount = buffer.getInt();
+            for (int i = 0; i < nameCount; i++) {
+                nameDictionary.addName(readString(buffer, bytes));
+            }
+
+            for (int i = 0; i < count; i++) {
+                MapPack pack = new MapPack();
+                pack.setCode(readString(buffer, bytes));
+                parents[i] = buffer.getInt();
+                pack.setName(nameDictionary.intern(readString(buffer, bytes)));
+                pack.setType(readString(buffer, bytes));
+                pack.setSize(buffer.getLong());
+                pack.setSubtreeSize(buffer.getLong());
+                pack.setLeafCount(buffer.getInt());
+                pack.setBounds(buffer.getDouble(), buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+                int polygonSize = buffer.getInt();
+                if (polygonSize > 0) {
+                    float[] polygon = new float[polygonSize];
+                    buffer.asFloatBuffer().get(polygon);
+                    buffer.position(buffer.position() + polygonSize * 4);
+                    pack.setPolygon(polygon);
+                }
+                int[] nameIds = new int[buffer.getShort()];
+                for (int j = 0; j < nameIds.length; j++) {
+                    nameIds[j] = buffer.getInt();
+                }
+                pack.setLocalizedNames(nameDictionary, nameIds);
+                packs[i] = pack;
+            }
+
+            Map<String, MapPack> packMap = new HashMap<String, MapPack>(count * 4 / 3 + 1);
+            for (int i = 0; i < count; i++) {
+                if (parents[i] >= 0) {
+                    packs[i].setParentCode(packs[parents[i]].getCode());
+                }
+                int childCount = buffer.getInt();
+                List<String> childrenCodes = packs[i].getChildrenCodes();
+                for (int j = 0; j < childCount; j++) {
+                    childrenCodes.add(packs[buffer.getInt()].getCode());
+                }
+                packMap.put(packs[i].getCode(), packs[i]);
+            }
+
+            int rootCount = buffer.getInt();
+            List<String> rootCodes = new ArrayList<String>(rootCount);
+            for (int i = 0; i < rootCount; i++) {
+                rootCodes.add(packs[buffer.getInt()].getCode());
+            }
+            // the subtree sizes are part of the snapshot, no need to aggregate them again
+            MapPackIndex packIndex = new MapPackIndex(packMap, rootCodes, false);
+            packIndex.setNameDictionary(nameDictionary);
+            return packIndex;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (BufferUnderflowException e) {
+            // truncated file, it will be replaced after the next parse
+            e.printStackTrace();
+        } catch (IndexOutOfBoundsException e) {
+            e.printStackTrace();
+        } finally {
+            close(input);
+        }
+        return null;
+    }
+
+    /**
+     * Writes the packages to the snapshot file. The data is written to a temporary file first
+     * which is renamed afterwards, so a crash never leaves a half written snapshot behind.
+     * Snapshots of other map versions are deleted.
+     * @param packIndex = package index as delivered by the MapDataParser.
+     * @return true if the snapshot was written.
+     */
+    public boolean write(MapPackIndex packIndex) {
+        Map<String, MapPack> packMap = packIndex.getPackMap();
+        MapPack[] packs = packMap.values().toArray(new MapPack[packMap.size()]);
+        Map<String, Integer> indices = new HashMap<String, Integer>(packs.length * 4 / 3 + 1);
+        for (int i = 0; i < packs.length; i++) {
+            indices.put(packs[i].getCode(), i);
+        }
+
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        File tempFile = new File(directory, file.getName() + ".tmp");
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            output.writeInt(MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            output.writeInt(mapVersion);
+            output.writeInt(packs.length);
+
+            NameDictionary nameDictionary = packIndex.getNameDictionary();
+            if (nameDictionary == null) {
+                nameDictionary = new NameDictionary();
+            }
+            output.writeInt(nameDictionary.getLanguageCount());
+            for (int i = 0; i < nameDictionary.getLanguageCount(); i++) {
+                writeString(output, nameDictionary.getLanguage(i));
+            }
+            output.writeInt(nameDictionary.getNameCount());
+            for (int i = 0; i < nameDictionary.getNameCount(); i++) {
+                writeString(output, nameDictionary.getName(i));
+            }
+
+            for (MapPack pack : packs) {
+                writeString(output, pack.getCode());
+                Integer parent = pack.getParentCode() != null ? indices.get(pack.getParentCode()) : null;
+                output.writeInt(parent != null ? parent : -1);
+                writeString(output, pack.getName());
+                writeString(output, pack.getType());
+                output.writeLong(pack.getSize());
+                output.writeLong(pack.getSubtreeSize());
+                output.writeInt(pack.getLeafCount());
+                output.writeDouble(pack.getLatMin());
+                output.writeDouble(pack.getLonMin());
+                output.writeDouble(pack.getLatMax());
+                output.writeDouble(pack.getLonMax());
+                float[] polygon = pack.getPolygon();
+                output.writeInt(polygon != null ? polygon.length : 0);
+                if (polygon != null) {
+                    for (float value : polygon) {
+                        output.writeFloat(value);
+                    }
+                }
+                // name indices are only valid for the dictionary of the index
+                int[] nameIds = pack.getNameDictionary() == nameDictionary ? pack.getNameIds() : null;
+                output.writeShort(nameIds != null ? nameIds.length : 0);
+                if (nameIds != null) {
+                    for (int nameId : nameIds) {
+                        output.writeInt(nameId);
+                    }
+                }
+            }
+            for (MapPack pack : packs) {
+                List<String> childrenCodes = pack.getChildrenCodes();
+                output.writeInt(childrenCodes.size());
+                for (String childCode : childrenCodes) {
+                    output.writeInt(indices.get(childCode));
+                }
+            }
+            List<MapPack> roots = packIndex.getRoots();
+            output.writeInt(roots.size());
+            for (MapPack root : roots) {
+                output.writeInt(indices.get(root.getCode()));
+            }
+            output.close();
+            output = null;
+
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+                return false;
+            }
+            deleteOtherVersions();
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            tempFile.delete();
+        } finally {
+            close(output);
+        }
+        return false;
+    }
+
+    /**
+     * Deletes the snapshots that belong to other map versions.
+     */
+    private void deleteOtherVersions() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File other : files) {
+            String name = other.getName();
+            if (name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX) && !other.equals(file)) {
+                other.delete();
+            }
+        }
+    }
+
+    /**
+     * Writes the length as unsigned short and the UTF-8 bytes of the string.
+     * @throws IOException = if the string has NULL_STRING or more bytes, its length would be
+     * read as null or cut off.
+     */
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        if (value == null) {
+            output.writeShort(NULL_STRING);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        if (bytes.length >= NULL_STRING) {
+            throw new IOException("String of " + bytes.length + " bytes does not fit into the snapshot");
+        }
+        output.writeShort(bytes.length);
+        output.write(bytes);
+    }
+
+    /**
+     * Reads a string written by writeString.
+     * @param buffer = buffer positioned at the string.
+     * @param bytes = reused array for the encoded characters, must hold at least 255 bytes.
+     * @return the string or null.
+     */
+    private static String readString(MappedByteBuffer buffer, byte[] bytes) {
+        int length = buffer.getShort() & 0xFFFF;
+        if (length == NULL_STRING) {
+            return null;
+        }
+        byte[] target = length <= bytes.length ? bytes : new byte[length];
+        buffer.get(target, 0, length);
+        return new String(target, 0, length, UTF_8);
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package org.hamm.h1kemaps.app.util;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Creates the HTTP client the catalog and the downloads share. The connections are pooled and
+ * kept alive, so a download that follows the catalog refresh reuses the connection to the server
+ * instead of opening a new one. Requests that do not state an Accept-Encoding ask for gzip and
+ * gzipped responses are decompressed while they are read. The downloads ask for identity, their
+ * byte ranges and digests refer to the file itself.
+ */
+public class HttpClients {
+
+    public static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+
+    public static final String ENCODING_GZIP = "gzip";
+
+    public static final String ENCODING_IDENTITY = "identity";
+
+    /**
+     * Time to wait for a connection to the server
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT = 15 * 1000;
+
+    /**
+     * Time to wait for the next bytes of a response
+     */
+    public static final int DEFAULT_SOCKET_TIMEOUT = 30 * 1000;
+
+    /**
+     * Time an idle connection stays in the pool if the server did not send a Keep-Alive timeout
+     */
+    private static final long DEFAULT_KEEP_ALIVE_MILLIS = 30 * 1000;
+
+    private static final int SOCKET_BUFFER_SIZE = 16 * 1024;
+
+    private HttpClients() {
+    }
+
+    /**
+     * Creates a client with the default timeouts.
+     * @param maxConnections = number of connections that may be open at the same time.
+     * @return the client.
+     */
+    public static HttpClient create(int maxConnections) {
+        return create(maxConnections, DEFAULT_CONNECT_TIMEOUT, DEFAULT_SOCKET_TIMEOUT);
+    }
+
+    /**
+     * Creates a client whose connections are pooled and can be used from several threads.
+     * @param maxConnections = number of connections that may be open at the same time, all of
+     *                       them may go to the same server.
+     * @param connectTimeout = milliseconds to wait for a connection, also for a free one of the pool.
+     * @param socketTimeout = milliseconds to wait for the next bytes of a response.
+     * @return the client.
+     */
+    public static HttpClient create(int maxConnections, int connectTimeout, int socketTimeout) {
+        HttpParams params = new BasicHttpParams();
+        ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnections));
+        ConnManagerParams.setTimeout(params, connectTimeout);
+        HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+        HttpConnectionParams.setSoTimeout(params, socketTimeout);
+        HttpConnectionParams.setSocketBufferSize(params, SOCKET_BUFFER_SIZE);
+        // a pooled connection the server closed meanwhile is detected before it is used
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        HttpConnectionParams.setTcpNoDelay(params, true);
+
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+        DefaultHttpClient httpClient =
+                new DefaultHttpClient(new ThreadSafeClientConnManager(params, schemeRegistry), params);
+        httpClient.setKeepAliveStrategy(new KeepAliveStrategy());
+        httpClient.setReuseStrategy(new ReuseStrategy());
+        httpClient.addRequestInterceptor(new HttpRequestInterceptor() {
+
+            @Override
+            public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+                if (!request.containsHeader(HEADER_ACCEPT_ENCODING)) {
+                    request.addHeader(HEADER_ACCEPT_ENCODING, ENCODING_GZIP);
+                }
+            }
+        });
+        httpClient.addResponseInterceptor(new HttpResponseInterceptor() {
+
+            @Override
+            public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+                HttpEntity entity = response.getEntity();
+                Header encoding = entity != null ? entity.getContentEncoding() : null;
+                if (encoding != null && ENCODING_GZIP.equalsIgnoreCase(encoding.getValue().trim())) {
+                    response.setEntity(new GzipEntity(entity));
+                }
+            }
+        });
+        return httpClient;
+    }
+
+    /**
+     * Keeps a connection as long as the Keep-Alive header of the server allows, without the
+     * header for DEFAULT_KEEP_ALIVE_MILLIS.
+     */
+    private static class KeepAliveStrategy implements ConnectionKeepAliveStrategy {
+
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            BasicHeaderElementIterator elements =
+                    new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+            while (elements.hasNext()) {
+                HeaderElement element = elements.nextElement();
+                if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+                    try {
+                        return Long.parseLong(element.getValue()) * 1000;
+                    } catch (NumberFormatException e) {
+                        // ignore the broken value, the default applies
+                    }
+                }
+            }
+            return DEFAULT_KEEP_ALIVE_MILLIS;
+        }
+    }
+
+    /**
+     * Decides on the body as it was transferred whether the connection can be reused. The
+     * decompressed body has no length and would close the connection after every gzipped response.
+     */
+    private static class ReuseStrategy extends DefaultConnectionReuseStrategy {
+
+        @Override
+        public boolean keepAlive(HttpResponse response, HttpContext context) {
+            HttpEntity entity = response.getEntity();
+            if (!(entity instanceof GzipEntity)) {
+                return super.keepAlive(response, context);
+            }
+            response.setEntity(((GzipEntity) entity).getCompressedEntity());
+            try {
+                return super.keepAlive(response, context);
+            } finally {
+                response.setEntity(entity);
+            }
+        }
+    }
+
+    /**
+     * Body of a gzipped response, read decompressed. Its length is not known before it was read.
+     */
+    private static class GzipEntity extends HttpEntityWrapper {
+
+        GzipEntity(HttpEntity entity) {
+            super(entity);
+        }
+
+        HttpEntity getCompressedEntity() {
+            return wrappedEntity;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new GZIPInputStream(wrappedEntity.getContent());
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public Header getContentEncoding() {
+            return null;
+        }
+    }
+}
@@ -13,21 +13,25 @@ package org.hamm.h1kemaps.app.util;
  */
 
 import org.hamm.h1kemaps.app.model.MapPack;
+import org.hamm.h1kemaps.app.model.MapPackIndex;
+import org.hamm.h1kemaps.app.model.NameDictionary;
 import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
 
 import org.xml.sax.Attributes;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
-import java.util.Stack;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -51,6 +55,66 @@ public class MapDataParser {
      */
     private Map<String, MapPack> packMap = new HashMap<String, MapPack>();
 
+    /**
+     * Codes of the top level packages in the order of the world section
+     */
+    private List<String> rootCodes = new ArrayList<String>();
+
+    /**
+     * Names of the packages in all languages of the XML file
+     */
+    private NameDictionary nameDictionary = new NameDictionary();
+
+    /**
+     * Hierarchy index - built when the end of the XML file is reached
+     */
+    private MapPackIndex packIndex;
+
+    /**
+     * True if the packages are complete, i.e. the parsing reached the end of the XML file
+     */
+    private boolean complete;
+
+    /**
+     * HTTP cache for the XML file, null if every parse downloads the whole file
+     */
+    private CatalogHttpCache httpCache;
+
+    /**
+     * Client for the requests without cache, created on the first parse if none was given
+     */
+    private HttpClient httpClient;
+
+    /**
+     * True if the server answered the last request with 304 Not Modified
+     */
+    private boolean notModified;
+
+    /**
+     * Listener that receives the packages while the XML file is still being parsed
+     */
+    private OnCatalogProgressListener progressListener;
+
+    /**
+     * Receives the parsed packages while the rest of the XML file is still arriving. The
+     * callbacks run on the parsing thread.
+     */
+    public interface OnCatalogProgressListener {
+
+        /**
+         * Called when a package of the packages section was parsed completely. Its parent and
+         * children are not known yet.
+         * @param pack = the parsed package.
+         */
+        void onPackageParsed(MapPack pack);
+
+        /**
+         * Called when the world section places a package in the hierarchy.
+         * @param parent = the parent package or null for a top level package.
+         * @param pack = the placed package.
+         */
+        void onPackageLinked(MapPack parent, MapPack pack);
+    }
 
 
     /**
@@ -72,34 +136,111 @@ public class MapDataParser {
         }
     }
 
+    /**
+     * Constructor of a MapDataParser that revalidates the XML file with the server instead of
+     * downloading it every time.
+     * @param url = Url of the requested map Pack
+     * @param httpCache = cache holding the last downloaded XML file and its validators.
+     */
+    public MapDataParser(String url, CatalogHttpCache httpCache) {
+        this(url);
+        this.httpCache = httpCache;
+    }
+
+    /**
+     * Constructor of a MapDataParser that downloads the XML file on a shared client, so the
+     * request can reuse a pooled connection.
+     * @param url = Url of the requested map Pack
+     * @param httpClient = client used for the request.
+     */
+    public MapDataParser(String url, HttpClient httpClient) {
+        this(url);
+        this.httpClient = httpClient;
+    }
+
     public Map<String, MapPack> getPackMap() {
         return packMap;
     }
 
     public void setPackMap(Map<String, MapPack> packMap) {
         this.packMap = packMap;
+        this.packIndex = null;
+        this.complete = true;
     }
 
     /**
-     * This method gets the Requested XML data from the Server via Http and
-     * Parses it in the next step.
+     * Gets the hierarchy index of the parsed packages. The index only exists once the parsing
+     * reached the end of the file, packages of an interrupted parse are never published.
+     * @return index over the parsed packages or null if the parsing did not complete.
      */
-    public void parse() {
-        HttpGet request = new HttpGet(url);
+    public MapPackIndex getPackIndex() {
+        if (!complete) {
+            return null;
+        }
+        if (packIndex == null) {
+            packIndex = new MapPackIndex(packMap, rootCodes);
+            packIndex.setNameDictionary(nameDictionary);
+        }
+        return packIndex;
+    }
 
-        DefaultHttpClient httpClient = new DefaultHttpClient();
-        InputStream reply;
+    public void setOnCatalogProgressListener(OnCatalogProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
 
-        try {
-            reply = httpClient.execute(request).getEntity().getContent();
+    /**
+     * @return true if the server answered the last request with 304 Not Modified, i.e. the XML
+     * file did not change since it was cached.
+     */
+    public boolean isNotModified() {
+        return notModified;
+    }
 
-            InputSource source = new InputSource(reply);
+    /**
+     * This method gets the Requested XML data from the Server via Http and
+     * Parses it in the next step. With a HTTP cache an unchanged XML file is
+     * read from the cache.
+     * @return true if the XML was downloaded and parsed completely.
+     */
+    public boolean parse() {
+        return parse(false);
+    }
 
-            source.setEncoding("UTF-8");
+    /**
+     * Revalidates the XML file with the server and parses it only if the server sent a new
+     * version. Without a HTTP cache this is the same as parse().
+     * @return true if a new version was downloaded and parsed completely, false if the file did
+     * not change (see isNotModified) or the request failed.
+     */
+    public boolean parseIfModified() {
+        return parse(true) && !notModified;
+    }
 
-            ParserHandler ph = new ParserHandler();
+    private boolean parse(boolean skipIfNotModified) {
+        InputStream reply = null;
+        notModified = false;
 
-            parser.parse(source, ph);
+        try {
+            if (httpCache != null) {
+                CatalogHttpCache.Response response = httpCache.fetch(url);
+                reply = response.getBody();
+                notModified = response.isNotModified();
+                if (notModified && skipIfNotModified) {
+                    return true;
+                }
+            } else {
+                HttpGet request = new HttpGet(url);
+
+                if (httpClient == null) {
+                    httpClient = HttpClients.create(1);
+                }
+
+                reply = httpClient.execute(request).getEntity().getContent();
+            }
+
+            parse(reply);
+
+            return true;
         } catch (IllegalStateException e) {
             e.printStackTrace();
         } catch (ClientProtocolException e) {
@@ -108,26 +249,156 @@ public class MapDataParser {
             e.printStackTrace();
         } catch (SAXException e) {
             e.printStackTrace();
+        } finally {
+            if (reply != null) {
+                try {
+                    reply.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
         }
+        return false;
+    }
+
+    /**
+     * Parses the XML data from the given stream. Packages of a previous parse are dropped.
+     * @param input = stream delivering the XML file.
+     * @throws IOException = if the stream could not be read.
+     * @throws SAXException = if the XML is malformed.
+     */
+    public void parse(InputStream input) throws IOException, SAXException {
+        packMap = new HashMap<String, MapPack>();
+        rootCodes = new ArrayList<String>();
+        nameDictionary = new NameDictionary();
+        packIndex = null;
+        complete = false;
+
+        InputSource source = new InputSource(input);
+
+        source.setEncoding("UTF-8");
+
+        ParserHandler ph = new ParserHandler();
+
+        parser.parse(source, ph);
+    }
+
+    /**
+     * Maps the tag names the parser is interested in to integer IDs. Every element name
+     * is looked up once in startElement; all later decisions compare the cached IDs.
+     */
+    private static final Map<String, Integer> TAG_IDS = new HashMap<String, Integer>();
+
+    private static final int TAG_OTHER = 0;
+
+    private static final int TAG_PACKAGES = 1;
+
+    private static final int TAG_WORLD = 2;
+
+    private static final int TAG_TYPE = 3;
+
+    private static final int TAG_SIZE = 4;
+
+    private static final int TAG_LANGUAGES = 5;
+
+    private static final int TAG_BBOX = 6;
+
+    private static final int TAG_LAT_MIN = 7;
+
+    private static final int TAG_LAT_MAX = 8;
+
+    private static final int TAG_LON_MIN = 9;
+
+    private static final int TAG_LON_MAX = 10;
+
+    static {
+        TAG_IDS.put("packages", TAG_PACKAGES);
+        TAG_IDS.put("world", TAG_WORLD);
+        TAG_IDS.put("type", TAG_TYPE);
+        TAG_IDS.put("size", TAG_SIZE);
+        TAG_IDS.put("languages", TAG_LANGUAGES);
+        TAG_IDS.put("bbox", TAG_BBOX);
+        TAG_IDS.put("latMin", TAG_LAT_MIN);
+        TAG_IDS.put("latMax", TAG_LAT_MAX);
+        TAG_IDS.put("longMin", TAG_LON_MIN);
+        TAG_IDS.put("longMax", TAG_LON_MAX);
     }
 
+    /**
+     * Language of the name that is shown if there is none in the language of the user
+     */
+    private static final String ENGLISH = "en";
+
     /**
      * This class is a convenience class for SAX applications.
      * It provides implementations for all of the callbacks in the four core SAX2 handler classes.
+     * The handler is a small state machine: instead of keeping a stack of tag names it keeps
+     * the tag IDs per depth and remembers at which depth the packages and world sections
+     * were opened.
      */
     private class ParserHandler extends DefaultHandler {
 
-        private static final String TAG_PACKAGES = "packages";
+        private static final int INITIAL_DEPTH_CAPACITY = 16;
+
+        /**
+         * Depth of the element that is currently open (the document root has depth 1)
+         */
+        private int depth;
+
+        /**
+         * Tag IDs of the open elements, indexed by depth
+         */
+        private int[] tagIds = new int[INITIAL_DEPTH_CAPACITY];
+
+        /**
+         * Element names of the open elements inside the world section, indexed by depth
+         */
+        private String[] worldCodes = new String[INITIAL_DEPTH_CAPACITY];
+
+        /**
+         * Depth of the packages element, or -1 if the parser is not inside it
+         */
+        private int packagesDepth = -1;
+
+        /**
+         * Depth of the world element, or -1 if the parser is not inside it
+         */
+        private int worldDepth = -1;
+
+        /**
+         * Text of the element that is currently captured. The buffer is reused for every element.
+         */
+        private final StringBuilder text = new StringBuilder();
 
-        private static final String TAG_WORLD = "world";
+        /**
+         * True while the characters of the current element are needed
+         */
+        private boolean capturingText;
 
-        private static final String TAG_TYPE = "type";
+        /**
+         * True while the current element is a name inside the languages element
+         */
+        private boolean capturingName;
 
-        private static final String TAG_SIZE = "size";
+        /**
+         * Language code of the name that is captured (the element name inside languages)
+         */
+        private String language;
 
-        private static final String TAG_ENGLISH_NAME = "en";
+        /**
+         * Name IDs of the current package by language ID, reused for every package
+         */
+        private int[] nameIds = new int[INITIAL_DEPTH_CAPACITY];
 
-        private Stack<String> tagStack = new Stack<String>();
+        /**
+         * Number of used entries in nameIds
+         */
+        private int nameIdCount;
+
+        /**
+         * Borders of the bounding box of the current package, NaN until they were parsed
+         */
+        private final double[] bounds = new double[4];
 
         private MapPack currentPackage;
 
@@ -144,21 +415,64 @@ public class MapDataParser {
          */
         @Override
         public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
-            if (tagStack.contains(TAG_PACKAGES) && tagStack.peek().equals(TAG_PACKAGES)) {
-
-                currentPackage = new MapPack();
-
-                currentPackage.setCode(localName);
+            String name = localName.length() > 0 ? localName : qName;
+            Integer id = TAG_IDS.get(name);
+            int tagId = id != null ? id : TAG_OTHER;
+
+            depth++;
+            if (depth == tagIds.length) {
+                tagIds = Arrays.copyOf(tagIds, depth * 2);
+                worldCodes = Arrays.copyOf(worldCodes, depth * 2);
+            }
+            tagIds[depth] = tagId;
+
+            if (packagesDepth >= 0) {
+
+                if (depth == packagesDepth + 1) {
+
+                    currentPackage = new MapPack();
+
+                    currentPackage.setCode(name);
+                    nameIdCount = 0;
+                    Arrays.fill(bounds, Double.NaN);
+                }
+            } else if (worldDepth >= 0) {
+
+                worldCodes[depth] = name;
+
+                if (depth == worldDepth + 1) {
+                    rootCodes.add(name);
+                    MapPack pack = packMap.get(name);
+                    if (progressListener != null && pack != null) {
+                        progressListener.onPackageLinked(null, pack);
+                    }
+                } else {
+                    String parentCode = worldCodes[depth - 1];
+                    MapPack pack = packMap.get(name);
+                    MapPack parent = packMap.get(parentCode);
+                    if (pack != null && parent != null) {
+                        pack.setParentCode(parentCode);
+                        parent.getChildrenCodes().add(name);
+                        if (progressListener != null) {
+                            progressListener.onPackageLinked(parent, pack);
+                        }
+                    }
+                }
+            } else if (tagId == TAG_PACKAGES) {
+                packagesDepth = depth;
+            } else if (tagId == TAG_WORLD) {
+                worldDepth = depth;
             }
-            if (tagStack.contains(TAG_WORLD) && !tagStack.get(tagStack.size() - 1).equals(TAG_WORLD)) {
-
-                String parentCode = tagStack.peek();
-
-                packMap.get(localName).setParentCode(parentCode);
 
-                packMap.get(parentCode).getChildrenCodes().add(localName);
+            capturingName = currentPackage != null && tagIds[depth - 1] == TAG_LANGUAGES;
+            if (capturingName) {
+                language = name;
             }
-            tagStack.push(localName);
+            capturingText = capturingName
+                    || (currentPackage != null && (tagId == TAG_TYPE || tagId == TAG_SIZE))
+                    || (currentPackage != null && tagIds[depth - 1] == TAG_BBOX
+                        && tagId >= TAG_LAT_MIN && tagId <= TAG_LON_MAX);
+            text.setLength(0);
         }
 
         /**
@@ -174,40 +488,137 @@ public class MapDataParser {
         @Override
         public void endElement(String uri, String localName, String qName) throws SAXException {
 
-            tagStack.pop();
+            if (capturingName) {
+                addName(language, text.toString());
+                capturingName = false;
+                capturingText = false;
+            } else if (capturingText) {
+                switch (tagIds[depth]) {
+                    case TAG_TYPE:
+                        currentPackage.setType(text.toString());
+                        break;
+                    case TAG_SIZE:
+                        // only the size of the SKM file, not the one of the textures
+                        if (depth == packagesDepth + 2) {
+                            currentPackage.setSize(parseLong(text));
+                        }
+                        break;
+                    case TAG_LAT_MIN:
+                        bounds[0] = parseDouble(text);
+                        break;
+                    case TAG_LON_MIN:
+                        bounds[1] = parseDouble(text);
+                        break;
+                    case TAG_LAT_MAX:
+                        bounds[2] = parseDouble(text);
+                        break;
+                    case TAG_LON_MAX:
+                        bounds[3] = parseDouble(text);
+                        break;
+                    default:
+                        break;
+                }
+                capturingText = false;
+            }
 
-            if (tagStack.contains(TAG_PACKAGES) && tagStack.peek().equals(TAG_PACKAGES)) {
+            if (packagesDepth >= 0 && depth == packagesDepth + 1) {
 
+                currentPackage.setLocalizedNames(nameDictionary, Arrays.copyOf(nameIds, nameIdCount));
+                currentPackage.setBounds(bounds[0], bounds[1], bounds[2], bounds[3]);
                 packMap.put(currentPackage.getCode(), currentPackage);
 
+                if (progressListener != null) {
+                    progressListener.onPackageParsed(currentPackage);
+                }
+                currentPackage = null;
+
+            } else if (depth == packagesDepth) {
+                packagesDepth = -1;
+            } else if (depth == worldDepth) {
+                worldDepth = -1;
             }
+            depth--;
         }
 
         /**
-         * Receives notification of character data inside an element.
-         * @param ch
-         * @param start
-         * @param length
-         * @throws SAXException
+         * Stores a name of the current package in the shared dictionary. The English name is
+         * also the default name of the package.
+         * @param language = language code.
+         * @param name = name of the package in the language.
          */
+        private void addName(String language, String name) {
+            int languageId = nameDictionary.addLanguage(language);
+            int nameId = nameDictionary.addName(name);
+            if (languageId >= nameIds.length) {
+                nameIds = Arrays.copyOf(nameIds, Math.max(nameIds.length * 2, languageId + 1));
+            }
+            while (nameIdCount <= languageId) {
+                nameIds[nameIdCount++] = NameDictionary.NO_NAME;
+            }
+            nameIds[languageId] = nameId;
+            if (ENGLISH.equals(language)) {
+                currentPackage.setName(nameDictionary.getName(nameId));
+            }
+        }
 
+        /**
+         * Receive notification of the end of the document. The children codes and root codes
+         * are complete at this point, so the hierarchy index is built.
+         * @throws SAXException = Any SAX exception, possibly wrapping another exception.
+         */
         @Override
-        public void characters(char[] ch, int start, int length) throws SAXException {
-            String content = new String(ch, start, length);
-            if (tagStack.peek().equals(TAG_ENGLISH_NAME)) {
-
-                currentPackage.setName(content);
-
-            } else if (tagStack.peek().equals(TAG_TYPE)) {
-
-                currentPackage.setType(content);
-
-            } else if (tagStack.peek().equals(TAG_SIZE)
+        public void endDocument() throws SAXException {
+            packIndex = new MapPackIndex(packMap, rootCodes);
+            packIndex.setNameDictionary(nameDictionary);
+            complete = true;
+        }
 
-                    && tagStack.get(tagStack.size() - 2).equals(currentPackage.getCode())) {
+        /**
+         * Receives notification of character data inside an element. The characters are only
+         * appended to the reused text buffer if the current element is needed, a String is
+         * created once the element ends.
+         * @param ch = The characters from the XML document.
+         * @param start = The start position in the array.
+         * @param length = The number of characters to read from the array.
+         * @throws SAXException = Any SAX exception, possibly wrapping another exception.
+         */
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException {
+            if (capturingText) {
+                text.append(ch, start, length);
+            }
+        }
+    }
 
-                currentPackage.setSize(Integer.parseInt(content));
+    /**
+     * Parses a decimal number from the given characters without creating a String.
+     * Whitespace is skipped.
+     * @param chars = characters holding the number.
+     * @return the parsed number or 0 if the characters do not contain a valid number.
+     */
+    private static long parseLong(CharSequence chars) {
+        long value = 0;
+        for (int i = 0; i < chars.length(); i++) {
+            char c = chars.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+            } else if (!Character.isWhitespace(c)) {
+                return 0;
             }
         }
+        return value;
+    }
+
+    /**
+     * Parses a coordinate from the given characters.
+     * @param chars = characters holding the number.
+     * @return the parsed number or NaN if the characters do not contain a valid number.
+     */
+    private static double parseDouble(CharSequence chars) {
+        try {
+            return Double.parseDouble(chars.toString().trim());
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
     }
 }
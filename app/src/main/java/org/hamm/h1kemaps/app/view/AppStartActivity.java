@@ -207,8 +207,9 @@ public class AppStartActivity extends Activity implements SKPrepareMapTextureLis
 
     @Override
     public void onNewVersionDetected(int newVersion) {
-        // TODO Auto-generated method stub
         Log.e("","new version "+newVersion);
+        // the installed packages are updated in the background, from deltas where possible
+        ((H1keApplication) getApplication()).updateInstalledPackages(newVersion);
     }
 
     @Override
@@ -42,6 +42,7 @@ import com.skobbler.ngx.versioning.SKMapUpdateListener;
 import com.skobbler.ngx.versioning.SKVersioningManager;
 import org.hamm.h1kemaps.app.R;
 import org.hamm.h1kemaps.app.application.H1keApplication;
+import org.hamm.h1kemaps.app.model.DownloadedArea;
 import org.hamm.h1kemaps.app.model.NavigationDrawerItem;
 import org.hamm.h1kemaps.app.util.NavigationDrawerListAdapter;
 import org.hamm.h1kemaps.app.util.Utils;
@@ -85,6 +86,11 @@ import java.util.*;
 public class MapActivity extends ActionBarActivity implements SKMapSurfaceListener, SKRouteListener, SKNavigationListener,
         SKCurrentPositionListener, SensorEventListener, SKMapUpdateListener, AdapterView.OnItemClickListener {
 
+    /**
+     * Bytes per second the map downloads may take while the map is visible
+     */
+    private static final long DOWNLOAD_RATE_WHILE_MAP_VISIBLE = 256 * 1024;
+
     /**
      * SKMapSurfaceView is the the Map view. This is the Main component of the whole Application
      */
@@ -95,6 +101,11 @@ public class MapActivity extends ActionBarActivity implements SKMapSurfaceListen
      */
     private SKPosition mCurrentPosition;
 
+    /**
+     * True while the current position is on the downloaded maps
+     */
+    private boolean mInDownloadedArea;
+
     /**
      * The H1keApplication is for saving the overall state of the app
      */
@@ -385,6 +396,8 @@ public class MapActivity extends ActionBarActivity implements SKMapSurfaceListen
         // if navigation drawer is opened, hide the action items
         boolean drawerOpen = mDrawerLayout.isDrawerOpen(mDrawerList);
         menu.findItem(R.id.action_about).setVisible(!drawerOpen);
+        menu.findItem(R.id.action_prefetch_route).setVisible(!drawerOpen)
+                .setChecked(mApp.isRoutePrefetchEnabled());
         return super.onPrepareOptionsMenu(menu);
     }
 
@@ -426,7 +439,7 @@ public class MapActivity extends ActionBarActivity implements SKMapSurfaceListen
     }
 
     /**
-     * This starts a new About activity.
+     * This starts a new About activity or turns the downloads along the pins on and off.
      * @param item
      * @return
      */
@@ -442,6 +455,12 @@ public class MapActivity extends ActionBarActivity implements SKMapSurfaceListen
                 // About
                 startActivity(new Intent(MapActivity.this, AboutActivity.class));
                 return true;
+            case R.id.action_prefetch_route:
+                // the packages along the pins are queued now, or the queued ones are removed
+                mApp.setRoutePrefetchEnabled(!item.isChecked());
+                item.setChecked(mApp.isRoutePrefetchEnabled());
+                prefetchAlongPins();
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
@@ -482,6 +501,9 @@ public class MapActivity extends ActionBarActivity implements SKMapSurfaceListen
 
         requestPositionUpdates();
 
+        // the downloads leave bandwidth for the tiles and routes of the map
+        mApp.getBandwidthScheduler().setRateLimit(DOWNLOAD_RATE_WHILE_MAP_VISIBLE);
+
         if( mApp.ismNavigationInProgress()) {
             mMapView.getMapSettings().setFollowerMode(SKMapSettings.SKMapFollowerMode.POSITION);
         }
@@ -521,6 +543,7 @@ public class MapActivity extends ActionBarActivity implements SKMapSurfaceListen
             stopOrientationSensor();
         }
         mCurrentPositionProvider.stopLocationUpdates();
+        mApp.getBandwidthScheduler().setRateLimit(0);
 
         switchKeepScreenOnOffQuiet(false);
     }
@@ -588,6 +611,25 @@ public class MapActivity extends ActionBarActivity implements SKMapSurfaceListen
         this.mCurrentPosition = currentPosition;
         mMapView.reportNewGPSPosition(this.mCurrentPosition);
         mMapView.setPositionAsCurrent(new SKCoordinate(mCurrentPosition.getLongitude(), mCurrentPosition.getLatitude()), 15, false);
+        checkDownloadedArea();
+    }
+
+    /**
+     * Tells the user once when the current position leaves the area of the downloaded maps.
+     * Runs on every position fix, the package of the last fix is tested first. The area is only
+     * read here, the application builds it on its queue thread.
+     */
+    private void checkDownloadedArea() {
+        DownloadedArea downloadedArea = mApp.getDownloadedArea();
+        if (downloadedArea == null) {
+            return;
+        }
+        boolean inDownloadedArea = downloadedArea.contains(mCurrentPosition.getLatitude(),
+                mCurrentPosition.getLongitude());
+        if (mInDownloadedArea && !inDownloadedArea) {
+            Toast.makeText(MapActivity.this, R.string.left_downloaded_area, Toast.LENGTH_LONG).show();
+        }
+        mInDownloadedArea = inDownloadedArea;
     }
 
     /**
@@ -666,7 +708,7 @@ public class MapActivity extends ActionBarActivity implements SKMapSurfaceListen
 
     /**
      * This method adds an annotation first to a tree map, and then to the map view.
-     * after that a polyline redraw is performed.
+     * after that a polyline redraw is performed and the packages along the pins are prefetched.
      * @param annotation = the new annotation that is going to be added.
      */
     private void addAnnotationToMapView(SKAnnotation annotation) {
@@ -675,6 +717,16 @@ public class MapActivity extends ActionBarActivity implements SKMapSurfaceListen
         mMapView.addAnnotation(mAnnotationList.get(annotation.getUniqueID()), SKAnimationSettings.ANIMATION_PIN_DROP);
 
         redrawPolyline();
+        prefetchAlongPins();
+    }
+
+    /**
+     * Queues the map packages along the pins in the background if the user enabled it. The
+     * planner takes milliseconds, so the packages are planned again every time the pins change;
+     * without pins the waiting packages of the former plan are removed.
+     */
+    private void prefetchAlongPins() {
+        mApp.prefetchAlongRoute(hashMapToAnnotationList(mAnnotationList));
     }
 
     /**
@@ -725,6 +777,7 @@ public class MapActivity extends ActionBarActivity implements SKMapSurfaceListen
             mMapView.deleteAnnotation(skAnnotation.getUniqueID());
             mAnnotationList.remove(skAnnotation.getUniqueID());
             redrawPolyline();
+            prefetchAlongPins();
         }
     }
 
@@ -803,7 +856,8 @@ public class MapActivity extends ActionBarActivity implements SKMapSurfaceListen
 
     @Override
     public void onNewVersionDetected(int i) {
-
+        // the installed packages are updated in the background, from deltas where possible
+        mApp.updateInstalledPackages(i);
     }
 
     @Override
@@ -874,7 +928,13 @@ public class MapActivity extends ActionBarActivity implements SKMapSurfaceListen
 
     @Override
     public void onRouteCalculationCompleted(int i, int i2, int i3, boolean b, int i4) {
-
+        if (i == SKRouteListener.ROUTE_SUCCESS) {
+            // the calculated route leaves the straight lines between the pins
+            List<SKCoordinate> route = SKRouteManager.getInstance().getCoordinatesForRoute(i4);
+            if (route != null && !route.isEmpty()) {
+                mApp.prefetchAlongRoute(route);
+            }
+        }
     }
 
     @Override
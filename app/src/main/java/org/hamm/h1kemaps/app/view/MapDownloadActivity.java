@@ -12,6 +12,7 @@ package org.hamm.h1kemaps.app.view;
  */
 
 import android.app.Activity;
+import android.content.Intent;
 import android.os.Bundle;
 import android.view.View;
 import android.widget.Button;
@@ -20,28 +21,23 @@ import android.widget.TextView;
 import android.widget.Toast;
 import com.skobbler.ngx.packages.SKPackageManager;
 import com.skobbler.ngx.packages.SKPackageURLInfo;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.hamm.h1kemaps.app.R;
 import org.hamm.h1kemaps.app.application.H1keApplication;
-import org.hamm.h1kemaps.app.model.MapPack;
-import java.io.File;
+import org.hamm.h1kemaps.app.download.BandwidthScheduler;
+import org.hamm.h1kemaps.app.download.DownloadPart;
+import org.hamm.h1kemaps.app.download.DownloadProgressBus;
+import org.hamm.h1kemaps.app.download.DownloadQueue;
+import org.hamm.h1kemaps.app.download.DownloadService;
+import org.hamm.h1kemaps.app.download.NotEnoughSpaceException;
+import org.hamm.h1kemaps.app.model.MapPackInfo;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.RandomAccessFile;
-import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
-public class MapDownloadActivity extends Activity {
-
-    private static final int NO_BYTES_INTO_ONE_MB = 1048576;
-
-    /**
-     * Path at which download packages are temporarily stored
-     */
-    private static String packagesPath;
+public class MapDownloadActivity extends Activity implements DownloadQueue.Listener, DownloadProgressBus.Listener {
 
     private H1keApplication app;
 
@@ -52,24 +48,20 @@ public class MapDownloadActivity extends Activity {
     private TextView downloadPercentage;
 
     /**
-     * Selected map package to be downloaded
-     */
-    private MapPack dowloadPackage;
-
-    /**
-     * Index of the current download resource
+     * Selected map package to be downloaded, a package with children stands for its region
      */
-    private int downloadResourceIndex;
+    private MapPackInfo dowloadPackage;
 
     /**
-     * URLs to download resources
+     * Packages that are downloaded for the selection: the package itself or all maps of its region
      */
-    private List<String> downloadResourceUrls;
+    private List<MapPackInfo> downloadPackages;
 
     /**
-     * Download resources extensions
+     * States of the downloadPackages in the queue, kept on the UI thread so it does not wait for
+     * the queue while the journal is written
      */
-    private List<String> downloadResourceExtensions;
+    private final Map<String, Integer> packageStates = new HashMap<String, Integer>();
 
     /**
      * Layout of Activity is initilized and paths for map packages are set in this method.
@@ -82,47 +74,70 @@ public class MapDownloadActivity extends Activity {
         super.onCreate(savedInstanceState);
         app = (H1keApplication) getApplication();
         setContentView(R.layout.activity_download);
-        packagesPath = app.getResourcePath() + "/Maps/downloads/";
         progressBar = (ProgressBar) findViewById(R.id.download_progress_bar);
         startDownloadButton = (Button) findViewById(R.id.download_button);
         downloadPercentage = (TextView) findViewById(R.id.download_percentage_text);
         dowloadPackage = app.getMapPackages().get(getIntent().getStringExtra("packageCode"));
-        startDownloadButton.setText(getResources().getString(R.string.label_download) + " " + dowloadPackage.getName());
-        prepareDownloadResources();
+        startDownloadButton.setText(getResources().getString(R.string.label_download) + " " + dowloadPackage.getName(Locale.getDefault()));
+        downloadPackages = app.getMapPackIndex().getRegionMaps(dowloadPackage);
     }
 
     /**
-     * Prepares a list of download resources for the selected package to be
-     * downloaded
+     * Follows the queue while the activity is visible, the downloads go on without it. The states
+     * of the packages are read on the queue thread, after the queue was started.
      */
-    private void prepareDownloadResources() {
-        downloadResourceUrls = new ArrayList<String>();
-        downloadResourceExtensions = new ArrayList<String>();
-        downloadResourceIndex = 0;
+    @Override
+    protected void onResume() {
+        super.onResume();
+        final DownloadQueue queue = app.getDownloadQueue();
+        queue.addListener(this);
+        queue.getProgressBus().addListener(this);
+        app.runOnQueueThread(new Runnable() {
 
+            @Override
+            public void run() {
+                final Map<String, Integer> states = new HashMap<String, Integer>();
+                for (MapPackInfo pack : downloadPackages) {
+                    states.put(pack.getCode(), queue.getState(pack.getCode()));
+                }
+                runOnUiThread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        packageStates.putAll(states);
+                        boolean pending = false;
+                        for (int state : states.values()) {
+                            pending |= state == DownloadQueue.STATE_QUEUED || state == DownloadQueue.STATE_DOWNLOADING;
+                        }
+                        startDownloadButton.setEnabled(!pending);
+                        updateDownloadProgress(queue.getProgressBus().getSnapshot());
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    protected void onPause() {
+        app.getDownloadQueue().getProgressBus().removeListener(this);
+        app.getDownloadQueue().removeListener(this);
+        super.onPause();
+    }
 
+    /**
+     * Prepares a list of download resources for a package to be
+     * downloaded
+     */
+    private List<DownloadPart> prepareDownloadResources(MapPackInfo pack) {
         // the resources to be downloaded for the selected package will be:
         // - the .skm file (the map)
         // - the textures file (.txg)
         // - the name-browser files (.ngi, .ngi.dat) necessary for offline
-        // searches
-
-        SKPackageURLInfo info = SKPackageManager.getInstance().getURLInfoForPackageWithCode(dowloadPackage.getCode());
-        String mapURL = info.getMapURL();
-        String texturesURL = info.getTexturesURL();
-        String nbFilesZipUrl = info.getNameBrowserFilesURL();
+        // searches, extracted from their zip archive while it is downloaded
 
-        downloadResourceUrls.add(mapURL);
-        downloadResourceExtensions.add(".skm");
-
-        downloadResourceUrls.add(texturesURL);
-        downloadResourceExtensions.add(".txg");
-
-        downloadResourceUrls.add(nbFilesZipUrl.replaceFirst("\\.zip", ".ngi"));
-        downloadResourceExtensions.add(".ngi");
-
-        downloadResourceUrls.add(nbFilesZipUrl.replaceFirst("\\.zip", ".ngi.dat"));
-        downloadResourceExtensions.add(".ngi.dat");
+        SKPackageURLInfo info = SKPackageManager.getInstance().getURLInfoForPackageWithCode(pack.getCode());
+        return DownloadPart.forPackage(pack.getCode(), info.getMapURL(), info.getTexturesURL(),
+                info.getNameBrowserFilesURL(), app.getPackageStaging().getDirectory(pack.getCode()), pack.getSize());
     }
 
     /**
@@ -133,7 +148,7 @@ public class MapDownloadActivity extends Activity {
         switch (v.getId()) {
             case R.id.download_button:
                 startDownloadButton.setEnabled(false);
-                downloadResource(downloadResourceUrls.get(0), downloadResourceExtensions.get(0));
+                downloadPackages();
                 Toast.makeText(MapDownloadActivity.this.getApplicationContext(),
                         R.string.download_in_background, Toast.LENGTH_LONG).show();
                 break;
@@ -143,127 +158,136 @@ public class MapDownloadActivity extends Activity {
     }
 
     /**
-     * Downloads a resource from the server.
-     * this Method has been created with the Help of the Skobbler Maps Demo
-     * from this site: http://developer.skobbler.de/getting-started/android
-     * The code from the Skobbler support sites is Open Source therefore
-     * this code is Open Source also.
-     * @param url URL to the download resource
-     * @param extension extension of the resource
+     * Queues the packages of the selection on the queue thread, the whole region with one write
+     * of the journal. The download service runs the queue, so the downloads continue when the
+     * activity is left or the process is restarted.
      */
-    private void downloadResource(final String url, final String extension) {
-        // thread download a remote resource
-        Thread downloadThread = new Thread() {
-
-            private long lastProgressUpdateTime = System.currentTimeMillis();
+    private void downloadPackages() {
+        app.runOnQueueThread(new Runnable() {
 
             @Override
             public void run() {
-                super.run();
-                // get the request used to download the resource at the URL
-                HttpGet request = new HttpGet(url);
-                DefaultHttpClient httpClient = new DefaultHttpClient();
+                Map<String, List<DownloadPart>> packages = new LinkedHashMap<String, List<DownloadPart>>();
+                for (MapPackInfo pack : downloadPackages) {
+                    packages.put(pack.getCode(), prepareDownloadResources(pack));
+                }
                 try {
-                    // execute the request
-                    HttpResponse response = httpClient.execute(request);
-                    InputStream responseStream = response.getEntity().getContent();
-                    if (!new File(packagesPath).exists()) {
-                        new File(packagesPath).mkdirs();
-                    }
-                    // local file at temporary path where the resource is
-                    // downloaded
-                    RandomAccessFile localFile =
-                            new RandomAccessFile(packagesPath + dowloadPackage.getCode() + extension, "rw");
-
-                    // download the resource to the temporary path
-                    long bytesRead = localFile.length();
-                    localFile.seek(bytesRead);
-                    byte[] data = new byte[NO_BYTES_INTO_ONE_MB];
-
-                    while (true) {
-                        final int actual = responseStream != null ? responseStream.read(data, 0, data.length) : 0;
-                        if (actual > 0) {
-
-                            bytesRead += actual;
-                            localFile.write(data, 0, actual);
-
-                            if (downloadResourceExtensions.get(downloadResourceIndex).equals(".skm")) {
-                                // notify the UI about progress (in case of the
-                                // SKM download resource)
-                                long currentTime = System.currentTimeMillis();
-                                if (currentTime - lastProgressUpdateTime > 100) {
-
-                                    updateDownloadProgress(bytesRead, dowloadPackage.getSize());
-                                    lastProgressUpdateTime = currentTime;
-                                }
-                            }
-                        } else {
-                            break;
-                        }
-                    }
-                    localFile.close();
-
-                    // notify that the download was finished
-                    updateOnFinishDownload();
-                } catch (ClientProtocolException e) {
+                    app.getDownloadQueue().enqueueAll(packages, BandwidthScheduler.PRIORITY_FOREGROUND);
+                } catch (NotEnoughSpaceException e) {
+                    // the packages queued before the one that did not fit are downloaded
                     e.printStackTrace();
+                    showEnqueueError(R.string.download_not_enough_space);
                 } catch (IOException e) {
                     e.printStackTrace();
+                    showEnqueueError(R.string.download_failed);
                 }
+                startService(new Intent(MapDownloadActivity.this, DownloadService.class));
             }
-        };
-        // start downloading in the thread
-        downloadThread.start();
+        });
     }
 
     /**
-     * Update the progress bar to show the progress of the SKM resource download
-     * @param downloadedSize size downloaded so far
-     * @param totalSize total size of the resource
+     * Lets the user start the download again.
+     * @param message = resource of the message.
      */
-    private void updateDownloadProgress(final long downloadedSize, final long totalSize) {
+    private void showEnqueueError(final int message) {
         runOnUiThread(new Runnable() {
 
             @Override
             public void run() {
-                int progress = (int) (progressBar.getMax() * ((float) downloadedSize / totalSize));
-                progressBar.setProgress(progress);
-                downloadPercentage.setText(((float) progress / 10) + "%");
-        }
+                startDownloadButton.setEnabled(true);
+                Toast.makeText(MapDownloadActivity.this.getApplicationContext(), message, Toast.LENGTH_LONG).show();
+            }
         });
     }
 
-    /**
-     * Update when a resource download was completed
-     */
-    private void updateOnFinishDownload() {
-
-
-
+    @Override
+    public void onStateChanged(final String packageCode, final int state) {
+        if (!isDownloadPackage(packageCode)) {
+            return;
+        }
         runOnUiThread(new Runnable() {
 
             @Override
             public void run() {
-                progressBar.setProgress(progressBar.getMax());
-                if (downloadResourceExtensions.get(downloadResourceIndex).equals(".skm")) {
-                    downloadPercentage.setText("100%");
-                }
-                if (downloadResourceIndex >= downloadResourceUrls.size() - 1) {
-                    // if the download of the last resource was completed -
-                    // install the package
-                    SKPackageManager.getInstance().addOfflinePackage(packagesPath, dowloadPackage.getCode());
+                packageStates.put(packageCode, state);
+                updateDownloadProgress(app.getDownloadQueue().getProgressBus().getSnapshot());
+                if (state == DownloadQueue.STATE_INSTALLED) {
                     // at this point the downloaded package should be available
                     // offline
                     Toast.makeText(MapDownloadActivity.this.getApplicationContext(),
-                            "Map of " + dowloadPackage + " is now available offline", Toast.LENGTH_SHORT).show();
-                } else {
-                    // start downloading the next queued resource from the
-                    // package
-                    downloadResourceIndex++;
-                    downloadResource(downloadResourceUrls.get(downloadResourceIndex),
-                            downloadResourceExtensions.get(downloadResourceIndex));
+                            "Map of " + app.getMapPackages().get(packageCode) + " is now available offline",
+                            Toast.LENGTH_SHORT).show();
+                } else if (state == DownloadQueue.STATE_FAILED) {
+                    // the downloaded bytes are kept, a new start continues them
+                    startDownloadButton.setEnabled(true);
+                    Toast.makeText(MapDownloadActivity.this.getApplicationContext(),
+                            R.string.download_failed, Toast.LENGTH_LONG).show();
                 }
             }
         });
     }
+
+    /**
+     * One update of the progress bar per snapshot, however many parts are downloading.
+     */
+    @Override
+    public void onSnapshot(final DownloadProgressBus.Snapshot snapshot) {
+        runOnUiThread(new Runnable() {
+
+            @Override
+            public void run() {
+                updateDownloadProgress(snapshot);
+            }
+        });
+    }
+
+    @Override
+    public void onIdle() {
+    }
+
+    private boolean isDownloadPackage(String packageCode) {
+        for (MapPackInfo pack : downloadPackages) {
+            if (pack.getCode().equals(packageCode)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Update the progress bar to show the progress of all resources of the selected packages.
+     * Installed packages count as complete, packages that are not downloading count with their
+     * size from the catalog. The rate and the remaining time are the ones of the selected packages.
+     * @param snapshot = progress of the running downloads.
+     */
+    private void updateDownloadProgress(DownloadProgressBus.Snapshot snapshot) {
+        long downloadedSize = 0;
+        long totalSize = 0;
+        double bytesPerSecond = 0;
+        for (MapPackInfo pack : downloadPackages) {
+            DownloadProgressBus.PackageProgress packageProgress = snapshot.getPackage(pack.getCode());
+            long total = Math.max(packageProgress != null ? packageProgress.getTotalBytes() : 0, pack.getSize());
+            totalSize += total;
+            Integer state = packageStates.get(pack.getCode());
+            if (state != null && state == DownloadQueue.STATE_INSTALLED) {
+                downloadedSize += total;
+            } else if (packageProgress != null) {
+                downloadedSize += Math.min(packageProgress.getDownloadedBytes(), total);
+                bytesPerSecond += packageProgress.getBytesPerSecond();
+            }
+        }
+        if (totalSize <= 0) {
+            return;
+        }
+        int progress = (int) (progressBar.getMax() * ((float) downloadedSize / totalSize));
+        progressBar.setProgress(progress);
+        String text = ((float) progress / 10) + "%";
+        if (bytesPerSecond > 0) {
+            long etaSeconds = (long) Math.ceil((totalSize - downloadedSize) / bytesPerSecond);
+            text += String.format(Locale.US, "  %d KB/s  %d:%02d", (long) (bytesPerSecond / 1024),
+                    etaSeconds / 60, etaSeconds % 60);
+        }
+        downloadPercentage.setText(text);
+    }
 }
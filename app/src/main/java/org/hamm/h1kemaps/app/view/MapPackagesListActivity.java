@@ -15,24 +15,45 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.text.format.Formatter;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
 import android.widget.BaseAdapter;
 import android.widget.Button;
+import android.widget.EditText;
 import android.widget.ListView;
 import android.widget.TextView;
 import com.skobbler.ngx.packages.SKPackageManager;
+import com.skobbler.ngx.versioning.SKVersioningManager;
 
 import org.hamm.h1kemaps.app.R;
 import org.hamm.h1kemaps.app.application.H1keApplication;
+import org.hamm.h1kemaps.app.model.CompactCatalog;
 import org.hamm.h1kemaps.app.model.MapPack;
+import org.hamm.h1kemaps.app.model.MapPackCatalog;
+import org.hamm.h1kemaps.app.model.MapPackIndex;
+import org.hamm.h1kemaps.app.model.MapPackInfo;
+import org.hamm.h1kemaps.app.util.CatalogHttpCache;
+import org.hamm.h1kemaps.app.util.CatalogSearch;
+import org.hamm.h1kemaps.app.util.CatalogSearchIndex;
+import org.hamm.h1kemaps.app.util.CatalogSnapshot;
 import org.hamm.h1kemaps.app.util.MapDataParser;
 
+import java.text.Collator;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 /**
@@ -40,6 +61,18 @@ import java.util.List;
  * to download.
  */
 public class MapPackagesListActivity extends Activity {
+
+    /**
+     * Directory below the resource path where the HTTP cache keeps the Maps.xml file
+     */
+    private static final String CATALOG_CACHE_DIRECTORY = "/CatalogCache/";
+
+    private static final String CONTINENT = "continent";
+
+    /**
+     * Maximum number of packages shown for a search
+     */
+    private static final int SEARCH_RESULT_LIMIT = 50;
     
     private ListView listView;
     
@@ -48,15 +81,70 @@ public class MapPackagesListActivity extends Activity {
     /**
      * Packages currently shown in list
      */
-    private List<MapPack> currentPackages;
+    private List<? extends MapPackInfo> currentPackages;
+
+    /**
+     * Package whose children are shown in the list, null for the highest level
+     */
+    private MapPackInfo currentParent;
     
     private MapPackageListAdapter adapter;
 
+    private EditText searchField;
+
+    /**
+     * Results of the search shown in the list, null if the hierarchy is shown
+     */
+    private List<MapPackInfo> searchResults;
+
+    /**
+     * Runs the searches and builds the search index, one task at a time
+     */
+    private final ExecutorService searchExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Search that was started last, it is dropped when the user types on
+     */
+    private final CatalogSearch catalogSearch = new CatalogSearch(searchExecutor);
+
+    /**
+     * Orders the top level packages by their names, the same way while they stream in and once
+     * the catalog is complete, so the list does not reorder when the parsing ends
+     */
+    private final Comparator<MapPackInfo> rootOrder = new Comparator<MapPackInfo>() {
+
+        private final Collator collator = Collator.getInstance();
+
+        @Override
+        public int compare(MapPackInfo first, MapPackInfo second) {
+            return collator.compare(first.getName(Locale.getDefault()), second.getName(Locale.getDefault()));
+        }
+    };
+
+    /**
+     * Top level packages delivered by the parser so far - only used until the catalog is complete
+     */
+    private List<MapPack> streamedRoots = new ArrayList<MapPack>();
+
+    /**
+     * Children delivered by the parser so far by parent code - only used until the catalog is complete
+     */
+    private Map<String, List<MapPack>> streamedChildren = new HashMap<String, List<MapPack>>();
+
+    /**
+     * Parents delivered by the parser so far by child code - only used until the catalog is complete
+     */
+    private Map<String, MapPack> streamedParents = new HashMap<String, MapPack>();
+
     /**
      * The onCreate Method checks first if the user has any map packages downloaded allready.
-     * if not - a parser object is created to parse the Maps.xml file in an new thread.
-     * After parsing the download packages are cached. After that the highest level
-     * download packages(continents) are displayed.
+     * if not - they are loaded in a new thread from the catalog snapshot of the current map version.
+     * Only if there is no snapshot yet a parser object is created to parse the Maps.xml file and
+     * the result is written as snapshot. While the file is parsed the continents and their children
+     * are displayed as soon as the parser delivers them, the catalog is only kept if the whole
+     * file was parsed. After that the download packages are cached
+     * and the highest level download packages(continents) are displayed. A snapshot is revalidated with the
+     * server afterwards through a conditional request, so the list is only rebuilt if Maps.xml changed.
      * @param savedInstanceState = bundle where to save necessary data.
      */
     @Override
@@ -64,6 +152,7 @@ public class MapPackagesListActivity extends Activity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_list);
         listView = (ListView) findViewById(R.id.list_view);
+        searchField = (EditText) findViewById(R.id.search_field);
         app = (H1keApplication) getApplication();
         
         if (app.getMapPackages() != null) {
@@ -71,30 +160,236 @@ public class MapPackagesListActivity extends Activity {
             currentPackages = searchByParentCode(null);
             initializeList();
         } else {
-            // map packages need to be obtained from parsing the Maps.xml file
+            // map packages need to be obtained from the snapshot or from parsing the Maps.xml file
             new Thread() {
                 
                 public void run() {
+                    CatalogSnapshot snapshot = new CatalogSnapshot(app.getResourcePath(),
+                            SKVersioningManager.getInstance().getLocalMapVersion());
                     // get a parser object to parse the Maps.xml file
                     MapDataParser parser =
-                            new MapDataParser(SKPackageManager.getInstance().getMapsXMLPathForCurrentVersion());
-                    // do the parsing
-                    parser.parse();
-                    // after parsing Maps.xml cache the download packages
-                    app.setMapPackages(parser.getPackMap());
-                    // after parsing display the highest level download packages
-                    currentPackages = searchByParentCode(null);
-                    runOnUiThread(new Runnable() {
-                        
-                        @Override
-                        public void run() {
-                            initializeList();
+                            new MapDataParser(SKPackageManager.getInstance().getMapsXMLPathForCurrentVersion(),
+                                    new CatalogHttpCache(app.getResourcePath() + CATALOG_CACHE_DIRECTORY,
+                                            app.getHttpClient()));
+                    MapPackIndex packages = snapshot.read();
+                    if (packages == null) {
+                        // do the parsing, show the packages while they arrive and keep the result
+                        // for the next start
+                        parser.setOnCatalogProgressListener(new StreamingListener());
+                        // an interrupted parse is not kept, the next start parses again
+                        if (parser.parse()) {
+                            snapshot.write(parser.getPackIndex());
+                            showPackages(parser.getPackIndex());
+                        }
+                    } else {
+                        showPackages(packages);
+                        // revalidate the snapshot, an unchanged Maps.xml costs a 304 without payload
+                        if (parser.parseIfModified()) {
+                            snapshot.write(parser.getPackIndex());
+                            showPackages(parser.getPackIndex());
                         }
-                    });
+                    }
                 }
             }.start();
         }
     }
+
+    /**
+     * Caches the download packages in a CompactCatalog and displays them. The first call shows
+     * the highest level download packages, later calls (after the catalog changed on the server)
+     * keep the level the user is looking at.
+     * @param packages = packages to display.
+     */
+    private void showPackages(MapPackIndex packages) {
+        final MapPackCatalog packIndex = CompactCatalog.from(packages);
+        app.setMapPackIndex(packIndex);
+        runOnUiThread(new Runnable() {
+
+            @Override
+            public void run() {
+                streamedRoots.clear();
+                streamedChildren.clear();
+                streamedParents.clear();
+                if (adapter == null) {
+                    currentPackages = searchByParentCode(null);
+                    initializeList();
+                } else {
+                    if (currentParent != null) {
+                        currentParent = packIndex.get(currentParent.getCode());
+                    }
+                    currentPackages = searchByParentCode(currentParent != null ? currentParent.getCode() : null);
+                    adapter.notifyDataSetChanged();
+                }
+                searchField.setEnabled(true);
+                if (searchResults != null) {
+                    // the results refer to the former catalog
+                    search(searchField.getText().toString());
+                }
+            }
+        });
+        // build the search index now, so the first search does not have to wait for it
+        searchExecutor.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                getSearchIndex(packIndex);
+            }
+        });
+    }
+
+    /**
+     * Gets the search index of the catalog and builds it if it does not exist yet. Runs on the
+     * search thread only.
+     * @param packIndex = catalog to search in.
+     * @return the search index.
+     */
+    private CatalogSearchIndex getSearchIndex(MapPackCatalog packIndex) {
+        CatalogSearchIndex searchIndex = app.getCatalogSearchIndex();
+        if (searchIndex == null && app.getMapPackIndex() == packIndex) {
+            searchIndex = new CatalogSearchIndex(packIndex);
+            app.setCatalogSearchIndex(searchIndex);
+        }
+        return searchIndex;
+    }
+
+    /**
+     * Searches the catalog on the search thread and shows the results. A search that is still
+     * waiting is cancelled and results of older searches are dropped, so only the last query
+     * reaches the list. An empty query shows the hierarchy again.
+     * @param query = text typed by the user.
+     */
+    private void search(final String query) {
+        final MapPackCatalog packIndex = app.getMapPackIndex();
+        if (query.trim().length() == 0 || packIndex == null) {
+            catalogSearch.cancel();
+            if (searchResults != null) {
+                searchResults = null;
+                currentPackages = searchByParentCode(currentParent != null ? currentParent.getCode() : null);
+                adapter.notifyDataSetChanged();
+            }
+            return;
+        }
+        catalogSearch.search(new Callable<List<MapPackInfo>>() {
+
+            @Override
+            public List<MapPackInfo> call() {
+                CatalogSearchIndex searchIndex = getSearchIndex(packIndex);
+                return searchIndex != null ? searchIndex.search(query, SEARCH_RESULT_LIMIT) : null;
+            }
+        }, new CatalogSearch.OnSearchResultListener() {
+
+            @Override
+            public void onSearchResult(final int generation, final List<MapPackInfo> results) {
+                runOnUiThread(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        if (catalogSearch.isCurrent(generation)) {
+                            searchResults = results;
+                            currentPackages = results;
+                            adapter.notifyDataSetChanged();
+                            listView.setSelection(0);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        searchExecutor.shutdownNow();
+        super.onDestroy();
+    }
+
+    /**
+     * Collects the packages the parser delivers while the Maps.xml file is still arriving and
+     * hands them to the UI thread in batches. At most one batch is waiting for the UI thread at
+     * any time, so the list is refreshed at most once per frame and not once per package.
+     */
+    private class StreamingListener implements MapDataParser.OnCatalogProgressListener {
+
+        /**
+         * Delivered packages as pairs of parent and package, a null package marks a parsed package
+         * that is only known to be a continent
+         */
+        private final List<MapPack[]> pending = new ArrayList<MapPack[]>();
+
+        private boolean batchPosted;
+
+        @Override
+        public void onPackageParsed(MapPack pack) {
+            // continents are top level packages even before the world section places them
+            if (CONTINENT.equals(pack.getType())) {
+                add(new MapPack[]{null, pack});
+            }
+        }
+
+        @Override
+        public void onPackageLinked(MapPack parent, MapPack pack) {
+            add(new MapPack[]{parent, pack});
+        }
+
+        private void add(MapPack[] link) {
+            synchronized (pending) {
+                pending.add(link);
+                if (batchPosted) {
+                    return;
+                }
+                batchPosted = true;
+            }
+            runOnUiThread(new Runnable() {
+
+                @Override
+                public void run() {
+                    List<MapPack[]> batch;
+                    synchronized (pending) {
+                        batch = new ArrayList<MapPack[]>(pending);
+                        pending.clear();
+                        batchPosted = false;
+                    }
+                    showStreamedPackages(batch);
+                }
+            });
+        }
+    }
+
+    /**
+     * Adds a batch of packages delivered by the parser to the list. Runs on the UI thread.
+     * @param batch = pairs of parent (null for the highest level) and package.
+     */
+    private void showStreamedPackages(List<MapPack[]> batch) {
+        if (app.getMapPackIndex() != null) {
+            // the complete catalog is already shown
+            return;
+        }
+        for (MapPack[] link : batch) {
+            MapPack parent = link[0];
+            MapPack pack = link[1];
+            if (parent == null) {
+                if (!streamedRoots.contains(pack)) {
+                    streamedRoots.add(pack);
+                    Collections.sort(streamedRoots, rootOrder);
+                }
+            } else {
+                List<MapPack> children = streamedChildren.get(parent.getCode());
+                if (children == null) {
+                    children = new ArrayList<MapPack>();
+                    streamedChildren.put(parent.getCode(), children);
+                }
+                children.add(pack);
+                streamedParents.put(pack.getCode(), parent);
+            }
+        }
+        if (adapter == null) {
+            if (!streamedRoots.isEmpty()) {
+                currentPackages = streamedRoots;
+                initializeList();
+            }
+        } else {
+            adapter.notifyDataSetChanged();
+        }
+    }
     
     /**
      * Populate list with current packages
@@ -108,13 +403,39 @@ public class MapPackagesListActivity extends Activity {
             
             @Override
             public void onItemClick(AdapterView<?> parent, final View view, final int position, long id) {
-                List<MapPack> childPackages = searchByParentCode(currentPackages.get(position).getCode());
+                MapPackInfo clickedPackage = currentPackages.get(position);
+                List<? extends MapPackInfo> childPackages = searchByParentCode(clickedPackage.getCode());
                 if (childPackages.size() > 0) {
-                    currentPackages = searchByParentCode(currentPackages.get(position).getCode());
+                    currentParent = clickedPackage;
+                    currentPackages = childPackages;
+                    if (searchResults != null) {
+                        // leave the search and continue in the hierarchy of the found package
+                        searchResults = null;
+                        searchField.setText("");
+                    }
                     adapter.notifyDataSetChanged();
                 }
             }
         });
+
+        // the search is available as soon as the whole catalog is known
+        searchField.setVisibility(View.VISIBLE);
+        searchField.setEnabled(app.getMapPackIndex() != null);
+        searchField.addTextChangedListener(new TextWatcher() {
+
+            @Override
+            public void beforeTextChanged(CharSequence text, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence text, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable text) {
+                search(text.toString());
+            }
+        });
     }
 
     /**
@@ -163,12 +484,13 @@ public class MapPackagesListActivity extends Activity {
             } else {
                 view = convertView;
             }
-            final MapPack currentPackage = currentPackages.get(position);
+            final MapPackInfo currentPackage = currentPackages.get(position);
             Button downloadButton = (Button) view.findViewById(R.id.download_button);
-            // countries and US states should be downloadable
-            boolean downloadable =
-                    (currentPackage.getType().equals("country") || currentPackage.getType().equals("state"))
-                            && !currentPackage.getCode().equals("US");
+            // countries and US states should be downloadable once the whole catalog is known,
+            // continents and the US download all of their maps
+            boolean downloadable = app.getMapPackIndex() != null
+                    && (MapPackIndex.isMapPackage(currentPackage)
+                    || !searchByParentCode(currentPackage.getCode()).isEmpty());
             if (downloadable) {
                 downloadButton.setVisibility(View.VISIBLE);
                 view.findViewById(R.id.download_button).setOnClickListener(new View.OnClickListener() {
@@ -184,62 +506,91 @@ public class MapPackagesListActivity extends Activity {
                 downloadButton.setVisibility(View.GONE);
             }
             TextView hasChildrenIndicator = (TextView) view.findViewById(R.id.indicator_children_available);
-            if (currentPackage.getChildrenCodes().isEmpty()) {
+            if (searchByParentCode(currentPackage.getCode()).isEmpty()) {
                 hasChildrenIndicator.setVisibility(View.INVISIBLE);
             } else {
                 hasChildrenIndicator.setVisibility(View.VISIBLE);
             }
-            ((TextView) view.findViewById(R.id.label_list_item)).setText(currentPackage.getName());
+            ((TextView) view.findViewById(R.id.label_list_item)).setText(currentPackage.getName(Locale.getDefault()));
+            TextView sizeLabel = (TextView) view.findViewById(R.id.label_package_size);
+            // the subtree sizes are known once the whole catalog is parsed
+            if (currentPackage.getLeafCount() > 0) {
+                sizeLabel.setVisibility(View.VISIBLE);
+                sizeLabel.setText(getSizeText(currentPackage));
+            } else {
+                sizeLabel.setVisibility(View.GONE);
+            }
             return view;
         }
     }
 
+    /**
+     * @param pack = package of the catalog.
+     * @return the download size of the package and all packages below it, together with the number
+     * of maps if there is more than one.
+     */
+    private String getSizeText(MapPackInfo pack) {
+        String size = Formatter.formatShortFileSize(this, pack.getSubtreeSize());
+        if (pack.getLeafCount() > 1) {
+            return getString(R.string.label_package_size_maps, size, pack.getLeafCount());
+        }
+        return size;
+    }
+
     /**
      * If the Back button is Pressed. The Activity will show the higher level of the package hierarchy.
      */
     @Override
     public void onBackPressed() {
-        boolean shouldClose = true;
-        String grandparentCode = null;
-        String parentCode = null;
-        if(currentPackages == null){
-            super.onBackPressed();
-        }
-        else if (!currentPackages.isEmpty()) {
-            parentCode = currentPackages.get(0).getParentCode(); 
-        }
-        if (parentCode != null) {
-            shouldClose = false;
-            grandparentCode = app.getMapPackages().get(parentCode).getParentCode();
-        }
-        if (shouldClose) {
+        if (searchResults != null) {
+            // leave the search, the list shows the level it showed before
+            searchField.setText("");
+        } else if (currentPackages == null || currentParent == null) {
             super.onBackPressed();
         } else {
             // go one level higher in the map packages hierarchy
-            currentPackages = searchByParentCode(grandparentCode);
+            MapPackInfo parentPackage = currentParent;
+            currentParent = getParent(parentPackage);
+            currentPackages = searchByParentCode(currentParent != null ? currentParent.getCode() : null);
             adapter.notifyDataSetChanged();
-            MapPack parentPackage = app.getMapPackages().get(parentCode);
             listView.setSelection(currentPackages.indexOf(parentPackage));
         }
     }
+
+    /**
+     * @param pack = package of the catalog.
+     * @return the parent of the package or null for a top level package.
+     */
+    private MapPackInfo getParent(MapPackInfo pack) {
+        MapPackCatalog packIndex = app.getMapPackIndex();
+        if (packIndex == null) {
+            return streamedParents.get(pack.getCode());
+        }
+        return pack.getParentCode() != null ? packIndex.get(pack.getParentCode()) : null;
+    }
     
     /**
-     * Gets a list of download packages having the given parent code
+     * Gets a list of download packages having the given parent code. The list comes from the
+     * package index, so only the children are touched and not the whole catalog. While the
+     * catalog is still being parsed the packages delivered so far are returned. The top level
+     * packages are ordered by name, see rootOrder.
      * @param parentCode code of the superior region. ( E.g DE for Germany)
-     * @return List of MapPack's
-     */
-    private List<MapPack> searchByParentCode(String parentCode) {
-        Collection<MapPack> packages = app.getMapPackages().values();
-        List<MapPack> results = new ArrayList<MapPack>();
-        for (MapPack pack : packages) {
-            if (parentCode == null) {           
-                if (pack.getParentCode() == null) {
-                    results.add(pack);
-                }
-            } else if (parentCode.equals(pack.getParentCode())) {
-                results.add(pack);
+     * @return read only List of MapPack's in catalog order
+     */
+    private List<? extends MapPackInfo> searchByParentCode(String parentCode) {
+        MapPackCatalog packIndex = app.getMapPackIndex();
+        if (packIndex != null) {
+            if (parentCode == null) {
+                List<MapPackInfo> roots = new ArrayList<MapPackInfo>(packIndex.getRoots());
+                Collections.sort(roots, rootOrder);
+                return Collections.unmodifiableList(roots);
             }
+            return packIndex.getChildren(parentCode);
+        }
+        if (parentCode == null) {
+            return streamedRoots;
         }
-        return results;
+        List<MapPack> children = streamedChildren.get(parentCode);
+        return children != null ? children : Collections.<MapPack>emptyList();
     }
 }
@@ -0,0 +1,121 @@
+package org.hamm.h1kemaps.app.benchmark;
+
+import org.hamm.h1kemaps.app.model.CompactCatalog;
+import org.hamm.h1kemaps.app.model.MapPack;
+import org.hamm.h1kemaps.app.model.MapPackIndex;
+import org.hamm.h1kemaps.app.model.MapPackInfo;
+import org.hamm.h1kemaps.app.util.MapDataParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Children lookups as done by the package list on every drill-down and back press: the former
+ * full scan over the catalog, the MapPackIndex and the CompactCatalog, and the time to build the
+ * MapPackIndex.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CatalogLookupBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int packages;
+
+    private MapPackIndex packIndex;
+
+    /**
+     * Codes of the top level packages the index is built from
+     */
+    private List<String> rootCodes;
+
+    private CompactCatalog compactCatalog;
+
+    /**
+     * Parent codes the benchmarks cycle through: the top level, continents and countries
+     */
+    private String[] parentCodes;
+
+    private int next;
+
+    @Setup
+    public void parseCatalog() throws Exception {
+        MapDataParser parser = new MapDataParser(null);
+        parser.parse(new ByteArrayInputStream(CatalogXmlGenerator.generate(packages)));
+        packIndex = parser.getPackIndex();
+        compactCatalog = CompactCatalog.from(packIndex);
+        rootCodes = new ArrayList<String>();
+        for (MapPack root : packIndex.getRoots()) {
+            rootCodes.add(root.getCode());
+        }
+
+        List<String> codes = new ArrayList<String>();
+        codes.add(null);
+        for (MapPack continent : packIndex.getRoots()) {
+            codes.add(continent.getCode());
+            List<MapPack> countries = packIndex.getChildren(continent.getCode());
+            for (int i = 0; i < countries.size(); i += Math.max(1, countries.size() / 10)) {
+                codes.add(countries.get(i).getCode());
+            }
+        }
+        parentCodes = codes.toArray(new String[codes.size()]);
+    }
+
+    private String nextParentCode() {
+        String code = parentCodes[next];
+        next = (next + 1) % parentCodes.length;
+        return code;
+    }
+
+    /**
+     * Building the index once per catalog, including the subtree sizes.
+     */
+    @Benchmark
+    public MapPackIndex buildIndex() {
+        return new MapPackIndex(packIndex.getPackMap(), rootCodes);
+    }
+
+    /**
+     * The former MapPackagesListActivity.searchByParentCode.
+     */
+    @Benchmark
+    public List<MapPack> fullScan() {
+        String parentCode = nextParentCode();
+        List<MapPack> results = new ArrayList<MapPack>();
+        for (MapPack pack : packIndex.getPackMap().values()) {
+            if (parentCode == null) {
+                if (pack.getParentCode() == null) {
+                    results.add(pack);
+                }
+            } else if (parentCode.equals(pack.getParentCode())) {
+                results.add(pack);
+            }
+        }
+        return results;
+    }
+
+    @Benchmark
+    public void packIndex(Blackhole blackhole) {
+        for (MapPack pack : packIndex.getChildren(nextParentCode())) {
+            blackhole.consume(pack.getName());
+        }
+    }
+
+    @Benchmark
+    public void compactCatalog(Blackhole blackhole) {
+        for (MapPackInfo pack : compactCatalog.getChildren(nextParentCode())) {
+            blackhole.consume(pack.getName());
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package org.hamm.h1kemaps.app.benchmark;
+
+import org.hamm.h1kemaps.app.model.MapPackIndex;
+import org.hamm.h1kemaps.app.util.MapDataParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of a generated Maps.xml including the hierarchy index, as done on a cold start of the
+ * package list.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CatalogParseBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int packages;
+
+    private byte[] xml;
+
+    @Setup
+    public void generateCatalog() {
+        xml = CatalogXmlGenerator.generate(packages);
+    }
+
+    @Benchmark
+    public MapPackIndex parse() throws Exception {
+        MapDataParser parser = new MapDataParser(null);
+        parser.parse(new ByteArrayInputStream(xml));
+        return parser.getPackIndex();
+    }
+}
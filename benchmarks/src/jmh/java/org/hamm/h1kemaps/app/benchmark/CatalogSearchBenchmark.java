@@ -0,0 +1,49 @@
+package org.hamm.h1kemaps.app.benchmark;
+
+import org.hamm.h1kemaps.app.model.MapPackInfo;
+import org.hamm.h1kemaps.app.util.CatalogSearchIndex;
+import org.hamm.h1kemaps.app.util.MapDataParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Type-ahead queries against the search index of a generated catalog: a short prefix with many
+ * matches, a longer word prefix, an exact code and a substring inside the names.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CatalogSearchBenchmark {
+
+    private static final int RESULT_LIMIT = 50;
+
+    @Param({"1000", "10000", "100000"})
+    public int packages;
+
+    @Param({"c", "c12", "c500s", "123s"})
+    public String query;
+
+    private CatalogSearchIndex searchIndex;
+
+    @Setup
+    public void buildIndex() throws Exception {
+        MapDataParser parser = new MapDataParser(null);
+        parser.parse(new ByteArrayInputStream(CatalogXmlGenerator.generate(packages)));
+        searchIndex = new CatalogSearchIndex(parser.getPackIndex());
+    }
+
+    @Benchmark
+    public List<MapPackInfo> search() {
+        return searchIndex.search(query, RESULT_LIMIT);
+    }
+}
@@ -0,0 +1,80 @@
+package org.hamm.h1kemaps.app.benchmark;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates Maps.xml files with the structure of the Skobbler catalog: a packages section with
+ * one record per package and a world section with the continent / country / state hierarchy.
+ */
+public final class CatalogXmlGenerator {
+
+    private static final String[] CONTINENTS = {"EUR", "NA", "SA", "AS", "AF", "OC"};
+
+    private static final int STATES_PER_COUNTRY = 5;
+
+    private CatalogXmlGenerator() {
+    }
+
+    /**
+     * @param packageCount = number of packages in the catalog.
+     * @return the UTF-8 encoded catalog.
+     */
+    public static byte[] generate(int packageCount) {
+        StringBuilder packages = new StringBuilder(packageCount * 300);
+        List<List<String>> countries = new ArrayList<List<String>>();
+        int count = 0;
+
+        for (String continent : CONTINENTS) {
+            appendPackage(packages, continent, "continent", count++);
+            countries.add(new ArrayList<String>());
+        }
+        StringBuilder[] worlds = new StringBuilder[CONTINENTS.length];
+        for (int i = 0; i < worlds.length; i++) {
+            worlds[i] = new StringBuilder();
+        }
+        for (int country = 0; count < packageCount; country++) {
+            int continent = country % CONTINENTS.length;
+            String countryCode = "C" + country;
+            appendPackage(packages, countryCode, "country", count++);
+            StringBuilder world = worlds[continent];
+            world.append('<').append(countryCode).append('>');
+            for (int state = 0; state < STATES_PER_COUNTRY && count < packageCount; state++) {
+                String stateCode = countryCode + "S" + state;
+                appendPackage(packages, stateCode, "state", count++);
+                world.append('<').append(stateCode).append("/>");
+            }
+            world.append("</").append(countryCode).append('>');
+        }
+
+        StringBuilder xml = new StringBuilder(packages.length() + packageCount * 20);
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<root>\n<packages>\n");
+        xml.append(packages);
+        xml.append("</packages>\n<world>\n");
+        for (int i = 0; i < CONTINENTS.length; i++) {
+            xml.append('<').append(CONTINENTS[i]).append('>').append(worlds[i])
+                    .append("</").append(CONTINENTS[i]).append(">\n");
+        }
+        xml.append("</world>\n</root>\n");
+        try {
+            return xml.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void appendPackage(StringBuilder xml, String code, String type, int index) {
+        xml.append('<').append(code).append('>')
+                .append("<type>").append(type).append("</type>")
+                .append("<languages><en>Name ").append(code).append("</en><de>Name ").append(code)
+                .append("</de></languages>")
+                .append("<size>").append(1000000 + index).append("</size>")
+                .append("<texture><file>").append(code).append(".txg</file><size>")
+                .append(5000 + index).append("</size></texture>")
+                .append("<bbox><latMax>").append(index % 80 + 5).append("</latMax><latMin>")
+                .append(index % 80).append("</latMin><longMax>").append(index % 170 + 5)
+                .append("</longMax><longMin>").append(index % 170).append("</longMin></bbox>")
+                .append("</").append(code).append(">\n");
+    }
+}
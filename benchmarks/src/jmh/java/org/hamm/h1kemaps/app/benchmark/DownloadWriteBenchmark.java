@@ -0,0 +1,117 @@
+package org.hamm.h1kemaps.app.benchmark;
+
+import org.hamm.h1kemaps.app.download.ChannelCopy;
+import org.hamm.h1kemaps.app.download.DirectBufferPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes a 16 MB body into a file the way the downloads do. heapArray is the former path of the
+ * download activity (a new 1 MB byte array per download and RandomAccessFile.write), pooledDirect
+ * copies through a pooled direct buffer into the FileChannel and transferFrom hands a file
+ * backed stream to the channel. Run with the gc profiler to compare the allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DownloadWriteBenchmark {
+
+    private static final int BODY_LENGTH = 16 * 1024 * 1024;
+
+    private static final int HEAP_BUFFER_SIZE = 1024 * 1024;
+
+    private static final int POOLED_BUFFER_SIZE = 64 * 1024;
+
+    private byte[] body;
+
+    private File source;
+
+    private File target;
+
+    private DirectBufferPool bufferPool;
+
+    @Setup
+    public void createFiles() throws IOException {
+        body = new byte[BODY_LENGTH];
+        new Random(42).nextBytes(body);
+        source = File.createTempFile("body", ".skm");
+        OutputStream output = new FileOutputStream(source);
+        try {
+            output.write(body);
+        } finally {
+            output.close();
+        }
+        target = File.createTempFile("download", ".skm");
+        bufferPool = new DirectBufferPool(POOLED_BUFFER_SIZE, 4);
+    }
+
+    @TearDown
+    public void deleteFiles() {
+        source.delete();
+        target.delete();
+    }
+
+    @Benchmark
+    public long heapArray() throws IOException {
+        InputStream input = new ByteArrayInputStream(body);
+        RandomAccessFile file = new RandomAccessFile(target, "rw");
+        try {
+            file.setLength(0);
+            byte[] buffer = new byte[HEAP_BUFFER_SIZE];
+            long length = 0;
+            int read;
+            while ((read = input.read(buffer)) >= 0) {
+                file.write(buffer, 0, read);
+                length += read;
+            }
+            return length;
+        } finally {
+            file.close();
+        }
+    }
+
+    @Benchmark
+    public long pooledDirect() throws IOException {
+        return copy(new ByteArrayInputStream(body));
+    }
+
+    @Benchmark
+    public long transferFrom() throws IOException {
+        InputStream input = new FileInputStream(source);
+        try {
+            return copy(input);
+        } finally {
+            input.close();
+        }
+    }
+
+    private long copy(InputStream input) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(target, "rw");
+        ByteBuffer buffer = bufferPool.acquire();
+        try {
+            file.setLength(0);
+            return ChannelCopy.copy(input, file.getChannel(), 0, -1, buffer, null, null);
+        } finally {
+            bufferPool.release(buffer);
+            file.close();
+        }
+    }
+}
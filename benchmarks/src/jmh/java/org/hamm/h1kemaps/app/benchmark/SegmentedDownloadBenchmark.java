@@ -0,0 +1,73 @@
+package org.hamm.h1kemaps.app.benchmark;
+
+import org.apache.http.client.HttpClient;
+import org.hamm.h1kemaps.app.download.PackageDownloadEngine;
+import org.hamm.h1kemaps.app.download.SegmentedDownloader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads an 8 MB map from a local server that limits every connection to 4 MB/s, on one
+ * connection and split into 2, 4 and 8 segments. With one segment the download takes about two
+ * seconds, the throughput grows with the number of segments.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class SegmentedDownloadBenchmark {
+
+    private static final int MAP_LENGTH = 8 * 1024 * 1024;
+
+    private static final int BYTES_PER_SECOND_PER_CONNECTION = 4 * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @Param({"1", "2", "4", "8"})
+    public int segments;
+
+    private ThrottledRangeServer server;
+
+    private SegmentedDownloader downloader;
+
+    private File target;
+
+    @Setup
+    public void startServer() throws IOException {
+        byte[] content = new byte[MAP_LENGTH];
+        new Random(42).nextBytes(content);
+        server = new ThrottledRangeServer(content, BYTES_PER_SECOND_PER_CONNECTION);
+        HttpClient httpClient = PackageDownloadEngine.createHttpClient(segments);
+        downloader = new SegmentedDownloader(httpClient, BUFFER_SIZE, segments);
+        downloader.setMinSegmentLength(1024 * 1024);
+        target = File.createTempFile("segmented", ".skm");
+    }
+
+    @TearDown
+    public void stopServer() throws IOException {
+        server.shutdown();
+        SegmentedDownloader.deleteDownload(target);
+    }
+
+    @Benchmark
+    public long download() throws IOException {
+        // a complete file would not be requested again
+        SegmentedDownloader.deleteDownload(target);
+        return downloader.download(server.url("/DE.skm"), target, null);
+    }
+}
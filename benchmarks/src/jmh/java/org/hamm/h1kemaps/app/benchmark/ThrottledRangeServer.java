@@ -0,0 +1,162 @@
+package org.hamm.h1kemaps.app.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Locale;
+
+/**
+ * Local HTTP server for the download benchmarks. It serves one resource with range support
+ * and limits every connection to a fixed bandwidth, like a map server whose single streams do
+ * not fill the link of the device.
+ */
+public class ThrottledRangeServer {
+
+    private static final String ETAG = "\"benchmark\"";
+
+    private final ServerSocket serverSocket;
+
+    private final byte[] content;
+
+    private final int bytesPerSecond;
+
+    private volatile boolean running = true;
+
+    /**
+     * @param content = body of the resource.
+     * @param bytesPerSecond = bandwidth of one connection, 0 for no limit.
+     */
+    public ThrottledRangeServer(byte[] content, int bytesPerSecond) throws IOException {
+        this.content = content;
+        this.bytesPerSecond = bytesPerSecond;
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread() {
+
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        Thread worker = new Thread() {
+
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        };
+                        worker.setDaemon(true);
+                        worker.start();
+                    } catch (IOException e) {
+                        // server socket closed
+                    }
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public String url(String path) {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + path;
+    }
+
+    public void shutdown() throws IOException {
+        running = false;
+        serverSocket.close();
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream input = new BufferedInputStream(socket.getInputStream());
+            OutputStream output = socket.getOutputStream();
+            while (running) {
+                String requestLine = readLine(input);
+                if (requestLine == null || requestLine.length() == 0) {
+                    break;
+                }
+                String range = null;
+                for (String line = readLine(input); line != null && line.length() > 0; line = readLine(input)) {
+                    if (line.toLowerCase(Locale.US).startsWith("range:")) {
+                        range = line.substring("range:".length()).trim();
+                    }
+                }
+                boolean head = requestLine.startsWith("HEAD ");
+                int start = 0;
+                int end = content.length - 1;
+                StringBuilder response = new StringBuilder();
+                if (range != null && range.startsWith("bytes=")) {
+                    String[] bounds = range.substring("bytes=".length()).split("-", -1);
+                    start = Integer.parseInt(bounds[0].trim());
+                    if (bounds[1].trim().length() > 0) {
+                        end = Math.min(Integer.parseInt(bounds[1].trim()), end);
+                    }
+                    response.append("HTTP/1.1 206 Partial Content\r\n");
+                    response.append("Content-Range: bytes ").append(start).append('-').append(end)
+                            .append('/').append(content.length).append("\r\n");
+                } else {
+                    response.append("HTTP/1.1 200 OK\r\n");
+                }
+                response.append("Content-Length: ").append(end - start + 1).append("\r\n");
+                response.append("Accept-Ranges: bytes\r\n");
+                response.append("ETag: ").append(ETAG).append("\r\n\r\n");
+                output.write(response.toString().getBytes("US-ASCII"));
+                if (!head) {
+                    writeBody(output, start, end + 1);
+                }
+                output.flush();
+            }
+        } catch (IOException e) {
+            // client went away
+        } catch (InterruptedException e) {
+            // benchmark ended
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Writes the bytes in slices of 20 ms of bandwidth.
+     */
+    private void writeBody(OutputStream output, int start, int end) throws IOException, InterruptedException {
+        int chunk = bytesPerSecond > 0 ? Math.max(1, bytesPerSecond / 50) : end - start;
+        long begin = System.nanoTime();
+        for (int position = start; position < end; position += chunk) {
+            int count = Math.min(chunk, end - position);
+            output.write(content, position, count);
+            if (bytesPerSecond > 0) {
+                // sleep until the bytes sent so far are due, so the rate does not drift
+                long due = begin + (position + count - start) * 1000000000L / bytesPerSecond;
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                }
+            }
+        }
+    }
+
+    private static String readLine(InputStream input) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = input.read()) >= 0) {
+            if (b == '\n') {
+                break;
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        if (b < 0 && line.size() == 0) {
+            return null;
+        }
+        return line.toString("US-ASCII");
+    }
+}